@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d.batik;
+
+import de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DPaintApplier;
+import org.apache.batik.ext.awt.LinearGradientPaint;
+import org.apache.batik.ext.awt.MultipleGradientPaint;
+import org.apache.batik.ext.awt.RadialGradientPaint;
+import org.apache.batik.ext.awt.image.CompositeRule;
+import org.apache.batik.ext.awt.image.SVGComposite;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.gvt.PatternPaint;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShading;
+
+import java.awt.*;
+import java.io.IOException;
+
+/**
+ * Paint applier for graphics drawn by Apache Batik. It handles the Batik gradients,
+ * pattern paints and composites with compiled code, instead of the reflection
+ * the {@link PdfBoxGraphics2DPaintApplier} has to use for them. All other paints
+ * are handled like by the {@link PdfBoxGraphics2DPaintApplier}.
+ * <p>
+ * Set it on the graphics before painting the SVG:
+ *
+ * <pre>
+ * pdfBoxGraphics2D.setPaintApplier(new PdfBoxGraphics2DBatikPaintApplier());
+ * graphicsNode.paint(pdfBoxGraphics2D);
+ * </pre>
+ * <p>
+ * NOTE: Objects of this class are stateful and *not* thread safe!
+ */
+public class PdfBoxGraphics2DBatikPaintApplier extends PdfBoxGraphics2DPaintApplier
+{
+    public PdfBoxGraphics2DBatikPaintApplier()
+    {
+        registerPaintHandler(LinearGradientPaint.class, new PaintHandler()
+        {
+            @Override
+            public PDShading applyPaint(Paint paint, PaintApplierState state) throws IOException
+            {
+                LinearGradientPaint linearGradientPaint = (LinearGradientPaint) paint;
+                GradientProperties gradient = toGradientProperties(linearGradientPaint);
+                gradient.startPoint = linearGradientPaint.getStartPoint();
+                gradient.endPoint = linearGradientPaint.getEndPoint();
+                return applyLinearGradient(gradient, state);
+            }
+        });
+        registerPaintHandler(RadialGradientPaint.class, new PaintHandler()
+        {
+            @Override
+            public PDShading applyPaint(Paint paint, PaintApplierState state) throws IOException
+            {
+                RadialGradientPaint radialGradientPaint = (RadialGradientPaint) paint;
+                GradientProperties gradient = toGradientProperties(radialGradientPaint);
+                gradient.centerPoint = radialGradientPaint.getCenterPoint();
+                gradient.focusPoint = radialGradientPaint.getFocusPoint();
+                gradient.radius = radialGradientPaint.getRadius();
+                return applyRadialGradient(gradient, state);
+            }
+        });
+        registerPaintHandler(PatternPaint.class, new PaintHandler()
+        {
+            @Override
+            public PDShading applyPaint(Paint paint, PaintApplierState state) throws IOException
+            {
+                PatternPaint patternPaint = (PatternPaint) paint;
+                final GraphicsNode graphicsNode = patternPaint.getGraphicsNode();
+                applyPatternPaint(patternPaint.getPatternRect(),
+                        patternPaint.getPatternTransform(), new PatternContent()
+                        {
+                            @Override
+                            public void paint(Graphics2D graphics)
+                            {
+                                graphicsNode.paint(graphics);
+                            }
+                        }, state);
+                return null;
+            }
+        });
+        registerCompositeHandler(SVGComposite.class, new CompositeHandler()
+        {
+            @Override
+            public void applyComposite(Composite composite, PaintApplierState state)
+            {
+                applySVGComposite(((SVGComposite) composite).getRule(), state);
+            }
+        });
+    }
+
+    private static GradientProperties toGradientProperties(MultipleGradientPaint paint)
+    {
+        GradientProperties gradient = new GradientProperties();
+        gradient.colors = paint.getColors();
+        gradient.fractions = paint.getFractions();
+        gradient.transform = paint.getTransform();
+        gradient.svgGradient = true;
+        return gradient;
+    }
+
+    /**
+     * Map the rule of a Batik composite to an AlphaComposite rule or a blend mode
+     */
+    private void applySVGComposite(CompositeRule rule, PaintApplierState state)
+    {
+        switch (rule.getRule())
+        {
+        case CompositeRule.RULE_IN:
+            applyAlphaComposite(1, AlphaComposite.SRC_IN, state);
+            break;
+        case CompositeRule.RULE_OUT:
+            applyAlphaComposite(1, AlphaComposite.SRC_OUT, state);
+            break;
+        case CompositeRule.RULE_ATOP:
+            applyAlphaComposite(1, AlphaComposite.SRC_ATOP, state);
+            break;
+        case CompositeRule.RULE_XOR:
+            applyAlphaComposite(1, AlphaComposite.XOR, state);
+            break;
+        case CompositeRule.RULE_MULTIPLY:
+            applyBlendMode(1, COSName.MULTIPLY, state);
+            break;
+        case CompositeRule.RULE_SCREEN:
+            applyBlendMode(1, COSName.SCREEN, state);
+            break;
+        case CompositeRule.RULE_DARKEN:
+            applyBlendMode(1, COSName.DARKEN, state);
+            break;
+        case CompositeRule.RULE_LIGHTEN:
+            applyBlendMode(1, COSName.LIGHTEN, state);
+            break;
+        default:
+            /*
+             * RULE_OVER, and RULE_ARITHMETIC, which PDF can not express
+             */
+            applyAlphaComposite(1, AlphaComposite.SRC_OVER, state);
+            break;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package de.rototor.pdfbox.graphics2d.batik;
+
+import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DPaintApplier;
+import de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DPaintApplier;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+import java.io.IOException;
+
+/**
+ * Time to draw the SVGs of the RenderSVGsTest with the reflection based
+ * {@link PdfBoxGraphics2DPaintApplier} versus the
+ * {@link PdfBoxGraphics2DBatikPaintApplier}. This is not run as part of the
+ * tests, start it by hand:
+ *
+ * <pre>
+ * mvn test-compile exec:java -pl graphics2d-batik -am -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=de.rototor.pdfbox.graphics2d.batik.BatikPaintApplierBenchmark
+ * </pre>
+ */
+public class BatikPaintApplierBenchmark
+{
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 20;
+
+    private interface PaintApplierFactory
+    {
+        IPdfBoxGraphics2DPaintApplier create();
+    }
+
+    private static long run(GraphicsNode graphicsNode, PaintApplierFactory factory, int rounds)
+            throws IOException
+    {
+        long bestTime = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++)
+        {
+            PDDocument document = new PDDocument();
+            long start = System.nanoTime();
+            PdfBoxGraphics2DBatikPaintApplierTest.render(document, graphicsNode,
+                    factory.create());
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            document.close();
+        }
+        return bestTime;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        PaintApplierFactory reflective = new PaintApplierFactory()
+        {
+            @Override
+            public IPdfBoxGraphics2DPaintApplier create()
+            {
+                return new PdfBoxGraphics2DPaintApplier();
+            }
+        };
+        PaintApplierFactory typed = new PaintApplierFactory()
+        {
+            @Override
+            public IPdfBoxGraphics2DPaintApplier create()
+            {
+                return new PdfBoxGraphics2DBatikPaintApplier();
+            }
+        };
+
+        System.out.printf("%-36s %12s %12s%n", "", "reflection", "batik");
+        for (String name : PdfBoxGraphics2DBatikPaintApplierTest.SVGS)
+        {
+            GraphicsNode graphicsNode = PdfBoxGraphics2DBatikPaintApplierTest.loadSVG(name);
+            run(graphicsNode, reflective, WARMUP_ROUNDS);
+            run(graphicsNode, typed, WARMUP_ROUNDS);
+            long reflectiveTime = run(graphicsNode, reflective, ROUNDS);
+            long typedTime = run(graphicsNode, typed, ROUNDS);
+            System.out.printf("%-36s %9d us %9d us%n", name, reflectiveTime / 1000,
+                    typedTime / 1000);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package de.rototor.pdfbox.graphics2d.batik;
+
+import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DPaintApplier;
+import de.rototor.pdfbox.graphics2d.PdfBoxGraphics2D;
+import de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DPaintApplier;
+import org.apache.batik.anim.dom.SAXSVGDocumentFactory;
+import org.apache.batik.bridge.BridgeContext;
+import org.apache.batik.bridge.DocumentLoader;
+import org.apache.batik.bridge.GVTBuilder;
+import org.apache.batik.bridge.UserAgent;
+import org.apache.batik.bridge.UserAgentAdapter;
+import org.apache.batik.ext.awt.image.CompositeRule;
+import org.apache.batik.ext.awt.image.SVGComposite;
+import org.apache.batik.gvt.GraphicsNode;
+import org.apache.batik.util.XMLResourceDescriptor;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DBatikPaintApplierTest
+{
+    /**
+     * The SVGs of the RenderSVGsTest of the graphics2d module
+     */
+    static final String[] SVGS = { "focalpoint_radial_sample.svg", "tux_colored.svg", "tux.svg",
+            "gradients.svg", "barChart.svg", "gump-bench.svg", "json.svg", "heart.svg",
+            "displayWebStats.svg", "compuserver_msn_Ford_Focus.svg", "watermark.svg",
+            "long-gradient.svg", "tall-gradient.svg", "near-square-gradient.svg",
+            "square-gradient.svg", "tall-gradient-downward-slope.svg", "horizontal-gradient.svg",
+            "atmospheric-composition.svg" };
+
+    private static final File SVG_DIR = new File(
+            "../graphics2d/src/test/resources/de/rototor/pdfbox/graphics2d");
+
+    static GraphicsNode loadSVG(String name) throws IOException
+    {
+        File file = new File(SVG_DIR, name);
+        String parser = XMLResourceDescriptor.getXMLParserClassName();
+        SAXSVGDocumentFactory f = new SAXSVGDocumentFactory(parser);
+        Document document = f.createDocument(file.toURI().toString());
+
+        UserAgent userAgent = new UserAgentAdapter();
+        DocumentLoader loader = new DocumentLoader(userAgent);
+        BridgeContext bctx = new BridgeContext(userAgent, loader);
+        bctx.setDynamicState(BridgeContext.STATIC);
+        return new GVTBuilder().build(bctx, document);
+    }
+
+    static PDFormXObject render(PDDocument document, GraphicsNode graphicsNode,
+            IPdfBoxGraphics2DPaintApplier paintApplier) throws IOException
+    {
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 400, 400);
+        pdfBoxGraphics2D.setPaintApplier(paintApplier);
+        graphicsNode.paint(pdfBoxGraphics2D);
+        pdfBoxGraphics2D.dispose();
+        return pdfBoxGraphics2D.getXFormObject();
+    }
+
+    private static byte[] contents(PDFormXObject xFormObject) throws IOException
+    {
+        InputStream in = xFormObject.getContents();
+        try
+        {
+            return IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSameResultAsReflection() throws IOException
+    {
+        for (String name : SVGS)
+        {
+            GraphicsNode graphicsNode = loadSVG(name);
+            PDDocument document = new PDDocument();
+            PDFormXObject reflective = render(document, graphicsNode,
+                    new PdfBoxGraphics2DPaintApplier());
+            PDFormXObject typed = render(document, graphicsNode,
+                    new PdfBoxGraphics2DBatikPaintApplier());
+            assertArrayEquals(name, contents(reflective), contents(typed));
+            assertEquals(name, reflective.getResources().getCOSObject().size(),
+                    typed.getResources().getCOSObject().size());
+            document.close();
+        }
+    }
+
+    @Test
+    public void testSVGComposite() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        pdfBoxGraphics2D.setPaintApplier(new PdfBoxGraphics2DBatikPaintApplier());
+        pdfBoxGraphics2D.setColor(Color.RED);
+        pdfBoxGraphics2D.fillRect(0, 0, 100, 100);
+        pdfBoxGraphics2D.setComposite(SVGComposite.MULTIPLY);
+        pdfBoxGraphics2D.setColor(Color.BLUE);
+        pdfBoxGraphics2D.fillRect(50, 0, 50, 100);
+        pdfBoxGraphics2D.dispose();
+
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        boolean multiply = false;
+        for (COSName name : resources.getExtGStateNames())
+        {
+            if (COSName.MULTIPLY.equals(resources.getExtGState(name).getCOSObject()
+                    .getDictionaryObject(COSName.BM)))
+                multiply = true;
+        }
+        assertTrue(multiply);
+        document.close();
+    }
+
+    /**
+     * @return the blend modes of the ExtGStates written when filling with the
+     * composite
+     */
+    private static Set<COSName> blendModes(Composite composite) throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        pdfBoxGraphics2D.setPaintApplier(new PdfBoxGraphics2DBatikPaintApplier());
+        pdfBoxGraphics2D.setComposite(composite);
+        pdfBoxGraphics2D.setColor(Color.BLUE);
+        pdfBoxGraphics2D.fillRect(0, 0, 50, 100);
+        pdfBoxGraphics2D.dispose();
+
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        Set<COSName> blendModes = new HashSet<COSName>();
+        for (COSName name : resources.getExtGStateNames())
+            blendModes.add((COSName) resources.getExtGState(name).getCOSObject()
+                    .getDictionaryObject(COSName.BM));
+        document.close();
+        return blendModes;
+    }
+
+    @Test
+    public void testSVGCompositeBlendModes() throws IOException
+    {
+        Composite[] composites = { SVGComposite.MULTIPLY, SVGComposite.SCREEN,
+                SVGComposite.DARKEN, SVGComposite.LIGHTEN, SVGComposite.XOR, SVGComposite.IN,
+                SVGComposite.OUT, SVGComposite.ATOP, SVGComposite.OVER,
+                new SVGComposite(CompositeRule.ARITHMETIC(0.5f, 0.5f, 0, 0)) };
+        COSName[] expected = { COSName.MULTIPLY, COSName.SCREEN, COSName.DARKEN,
+                COSName.LIGHTEN, COSName.EXCLUSION, COSName.COMPATIBLE, COSName.COMPATIBLE,
+                COSName.COMPATIBLE, COSName.COMPATIBLE, COSName.COMPATIBLE };
+        for (int i = 0; i < composites.length; i++)
+        {
+            Set<COSName> blendModes = blendModes(composites[i]);
+            assertEquals(String.valueOf(((SVGComposite) composites[i]).getRule()), 1,
+                    blendModes.size());
+            assertEquals(String.valueOf(((SVGComposite) composites[i]).getRule()),
+                    expected[i], blendModes.iterator().next());
+        }
+    }
+}
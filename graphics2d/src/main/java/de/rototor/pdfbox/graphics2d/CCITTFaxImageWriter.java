@@ -0,0 +1,389 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes black and white images as CCITT Group 4 (T.6) compressed streams. For
+ * scans, signatures and text this is several times smaller than Flate on the
+ * 1 bit samples. The rows are encoded one by one while they are read, without
+ * any full size buffer.
+ * <p>
+ * A binary alpha channel is written as CCITT compressed /Mask, too. Images
+ * which compress badly with G4 (e.g. dithered halftones) are rejected, so
+ * that the caller can fall back to Flate.
+ */
+final class CCITTFaxImageWriter
+{
+    /*
+     * The code tables of ITU-T T.4, as bit strings. The make up codes start at
+     * 64 and go up in steps of 64.
+     */
+    private static final String[] WHITE_TERMINATING = { "00110101", "000111", "0111", "1000",
+            "1011", "1100", "1110", "1111", "10011", "10100", "00111", "01000", "001000",
+            "000011", "110100", "110101", "101010", "101011", "0100111", "0001100", "0001000",
+            "0010111", "0000011", "0000100", "0101000", "0101011", "0010011", "0100100",
+            "0011000", "00000010", "00000011", "00011010", "00011011", "00010010", "00010011",
+            "00010100", "00010101", "00010110", "00010111", "00101000", "00101001", "00101010",
+            "00101011", "00101100", "00101101", "00000100", "00000101", "00001010", "00001011",
+            "01010010", "01010011", "01010100", "01010101", "00100100", "00100101", "01011000",
+            "01011001", "01011010", "01011011", "01001010", "01001011", "00110010", "00110011",
+            "00110100" };
+    private static final String[] WHITE_MAKE_UP = { "11011", "10010", "010111", "0110111",
+            "00110110", "00110111", "01100100", "01100101", "01101000", "01100111", "011001100",
+            "011001101", "011010010", "011010011", "011010100", "011010101", "011010110",
+            "011010111", "011011000", "011011001", "011011010", "011011011", "010011000",
+            "010011001", "010011010", "011000", "010011011" };
+    private static final String[] BLACK_TERMINATING = { "0000110111", "010", "11", "10", "011",
+            "0011", "0010", "00011", "000101", "000100", "0000100", "0000101", "0000111",
+            "00000100", "00000111", "000011000", "0000010111", "0000011000", "0000001000",
+            "00001100111", "00001101000", "00001101100", "00000110111", "00000101000",
+            "00000010111", "00000011000", "000011001010", "000011001011", "000011001100",
+            "000011001101", "000001101000", "000001101001", "000001101010", "000001101011",
+            "000011010010", "000011010011", "000011010100", "000011010101", "000011010110",
+            "000011010111", "000001101100", "000001101101", "000011011010", "000011011011",
+            "000001010100", "000001010101", "000001010110", "000001010111", "000001100100",
+            "000001100101", "000001010010", "000001010011", "000000100100", "000000110111",
+            "000000111000", "000000100111", "000000101000", "000001011000", "000001011001",
+            "000000101011", "000000101100", "000001011010", "000001100110", "000001100111" };
+    private static final String[] BLACK_MAKE_UP = { "0000001111", "000011001000",
+            "000011001001", "000001011011", "000000110011", "000000110100", "000000110101",
+            "0000001101100", "0000001101101", "0000001001010", "0000001001011", "0000001001100",
+            "0000001001101", "0000001110010", "0000001110011", "0000001110100", "0000001110101",
+            "0000001110110", "0000001110111", "0000001010010", "0000001010011", "0000001010100",
+            "0000001010101", "0000001011010", "0000001011011", "0000001100100",
+            "0000001100101" };
+    /**
+     * The make up codes from 1792 to 2560, the same for white and black
+     */
+    private static final String[] EXTENDED_MAKE_UP = { "00000001000", "00000001100",
+            "00000001101", "000000010010", "000000010011", "000000010100", "000000010101",
+            "000000010110", "000000010111", "000000011100", "000000011101", "000000011110",
+            "000000011111" };
+    private static final int MAX_MAKE_UP = 2560;
+
+    /**
+     * Codes of the vertical modes, for a1 - b1 from -3 to 3
+     */
+    private static final String[] VERTICAL = { "0000010", "000010", "010", "1", "011",
+            "000011", "0000011" };
+    private static final String PASS = "0001";
+    private static final String HORIZONTAL = "001";
+    private static final String END_OF_LINE = "000000000001";
+
+    /**
+     * Codes packed as (code << 8 | bit count)
+     */
+    private static final int[] WHITE_CODES = packCodes(WHITE_TERMINATING, WHITE_MAKE_UP);
+    private static final int[] BLACK_CODES = packCodes(BLACK_TERMINATING, BLACK_MAKE_UP);
+    private static final int[] VERTICAL_CODES = packCodes(VERTICAL);
+    private static final int PASS_CODE = packCode(PASS);
+    private static final int HORIZONTAL_CODE = packCode(HORIZONTAL);
+    private static final int END_OF_LINE_CODE = packCode(END_OF_LINE);
+
+    private CCITTFaxImageWriter()
+    {
+    }
+
+    /**
+     * Write an image which only contains black and white pixels and at most a
+     * binary alpha channel.
+     *
+     * @param withMask true if the image has transparent pixels, which are then
+     *                 written as /Mask.
+     * @return the image, or null if G4 does not compress the image well.
+     */
+    static PDImageXObject write(PDDocument document, ImageRowReader reader, boolean withMask)
+            throws IOException
+    {
+        int width = reader.width;
+        int height = reader.height;
+        int[] row = new int[width];
+        boolean[] black = new boolean[width];
+        RowEncoder colorEncoder = new RowEncoder(document, width);
+        RowEncoder maskEncoder = withMask ? new RowEncoder(document, width) : null;
+        try
+        {
+            for (int y = 0; y < height; y++)
+            {
+                reader.readARGB(y, row);
+                boolean previous = false;
+                for (int x = 0; x < width; x++)
+                {
+                    /*
+                     * The color of transparent pixels does not matter, so they continue the
+                     * current run.
+                     */
+                    if (row[x] >>> 24 >= 0x80)
+                        previous = (row[x] & 0x80) == 0;
+                    black[x] = previous;
+                }
+                colorEncoder.writeRow(black);
+                if (maskEncoder != null)
+                {
+                    /*
+                     * Black (0) samples of the mask are painted
+                     */
+                    for (int x = 0; x < width; x++)
+                        black[x] = row[x] >>> 24 >= 0x80;
+                    maskEncoder.writeRow(black);
+                }
+            }
+        }
+        finally
+        {
+            colorEncoder.close();
+            if (maskEncoder != null)
+                maskEncoder.close();
+        }
+
+        /*
+         * G4 expands noisy images. Those are better off with Flate.
+         */
+        long packedSize = (long) (width + 7) / 8 * height * (withMask ? 2 : 1);
+        long encodedSize = colorEncoder.stream.getLength() + (maskEncoder == null ?
+                0 :
+                maskEncoder.stream.getLength());
+        if (encodedSize > packedSize)
+        {
+            colorEncoder.stream.close();
+            if (maskEncoder != null)
+                maskEncoder.stream.close();
+            return null;
+        }
+
+        PDImageXObject imageXObject = colorEncoder.toImage(width, height,
+                PDDeviceGray.INSTANCE);
+        if (maskEncoder != null)
+            imageXObject.getCOSObject().setItem(COSName.MASK,
+                    maskEncoder.toImage(width, height, null));
+        return imageXObject;
+    }
+
+    private static int[] packCodes(String[] terminating, String[] makeUp)
+    {
+        /*
+         * Index 0 - 63 are the terminating codes, 64 + n the make up code of
+         * (n + 1) * 64
+         */
+        int[] codes = new int[64 + MAX_MAKE_UP / 64];
+        for (int i = 0; i < terminating.length; i++)
+            codes[i] = packCode(terminating[i]);
+        for (int i = 0; i < makeUp.length; i++)
+            codes[64 + i] = packCode(makeUp[i]);
+        for (int i = 0; i < EXTENDED_MAKE_UP.length; i++)
+            codes[64 + makeUp.length + i] = packCode(EXTENDED_MAKE_UP[i]);
+        return codes;
+    }
+
+    private static int[] packCodes(String[] codes)
+    {
+        int[] packed = new int[codes.length];
+        for (int i = 0; i < codes.length; i++)
+            packed[i] = packCode(codes[i]);
+        return packed;
+    }
+
+    private static int packCode(String code)
+    {
+        return Integer.parseInt(code, 2) << 8 | code.length();
+    }
+
+    /**
+     * Encodes the rows of one image stream. Every row is coded relative to the
+     * previous row (the reference row), the first row relative to an imaginary
+     * white row.
+     */
+    private static final class RowEncoder
+    {
+        private final COSStream stream;
+        private final OutputStream out;
+        private final int width;
+        private final byte[] buffer = new byte[8192];
+        private int bufferLength;
+        private long bits;
+        private int bitCount;
+        /**
+         * The positions of the changing elements of the current and the reference
+         * row, followed by the width as end marker.
+         */
+        private int[] changes;
+        private int[] referenceChanges;
+
+        RowEncoder(PDDocument document, int width) throws IOException
+        {
+            this.stream = document.getDocument().createCOSStream();
+            this.out = stream.createRawOutputStream();
+            this.width = width;
+            this.changes = new int[width + 3];
+            this.referenceChanges = new int[width + 3];
+            Arrays.fill(referenceChanges, width);
+        }
+
+        /**
+         * @param black true for the black pixels, which become 0 samples.
+         */
+        void writeRow(boolean[] black) throws IOException
+        {
+            int count = 0;
+            boolean color = false;
+            for (int x = 0; x < width; x++)
+            {
+                if (black[x] != color)
+                {
+                    changes[count++] = x;
+                    color = black[x];
+                }
+            }
+            Arrays.fill(changes, count, changes.length, width);
+
+            /*
+             * a0 is the current position, starting on an imaginary white pixel before
+             * the row. b1 is the next changing element on the reference row whose
+             * color differs from the color at a0. Changes at an even index switch to
+             * black.
+             */
+            int a0 = -1;
+            boolean white = true;
+            int current = 0;
+            int reference = 0;
+            while (a0 < width)
+            {
+                while (changes[current] <= a0)
+                    current++;
+                int a1 = changes[current];
+                while (reference > 0 && referenceChanges[reference - 1] > a0)
+                    reference--;
+                while (referenceChanges[reference] <= a0 || (reference & 1) != (white ? 0 : 1))
+                    reference++;
+                int b1 = referenceChanges[reference];
+                int b2 = referenceChanges[reference + 1];
+                if (b2 < a1)
+                {
+                    writeCode(PASS_CODE);
+                    a0 = b2;
+                }
+                else if (Math.abs(a1 - b1) <= 3)
+                {
+                    writeCode(VERTICAL_CODES[a1 - b1 + 3]);
+                    a0 = a1;
+                    white = !white;
+                }
+                else
+                {
+                    int a2 = changes[current + 1];
+                    writeCode(HORIZONTAL_CODE);
+                    writeRun(a1 - Math.max(a0, 0), white);
+                    writeRun(a2 - a1, !white);
+                    a0 = a2;
+                }
+            }
+
+            int[] swap = referenceChanges;
+            referenceChanges = changes;
+            changes = swap;
+        }
+
+        private void writeRun(int length, boolean white) throws IOException
+        {
+            int[] codes = white ? WHITE_CODES : BLACK_CODES;
+            while (length > MAX_MAKE_UP)
+            {
+                writeCode(codes[codes.length - 1]);
+                length -= MAX_MAKE_UP;
+            }
+            if (length >= 64)
+            {
+                writeCode(codes[63 + length / 64]);
+                length %= 64;
+            }
+            writeCode(codes[length]);
+        }
+
+        private void writeCode(int code) throws IOException
+        {
+            int length = code & 0xFF;
+            bits = bits << length | code >>> 8;
+            bitCount += length;
+            while (bitCount >= 8)
+            {
+                bitCount -= 8;
+                if (bufferLength == buffer.length)
+                {
+                    out.write(buffer);
+                    bufferLength = 0;
+                }
+                buffer[bufferLength++] = (byte) (bits >>> bitCount);
+            }
+        }
+
+        void close() throws IOException
+        {
+            try
+            {
+                /*
+                 * End of facsimile block, padded with 0 bits to a full byte
+                 */
+                writeCode(END_OF_LINE_CODE);
+                writeCode(END_OF_LINE_CODE);
+                if (bitCount > 0)
+                    writeCode(8 - bitCount);
+                out.write(buffer, 0, bufferLength);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
+        /**
+         * @param colorSpace the color space, or null for a stencil mask.
+         */
+        PDImageXObject toImage(int width, int height, PDColorSpace colorSpace)
+                throws IOException
+        {
+            stream.setItem(COSName.TYPE, COSName.XOBJECT);
+            stream.setItem(COSName.SUBTYPE, COSName.IMAGE);
+            stream.setItem(COSName.FILTER, COSName.CCITTFAX_DECODE);
+            COSDictionary decodeParms = new COSDictionary();
+            decodeParms.setInt(COSName.K, -1);
+            decodeParms.setInt(COSName.COLUMNS, width);
+            decodeParms.setInt(COSName.ROWS, height);
+            stream.setItem(COSName.DECODE_PARMS, decodeParms);
+            PDImageXObject imageXObject = new PDImageXObject(new PDStream(stream), null);
+            imageXObject.setWidth(width);
+            imageXObject.setHeight(height);
+            imageXObject.setBitsPerComponent(1);
+            if (colorSpace == null)
+                stream.setBoolean(COSName.IMAGE_MASK, true);
+            else
+                imageXObject.setColorSpace(colorSpace);
+            return imageXObject;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares COS object trees by their structure, i.e. by their content instead of
+ * their identity.
+ */
+final class COSStructure
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private COSStructure()
+    {
+    }
+
+    /**
+     * Nesting depth up to which {@link #hash(COSBase)} looks into the tree
+     */
+    private static final int MAX_HASH_DEPTH = 6;
+
+    /**
+     * Compare two trees entry by entry. Streams are compared like dictionaries, i.e.
+     * without their data, and indirect objects by identity.
+     */
+    static boolean equals(COSBase item, COSBase item2)
+    {
+        if (item == item2)
+            return true;
+        if (item == null)
+            return false;
+        if (item2 == null)
+            return false;
+        /*
+         * Can the items be compared directly?
+         */
+        if (item.equals(item2))
+            return true;
+
+        if (item instanceof COSDictionary && item2 instanceof COSDictionary)
+            return equalsCOSDictionary((COSDictionary) item, (COSDictionary) item2);
+
+        // noinspection SimplifiableIfStatement
+        if (item instanceof COSArray && item2 instanceof COSArray)
+            return equalsCOSArray((COSArray) item, (COSArray) item2);
+
+        return false;
+    }
+
+    private static boolean equalsCOSDictionary(COSDictionary cosDictionary,
+            COSDictionary cosDictionary1)
+    {
+        if (cosDictionary.size() != cosDictionary1.size())
+            return false;
+        for (COSName name : cosDictionary.keySet())
+        {
+            COSBase item = cosDictionary.getItem(name);
+            COSBase item2 = cosDictionary1.getItem(name);
+            if (!equals(item, item2))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsCOSArray(COSArray item, COSArray item2)
+    {
+        if (item.size() != item2.size())
+            return false;
+        for (int i = 0; i < item.size(); i++)
+        {
+            COSBase i1 = item.getObject(i);
+            COSBase i2 = item2.getObject(i);
+            if (!equals(i1, i2))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Nesting depth up to which {@link #isPlain(COSBase)} looks into the tree
+     */
+    private static final int MAX_PLAIN_DEPTH = 16;
+
+    /**
+     * @return true if the tree consists of direct objects without streams, i.e. if
+     * {@link #equals(COSBase, COSBase)} compares it completely.
+     */
+    static boolean isPlain(COSBase base)
+    {
+        return isPlain(base, 0);
+    }
+
+    private static boolean isPlain(COSBase base, int depth)
+    {
+        if (base instanceof COSObject || base instanceof COSStream)
+            return false;
+        if (base instanceof COSDictionary)
+        {
+            if (depth >= MAX_PLAIN_DEPTH)
+                return false;
+            for (COSBase value : ((COSDictionary) base).getValues())
+                if (!isPlain(value, depth + 1))
+                    return false;
+        }
+        else if (base instanceof COSArray)
+        {
+            if (depth >= MAX_PLAIN_DEPTH)
+                return false;
+            COSArray array = (COSArray) base;
+            for (int i = 0; i < array.size(); i++)
+                if (!isPlain(array.get(i), depth + 1))
+                    return false;
+        }
+        return true;
+    }
+
+    /**
+     * A hash code consistent with {@link #equals(COSBase, COSBase)}. It covers the
+     * names, numbers, strings and the nested arrays and dictionaries up to
+     * {@link #MAX_HASH_DEPTH}, so trees differing only deeper than this collide.
+     */
+    static int hash(COSBase base)
+    {
+        return hash(base, 0);
+    }
+
+    private static int hash(COSBase base, int depth)
+    {
+        if (base == null)
+            return 0;
+        if (base instanceof COSDictionary)
+        {
+            COSDictionary dictionary = (COSDictionary) base;
+            int hash = 0x44 + dictionary.size();
+            if (depth >= MAX_HASH_DEPTH)
+                return hash;
+            /*
+             * The entries are summed up, as their order does not matter
+             */
+            for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet())
+                hash += entry.getKey().hashCode() * 31 ^ hash(entry.getValue(), depth + 1);
+            return hash;
+        }
+        if (base instanceof COSArray)
+        {
+            COSArray array = (COSArray) base;
+            int hash = 0x41 + array.size();
+            if (depth >= MAX_HASH_DEPTH)
+                return hash;
+            for (int i = 0; i < array.size(); i++)
+                hash = hash * 31 + hash(array.getObject(i), depth + 1);
+            return hash;
+        }
+        /*
+         * Names, numbers and strings hash by value, all others by identity
+         */
+        return base.hashCode();
+    }
+
+    /**
+     * Hash map key for a tree, compared by {@link #equals(COSBase, COSBase)}. The
+     * tree must not be changed while it is used as key.
+     */
+    static final class Key
+    {
+        private final COSBase base;
+        private final int hash;
+
+        Key(COSBase base)
+        {
+            this.base = base;
+            this.hash = COSStructure.hash(base);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return other.hash == hash && COSStructure.equals(other.base, base);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    /**
+     * A SHA-256 digest over the whole tree, including the decoded data of the
+     * streams. Two trees with the same digest are equal.
+     *
+     * @return the digest, usable as key of a hash map.
+     */
+    static ByteBuffer digest(COSBase base) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        digest(digest, base, new IdentityHashMap<COSBase, Integer>());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private static void digest(MessageDigest digest, COSBase base,
+            Map<COSBase, Integer> visiting) throws IOException
+    {
+        if (base instanceof COSObject)
+            base = ((COSObject) base).getObject();
+        if (base == null || base instanceof COSNull)
+        {
+            digest.update((byte) 'n');
+            return;
+        }
+        if (base instanceof COSName)
+        {
+            digest.update((byte) '/');
+            digestBytes(digest, ((COSName) base).getName().getBytes(UTF8));
+        }
+        else if (base instanceof COSInteger)
+        {
+            digest.update((byte) 'i');
+            digestLong(digest, ((COSInteger) base).longValue());
+        }
+        else if (base instanceof COSFloat)
+        {
+            digest.update((byte) 'f');
+            digestLong(digest, Float.floatToIntBits(((COSFloat) base).floatValue()));
+        }
+        else if (base instanceof COSBoolean)
+        {
+            digest.update((byte) (((COSBoolean) base).getValue() ? 't' : 'b'));
+        }
+        else if (base instanceof COSString)
+        {
+            digest.update((byte) 's');
+            digestBytes(digest, ((COSString) base).getBytes());
+        }
+        else if (base instanceof COSArray || base instanceof COSDictionary)
+        {
+            /*
+             * A reference back to an object we are in refers to its nesting depth
+             */
+            Integer depth = visiting.get(base);
+            if (depth != null)
+            {
+                digest.update((byte) 'r');
+                digestLong(digest, depth);
+                return;
+            }
+            visiting.put(base, visiting.size());
+            if (base instanceof COSArray)
+            {
+                COSArray array = (COSArray) base;
+                digest.update((byte) '[');
+                digestLong(digest, array.size());
+                for (int i = 0; i < array.size(); i++)
+                    digest(digest, array.get(i), visiting);
+            }
+            else
+            {
+                digestDictionary(digest, (COSDictionary) base, visiting);
+            }
+            visiting.remove(base);
+        }
+        else
+        {
+            throw new IOException("Unknown COS object " + base);
+        }
+    }
+
+    private static void digestDictionary(MessageDigest digest, COSDictionary dictionary,
+            Map<COSBase, Integer> visiting) throws IOException
+    {
+        boolean stream = dictionary instanceof COSStream;
+        List<COSName> keys = new ArrayList<COSName>(dictionary.keySet());
+        if (stream)
+        {
+            /*
+             * We compare the decoded data, so how it is encoded does not matter
+             */
+            keys.remove(COSName.LENGTH);
+            keys.remove(COSName.FILTER);
+            keys.remove(COSName.DECODE_PARMS);
+        }
+        Collections.sort(keys);
+        digest.update((byte) (stream ? 'S' : 'd'));
+        digestLong(digest, keys.size());
+        for (COSName key : keys)
+        {
+            digestBytes(digest, key.getName().getBytes(UTF8));
+            digest(digest, dictionary.getItem(key), visiting);
+        }
+        if (stream)
+        {
+            byte[] buffer = new byte[8192];
+            long length = 0;
+            InputStream in = ((COSStream) dictionary).createInputStream();
+            try
+            {
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                {
+                    digest.update(buffer, 0, read);
+                    length += read;
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+            digestLong(digest, length);
+        }
+    }
+
+    private static void digestBytes(MessageDigest digest, byte[] bytes)
+    {
+        digestLong(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void digestLong(MessageDigest digest, long value)
+    {
+        for (int shift = 56; shift >= 0; shift -= 8)
+            digest.update((byte) (value >>> shift));
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Parses the headers of JPEG and PNG files and embeds their compressed data
+ * directly as PDF image, see {@link PdfBoxGraphics2DEncodedImage}.
+ */
+final class EncodedImageWriter
+{
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A,
+            '\n' };
+
+    private static final int PNG_COLOR_GRAY = 0;
+    private static final int PNG_COLOR_RGB = 2;
+    private static final int PNG_COLOR_PALETTE = 3;
+
+    enum Format
+    {
+        JPEG, PNG
+    }
+
+    /**
+     * The information about the file we need to embed it.
+     */
+    static final class Header
+    {
+        Format format;
+        int width;
+        int height;
+        int bitsPerComponent;
+        int colorComponents;
+
+        /**
+         * The ICC profile of the file, or null.
+         */
+        byte[] iccProfile;
+
+        /**
+         * JPEG: The SOF marker and if there is an Adobe APP14 marker
+         */
+        int frameMarker;
+        boolean adobe;
+
+        /**
+         * PNG: color type, interlacing, palette (as RGB ints), transparency and the
+         * offset/length pairs of the IDAT chunks.
+         */
+        int colorType;
+        int interlace;
+        int[] palette;
+        boolean transparency;
+        final List<int[]> dataChunks = new ArrayList<int[]>();
+    }
+
+    private EncodedImageWriter()
+    {
+    }
+
+    static Header readHeader(byte[] data) throws IOException
+    {
+        Header header;
+        if (data.length > 2 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8)
+            header = readJPEGHeader(data);
+        else if (startsWith(data, PNG_SIGNATURE))
+            header = readPNGHeader(data);
+        else
+            throw new IOException("Not a JPEG or PNG file");
+        if (header.width <= 0 || header.height <= 0)
+            throw new IOException("Invalid image size " + header.width + "x" + header.height);
+        if (header.iccProfile != null
+                && getProfileComponents(header.iccProfile) != header.colorComponents)
+        {
+            /*
+             * E.g. a RGB profile of a palette PNG. The palette colors are already RGB.
+             */
+            header.iccProfile = null;
+        }
+        return header;
+    }
+
+    /**
+     * Embed the compressed data of the image.
+     *
+     * @return the image, or null if the data can not be embedded directly. The
+     * ICC profile of the header still needs to be applied.
+     */
+    static PDImageXObject write(PDDocument document, PdfBoxGraphics2DEncodedImage image)
+            throws IOException
+    {
+        Header header = image.header;
+        if (header.format == Format.JPEG)
+            return writeJPEG(document, image.getData(), header);
+        return writePNG(document, image.getData(), header);
+    }
+
+    private static PDImageXObject writeJPEG(PDDocument document, byte[] data, Header header)
+            throws IOException
+    {
+        /*
+         * Only baseline, extended and progressive Huffman coded JPEGs are supported by
+         * the DCTDecode filter.
+         */
+        if (header.frameMarker > 0xC2 || header.bitsPerComponent != 8)
+            return null;
+        PDColorSpace colorSpace;
+        switch (header.colorComponents)
+        {
+        case 1:
+            colorSpace = PDDeviceGray.INSTANCE;
+            break;
+        case 3:
+            colorSpace = PDDeviceRGB.INSTANCE;
+            break;
+        case 4:
+            colorSpace = PDDeviceCMYK.INSTANCE;
+            break;
+        default:
+            return null;
+        }
+        PDImageXObject imageXObject = new PDImageXObject(document, new ByteArrayInputStream(data),
+                COSName.DCT_DECODE, header.width, header.height, 8, colorSpace);
+        if (header.colorComponents == 4 && header.adobe)
+        {
+            /*
+             * Adobe applications write CMYK JPEGs inverted
+             */
+            COSArray decode = new COSArray();
+            for (int i = 0; i < 4; i++)
+            {
+                decode.add(COSInteger.ONE);
+                decode.add(COSInteger.ZERO);
+            }
+            imageXObject.setDecode(decode);
+        }
+        return imageXObject;
+    }
+
+    private static PDImageXObject writePNG(PDDocument document, byte[] data, Header header)
+            throws IOException
+    {
+        if (header.interlace != 0 || header.transparency)
+            return null;
+        PDColorSpace colorSpace;
+        switch (header.colorType)
+        {
+        case PNG_COLOR_GRAY:
+            colorSpace = PDDeviceGray.INSTANCE;
+            break;
+        case PNG_COLOR_RGB:
+            colorSpace = PDDeviceRGB.INSTANCE;
+            break;
+        case PNG_COLOR_PALETTE:
+            if (header.palette == null)
+                return null;
+            colorSpace = ImageColorReducer.createIndexed(header.palette);
+            break;
+        default:
+            /*
+             * The alpha channel is interleaved with the colors, we would have to decode
+             * the image to split it.
+             */
+            return null;
+        }
+
+        COSStream stream = document.getDocument().createCOSStream();
+        OutputStream out = stream.createRawOutputStream();
+        try
+        {
+            for (int[] chunk : header.dataChunks)
+                out.write(data, chunk[0], chunk[1]);
+        }
+        finally
+        {
+            out.close();
+        }
+        return FlateImageWriter.toImage(stream, header.width, header.height,
+                header.bitsPerComponent, header.colorComponents, colorSpace, true);
+    }
+
+    private static Header readJPEGHeader(byte[] data) throws IOException
+    {
+        Header header = new Header();
+        header.format = Format.JPEG;
+        ByteArrayOutputStream profile = null;
+        int pos = 2;
+        while (pos + 4 <= data.length)
+        {
+            if ((data[pos] & 0xFF) != 0xFF)
+                throw new IOException("Invalid JPEG marker at " + pos);
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF)
+            {
+                /*
+                 * Fill byte
+                 */
+                pos++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8))
+            {
+                pos += 2;
+                continue;
+            }
+            int length = readUnsignedShort(data, pos + 2);
+            int segment = pos + 4;
+            if (segment + length - 2 > data.length)
+                throw new IOException("Truncated JPEG file");
+            if (marker == 0xEE && length >= 14 && startsWith(data, segment, "Adobe"))
+            {
+                header.adobe = true;
+            }
+            else if (marker == 0xE2 && length > 16 && startsWith(data, segment, "ICC_PROFILE\0"))
+            {
+                /*
+                 * The profile may be split into multiple segments, which are written in
+                 * order.
+                 */
+                if (profile == null)
+                    profile = new ByteArrayOutputStream();
+                profile.write(data, segment + 14, length - 16);
+            }
+            else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8
+                    && marker != 0xCC)
+            {
+                header.frameMarker = marker;
+                header.bitsPerComponent = data[segment] & 0xFF;
+                header.height = readUnsignedShort(data, segment + 1);
+                header.width = readUnsignedShort(data, segment + 3);
+                header.colorComponents = data[segment + 5] & 0xFF;
+            }
+            else if (marker == 0xDA || marker == 0xD9)
+            {
+                /*
+                 * Start of scan, all headers have been read.
+                 */
+                break;
+            }
+            pos = segment + length - 2;
+        }
+        if (header.frameMarker == 0)
+            throw new IOException("JPEG file without frame header");
+        if (profile != null)
+            header.iccProfile = profile.toByteArray();
+        return header;
+    }
+
+    private static Header readPNGHeader(byte[] data) throws IOException
+    {
+        Header header = new Header();
+        header.format = Format.PNG;
+        int pos = PNG_SIGNATURE.length;
+        boolean first = true;
+        while (pos + 8 <= data.length)
+        {
+            int length = readInt(data, pos);
+            String type = new String(data, pos + 4, 4, "ISO-8859-1");
+            int chunk = pos + 8;
+            if (length < 0 || chunk + length > data.length)
+                throw new IOException("Truncated PNG file");
+            if (first && !type.equals("IHDR"))
+                throw new IOException("PNG file does not start with IHDR");
+            first = false;
+            if (type.equals("IHDR"))
+            {
+                header.width = readInt(data, chunk);
+                header.height = readInt(data, chunk + 4);
+                header.bitsPerComponent = data[chunk + 8] & 0xFF;
+                header.colorType = data[chunk + 9] & 0xFF;
+                header.interlace = data[chunk + 12] & 0xFF;
+                header.colorComponents = header.colorType == PNG_COLOR_RGB ? 3 : 1;
+            }
+            else if (type.equals("PLTE"))
+            {
+                header.palette = new int[length / 3];
+                for (int i = 0; i < header.palette.length; i++)
+                {
+                    int p = chunk + i * 3;
+                    header.palette[i] = (data[p] & 0xFF) << 16 | (data[p + 1] & 0xFF) << 8 | (
+                            data[p + 2] & 0xFF);
+                }
+            }
+            else if (type.equals("tRNS"))
+            {
+                header.transparency = true;
+            }
+            else if (type.equals("iCCP"))
+            {
+                header.iccProfile = readCompressedProfile(data, chunk, length);
+            }
+            else if (type.equals("IDAT"))
+            {
+                header.dataChunks.add(new int[] { chunk, length });
+            }
+            else if (type.equals("IEND"))
+            {
+                break;
+            }
+            /*
+             * Skip the data and the CRC
+             */
+            pos = chunk + length + 4;
+        }
+        if (header.dataChunks.isEmpty())
+            throw new IOException("PNG file without image data");
+        return header;
+    }
+
+    private static byte[] readCompressedProfile(byte[] data, int chunk, int length)
+            throws IOException
+    {
+        /*
+         * Profile name, terminated with 0, compression method and the zlib
+         * compressed profile.
+         */
+        int end = chunk + length;
+        int p = chunk;
+        while (p < end && data[p] != 0)
+            p++;
+        p += 2;
+        if (p >= end)
+            throw new IOException("Invalid iCCP chunk");
+        InflaterInputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data, p, end - p));
+        try
+        {
+            return IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the count of color components of the data color space of the ICC
+     * profile, or 0 if it is not Gray, RGB or CMYK.
+     */
+    private static int getProfileComponents(byte[] profile)
+    {
+        if (startsWith(profile, 16, "GRAY"))
+            return 1;
+        if (startsWith(profile, 16, "RGB "))
+            return 3;
+        if (startsWith(profile, 16, "CMYK"))
+            return 4;
+        return 0;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix)
+    {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+        {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] data, int pos, String prefix)
+    {
+        if (pos + prefix.length() > data.length)
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            if (data[pos + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] data, int pos)
+    {
+        return (data[pos] & 0xFF) << 8 | (data[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int pos)
+    {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8
+                | (data[pos + 3] & 0xFF);
+    }
+}
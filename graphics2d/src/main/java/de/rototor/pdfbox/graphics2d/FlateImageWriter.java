@@ -0,0 +1,385 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes image samples row by row directly into Flate compressed image
+ * streams. The color and the alpha channel are written in one pass into two
+ * streams, without any intermediate full size buffers.
+ */
+final class FlateImageWriter
+{
+    /**
+     * PNG predictor, the filter type is chosen per row
+     */
+    private static final int PREDICTOR_PNG_OPTIMUM = 15;
+    private static final int PNG_FILTER_NONE = 0;
+    private static final int PNG_FILTER_SUB = 1;
+    private static final int PNG_FILTER_UP = 2;
+    private static final int PNG_FILTER_AVERAGE = 3;
+    private static final int PNG_FILTER_PAETH = 4;
+
+    /**
+     * Source of the samples of the image
+     */
+    interface RowSource
+    {
+        /**
+         * @param y     the row
+         * @param color receives the packed color samples of the row
+         * @param alpha receives the alpha samples (one byte per pixel), if the image
+         *              has alpha
+         */
+        void readRow(int y, byte[] color, byte[] alpha);
+    }
+
+    private FlateImageWriter()
+    {
+    }
+
+    /**
+     * Write an image which can be read by {@link ImageRowReader#readSamples}, as
+     * DeviceRGB or DeviceGray with an optional mask.
+     *
+     * @return the image or null if the image is not supported.
+     */
+    static PDImageXObject write(PDDocument document, PdfBoxGraphics2DDeflater deflater,
+            BufferedImage image) throws IOException
+    {
+        final ImageRowReader reader = ImageRowReader.create(image);
+        if (!reader.canReadSamples())
+            return null;
+        PDColorSpace colorSpace = reader.getColorComponents() == 1 ?
+                PDDeviceGray.INSTANCE :
+                PDDeviceRGB.INSTANCE;
+        ImageClassifier.AlphaUsage alphaUsage = reader.hasAlpha() ?
+                ImageClassifier.scanAlpha(reader) :
+                ImageClassifier.AlphaUsage.Opaque;
+        return write(document, deflater, reader.width, reader.height, 8,
+                reader.getColorComponents(),
+                colorSpace, true, alphaUsage, new RowSource()
+                {
+                    @Override
+                    public void readRow(int y, byte[] color, byte[] alpha)
+                    {
+                        reader.readSamples(y, color, alpha);
+                    }
+                });
+    }
+
+    /**
+     * Write an image.
+     *
+     * @param deflater         compresses the streams
+     * @param bitsPerComponent bits per color component, 1, 2, 4, 8 or 16
+     * @param colorComponents  count of color components per pixel
+     * @param predict          true to use a PNG predictor on the color samples.
+     *                         This only makes sense for 8 and 16 bit samples. The
+     *                         alpha channel is always predicted.
+     * @param alphaUsage       how the alpha channel is used. Opaque images get no
+     *                         mask, images with only fully transparent and fully
+     *                         opaque pixels get a 1 bit /Mask, all others an 8 bit
+     *                         /SMask. Null if this is not known yet: the alpha
+     *                         channel is then classified while the rows are written,
+     *                         and both masks are written till it is clear which one
+     *                         is needed.
+     */
+    static PDImageXObject write(PDDocument document, PdfBoxGraphics2DDeflater deflater,
+            int width, int height,
+            int bitsPerComponent, int colorComponents, PDColorSpace colorSpace, boolean predict,
+            ImageClassifier.AlphaUsage alphaUsage, RowSource source) throws IOException
+    {
+        int rowBytes = (width * colorComponents * bitsPerComponent + 7) / 8;
+        int bytesPerPixel = Math.max(1, colorComponents * bitsPerComponent / 8);
+        byte[] color = new byte[rowBytes];
+        boolean classify = alphaUsage == null;
+        if (classify)
+            alphaUsage = ImageClassifier.AlphaUsage.Opaque;
+        byte[] alpha = new byte[width];
+        byte[] stencilRow = new byte[(width + 7) / 8];
+
+        RowEncoder colorEncoder = new RowEncoder(document, deflater, rowBytes,
+                predict ? bytesPerPixel : 0);
+        RowEncoder stencilEncoder = null;
+        if (classify || alphaUsage == ImageClassifier.AlphaUsage.Binary)
+            stencilEncoder = new RowEncoder(document, deflater, stencilRow.length, 0);
+        RowEncoder alphaEncoder = null;
+        if (classify || alphaUsage == ImageClassifier.AlphaUsage.Translucent)
+            alphaEncoder = new RowEncoder(document, deflater, width, 1);
+        try
+        {
+            for (int y = 0; y < height; y++)
+            {
+                source.readRow(y, color, alpha);
+                colorEncoder.writeRow(color);
+                if (classify && alphaUsage != ImageClassifier.AlphaUsage.Translucent)
+                    alphaUsage = classifyRow(alpha, alphaUsage);
+                if (stencilEncoder != null
+                        && alphaUsage != ImageClassifier.AlphaUsage.Translucent)
+                {
+                    packStencilRow(alpha, stencilRow);
+                    stencilEncoder.writeRow(stencilRow);
+                }
+                if (alphaEncoder != null)
+                    alphaEncoder.writeRow(alpha);
+            }
+        }
+        finally
+        {
+            colorEncoder.close();
+            if (stencilEncoder != null)
+                stencilEncoder.close();
+            if (alphaEncoder != null)
+                alphaEncoder.close();
+        }
+
+        PDImageXObject imageXObject = colorEncoder.toImage(width, height, bitsPerComponent,
+                colorComponents, colorSpace);
+        if (alphaUsage == ImageClassifier.AlphaUsage.Binary)
+        {
+            PDImageXObject mask = stencilEncoder.toImage(width, height, 1, 1, null);
+            imageXObject.getCOSObject().setItem(COSName.MASK, mask);
+        }
+        else if (stencilEncoder != null)
+        {
+            stencilEncoder.discard();
+        }
+        if (alphaUsage == ImageClassifier.AlphaUsage.Translucent)
+        {
+            PDImageXObject smask = alphaEncoder.toImage(width, height, 8, 1,
+                    PDDeviceGray.INSTANCE);
+            imageXObject.getCOSObject().setItem(COSName.SMASK, smask);
+        }
+        else if (alphaEncoder != null)
+        {
+            alphaEncoder.discard();
+        }
+        return imageXObject;
+    }
+
+    /**
+     * @return the alpha usage of the image so far, including this row
+     */
+    private static ImageClassifier.AlphaUsage classifyRow(byte[] alpha,
+            ImageClassifier.AlphaUsage alphaUsage)
+    {
+        for (byte value : alpha)
+        {
+            if (value == 0)
+                alphaUsage = ImageClassifier.AlphaUsage.Binary;
+            else if (value != (byte) 0xFF)
+                return ImageClassifier.AlphaUsage.Translucent;
+        }
+        return alphaUsage;
+    }
+
+    /**
+     * Pack the alpha values into the samples of a stencil mask. A sample value of
+     * 1 marks a transparent pixel, which is not painted.
+     */
+    private static void packStencilRow(byte[] alpha, byte[] stencilRow)
+    {
+        Arrays.fill(stencilRow, (byte) 0);
+        for (int x = 0; x < alpha.length; x++)
+        {
+            if ((alpha[x] & 0xFF) < 0x80)
+                stencilRow[x >> 3] |= (byte) (0x80 >>> (x & 7));
+        }
+    }
+
+    /**
+     * Create the image for a stream which has already been filled with the
+     * compressed samples.
+     *
+     * @param predicted  true if the rows are prefixed with the PNG filter type.
+     * @param colorSpace the color space, or null for a stencil mask.
+     */
+    static PDImageXObject toImage(COSStream stream, int width, int height,
+            int bitsPerComponent, int colorComponents, PDColorSpace colorSpace,
+            boolean predicted) throws IOException
+    {
+        stream.setItem(COSName.TYPE, COSName.XOBJECT);
+        stream.setItem(COSName.SUBTYPE, COSName.IMAGE);
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        if (predicted)
+        {
+            COSDictionary decodeParms = new COSDictionary();
+            decodeParms.setInt(COSName.PREDICTOR, PREDICTOR_PNG_OPTIMUM);
+            decodeParms.setInt(COSName.COLORS, colorComponents);
+            decodeParms.setInt(COSName.BITS_PER_COMPONENT, bitsPerComponent);
+            decodeParms.setInt(COSName.COLUMNS, width);
+            stream.setItem(COSName.DECODE_PARMS, decodeParms);
+        }
+        PDImageXObject imageXObject = new PDImageXObject(new PDStream(stream), null);
+        imageXObject.setWidth(width);
+        imageXObject.setHeight(height);
+        imageXObject.setBitsPerComponent(bitsPerComponent);
+        if (colorSpace == null)
+            stream.setBoolean(COSName.IMAGE_MASK, true);
+        else
+            imageXObject.setColorSpace(colorSpace);
+        return imageXObject;
+    }
+
+    /**
+     * Deflates the rows of one image stream, optionally with a PNG predictor. The
+     * predictor is either always Paeth, or chosen per row (like libpng does): the
+     * filter type with the smallest sum of the absolute filtered values wins.
+     */
+    private static final class RowEncoder
+    {
+        private final COSStream stream;
+        private final OutputStream out;
+        private final int bytesPerPixel;
+        private final boolean adaptive;
+        private byte[] previousRow;
+        private byte[][] filteredRows;
+
+        RowEncoder(PDDocument document, PdfBoxGraphics2DDeflater deflater, int rowBytes,
+                int bytesPerPixel) throws IOException
+        {
+            this.stream = document.getDocument().createCOSStream();
+            this.bytesPerPixel = bytesPerPixel;
+            this.adaptive = deflater.isAdaptivePredictor();
+            this.out = deflater.wrap(stream.createRawOutputStream());
+            if (bytesPerPixel > 0)
+            {
+                previousRow = new byte[rowBytes];
+                filteredRows = new byte[PNG_FILTER_PAETH + 1][rowBytes + 1];
+                for (int filter = 0; filter < filteredRows.length; filter++)
+                    filteredRows[filter][0] = (byte) filter;
+            }
+        }
+
+        void writeRow(byte[] row) throws IOException
+        {
+            if (bytesPerPixel == 0)
+            {
+                out.write(row);
+                return;
+            }
+            if (!adaptive)
+            {
+                filterRow(row, PNG_FILTER_PAETH);
+                out.write(filteredRows[PNG_FILTER_PAETH]);
+            }
+            else
+            {
+                int bestFilter = PNG_FILTER_NONE;
+                long bestSum = Long.MAX_VALUE;
+                for (int filter = PNG_FILTER_NONE; filter <= PNG_FILTER_PAETH; filter++)
+                {
+                    long sum = filterRow(row, filter);
+                    if (sum < bestSum)
+                    {
+                        bestSum = sum;
+                        bestFilter = filter;
+                    }
+                }
+                out.write(filteredRows[bestFilter]);
+            }
+            System.arraycopy(row, 0, previousRow, 0, row.length);
+        }
+
+        /**
+         * Filter the row into filteredRows[filter].
+         *
+         * @return the sum of the filtered values as signed bytes
+         */
+        private long filterRow(byte[] row, int filter)
+        {
+            byte[] filteredRow = filteredRows[filter];
+            long sum = 0;
+            for (int i = 0; i < row.length; i++)
+            {
+                int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+                int b = previousRow[i] & 0xFF;
+                int predicted;
+                switch (filter)
+                {
+                case PNG_FILTER_SUB:
+                    predicted = a;
+                    break;
+                case PNG_FILTER_UP:
+                    predicted = b;
+                    break;
+                case PNG_FILTER_AVERAGE:
+                    predicted = (a + b) >> 1;
+                    break;
+                case PNG_FILTER_PAETH:
+                    int c = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+                    predicted = paeth(a, b, c);
+                    break;
+                default:
+                    predicted = 0;
+                    break;
+                }
+                byte value = (byte) (row[i] - predicted);
+                filteredRow[i + 1] = value;
+                sum += Math.abs(value);
+            }
+            return sum;
+        }
+
+        void close() throws IOException
+        {
+            out.close();
+        }
+
+        /**
+         * Release the data of a stream which is not used
+         */
+        void discard() throws IOException
+        {
+            stream.close();
+        }
+
+        PDImageXObject toImage(int width, int height, int bitsPerComponent,
+                int colorComponents, PDColorSpace colorSpace) throws IOException
+        {
+            return FlateImageWriter.toImage(stream, width, height, bitsPerComponent,
+                    colorComponents, colorSpace, bytesPerPixel > 0);
+        }
+
+        private static int paeth(int a, int b, int c)
+        {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc)
+                return a;
+            if (pb <= pc)
+                return b;
+            return c;
+        }
+    }
+}
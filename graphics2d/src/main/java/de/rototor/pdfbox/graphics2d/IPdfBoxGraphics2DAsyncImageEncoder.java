@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * An image encoder which may return placeholder PDImageXObjects from
+ * {@link #encodeImage}, and fills them in the background.
+ * <p>
+ * {@link PdfBoxGraphics2D#dispose()} calls
+ * {@link #awaitPendingImages(PDDocument)}, so that all images are complete when
+ * you get the XForm.
+ */
+public interface IPdfBoxGraphics2DAsyncImageEncoder extends IPdfBoxGraphics2DImageEncoder
+{
+    /**
+     * Wait till all images of the given document which are encoded in the
+     * background are finished, and fill the placeholder PDImageXObjects with them.
+     * Must be called on the thread which builds the document.
+     *
+     * @param document the document
+     */
+    void awaitPendingImages(PDDocument document);
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+
+import java.awt.*;
+
+/**
+ * A color mapper which can map many colors at once, e.g. all stops of a
+ * gradient. {@link PdfBoxGraphics2DPaintApplier} uses this for color mappers
+ * implementing it, and maps the colors one by one otherwise.
+ */
+public interface IPdfBoxGraphics2DBatchColorMapper extends IPdfBoxGraphics2DColorMapper
+{
+    /**
+     * Map the given colors to PDColors
+     *
+     * @param colors the colors to map
+     * @param env    the environment which allow getting the content stream,
+     *               resources etc.
+     * @return the mapped colors, in the same order as the given colors
+     */
+    PDColor[] mapColors(Color[] colors, IColorMapperEnv env);
+}
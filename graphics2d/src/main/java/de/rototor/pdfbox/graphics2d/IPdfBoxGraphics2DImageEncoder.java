@@ -20,6 +20,7 @@ import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 
 /**
  * Encode and compress an image as PDImageXObject
@@ -53,6 +54,47 @@ public interface IPdfBoxGraphics2DImageEncoder
         ImageInterpolation getImageInterpolation();
     }
 
+    /**
+     * Optional extension of the environment, which tells the encoder how large the
+     * image is drawn. Encoders must check for it with instanceof, as not every
+     * environment implements it.
+     */
+    interface IPdfBoxGraphics2DImageTransformEnv extends IPdfBoxGraphics2DImageEncoderEnv
+    {
+        /**
+         * @return the transform which maps the pixels of the image into the user space
+         * of the XForm (i.e. 1/72 inch, if the XForm is not scaled when placing it).
+         * This allows to compute the resolution the image is drawn with. Can be null if
+         * this is not known, e.g. for the image of a TexturePaint.
+         */
+        AffineTransform getImageTransform();
+    }
+
+    /**
+     * Optional extension of the environment, which allows the encoder to only
+     * encode the part of the image which is drawn. Encoders must check for it with
+     * instanceof, as not every environment implements it.
+     */
+    interface IPdfBoxGraphics2DImageRegionEnv extends IPdfBoxGraphics2DImageEncoderEnv
+    {
+        /**
+         * @return the part of the image (in image pixels) which is visible, if only a
+         * source rectangle of the image is drawn. Null if the whole image is drawn.
+         * The encoder can then encode only this region, but it must report this with
+         * {@link #setEncodedRegion(Rectangle)}.
+         */
+        Rectangle getSourceRegion();
+
+        /**
+         * Must be called by the encoder if the returned image does not contain the
+         * whole image, but only the given region of it.
+         *
+         * @param region the region of the image (in image pixels) the returned
+         *               PDImageXObject contains.
+         */
+        void setEncodedRegion(Rectangle region);
+    }
+
     /**
      * Encode the given image into the a PDImageXObject
      *
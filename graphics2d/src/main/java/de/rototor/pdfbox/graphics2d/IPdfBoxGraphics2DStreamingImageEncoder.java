@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+
+/**
+ * An image encoder which can encode huge {@link RenderedImage}s (e.g. tiled
+ * GeoTIFFs or JAI images) band by band, without copying the whole raster.
+ * <p>
+ * {@link PdfBoxGraphics2D#drawRenderedImage} only streams an image if the image
+ * encoder implements this interface and the image has more than
+ * {@link #getMinStreamedPixels()} pixels. Otherwise the image is copied into a
+ * BufferedImage and encoded with
+ * {@link #encodeImage(PDDocument, org.apache.pdfbox.pdmodel.PDPageContentStream,
+ * java.awt.Image, IPdfBoxGraphics2DImageEncoderEnv)}.
+ */
+public interface IPdfBoxGraphics2DStreamingImageEncoder extends IPdfBoxGraphics2DImageEncoder
+{
+    /**
+     * @return images with more pixels than this are streamed band by band.
+     */
+    long getMinStreamedPixels();
+
+    /**
+     * Encode a horizontal band of the image, fetching its pixels strip by strip.
+     *
+     * @param document the PDF document
+     * @param image    the image
+     * @param y        the first row of the band, relative to the minY of the image
+     * @param height   the count of rows of the band
+     * @param env      the environment
+     * @return the encoded band
+     */
+    PDImageXObject encodeImageBand(PDDocument document, RenderedImage image, int y, int height,
+            IPdfBoxGraphics2DImageEncoderEnv env) throws IOException;
+}
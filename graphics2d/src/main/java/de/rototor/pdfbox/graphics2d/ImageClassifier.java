@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Collects some statistics about the pixels of an image, which allow to guess if
+ * the image is a photo or a flat graphic (e.g. a chart, a logo or a
+ * screenshot).
+ * <p>
+ * Large images are only sampled, so this is cheap compared to encoding the
+ * image.
+ */
+final class ImageClassifier
+{
+    /**
+     * Sum of the RGB differences of two neighbour pixels above which we count an
+     * edge.
+     */
+    private static final int EDGE_DIFFERENCE = 96;
+
+    /**
+     * Maximum count of pixels we look at.
+     */
+    private static final int MAX_SAMPLES = 512 * 512;
+
+    enum AlphaUsage
+    {
+        /**
+         * All pixels are fully opaque
+         */
+        Opaque,  //
+        /**
+         * Pixels are either fully opaque or fully transparent
+         */
+        Binary, //
+        /**
+         * There are translucent pixels
+         */
+        Translucent
+    }
+
+    /**
+     * Count of distinct colors, counting stops at the given maximum + 1.
+     */
+    final int colorCount;
+
+    /**
+     * Fraction of neighbour pixels which have exactly the same color.
+     */
+    final double flatRatio;
+
+    /**
+     * Fraction of the neighbour pixels with different colors which have a hard
+     * edge between them. Photos mostly have soft transitions, text and line art
+     * mostly hard ones.
+     */
+    final double edgeRatio;
+
+    final AlphaUsage alphaUsage;
+
+    private ImageClassifier(int colorCount, double flatRatio, double edgeRatio,
+            AlphaUsage alphaUsage)
+    {
+        this.colorCount = colorCount;
+        this.flatRatio = flatRatio;
+        this.edgeRatio = edgeRatio;
+        this.alphaUsage = alphaUsage;
+    }
+
+    /**
+     * Analyse the image.
+     *
+     * @param image     the image
+     * @param maxColors stop counting colors after this count
+     */
+    static ImageClassifier analyze(BufferedImage image, int maxColors)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean hasAlpha = image.getColorModel().hasAlpha();
+
+        /*
+         * We always look at complete rows, so that we see the neighbours. For large
+         * images only every n-th row is used.
+         */
+        int rowStep = (int) Math.max(1, ((long) width * height) / MAX_SAMPLES);
+        ColorSet colors = new ColorSet(maxColors + 1);
+        long pairs = 0;
+        long flatPairs = 0;
+        long edgePairs = 0;
+        boolean sawTransparent = false;
+        boolean sawTranslucent = false;
+
+        ImageRowReader reader = ImageRowReader.create(image);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y += rowStep)
+        {
+            reader.readARGB(y, row);
+            int previous = 0;
+            for (int x = 0; x < width; x++)
+            {
+                int argb = row[x];
+                if (hasAlpha)
+                {
+                    int alpha = argb >>> 24;
+                    if (alpha == 0)
+                        sawTransparent = true;
+                    else if (alpha != 0xFF)
+                        sawTranslucent = true;
+                }
+                colors.add(argb);
+                if (x > 0)
+                {
+                    pairs++;
+                    if (argb == previous)
+                        flatPairs++;
+                    else if (difference(argb, previous) > EDGE_DIFFERENCE)
+                        edgePairs++;
+                }
+                previous = argb;
+            }
+        }
+
+        AlphaUsage alphaUsage = sawTranslucent ?
+                AlphaUsage.Translucent :
+                (sawTransparent ? AlphaUsage.Binary : AlphaUsage.Opaque);
+        if (rowStep > 1 && alphaUsage != AlphaUsage.Translucent && hasAlpha)
+        {
+            /*
+             * We must not miss any translucent pixel, otherwise we would encode a wrong
+             * mask.
+             */
+            alphaUsage = scanAlpha(reader);
+        }
+        if (pairs == 0)
+            return new ImageClassifier(colors.size(), 1, 0, alphaUsage);
+        long changingPairs = pairs - flatPairs;
+        return new ImageClassifier(colors.size(), (double) flatPairs / pairs,
+                changingPairs == 0 ? 0 : (double) edgePairs / changingPairs, alphaUsage);
+    }
+
+    /**
+     * Look at the alpha of all pixels.
+     */
+    static AlphaUsage scanAlpha(ImageRowReader reader)
+    {
+        if (!reader.hasAlpha())
+            return AlphaUsage.Opaque;
+        int[] row = new int[reader.width];
+        boolean sawTransparent = false;
+        for (int y = 0; y < reader.height; y++)
+        {
+            reader.readARGB(y, row);
+            for (int argb : row)
+            {
+                int alpha = argb >>> 24;
+                if (alpha == 0)
+                    sawTransparent = true;
+                else if (alpha != 0xFF)
+                    return AlphaUsage.Translucent;
+            }
+        }
+        return sawTransparent ? AlphaUsage.Binary : AlphaUsage.Opaque;
+    }
+
+    private static int difference(int a, int b)
+    {
+        return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)) + Math.abs(
+                ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) + Math.abs((a & 0xFF) - (b & 0xFF));
+    }
+
+    /**
+     * Small open addressing hash set of ARGB values, which stops growing at a
+     * limit. This avoids boxing every pixel into an Integer.
+     */
+    private static final class ColorSet
+    {
+        private final int limit;
+        private int[] values = new int[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+
+        ColorSet(int limit)
+        {
+            this.limit = limit;
+        }
+
+        void add(int value)
+        {
+            if (size >= limit)
+                return;
+            int mask = values.length - 1;
+            int index = (value * 0x9E3779B9) >>> 7 & mask;
+            while (used[index])
+            {
+                if (values[index] == value)
+                    return;
+                index = (index + 1) & mask;
+            }
+            used[index] = true;
+            values[index] = value;
+            size++;
+            if (size * 2 > values.length)
+                grow();
+        }
+
+        private void grow()
+        {
+            int[] oldValues = values;
+            boolean[] oldUsed = used;
+            values = new int[oldValues.length * 2];
+            used = new boolean[oldValues.length * 2];
+            size = 0;
+            for (int i = 0; i < oldValues.length; i++)
+            {
+                if (oldUsed[i])
+                    add(oldValues[i]);
+            }
+        }
+
+        int size()
+        {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Many images are stored as full RGB(A), but only use a few colors (charts,
+ * icons), only gray values or only black and white (scans). This class scans
+ * the pixels once and, if possible, writes the image as 1 bit DeviceGray
+ * (CCITT G4 compressed), 8 bit DeviceGray or as Indexed image with a palette.
+ * This is lossless, but the data to compress is 3 to 24 times smaller than RGB.
+ * <p>
+ * Only sRGB images with at most 8 bit per component are handled, gray images
+ * only if they are black and white. For all other images
+ * {@link #encode(PDDocument, PdfBoxGraphics2DDeflater, BufferedImage, boolean)} returns
+ * null.
+ */
+final class ImageColorReducer
+{
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /**
+     * Images with more pixels are scanned in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Pixels per parallel scan task
+     */
+    private static final int PIXELS_PER_TASK = 256 * 1024;
+
+    private ImageColorReducer()
+    {
+    }
+
+    /**
+     * Encode the image with reduced colors, if possible.
+     *
+     * @param ccittFax true to compress black and white images with CCITT G4
+     *                 instead of Flate, unless G4 expands the data.
+     * @return the image, or null if the colors could not be reduced.
+     */
+    static PDImageXObject encode(PDDocument document, PdfBoxGraphics2DDeflater deflater,
+            BufferedImage image, boolean ccittFax) throws IOException
+    {
+        if (!canReduce(image))
+            return null;
+        ScanResult result = scan(image);
+
+        ImageRowReader reader = ImageRowReader.create(image);
+        if (result.isBilevelOnly())
+        {
+            if (ccittFax && result.getAlphaUsage() != ImageClassifier.AlphaUsage.Translucent)
+            {
+                PDImageXObject fax = CCITTFaxImageWriter.write(document, reader,
+                        result.hasAlpha());
+                if (fax != null)
+                    return fax;
+            }
+            return writeImage(document, deflater, reader, 1, PDDeviceGray.INSTANCE,
+                    result.getAlphaUsage(), new GraySampler(true));
+        }
+        /*
+         * Gray images (e.g. from scanners) are only reduced to black and white
+         */
+        if (!image.getColorModel().getColorSpace().isCS_sRGB())
+            return null;
+        if (result.colors.size() <= 16 || (!result.grayOnly
+                && result.colors.size() <= MAX_PALETTE_SIZE))
+        {
+            int[] palette = result.colors.toSortedArray();
+            int bitsPerComponent = palette.length <= 2 ? 1 :
+                    (palette.length <= 4 ? 2 : (palette.length <= 16 ? 4 : 8));
+            return writeImage(document, deflater, reader, bitsPerComponent,
+                    createIndexed(palette), result.getAlphaUsage(), new PaletteSampler(palette));
+        }
+        if (result.grayOnly)
+        {
+            return writeImage(document, deflater, reader, 8, PDDeviceGray.INSTANCE,
+                    result.getAlphaUsage(), new GraySampler(false));
+        }
+        return null;
+    }
+
+    private static boolean canReduce(BufferedImage image)
+    {
+        ColorSpace colorSpace = image.getColorModel().getColorSpace();
+        if (!colorSpace.isCS_sRGB() && colorSpace.getType() != ColorSpace.TYPE_GRAY)
+            return false;
+        for (int size : image.getColorModel().getComponentSize())
+        {
+            if (size > 8)
+                return false;
+        }
+        return image.getWidth() > 0 && image.getHeight() > 0;
+    }
+
+    static ScanResult scan(BufferedImage image)
+    {
+        ImageRowReader reader = ImageRowReader.create(image);
+        long pixels = (long) reader.width * reader.height;
+        if (pixels < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2)
+            return scanRows(reader, 0, reader.height);
+        return ImageWorkerPool.POOL.invoke(new ScanTask(reader, 0, reader.height));
+    }
+
+    private static ScanResult scanRows(ImageRowReader reader, int fromY, int toY)
+    {
+        ScanResult result = new ScanResult();
+        int[] row = new int[reader.width];
+        for (int y = fromY; y < toY; y++)
+        {
+            reader.readARGB(y, row);
+            for (int argb : row)
+            {
+                int alpha = argb >>> 24;
+                if (alpha != 0xFF)
+                {
+                    result.hasAlpha = true;
+                    if (alpha != 0)
+                        result.translucent = true;
+                    /*
+                     * The color of fully transparent pixels does not matter.
+                     */
+                    if (alpha == 0)
+                        continue;
+                }
+                int rgb = argb & 0xFFFFFF;
+                if (result.grayOnly)
+                {
+                    int r = rgb >> 16;
+                    if (r != ((rgb >> 8) & 0xFF) || r != (rgb & 0xFF))
+                        result.grayOnly = false;
+                    else if (r != 0 && r != 0xFF)
+                        result.bilevelOnly = false;
+                }
+                result.colors.add(rgb);
+            }
+            if (!result.grayOnly && result.colors.isFull() && result.translucent)
+            {
+                /*
+                 * Nothing more to find out
+                 */
+                break;
+            }
+        }
+        return result;
+    }
+
+    static PDIndexed createIndexed(int[] palette) throws IOException
+    {
+        byte[] lookup = new byte[palette.length * 3];
+        for (int i = 0; i < palette.length; i++)
+        {
+            lookup[i * 3] = (byte) (palette[i] >> 16);
+            lookup[i * 3 + 1] = (byte) (palette[i] >> 8);
+            lookup[i * 3 + 2] = (byte) palette[i];
+        }
+        COSArray array = new COSArray();
+        array.add(COSName.INDEXED);
+        array.add(COSName.DEVICERGB);
+        array.add(COSInteger.get(palette.length - 1));
+        array.add(new COSString(lookup));
+        return new PDIndexed(array);
+    }
+
+    /**
+     * Pack the samples of all rows and write them.
+     */
+    private static PDImageXObject writeImage(PDDocument document,
+            PdfBoxGraphics2DDeflater deflater, final ImageRowReader reader,
+            final int bitsPerComponent, PDColorSpace colorSpace,
+            ImageClassifier.AlphaUsage alphaUsage, final Sampler sampler) throws IOException
+    {
+        final int[] row = new int[reader.width];
+        final boolean withAlpha = alphaUsage != ImageClassifier.AlphaUsage.Opaque;
+        final int samplesPerByte = 8 / bitsPerComponent;
+        return FlateImageWriter.write(document, deflater, reader.width, reader.height,
+                bitsPerComponent, 1, colorSpace, bitsPerComponent == 8, alphaUsage,
+                new FlateImageWriter.RowSource()
+                {
+                    @Override
+                    public void readRow(int y, byte[] color, byte[] alpha)
+                    {
+                        reader.readARGB(y, row);
+                        if (bitsPerComponent == 8)
+                        {
+                            for (int x = 0; x < row.length; x++)
+                                color[x] = (byte) sampler.sample(row[x]);
+                        }
+                        else
+                        {
+                            Arrays.fill(color, (byte) 0);
+                            for (int x = 0; x < row.length; x++)
+                            {
+                                int shift = 8 - bitsPerComponent * (x % samplesPerByte + 1);
+                                color[x / samplesPerByte] |= (byte) (sampler.sample(row[x])
+                                        << shift);
+                            }
+                        }
+                        if (withAlpha)
+                        {
+                            for (int x = 0; x < row.length; x++)
+                                alpha[x] = (byte) (row[x] >>> 24);
+                        }
+                    }
+                });
+    }
+
+    static final class ScanResult
+    {
+        private final ColorIndex colors = new ColorIndex(MAX_PALETTE_SIZE + 1);
+        private boolean grayOnly = true;
+        private boolean bilevelOnly = true;
+        private boolean hasAlpha;
+        private boolean translucent;
+
+        void merge(ScanResult other)
+        {
+            grayOnly &= other.grayOnly;
+            bilevelOnly &= other.bilevelOnly;
+            hasAlpha |= other.hasAlpha;
+            translucent |= other.translucent;
+            colors.addAll(other.colors);
+        }
+
+        int getColorCount()
+        {
+            return colors.size();
+        }
+
+        boolean isGrayOnly()
+        {
+            return grayOnly;
+        }
+
+        boolean isBilevelOnly()
+        {
+            return grayOnly && bilevelOnly;
+        }
+
+        boolean hasAlpha()
+        {
+            return hasAlpha;
+        }
+
+        ImageClassifier.AlphaUsage getAlphaUsage()
+        {
+            if (translucent)
+                return ImageClassifier.AlphaUsage.Translucent;
+            return hasAlpha ? ImageClassifier.AlphaUsage.Binary : ImageClassifier.AlphaUsage.Opaque;
+        }
+    }
+
+    private static final class ScanTask extends RecursiveTask<ScanResult>
+    {
+        private final ImageRowReader reader;
+        private final int fromY;
+        private final int toY;
+
+        ScanTask(ImageRowReader reader, int fromY, int toY)
+        {
+            this.reader = reader;
+            this.fromY = fromY;
+            this.toY = toY;
+        }
+
+        @Override
+        protected ScanResult compute()
+        {
+            int rows = toY - fromY;
+            if ((long) rows * reader.width <= PIXELS_PER_TASK || rows < 2)
+                return scanRows(reader, fromY, toY);
+            int middle = fromY + rows / 2;
+            ScanTask upper = new ScanTask(reader, fromY, middle);
+            ScanTask lower = new ScanTask(reader, middle, toY);
+            lower.fork();
+            ScanResult result = upper.compute();
+            result.merge(lower.join());
+            return result;
+        }
+    }
+
+    private interface Sampler
+    {
+        int sample(int argb);
+    }
+
+    private static final class GraySampler implements Sampler
+    {
+        private final boolean bilevel;
+
+        GraySampler(boolean bilevel)
+        {
+            this.bilevel = bilevel;
+        }
+
+        @Override
+        public int sample(int argb)
+        {
+            int gray = argb & 0xFF;
+            if (bilevel)
+                return gray >> 7;
+            return gray;
+        }
+    }
+
+    private static final class PaletteSampler implements Sampler
+    {
+        private final ColorIndex index;
+
+        PaletteSampler(int[] palette)
+        {
+            index = new ColorIndex(palette.length);
+            for (int rgb : palette)
+                index.add(rgb);
+        }
+
+        @Override
+        public int sample(int argb)
+        {
+            int i = index.indexOf(argb & 0xFFFFFF);
+            /*
+             * Fully transparent pixels may have any color
+             */
+            return i < 0 ? 0 : i;
+        }
+    }
+
+    /**
+     * Open addressing hash map from RGB values to their insertion index, which
+     * stops growing at a limit.
+     */
+    private static final class ColorIndex
+    {
+        private final int limit;
+        private int[] keys = new int[64];
+        private int[] indices = new int[64];
+        private boolean[] used = new boolean[64];
+        private int size;
+
+        ColorIndex(int limit)
+        {
+            this.limit = limit;
+        }
+
+        boolean isFull()
+        {
+            return size >= limit;
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        void add(int rgb)
+        {
+            if (size >= limit)
+                return;
+            int slot = slot(rgb);
+            if (used[slot])
+                return;
+            used[slot] = true;
+            keys[slot] = rgb;
+            indices[slot] = size++;
+            if (size * 2 > keys.length)
+                grow();
+        }
+
+        void addAll(ColorIndex other)
+        {
+            for (int i = 0; i < other.keys.length && !isFull(); i++)
+            {
+                if (other.used[i])
+                    add(other.keys[i]);
+            }
+        }
+
+        int indexOf(int rgb)
+        {
+            int slot = slot(rgb);
+            return used[slot] ? indices[slot] : -1;
+        }
+
+        int[] toSortedArray()
+        {
+            int[] result = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (used[i])
+                    result[n++] = keys[i];
+            }
+            Arrays.sort(result);
+            return result;
+        }
+
+        private int slot(int rgb)
+        {
+            int mask = keys.length - 1;
+            int slot = (rgb * 0x9E3779B9) >>> 7 & mask;
+            while (used[slot] && keys[slot] != rgb)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void grow()
+        {
+            int[] oldKeys = keys;
+            int[] oldIndices = indices;
+            boolean[] oldUsed = used;
+            keys = new int[oldKeys.length * 2];
+            indices = new int[oldKeys.length * 2];
+            used = new boolean[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++)
+            {
+                if (oldUsed[i])
+                {
+                    int slot = slot(oldKeys[i]);
+                    used[slot] = true;
+                    keys[slot] = oldKeys[i];
+                    indices[slot] = oldIndices[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Content based key of a BufferedImage. Two keys are equal if the images have
+ * the same size, the same color model and the same pixels. The pixel hash is
+ * only used to find candidates fast, on a hash match the pixels are compared to
+ * rule out collisions.
+ * <p>
+ * The key keeps the image alive, as it is needed for the comparison. So only
+ * put it into caches which account for that memory, i.e.
+ * {@link PdfBoxGraphics2DImageCache}.
+ */
+final class ImageContentKey
+{
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    private final long contentHash;
+    private final Object discriminator;
+
+    /**
+     * @param image         the image to key. Its pixels must not change anymore.
+     * @param discriminator additional information which must be equal for two keys
+     *                      to be equal, e.g. the interpolation. May be null.
+     */
+    ImageContentKey(BufferedImage image, Object discriminator)
+    {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.contentHash = hash(image);
+        this.discriminator = discriminator;
+    }
+
+    long getContentHash()
+    {
+        return contentHash;
+    }
+
+    BufferedImage getImage()
+    {
+        return image;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof ImageContentKey))
+            return false;
+        ImageContentKey other = (ImageContentKey) obj;
+        if (other.contentHash != contentHash || other.width != width || other.height != height)
+            return false;
+        if (discriminator == null ? other.discriminator != null
+                : !discriminator.equals(other.discriminator))
+            return false;
+        return image == other.image || contentEquals(image, other.image);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) (contentHash ^ (contentHash >>> 32));
+    }
+
+    /**
+     * Compute a fast, non-cryptographic hash over the pixels of the image.
+     */
+    static long hash(BufferedImage image)
+    {
+        long h = FNV_OFFSET_BASIS;
+        h = mix(h, image.getWidth());
+        h = mix(h, image.getHeight());
+        h = mix(h, image.getType());
+        h = mix(h, image.getColorModel().getPixelSize());
+
+        Raster raster = image.getRaster();
+        if (isPlainRaster(raster))
+        {
+            DataBuffer dataBuffer = raster.getDataBuffer();
+            for (int bank = 0; bank < dataBuffer.getNumBanks(); bank++)
+            {
+                if (dataBuffer instanceof DataBufferByte)
+                    h = hash(h, ((DataBufferByte) dataBuffer).getData(bank));
+                else if (dataBuffer instanceof DataBufferInt)
+                    h = hash(h, ((DataBufferInt) dataBuffer).getData(bank));
+                else if (dataBuffer instanceof DataBufferUShort)
+                    h = hash(h, ((DataBufferUShort) dataBuffer).getData(bank));
+                else
+                    h = hash(h, ((DataBufferShort) dataBuffer).getData(bank));
+            }
+        }
+        else
+        {
+            int[] row = new int[image.getWidth()];
+            for (int y = 0; y < image.getHeight(); y++)
+            {
+                image.getRGB(0, y, row.length, 1, row, 0, row.length);
+                h = hash(h, row);
+            }
+        }
+        return finish(h);
+    }
+
+    static long hash(long h, byte[] data)
+    {
+        for (byte b : data)
+            h = (h ^ (b & 0xFF)) * FNV_PRIME;
+        return h;
+    }
+
+    static long hash(long h, int[] data)
+    {
+        for (int v : data)
+            h = (h ^ v) * FNV_PRIME;
+        return h;
+    }
+
+    static long hash(long h, short[] data)
+    {
+        for (short v : data)
+            h = (h ^ (v & 0xFFFF)) * FNV_PRIME;
+        return h;
+    }
+
+    static long hash(byte[] data)
+    {
+        return finish(hash(FNV_OFFSET_BASIS, data));
+    }
+
+    private static long mix(long h, int v)
+    {
+        return (h ^ v) * FNV_PRIME;
+    }
+
+    /**
+     * Final avalanche step, as FNV on whole ints does not spread the lower bits
+     * well enough for the hash tables.
+     */
+    private static long finish(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return true if the data buffer of the raster contains exactly the pixels of
+     * the raster, i.e. it is not a child raster of some bigger image.
+     */
+    static boolean isPlainRaster(Raster raster)
+    {
+        if (raster.getParent() != null)
+            return false;
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0)
+            return false;
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (!(dataBuffer instanceof DataBufferByte) && !(dataBuffer instanceof DataBufferInt)
+                && !(dataBuffer instanceof DataBufferUShort)
+                && !(dataBuffer instanceof DataBufferShort))
+            return false;
+        for (int i = 0; i < dataBuffer.getNumBanks(); i++)
+        {
+            if (dataBuffer.getOffsets()[i] != 0)
+                return false;
+        }
+        /*
+         * The sample model must not have any padding or gaps we would hash.
+         */
+        long expectedElements = (long) raster.getWidth() * raster.getHeight()
+                * raster.getSampleModel().getNumDataElements() / dataBuffer.getNumBanks();
+        return dataBuffer.getSize() == expectedElements;
+    }
+
+    /**
+     * Compare the pixels and the color model of both images.
+     */
+    static boolean contentEquals(BufferedImage a, BufferedImage b)
+    {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+            return false;
+        if (a.getType() != b.getType())
+            return false;
+        if (!a.getColorModel().equals(b.getColorModel()))
+            return false;
+        if (!a.getColorModel().getColorSpace().equals(b.getColorModel().getColorSpace()))
+            return false;
+
+        Raster ra = a.getRaster();
+        Raster rb = b.getRaster();
+        if (isPlainRaster(ra) && isPlainRaster(rb) && ra.getSampleModel()
+                .equals(rb.getSampleModel()))
+        {
+            DataBuffer da = ra.getDataBuffer();
+            DataBuffer db = rb.getDataBuffer();
+            if (da.getClass() != db.getClass() || da.getNumBanks() != db.getNumBanks())
+                return false;
+            for (int bank = 0; bank < da.getNumBanks(); bank++)
+            {
+                boolean equal;
+                if (da instanceof DataBufferByte)
+                    equal = Arrays.equals(((DataBufferByte) da).getData(bank),
+                            ((DataBufferByte) db).getData(bank));
+                else if (da instanceof DataBufferInt)
+                    equal = Arrays.equals(((DataBufferInt) da).getData(bank),
+                            ((DataBufferInt) db).getData(bank));
+                else if (da instanceof DataBufferUShort)
+                    equal = Arrays.equals(((DataBufferUShort) da).getData(bank),
+                            ((DataBufferUShort) db).getData(bank));
+                else
+                    equal = Arrays.equals(((DataBufferShort) da).getData(bank),
+                            ((DataBufferShort) db).getData(bank));
+                if (!equal)
+                    return false;
+            }
+            return true;
+        }
+
+        int width = a.getWidth();
+        int[] rowA = new int[width];
+        int[] rowB = new int[width];
+        for (int y = 0; y < a.getHeight(); y++)
+        {
+            a.getRGB(0, y, width, 1, rowA, 0, width);
+            b.getRGB(0, y, width, 1, rowB, 0, width);
+            if (!Arrays.equals(rowA, rowB))
+                return false;
+        }
+        return true;
+    }
+}
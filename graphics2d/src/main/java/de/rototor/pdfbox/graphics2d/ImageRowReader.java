@@ -0,0 +1,404 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads the pixels of an image row by row. For the common image types the
+ * backing arrays of the raster are read directly, which is much faster than
+ * {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)} with its
+ * per pixel color model calls. All other images are read using getRGB().
+ * <p>
+ * For the direct types we can also read the samples as they are written into
+ * the PDF, i.e. RGB or gray bytes and a separate alpha channel.
+ */
+abstract class ImageRowReader
+{
+    final int width;
+    final int height;
+
+    private ImageRowReader(BufferedImage image)
+    {
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    /**
+     * @return a reader for the image, never null.
+     */
+    static ImageRowReader create(BufferedImage image)
+    {
+        switch (image.getType())
+        {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_ARGB_PRE:
+            return new IntPackedReader(image);
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_4BYTE_ABGR:
+            return new ByteInterleavedReader(image);
+        case BufferedImage.TYPE_BYTE_GRAY:
+            return new ByteGrayReader(image);
+        case BufferedImage.TYPE_USHORT_GRAY:
+            return new UShortGrayReader(image);
+        default:
+            return new GenericReader(image);
+        }
+    }
+
+    /**
+     * Read a row as non premultiplied sRGB ARGB values, exactly like getRGB()
+     * would.
+     */
+    abstract void readARGB(int y, int[] argb);
+
+    /**
+     * @return true if {@link #readSamples(int, byte[], byte[])} is supported
+     */
+    boolean canReadSamples()
+    {
+        return true;
+    }
+
+    /**
+     * @return 3 for RGB, 1 for gray samples
+     */
+    int getColorComponents()
+    {
+        return 3;
+    }
+
+    abstract boolean hasAlpha();
+
+    /**
+     * Read the samples of a row.
+     *
+     * @param y     the row
+     * @param color receives the 8 bit color samples, width * color components
+     *              bytes
+     * @param alpha receives the alpha samples, one byte per pixel. Only used if the
+     *              image has alpha.
+     */
+    abstract void readSamples(int y, byte[] color, byte[] alpha);
+
+    /**
+     * Offset of the first pixel of the row in the data buffer, taking child rasters
+     * (e.g. from getSubimage()) into account.
+     */
+    private static int rowOffset(Raster raster, int scanlineStride, int pixelStride, int y)
+    {
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY()) * scanlineStride
+                - raster.getSampleModelTranslateX() * pixelStride;
+    }
+
+    private static final class IntPackedReader extends ImageRowReader
+    {
+        private final Raster raster;
+        private final int[] data;
+        private final int scanlineStride;
+        private final int type;
+
+        IntPackedReader(BufferedImage image)
+        {
+            super(image);
+            raster = image.getRaster();
+            data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            scanlineStride = ((SinglePixelPackedSampleModel) raster.getSampleModel())
+                    .getScanlineStride();
+            type = image.getType();
+        }
+
+        @Override
+        void readARGB(int y, int[] argb)
+        {
+            System.arraycopy(data, rowOffset(raster, scanlineStride, 1, y), argb, 0, width);
+            if (type == BufferedImage.TYPE_INT_RGB)
+            {
+                for (int x = 0; x < width; x++)
+                    argb[x] |= 0xFF000000;
+            }
+            else if (type == BufferedImage.TYPE_INT_ARGB_PRE)
+            {
+                for (int x = 0; x < width; x++)
+                    argb[x] = unpremultiply(argb[x]);
+            }
+        }
+
+        @Override
+        boolean hasAlpha()
+        {
+            return type != BufferedImage.TYPE_INT_RGB;
+        }
+
+        @Override
+        void readSamples(int y, byte[] color, byte[] alpha)
+        {
+            int offset = rowOffset(raster, scanlineStride, 1, y);
+            boolean premultiplied = type == BufferedImage.TYPE_INT_ARGB_PRE;
+            boolean withAlpha = type != BufferedImage.TYPE_INT_RGB;
+            for (int x = 0, c = 0; x < width; x++)
+            {
+                int pixel = data[offset + x];
+                if (premultiplied)
+                    pixel = unpremultiply(pixel);
+                color[c++] = (byte) (pixel >> 16);
+                color[c++] = (byte) (pixel >> 8);
+                color[c++] = (byte) pixel;
+                if (withAlpha)
+                    alpha[x] = (byte) (pixel >>> 24);
+            }
+        }
+
+        /**
+         * Same rounding as DirectColorModel.getRGB()
+         */
+        private static int unpremultiply(int pixel)
+        {
+            int a = pixel >>> 24;
+            if (a == 0xFF || a == 0)
+                return pixel;
+            float factor = 255.0f / a;
+            int r = (int) (((pixel >> 16) & 0xFF) * factor + 0.5f);
+            int g = (int) (((pixel >> 8) & 0xFF) * factor + 0.5f);
+            int b = (int) ((pixel & 0xFF) * factor + 0.5f);
+            return (a << 24) | (Math.min(r, 0xFF) << 16) | (Math.min(g, 0xFF) << 8) | Math.min(b,
+                    0xFF);
+        }
+    }
+
+    /**
+     * TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR
+     */
+    private static final class ByteInterleavedReader extends ImageRowReader
+    {
+        private final Raster raster;
+        private final byte[] data;
+        private final int scanlineStride;
+        private final int pixelStride;
+        private final int offsetR;
+        private final int offsetG;
+        private final int offsetB;
+        private final int offsetA;
+
+        ByteInterleavedReader(BufferedImage image)
+        {
+            super(image);
+            raster = image.getRaster();
+            data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            scanlineStride = sampleModel.getScanlineStride();
+            pixelStride = sampleModel.getPixelStride();
+            int[] bandOffsets = sampleModel.getBandOffsets();
+            offsetR = bandOffsets[0];
+            offsetG = bandOffsets[1];
+            offsetB = bandOffsets[2];
+            offsetA = bandOffsets.length > 3 ? bandOffsets[3] : -1;
+        }
+
+        @Override
+        void readARGB(int y, int[] argb)
+        {
+            int offset = rowOffset(raster, scanlineStride, pixelStride, y);
+            for (int x = 0; x < width; x++, offset += pixelStride)
+            {
+                int a = offsetA < 0 ? 0xFF : data[offset + offsetA] & 0xFF;
+                argb[x] = (a << 24) | ((data[offset + offsetR] & 0xFF) << 16) | (
+                        (data[offset + offsetG] & 0xFF) << 8) | (data[offset + offsetB] & 0xFF);
+            }
+        }
+
+        @Override
+        boolean hasAlpha()
+        {
+            return offsetA >= 0;
+        }
+
+        @Override
+        void readSamples(int y, byte[] color, byte[] alpha)
+        {
+            int offset = rowOffset(raster, scanlineStride, pixelStride, y);
+            for (int x = 0, c = 0; x < width; x++, offset += pixelStride)
+            {
+                color[c++] = data[offset + offsetR];
+                color[c++] = data[offset + offsetG];
+                color[c++] = data[offset + offsetB];
+                if (offsetA >= 0)
+                    alpha[x] = data[offset + offsetA];
+            }
+        }
+    }
+
+    /**
+     * Java gray images are linear gray, but are displayed (and returned by
+     * getRGB()) converted to sRGB. As the PDF DeviceGray is not linear, we map the
+     * samples the same way.
+     */
+    private static final class GrayTables
+    {
+        private static final byte[] BYTE_GRAY = new byte[256];
+        private static final byte[] USHORT_GRAY = new byte[65536];
+
+        static
+        {
+            ColorModel byteModel = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY)
+                    .getColorModel();
+            for (int i = 0; i < BYTE_GRAY.length; i++)
+                BYTE_GRAY[i] = (byte) byteModel.getRGB(new byte[] { (byte) i });
+            ColorModel ushortModel = new BufferedImage(1, 1, BufferedImage.TYPE_USHORT_GRAY)
+                    .getColorModel();
+            for (int i = 0; i < USHORT_GRAY.length; i++)
+                USHORT_GRAY[i] = (byte) ushortModel.getRGB(new short[] { (short) i });
+        }
+    }
+
+    private static final class ByteGrayReader extends ImageRowReader
+    {
+        private final Raster raster;
+        private final byte[] data;
+        private final int scanlineStride;
+
+        ByteGrayReader(BufferedImage image)
+        {
+            super(image);
+            raster = image.getRaster();
+            data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            scanlineStride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        }
+
+        @Override
+        void readARGB(int y, int[] argb)
+        {
+            byte[] table = GrayTables.BYTE_GRAY;
+            int offset = rowOffset(raster, scanlineStride, 1, y);
+            for (int x = 0; x < width; x++)
+                argb[x] = 0xFF000000 | (table[data[offset + x] & 0xFF] & 0xFF) * 0x010101;
+        }
+
+        @Override
+        int getColorComponents()
+        {
+            return 1;
+        }
+
+        @Override
+        boolean hasAlpha()
+        {
+            return false;
+        }
+
+        @Override
+        void readSamples(int y, byte[] color, byte[] alpha)
+        {
+            byte[] table = GrayTables.BYTE_GRAY;
+            int offset = rowOffset(raster, scanlineStride, 1, y);
+            for (int x = 0; x < width; x++)
+                color[x] = table[data[offset + x] & 0xFF];
+        }
+    }
+
+    /**
+     * 16 bit gray images are written as 8 bit, as getRGB() and so the LosslessFactory
+     * of PDFBox only give us 8 bit anyway.
+     */
+    private static final class UShortGrayReader extends ImageRowReader
+    {
+        private final Raster raster;
+        private final short[] data;
+        private final int scanlineStride;
+
+        UShortGrayReader(BufferedImage image)
+        {
+            super(image);
+            raster = image.getRaster();
+            data = ((DataBufferUShort) raster.getDataBuffer()).getData();
+            scanlineStride = ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride();
+        }
+
+        @Override
+        void readARGB(int y, int[] argb)
+        {
+            byte[] table = GrayTables.USHORT_GRAY;
+            int offset = rowOffset(raster, scanlineStride, 1, y);
+            for (int x = 0; x < width; x++)
+                argb[x] = 0xFF000000 | (table[data[offset + x] & 0xFFFF] & 0xFF) * 0x010101;
+        }
+
+        @Override
+        int getColorComponents()
+        {
+            return 1;
+        }
+
+        @Override
+        boolean hasAlpha()
+        {
+            return false;
+        }
+
+        @Override
+        void readSamples(int y, byte[] color, byte[] alpha)
+        {
+            byte[] table = GrayTables.USHORT_GRAY;
+            int offset = rowOffset(raster, scanlineStride, 1, y);
+            for (int x = 0; x < width; x++)
+                color[x] = table[data[offset + x] & 0xFFFF];
+        }
+    }
+
+    private static final class GenericReader extends ImageRowReader
+    {
+        private final BufferedImage image;
+
+        GenericReader(BufferedImage image)
+        {
+            super(image);
+            this.image = image;
+        }
+
+        @Override
+        void readARGB(int y, int[] argb)
+        {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+
+        @Override
+        boolean canReadSamples()
+        {
+            return false;
+        }
+
+        @Override
+        boolean hasAlpha()
+        {
+            return image.getColorModel().hasAlpha();
+        }
+
+        @Override
+        void readSamples(int y, byte[] color, byte[] alpha)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
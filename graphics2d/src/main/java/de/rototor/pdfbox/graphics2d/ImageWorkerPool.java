@@ -0,0 +1,37 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork/join pool the image encoders split their pixel work on, i.e. the
+ * color scan of the {@link ImageColorReducer} and the conversion of the
+ * {@link PdfBoxGraphics2DCMYKImageEncoder}. There is one pool per process with
+ * one thread per CPU, which all encoders share, also when they run on the
+ * threads of an async executor.
+ * <p>
+ * The worker threads are daemon threads, so the pool does not need to be shut
+ * down.
+ */
+final class ImageWorkerPool
+{
+    static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private ImageWorkerPool()
+    {
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes small image XObjects as inline images (BI ... ID ... EI) into the
+ * content stream. This saves the indirect object, the stream dictionary and the
+ * resource entry of every image, which dominates the size for tiny icons.
+ * <p>
+ * The compressed data of the XObject is reused, so the image encoder decides
+ * about the filter. Only images which can be expressed as inline image are
+ * converted: no soft masks or color key masks, only device color spaces or
+ * Indexed based on them, and only the filters allowed for inline images.
+ */
+final class InlineImageWriter
+{
+    private static final Map<COSName, String> FILTER_ABBREVIATIONS = new HashMap<COSName, String>();
+    private static final Map<COSName, String> COLOR_SPACE_ABBREVIATIONS = new HashMap<COSName, String>();
+
+    static
+    {
+        FILTER_ABBREVIATIONS.put(COSName.FLATE_DECODE, "Fl");
+        FILTER_ABBREVIATIONS.put(COSName.DCT_DECODE, "DCT");
+        FILTER_ABBREVIATIONS.put(COSName.CCITTFAX_DECODE, "CCF");
+        FILTER_ABBREVIATIONS.put(COSName.RUN_LENGTH_DECODE, "RL");
+        FILTER_ABBREVIATIONS.put(COSName.LZW_DECODE, "LZW");
+        FILTER_ABBREVIATIONS.put(COSName.ASCII_HEX_DECODE, "AHx");
+        FILTER_ABBREVIATIONS.put(COSName.ASCII85_DECODE, "A85");
+        COLOR_SPACE_ABBREVIATIONS.put(COSName.DEVICEGRAY, "G");
+        COLOR_SPACE_ABBREVIATIONS.put(COSName.DEVICERGB, "RGB");
+        COLOR_SPACE_ABBREVIATIONS.put(COSName.DEVICECMYK, "CMYK");
+    }
+
+    private InlineImageWriter()
+    {
+    }
+
+    /**
+     * @param maxBytes the maximum size of the compressed image data
+     * @return the inline image operators, or null if the image is too big or can
+     * not be written as inline image.
+     */
+    static byte[] toInlineImage(PDImageXObject imageXObject, int maxBytes) throws IOException
+    {
+        COSStream stream = imageXObject.getCOSObject();
+        long length = stream.getLength();
+        /*
+         * An empty stream is e.g. a placeholder of an image encoded in the background
+         */
+        if (length <= 0 || length > maxBytes)
+            return null;
+        if (stream.containsKey(COSName.SMASK) || stream.containsKey(COSName.MASK))
+            return null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) length + 128);
+        out.write("BI /W ".getBytes("US-ASCII"));
+        out.write(Integer.toString(imageXObject.getWidth()).getBytes("US-ASCII"));
+        out.write(" /H ".getBytes("US-ASCII"));
+        out.write(Integer.toString(imageXObject.getHeight()).getBytes("US-ASCII"));
+        out.write(" /BPC ".getBytes("US-ASCII"));
+        out.write(Integer.toString(imageXObject.getBitsPerComponent()).getBytes("US-ASCII"));
+        if (imageXObject.isStencil())
+        {
+            out.write(" /IM true".getBytes("US-ASCII"));
+        }
+        else
+        {
+            out.write(" /CS ".getBytes("US-ASCII"));
+            if (!writeColorSpace(stream.getDictionaryObject(COSName.COLORSPACE), out))
+                return null;
+        }
+        if (!writeEntry(stream, COSName.DECODE, "D", out))
+            return null;
+        if (imageXObject.getInterpolate())
+            out.write(" /I true".getBytes("US-ASCII"));
+
+        COSBase filters = stream.getDictionaryObject(COSName.FILTER);
+        if (filters != null)
+        {
+            out.write(" /F ".getBytes("US-ASCII"));
+            if (!writeFilters(filters, out))
+                return null;
+        }
+        if (!writeEntry(stream, COSName.DECODE_PARMS, "DP", out))
+            return null;
+
+        byte[] data;
+        InputStream in = stream.createRawInputStream();
+        try
+        {
+            data = IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        if (containsEndMarker(data))
+            return null;
+        out.write(" ID ".getBytes("US-ASCII"));
+        out.write(data);
+        out.write("\nEI\n".getBytes("US-ASCII"));
+        return out.toByteArray();
+    }
+
+    private static boolean writeColorSpace(COSBase colorSpace, ByteArrayOutputStream out)
+            throws IOException
+    {
+        if (colorSpace instanceof COSName)
+        {
+            String abbreviation = COLOR_SPACE_ABBREVIATIONS.get(colorSpace);
+            if (abbreviation == null)
+                return false;
+            COSName.getPDFName(abbreviation).writePDF(out);
+            return true;
+        }
+        if (!(colorSpace instanceof COSArray))
+            return false;
+
+        /*
+         * Only Indexed color spaces with a device base and an inline lookup string
+         */
+        COSArray array = (COSArray) colorSpace;
+        if (array.size() != 4 || !COSName.INDEXED.equals(array.getObject(0)))
+            return false;
+        String base = COLOR_SPACE_ABBREVIATIONS.get(array.getObject(1));
+        if (base == null || !(array.getObject(2) instanceof COSInteger)
+                || !(array.getObject(3) instanceof COSString))
+            return false;
+        out.write("[/I /".getBytes("US-ASCII"));
+        out.write(base.getBytes("US-ASCII"));
+        out.write(' ');
+        writeDirectObject(array.getObject(2), out);
+        out.write(' ');
+        COSWriter.writeString((COSString) array.getObject(3), out);
+        out.write(']');
+        return true;
+    }
+
+    private static boolean writeFilters(COSBase filters, ByteArrayOutputStream out)
+            throws IOException
+    {
+        if (filters instanceof COSName)
+        {
+            String abbreviation = FILTER_ABBREVIATIONS.get(filters);
+            if (abbreviation == null)
+                return false;
+            COSName.getPDFName(abbreviation).writePDF(out);
+            return true;
+        }
+        if (!(filters instanceof COSArray))
+            return false;
+        out.write('[');
+        for (COSBase filter : (COSArray) filters)
+        {
+            if (filter instanceof COSObject)
+                filter = ((COSObject) filter).getObject();
+            if (!(filter instanceof COSName) || !writeFilters(filter, out))
+                return false;
+            out.write(' ');
+        }
+        out.write(']');
+        return true;
+    }
+
+    private static boolean writeEntry(COSStream stream, COSName key, String abbreviation,
+            ByteArrayOutputStream out) throws IOException
+    {
+        COSBase value = stream.getDictionaryObject(key);
+        if (value == null)
+            return true;
+        out.write(" /".getBytes("US-ASCII"));
+        out.write(abbreviation.getBytes("US-ASCII"));
+        out.write(' ');
+        return writeDirectObject(value, out);
+    }
+
+    /**
+     * Write the value, which must not contain streams.
+     */
+    private static boolean writeDirectObject(COSBase value, ByteArrayOutputStream out)
+            throws IOException
+    {
+        if (value instanceof COSObject)
+            value = ((COSObject) value).getObject();
+        if (value instanceof COSStream)
+            return false;
+        if (value instanceof COSName)
+        {
+            ((COSName) value).writePDF(out);
+        }
+        else if (value instanceof COSInteger)
+        {
+            ((COSInteger) value).writePDF(out);
+        }
+        else if (value instanceof COSFloat)
+        {
+            ((COSFloat) value).writePDF(out);
+        }
+        else if (value instanceof COSBoolean)
+        {
+            ((COSBoolean) value).writePDF(out);
+        }
+        else if (value instanceof COSString)
+        {
+            COSWriter.writeString((COSString) value, out);
+        }
+        else if (value == null || value instanceof COSNull)
+        {
+            out.write("null".getBytes("US-ASCII"));
+        }
+        else if (value instanceof COSArray)
+        {
+            out.write('[');
+            for (COSBase element : (COSArray) value)
+            {
+                if (!writeDirectObject(element, out))
+                    return false;
+                out.write(' ');
+            }
+            out.write(']');
+        }
+        else if (value instanceof COSDictionary)
+        {
+            out.write("<<".getBytes("US-ASCII"));
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet())
+            {
+                entry.getKey().writePDF(out);
+                out.write(' ');
+                if (!writeDirectObject(entry.getValue(), out))
+                    return false;
+                out.write(' ');
+            }
+            out.write(">>".getBytes("US-ASCII"));
+        }
+        else
+        {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Readers find the end of the inline image data by searching for EI surrounded
+     * by white space. We do not inline images whose binary data contains such a
+     * sequence.
+     */
+    private static boolean containsEndMarker(byte[] data)
+    {
+        for (int i = 0; i + 1 < data.length; i++)
+        {
+            if (data[i] == 'E' && data[i + 1] == 'I' && (i == 0 || isWhitespace(data[i - 1]))
+                    && (i + 2 == data.length || isWhitespace(data[i + 2])))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '\f' || b == 0;
+    }
+}
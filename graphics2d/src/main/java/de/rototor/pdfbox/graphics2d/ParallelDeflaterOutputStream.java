@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zlib stream, compressing chunks of the data in parallel. Every chunk
+ * is compressed as raw deflate data primed with the last 32 KB of the previous
+ * chunk, and terminated with a sync flush (the last one is finished). The
+ * Adler-32 checksum of the whole data is computed on the writing thread.
+ */
+final class ParallelDeflaterOutputStream extends OutputStream
+{
+    /**
+     * The size of the deflate window
+     */
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final int strategy;
+    private final Executor executor;
+    private final int maxPendingChunks;
+    private final Adler32 checksum = new Adler32();
+    private final ArrayDeque<FutureTask<byte[]>> pendingChunks = new ArrayDeque<FutureTask<byte[]>>();
+    private byte[] chunk;
+    private int chunkLength;
+    private byte[] dictionary;
+    private boolean headerWritten;
+    private boolean closed;
+
+    ParallelDeflaterOutputStream(OutputStream out, int compressionLevel, int strategy,
+            Executor executor, int chunkSize)
+    {
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.strategy = strategy;
+        this.executor = executor;
+        this.chunk = new byte[chunkSize];
+        /*
+         * Limit the memory used by chunks waiting to be written
+         */
+        this.maxPendingChunks = Runtime.getRuntime().availableProcessors() * 2;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream closed");
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunk.length)
+            submitChunk(false);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if (closed)
+            throw new IOException("Stream closed");
+        while (len > 0)
+        {
+            int count = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, count);
+            chunkLength += count;
+            off += count;
+            len -= count;
+            if (chunkLength == chunk.length)
+                submitChunk(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed)
+            return;
+        closed = true;
+        try
+        {
+            submitChunk(true);
+            while (!pendingChunks.isEmpty())
+                writeChunk(pendingChunks.removeFirst());
+            long adler = checksum.getValue();
+            out.write(new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                    (byte) (adler >>> 8), (byte) adler });
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void submitChunk(final boolean last) throws IOException
+    {
+        final byte[] data = chunk;
+        final int length = chunkLength;
+        final byte[] chunkDictionary = dictionary;
+        checksum.update(data, 0, length);
+        if (!last)
+        {
+            dictionary = Arrays.copyOfRange(data, length - DICTIONARY_SIZE, length);
+            chunk = new byte[data.length];
+            chunkLength = 0;
+        }
+
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>()
+        {
+            @Override
+            public byte[] call()
+            {
+                return deflateChunk(data, length, chunkDictionary, last);
+            }
+        });
+        if (last && pendingChunks.isEmpty())
+        {
+            /*
+             * Nothing to wait for, e.g. a small stream
+             */
+            task.run();
+        }
+        else
+        {
+            executor.execute(task);
+        }
+        pendingChunks.addLast(task);
+        if (!last)
+        {
+            while (pendingChunks.size() > maxPendingChunks || (!pendingChunks.isEmpty()
+                    && pendingChunks.peekFirst().isDone()))
+                writeChunk(pendingChunks.removeFirst());
+        }
+    }
+
+    private void writeChunk(FutureTask<byte[]> task) throws IOException
+    {
+        byte[] compressed;
+        try
+        {
+            compressed = task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Could not compress chunk", e.getCause());
+        }
+        if (!headerWritten)
+        {
+            out.write(zlibHeader(compressionLevel));
+            headerWritten = true;
+        }
+        out.write(compressed);
+    }
+
+    private byte[] deflateChunk(byte[] data, int length, byte[] chunkDictionary, boolean last)
+    {
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try
+        {
+            deflater.setStrategy(strategy);
+            if (chunkDictionary != null)
+                deflater.setDictionary(chunkDictionary);
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[Math.max(8192, length / 4)];
+            if (last)
+            {
+                deflater.finish();
+                while (!deflater.finished())
+                {
+                    int count = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, count);
+                }
+            }
+            else
+            {
+                int count;
+                do
+                {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                }
+                while (count == buffer.length || !deflater.needsInput());
+            }
+            return compressed.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The two byte zlib header, 32 KB window, no preset dictionary.
+     */
+    private static byte[] zlibHeader(int compressionLevel)
+    {
+        int levelFlag;
+        if (compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6)
+            levelFlag = 2;
+        else if (compressionLevel < 2)
+            levelFlag = 0;
+        else if (compressionLevel < 6)
+            levelFlag = 1;
+        else
+            levelFlag = 3;
+        int cmf = 0x78;
+        int flg = levelFlag << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        return new byte[] { (byte) cmf, (byte) flg };
+    }
+}
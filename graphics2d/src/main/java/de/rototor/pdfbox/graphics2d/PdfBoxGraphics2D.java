@@ -18,6 +18,7 @@ package de.rototor.pdfbox.graphics2d;
 import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DColorMapper.IColorMapperEnv;
 import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DDrawControl.IDrawControlEnv;
 import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DFontTextDrawer.IFontTextDrawerEnv;
+import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv;
 import de.rototor.pdfbox.graphics2d.IPdfBoxGraphics2DPaintApplier.IPaintEnv;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.cos.COSStream;
@@ -55,6 +56,7 @@ import java.awt.geom.Rectangle2D;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
 import java.awt.image.ImageObserver;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
@@ -73,8 +75,14 @@ import java.util.Map;
 public class PdfBoxGraphics2D extends Graphics2D
 {
     private final PDFormXObject xFormObject;
+    /**
+     * The names of the resources of the XForm, shared with the copies of this
+     * graphics.
+     */
+    final ResourceNames resourceNames;
     private final Graphics2D calcGfx;
     private final PDPageContentStream contentStream;
+    private final PdfBoxGraphics2DDeflater deflater;
     private BufferedImage calcImage;
     private PDDocument document;
     private final AffineTransform baseTransform;
@@ -84,6 +92,7 @@ public class PdfBoxGraphics2D extends Graphics2D
     private IPdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier();
     private IPdfBoxGraphics2DFontTextDrawer fontTextDrawer = new PdfBoxGraphics2DFontTextDrawer();
     private IPdfBoxGraphics2DDrawControl drawControl = PdfBoxGraphics2DDrawControlDefault.INSTANCE;
+    private int inlineImageThreshold;
     private Paint paint;
     private Stroke stroke;
     private Color xorColor;
@@ -91,6 +100,12 @@ public class PdfBoxGraphics2D extends Graphics2D
     private Composite composite;
     private Shape clipShape;
     private Color backgroundColor;
+    /*
+     * Only set while the image encoder is running
+     */
+    private AffineTransform imageTransform;
+    private Rectangle sourceRegion;
+    private Rectangle encodedRegion;
     private final CopyInfo copyInfo;
     final PDRectangle bbox;
 
@@ -107,6 +122,13 @@ public class PdfBoxGraphics2D extends Graphics2D
 
     /**
      * Set a new image encoder
+     * <p>
+     * Huge {@link RenderedImage}s passed to
+     * {@link #drawRenderedImage(RenderedImage, AffineTransform)} are only streamed
+     * band by band if the encoder implements
+     * {@link IPdfBoxGraphics2DStreamingImageEncoder}, as the default
+     * {@link PdfBoxGraphics2DLosslessImageEncoder} does. All other encoders get
+     * the image copied into a BufferedImage.
      *
      * @param imageEncoder the image encoder, which encodes an image as PDImageXForm.
      */
@@ -116,6 +138,26 @@ public class PdfBoxGraphics2D extends Graphics2D
         this.imageEncoder = imageEncoder;
     }
 
+    /**
+     * Images whose encoded data is at most this many bytes are written as inline
+     * images (BI/ID/EI) directly into the content stream instead of as image
+     * XObject. This avoids the overhead of an indirect object, a stream dictionary
+     * and a resource entry per image, and makes sense for tiny images like icons
+     * (e.g. 1024 bytes). The compressed data and the filter chosen by the image
+     * encoder are kept. Images with an alpha mask, an ICC color space or which
+     * are still being encoded in the background are always written as XObject.
+     * <p>
+     * Note: An inlined image is written again every time it is drawn.
+     *
+     * @param inlineImageThreshold the maximum size of the encoded image data in
+     *                             bytes, 0 (the default) to never inline images.
+     */
+    @SuppressWarnings({ "unused" })
+    public void setInlineImageThreshold(int inlineImageThreshold)
+    {
+        this.inlineImageThreshold = inlineImageThreshold;
+    }
+
     /**
      * Set a new paint applier. You should always derive your custom paint applier
      * from the {@link IPdfBoxGraphics2DPaintApplier} and just extend the paint
@@ -228,7 +270,21 @@ public class PdfBoxGraphics2D extends Graphics2D
      */
     public PdfBoxGraphics2D(PDDocument document, PDRectangle bbox) throws IOException
     {
-        this(document, bbox, null);
+        this(document, bbox, null, PdfBoxGraphics2DDeflater.DEFAULT);
+    }
+
+    /**
+     * @param document The document the graphics should be used to create a XForm in.
+     * @param bbox     Bounding Box of the graphics
+     * @param deflater compresses the content stream of the XForm. Use this to
+     *                 compress big drawings on multiple threads.
+     * @throws IOException when something goes wrong with writing into the content stream of
+     *                     the {@link PDDocument}.
+     */
+    public PdfBoxGraphics2D(PDDocument document, PDRectangle bbox,
+            PdfBoxGraphics2DDeflater deflater) throws IOException
+    {
+        this(document, bbox, null, deflater);
     }
 
     /*
@@ -236,9 +292,17 @@ public class PdfBoxGraphics2D extends Graphics2D
      */
     PdfBoxGraphics2D(PDDocument document, PDRectangle bbox, PdfBoxGraphics2D parentGfx)
             throws IOException
+    {
+        this(document, bbox, parentGfx,
+                parentGfx == null ? PdfBoxGraphics2DDeflater.DEFAULT : parentGfx.deflater);
+    }
+
+    private PdfBoxGraphics2D(PDDocument document, PDRectangle bbox, PdfBoxGraphics2D parentGfx,
+            PdfBoxGraphics2DDeflater deflater) throws IOException
     {
         this.document = document;
         this.bbox = bbox;
+        this.deflater = deflater;
 
         renderingHints = new HashMap<RenderingHints.Key, Object>();
         renderingHints.put(RenderingHints.KEY_FRACTIONALMETRICS,
@@ -248,8 +312,9 @@ public class PdfBoxGraphics2D extends Graphics2D
         xFormObject = appearance;
         xFormObject.setResources(new PDResources());
         xFormObject.setBBox(bbox);
+        resourceNames = new ResourceNames(xFormObject.getResources());
         contentStream = new PDPageContentStream(document, appearance,
-                xFormObject.getStream().createOutputStream(COSName.FLATE_DECODE));
+                deflater.createOutputStream(xFormObject.getCOSObject()));
         contentStreamSaveState();
 
         if (parentGfx != null)
@@ -259,6 +324,7 @@ public class PdfBoxGraphics2D extends Graphics2D
             this.imageEncoder = parentGfx.imageEncoder;
             this.paintApplier = parentGfx.paintApplier;
             this.drawControl = parentGfx.drawControl;
+            this.inlineImageThreshold = parentGfx.inlineImageThreshold;
         }
 
         baseTransform = new AffineTransform();
@@ -315,7 +381,9 @@ public class PdfBoxGraphics2D extends Graphics2D
         this.document = gfx.document;
         this.bbox = gfx.bbox;
         this.xFormObject = gfx.xFormObject;
+        this.resourceNames = gfx.resourceNames;
         this.contentStream = gfx.contentStream;
+        this.deflater = gfx.deflater;
         this.baseTransform = gfx.baseTransform;
         this.transform = (AffineTransform) gfx.transform.clone();
         this.calcGfx = gfx.calcGfx;
@@ -330,6 +398,7 @@ public class PdfBoxGraphics2D extends Graphics2D
         this.imageEncoder = gfx.imageEncoder;
         this.paintApplier = gfx.paintApplier;
         this.drawControl = gfx.drawControl;
+        this.inlineImageThreshold = gfx.inlineImageThreshold;
         this.composite = gfx.composite;
         this.renderingHints = new HashMap<Key, Object>(gfx.renderingHints);
         this.xorColor = gfx.xorColor;
@@ -437,6 +506,11 @@ public class PdfBoxGraphics2D extends Graphics2D
         {
             throwException(e);
         }
+        /*
+         * Fill the images which are still being encoded in the background
+         */
+        if (imageEncoder instanceof IPdfBoxGraphics2DAsyncImageEncoder)
+            ((IPdfBoxGraphics2DAsyncImageEncoder) imageEncoder).awaitPendingImages(document);
         if (this.saveCounter != 0)
             throw new IllegalStateException("SaveCounter should be 0, but is " + this.saveCounter);
 
@@ -577,10 +651,59 @@ public class PdfBoxGraphics2D extends Graphics2D
         drawImage(img1, new AffineTransform(1f, 0f, 0f, 1f, x, y), null);
     }
 
+    /**
+     * Draw a RenderedImage. If the image encoder is an
+     * {@link IPdfBoxGraphics2DStreamingImageEncoder}, huge images are encoded band by
+     * band without copying the whole raster. Otherwise the image is copied into a
+     * BufferedImage and drawn as usual.
+     */
     public void drawRenderedImage(RenderedImage img, AffineTransform xform)
     {
-        WritableRaster data = img.copyData(null);
-        drawImage(new BufferedImage(img.getColorModel(), data, false, null), xform, null);
+        if (img instanceof BufferedImage)
+        {
+            drawImage((BufferedImage) img, xform, null);
+            return;
+        }
+
+        AffineTransform tf = xform == null ? new AffineTransform() : (AffineTransform) xform.clone();
+        tf.translate(img.getMinX(), img.getMinY());
+        IPdfBoxGraphics2DStreamingImageEncoder streamingEncoder = null;
+        if (imageEncoder instanceof IPdfBoxGraphics2DStreamingImageEncoder)
+            streamingEncoder = (IPdfBoxGraphics2DStreamingImageEncoder) imageEncoder;
+        long pixels = (long) img.getWidth() * img.getHeight();
+        if (streamingEncoder == null || pixels <= streamingEncoder.getMinStreamedPixels())
+        {
+            WritableRaster data = img.copyData(null).createWritableTranslatedChild(0, 0);
+            ColorModel colorModel = img.getColorModel();
+            drawImage(new BufferedImage(colorModel, data, colorModel.isAlphaPremultiplied(), null),
+                    tf, null);
+            return;
+        }
+
+        /*
+         * Huge images (e.g. tiled GeoTIFFs) are streamed band by band, without copying
+         * the whole raster.
+         */
+        checkNoCopyActive();
+        AffineTransform imageTransform = getCurrentEffectiveTransform();
+        imageTransform.concatenate(tf);
+        int bandHeight = TiledImageWriter.getBandHeight(img);
+        try
+        {
+            for (int y = 0; y < img.getHeight(); y += bandHeight)
+            {
+                int height = Math.min(bandHeight, img.getHeight() - y);
+                PDImageXObject band = streamingEncoder.encodeImageBand(document, img, y, height,
+                        imageEncoderEnv);
+                AffineTransform bandTransform = (AffineTransform) imageTransform.clone();
+                bandTransform.translate(0, y);
+                drawImageXObject(band, bandTransform, img.getWidth(), height);
+            }
+        }
+        catch (IOException e)
+        {
+            throwException(e);
+        }
     }
 
     public void drawRenderableImage(RenderableImage img, AffineTransform xform)
@@ -636,7 +759,9 @@ public class PdfBoxGraphics2D extends Graphics2D
         {
             if (bgcolor != null)
             {
-                contentStream.setNonStrokingColor(colorMapper.mapColor(bgcolor, colorMapperEnv));
+                contentStream.setNonStrokingColor(
+                        PdfBoxGraphics2DColorSpaceRegistry.getInstance(document)
+                                .register(colorMapper.mapColor(bgcolor, colorMapperEnv)));
                 walkShape(new Rectangle(x, y, width, height));
                 contentStream.fill();
             }
@@ -655,7 +780,11 @@ public class PdfBoxGraphics2D extends Graphics2D
         return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null, observer);
     }
 
-    final IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv imageEncoderEnv = new IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv()
+    final IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv imageEncoderEnv = new ImageEncoderEnv();
+
+    private class ImageEncoderEnv
+            implements IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageTransformEnv,
+            IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageRegionEnv
     {
         @Override
         public ImageInterpolation getImageInterpolation()
@@ -665,7 +794,27 @@ public class PdfBoxGraphics2D extends Graphics2D
                 return ImageInterpolation.NearestNeigbor;
             return ImageInterpolation.Interpolate;
         }
-    };
+
+        @Override
+        public AffineTransform getImageTransform()
+        {
+            return imageTransform == null ? null : (AffineTransform) imageTransform.clone();
+        }
+
+        @Override
+        public Rectangle getSourceRegion()
+        {
+            return imageTransform == null || sourceRegion == null ?
+                    null :
+                    new Rectangle(sourceRegion);
+        }
+
+        @Override
+        public void setEncodedRegion(Rectangle region)
+        {
+            encodedRegion = region == null ? null : new Rectangle(region);
+        }
+    }
 
     public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs)
     {
@@ -676,26 +825,34 @@ public class PdfBoxGraphics2D extends Graphics2D
         if (xform != null)
             tf.concatenate((AffineTransform) xform.clone());
 
-        PDImageXObject pdImage = imageEncoder.encodeImage(document, contentStream, img,
-                imageEncoderEnv);
+        PDImageXObject pdImage;
+        Rectangle region;
+        imageTransform = tf;
+        encodedRegion = null;
         try
         {
-            contentStreamSaveState();
-            int imgHeight = img.getHeight(obs);
-            tf.translate(0, imgHeight);
-            tf.scale(1, -1);
-            contentStream.transform(new Matrix(tf));
-
-            if (composite != null)
-            {
-                // We got an AlphaComposite, we must set the extended graphics dictionary correctly.
-                // The PaintApplyer will do this for us. So we just apply a paint (without alpha)
-                // so that the graphics dictionary is set correctly.
-                applyPaint(Color.WHITE, null);
-            }
-
-            contentStream.drawImage(pdImage, 0, 0, img.getWidth(obs), imgHeight);
-            contentStreamRestoreState();
+            pdImage = imageEncoder.encodeImage(document, contentStream, img, imageEncoderEnv);
+            region = encodedRegion;
+        }
+        finally
+        {
+            imageTransform = null;
+            encodedRegion = null;
+        }
+        int imgWidth = img.getWidth(obs);
+        int imgHeight = img.getHeight(obs);
+        if (region != null)
+        {
+            /*
+             * The encoder only encoded a part of the image
+             */
+            tf.translate(region.x, region.y);
+            imgWidth = region.width;
+            imgHeight = region.height;
+        }
+        try
+        {
+            drawImageXObject(pdImage, tf, imgWidth, imgHeight);
         }
         catch (IOException e)
         {
@@ -704,9 +861,53 @@ public class PdfBoxGraphics2D extends Graphics2D
         return true;
     }
 
+    /**
+     * Draw the image XObject into the rectangle (0, 0, width, height) of the given
+     * transform.
+     */
+    @SuppressWarnings("deprecation")
+    private void drawImageXObject(PDImageXObject pdImage, AffineTransform transform, int width,
+            int height) throws IOException
+    {
+        byte[] inlineImage = null;
+        if (inlineImageThreshold > 0)
+            inlineImage = InlineImageWriter.toInlineImage(pdImage, inlineImageThreshold);
+
+        contentStreamSaveState();
+        AffineTransform tf = (AffineTransform) transform.clone();
+        tf.translate(0, height);
+        tf.scale(1, -1);
+        contentStream.transform(new Matrix(tf));
+
+        if (composite != null)
+        {
+            // We got an AlphaComposite, we must set the extended graphics dictionary correctly.
+            // The PaintApplyer will do this for us. So we just apply a paint (without alpha)
+            // so that the graphics dictionary is set correctly.
+            applyPaint(Color.WHITE, null);
+        }
+
+        if (inlineImage != null)
+        {
+            /*
+             * PDPageContentStream can not write filtered inline images, so we write the
+             * operators ourself
+             */
+            contentStream.transform(new Matrix(width, 0, 0, height, 0, 0));
+            contentStream.appendRawCommands(inlineImage);
+        }
+        else
+        {
+            resourceNames.drawImage(contentStream, pdImage, 0, 0, width, height);
+        }
+        contentStreamRestoreState();
+    }
+
     public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1,
             int sx2, int sy2, Color bgcolor, ImageObserver observer)
     {
+        if (sx1 == sx2 || sy1 == sy2)
+            return true;
         try
         {
             contentStreamSaveState();
@@ -724,7 +925,9 @@ public class PdfBoxGraphics2D extends Graphics2D
              */
             if (bgcolor != null)
             {
-                contentStream.setNonStrokingColor(colorMapper.mapColor(bgcolor, colorMapperEnv));
+                contentStream.setNonStrokingColor(
+                        PdfBoxGraphics2DColorSpaceRegistry.getInstance(document)
+                                .register(colorMapper.mapColor(bgcolor, colorMapperEnv)));
                 walkShape(new Rectangle(dx1, dy1, width, height));
                 contentStream.fill();
             }
@@ -734,13 +937,19 @@ public class PdfBoxGraphics2D extends Graphics2D
              */
             AffineTransform tf = new AffineTransform();
             tf.translate(dx1, dy1);
-            float imgWidth = img.getWidth(observer);
-            float imgHeight = img.getHeight(observer);
-            tf.scale((float) width / imgWidth, (float) height / imgHeight);
+            tf.scale((float) width / (sx2 - sx1), (float) height / (sy2 - sy1));
             tf.translate(-sx1, -sy1);
-            tf.scale((sx2 - sx1) / imgWidth, (sy2 - sy1) / imgHeight);
 
-            drawImage(img, tf, observer);
+            sourceRegion = new Rectangle(Math.min(sx1, sx2), Math.min(sy1, sy2),
+                    Math.abs(sx2 - sx1), Math.abs(sy2 - sy1));
+            try
+            {
+                drawImage(img, tf, observer);
+            }
+            finally
+            {
+                sourceRegion = null;
+            }
             contentStreamRestoreState();
             return true;
         }
@@ -950,7 +1159,7 @@ public class PdfBoxGraphics2D extends Graphics2D
                         boolean useEvenOdd = result.hasShapeBeenWalked ? result.useEvenOdd : walkShape(
                                 shapeToFill);
                         internalClip(useEvenOdd);
-                        contentStream.shadingFill(result.shading);
+                        resourceNames.shadingFill(contentStream, result.shading);
                     }
                 }
                 else
@@ -1019,7 +1228,7 @@ public class PdfBoxGraphics2D extends Graphics2D
         imageContentStream.close();
 
         PDColorSpace patternCS1 = new PDPattern(null);
-        COSName tilingPatternName = xFormObject.getResources().add(pattern);
+        COSName tilingPatternName = resourceNames.add(pattern);
         PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
 
         contentStream.setNonStrokingColor(patternColor);
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Encodes photos as JPEG (DCTDecode) and everything else lossless. Every image
+ * is analysed first: Images with only a few colors, large flat areas or many
+ * hard edges (e.g. charts, logos, screenshots) are encoded by a
+ * {@link PdfBoxGraphics2DLosslessImageEncoder}, as JPEG would blur them and
+ * give larger files. All other images are encoded as JPEG. The alpha channel of
+ * JPEG images is stored lossless as separate SMask.
+ * <p>
+ * The decision is cached per image. You can share an instance of this class
+ * with multiple PdfBoxGraphics2D objects, also across multiple documents and
+ * threads.
+ */
+public class PdfBoxGraphics2DAutoImageEncoder implements IPdfBoxGraphics2DAsyncImageEncoder
+{
+    /**
+     * Images smaller than this (in both dimensions) are always encoded lossless,
+     * the JPEG overhead is not worth it.
+     */
+    private static final int MIN_JPEG_SIZE = 16;
+
+    private final PdfBoxGraphics2DLosslessImageEncoder losslessEncoder;
+    private final PdfBoxGraphics2DImageCache imageCache;
+    private final Map<Image, Boolean> decisions = Collections.synchronizedMap(
+            new WeakHashMap<Image, Boolean>());
+    private volatile float jpegQuality = 0.85f;
+    private volatile int maxColorsForLossless = 256;
+    private volatile double flatRatioThreshold = 0.6;
+    private volatile double edgeRatioThreshold = 0.35;
+
+    public PdfBoxGraphics2DAutoImageEncoder()
+    {
+        this(new PdfBoxGraphics2DLosslessImageEncoder());
+    }
+
+    /**
+     * @param losslessEncoder the encoder for the images which should not be encoded
+     *                        as JPEG. Its image cache is also used for the JPEG
+     *                        images.
+     */
+    public PdfBoxGraphics2DAutoImageEncoder(PdfBoxGraphics2DLosslessImageEncoder losslessEncoder)
+    {
+        this.losslessEncoder = losslessEncoder;
+        this.imageCache = losslessEncoder.getImageCache();
+    }
+
+    /**
+     * @param jpegQuality the JPEG quality, between 0 and 1. Default is 0.85.
+     */
+    @SuppressWarnings("unused")
+    public void setJpegQuality(float jpegQuality)
+    {
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * @param maxColorsForLossless images with at most this count of distinct
+     *                             colors are always encoded lossless. Default is
+     *                             256.
+     */
+    @SuppressWarnings("unused")
+    public void setMaxColorsForLossless(int maxColorsForLossless)
+    {
+        this.maxColorsForLossless = maxColorsForLossless;
+    }
+
+    /**
+     * @param flatRatioThreshold images where more than this fraction of the
+     *                           neighbour pixels have exactly the same color are
+     *                           encoded lossless. Default is 0.6.
+     */
+    @SuppressWarnings("unused")
+    public void setFlatRatioThreshold(double flatRatioThreshold)
+    {
+        this.flatRatioThreshold = flatRatioThreshold;
+    }
+
+    /**
+     * @param edgeRatioThreshold images where more than this fraction of the color
+     *                           changes between neighbour pixels are hard edges
+     *                           (e.g. text) are encoded lossless. Default is
+     *                           0.35.
+     */
+    @SuppressWarnings("unused")
+    public void setEdgeRatioThreshold(double edgeRatioThreshold)
+    {
+        this.edgeRatioThreshold = edgeRatioThreshold;
+    }
+
+    public PdfBoxGraphics2DImageCache getImageCache()
+    {
+        return imageCache;
+    }
+
+    @Override
+    public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream,
+            Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    {
+        /*
+         * Only BufferedImages can be analysed, all other images are rare and
+         * encoded lossless.
+         */
+        if (!(image instanceof BufferedImage))
+            return losslessEncoder.encodeImage(document, contentStream, image, env);
+        BufferedImage bi = (BufferedImage) image;
+
+        Boolean useJpeg = decisions.get(image);
+        if (useJpeg == null)
+        {
+            useJpeg = isPhoto(bi);
+            decisions.put(image, useJpeg);
+        }
+        if (!useJpeg)
+            return losslessEncoder.encodeImage(document, contentStream, image, env);
+
+        Object key = imageCache.identityKey(image, new JpegKey(jpegQuality,
+                env.getImageInterpolation()));
+        PDImageXObject imageXObject = imageCache.get(document, key);
+        if (imageXObject != null)
+        {
+            imageCache.countHit();
+            return imageXObject;
+        }
+        imageCache.countMiss();
+        try
+        {
+            imageXObject = encodeJpeg(document, bi);
+            losslessEncoder.shareMasks(document, imageXObject);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not encode Image", e);
+        }
+        imageXObject.setInterpolate(env.getImageInterpolation()
+                == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.Interpolate);
+        imageCache.put(document, key, imageXObject,
+                PdfBoxGraphics2DImageCache.estimateEncodedBytes(imageXObject));
+        return imageXObject;
+    }
+
+    @Override
+    public void awaitPendingImages(PDDocument document)
+    {
+        losslessEncoder.awaitPendingImages(document);
+    }
+
+    /**
+     * Decide if the image looks like a photo and can be encoded as JPEG.
+     */
+    boolean isPhoto(BufferedImage bi)
+    {
+        if (bi.getWidth() < MIN_JPEG_SIZE && bi.getHeight() < MIN_JPEG_SIZE)
+            return false;
+        if (bi.getColorModel() instanceof IndexColorModel)
+            return false;
+        ColorSpace colorSpace = bi.getColorModel().getColorSpace();
+        if (colorSpace.getType() != ColorSpace.TYPE_RGB
+                && colorSpace.getType() != ColorSpace.TYPE_GRAY)
+            return false;
+
+        int maxColors = maxColorsForLossless;
+        ImageClassifier classifier = ImageClassifier.analyze(bi, maxColors);
+        if (classifier.alphaUsage != ImageClassifier.AlphaUsage.Opaque && !colorSpace.isCS_sRGB())
+        {
+            /*
+             * We can only split off the alpha channel of sRGB images without converting
+             * the colors.
+             */
+            return false;
+        }
+        if (classifier.alphaUsage == ImageClassifier.AlphaUsage.Opaque && !isEightBit(
+                bi.getColorModel()) && !colorSpace.isCS_sRGB())
+            return false;
+        return classifier.colorCount > maxColors
+                && classifier.flatRatio <= flatRatioThreshold
+                && classifier.edgeRatio <= edgeRatioThreshold;
+    }
+
+    private PDImageXObject encodeJpeg(PDDocument document, BufferedImage bi) throws IOException
+    {
+        ColorModel colorModel = bi.getColorModel();
+        if (!colorModel.hasAlpha() && isEightBit(colorModel))
+        {
+            PDImageXObject imageXObject = JPEGFactory.createFromImage(document, bi, jpegQuality);
+            /*
+             * JPEGFactory always tags DeviceRGB / DeviceGray
+             */
+            losslessEncoder.tagColorProfile(document, bi, imageXObject);
+            return imageXObject;
+        }
+
+        /*
+         * Split the image into the color and the alpha part. The colors are copied
+         * without blending them with the alpha, otherwise we would get dark edges.
+         */
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        BufferedImage colorImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage alphaImage = null;
+        WritableRaster alphaRaster = null;
+        if (colorModel.hasAlpha())
+        {
+            alphaImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            alphaRaster = alphaImage.getRaster();
+        }
+        int[] row = new int[width];
+        int[] alphaRow = new int[width];
+        boolean opaque = true;
+        for (int y = 0; y < height; y++)
+        {
+            bi.getRGB(0, y, width, 1, row, 0, width);
+            colorImage.setRGB(0, y, width, 1, row, 0, width);
+            if (alphaRaster != null)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    alphaRow[x] = row[x] >>> 24;
+                    if (alphaRow[x] != 0xFF)
+                        opaque = false;
+                }
+                alphaRaster.setSamples(0, y, width, 1, 0, alphaRow);
+            }
+        }
+
+        PDImageXObject imageXObject = JPEGFactory.createFromImage(document, colorImage,
+                jpegQuality);
+        if (alphaImage != null && !opaque)
+        {
+            PDImageXObject smask = LosslessFactory.createFromImage(document, alphaImage);
+            imageXObject.getCOSObject().setItem(COSName.SMASK, smask);
+        }
+        return imageXObject;
+    }
+
+    private static boolean isEightBit(ColorModel colorModel)
+    {
+        for (int size : colorModel.getComponentSize())
+        {
+            if (size != 8)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Discriminator of the cache key
+     */
+    private static final class JpegKey
+    {
+        private final float quality;
+        private final IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation;
+
+        JpegKey(float quality, IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
+        {
+            this.quality = quality;
+            this.interpolation = interpolation;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof JpegKey))
+                return false;
+            JpegKey other = (JpegKey) obj;
+            return Float.compare(other.quality, quality) == 0 && other.interpolation == interpolation;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Float.floatToIntBits(quality) * 31 + interpolation.hashCode();
+        }
+    }
+}
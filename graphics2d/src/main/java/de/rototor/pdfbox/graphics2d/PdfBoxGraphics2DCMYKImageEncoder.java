@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Image encoder which converts RGB images to the CMYK profile of a
+ * {@link RGBtoCMYKColorMapper}, so that images end up in the same output color
+ * space as the vector graphics. The images are embedded as ICCBased CMYK
+ * images, which share the PDICCBased color space of the color mapper.
+ * <p>
+ * The pixels are converted with a {@link ColorConvertOp} in bands of rows,
+ * which are processed in parallel on a fork join pool. Only a window of bands
+ * is converted at a time, right before it is Flate compressed, so the CMYK
+ * samples of the whole image are never held in memory.
+ * <p>
+ * All other images are passed to the delegate encoder: gray images (which stay
+ * gray, i.e. are only printed with black ink), images which are not RGB, and
+ * {@link PdfBoxGraphics2DEncodedImage}s, which are embedded as they are.
+ * <p>
+ * As the PDICCBased of the color mapper belongs to one document, use one
+ * encoder per color mapper and document.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * RGBtoCMYKColorMapper colorMapper = new RGBtoCMYKColorMapper(iccProfile, document);
+ * pdfBoxGraphics2D.setColorMapper(colorMapper);
+ * pdfBoxGraphics2D.setImageEncoder(new PdfBoxGraphics2DCMYKImageEncoder(colorMapper));
+ * </pre>
+ */
+public class PdfBoxGraphics2DCMYKImageEncoder implements IPdfBoxGraphics2DAsyncImageEncoder
+{
+    /**
+     * Pixels per parallel conversion task
+     */
+    private static final int PIXELS_PER_TASK = 64 * 1024;
+
+    private final RGBtoCMYKColorMapper colorMapper;
+    private final IPdfBoxGraphics2DImageEncoder delegate;
+    private final PdfBoxGraphics2DImageCache imageCache;
+    private final ThreadLocal<ColorConvertOp> colorConvertOps = new ThreadLocal<ColorConvertOp>()
+    {
+        @Override
+        protected ColorConvertOp initialValue()
+        {
+            return new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                    colorMapper.getColorSpace(), null);
+        }
+    };
+    private volatile PdfBoxGraphics2DDeflater deflater = PdfBoxGraphics2DDeflater.DEFAULT;
+
+    /**
+     * Convert the RGB images, and encode all other images lossless. The converted
+     * images are cached in the image cache of the lossless encoder.
+     *
+     * @param colorMapper the color mapper whose profile the images are converted to
+     */
+    public PdfBoxGraphics2DCMYKImageEncoder(RGBtoCMYKColorMapper colorMapper)
+    {
+        this(colorMapper, new PdfBoxGraphics2DLosslessImageEncoder());
+    }
+
+    /**
+     * @param colorMapper the color mapper whose profile the images are converted to
+     * @param delegate    the encoder for the images which are not converted. If it
+     *                    is a {@link PdfBoxGraphics2DLosslessImageEncoder}, its image
+     *                    cache is also used for the converted images.
+     */
+    public PdfBoxGraphics2DCMYKImageEncoder(RGBtoCMYKColorMapper colorMapper,
+            IPdfBoxGraphics2DImageEncoder delegate)
+    {
+        this(colorMapper, delegate, delegate instanceof PdfBoxGraphics2DLosslessImageEncoder ?
+                ((PdfBoxGraphics2DLosslessImageEncoder) delegate).getImageCache() :
+                new PdfBoxGraphics2DImageCache());
+    }
+
+    /**
+     * @param colorMapper the color mapper whose profile the images are converted to
+     * @param delegate    the encoder for the images which are not converted.
+     * @param imageCache  the cache for the converted images.
+     */
+    public PdfBoxGraphics2DCMYKImageEncoder(RGBtoCMYKColorMapper colorMapper,
+            IPdfBoxGraphics2DImageEncoder delegate, PdfBoxGraphics2DImageCache imageCache)
+    {
+        this.colorMapper = colorMapper;
+        this.delegate = delegate;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @param deflater the deflater to compress the CMYK samples with, by default
+     *                 {@link PdfBoxGraphics2DDeflater#DEFAULT}
+     */
+    @SuppressWarnings("unused")
+    public void setDeflater(PdfBoxGraphics2DDeflater deflater)
+    {
+        this.deflater = deflater;
+    }
+
+    public PdfBoxGraphics2DImageCache getImageCache()
+    {
+        return imageCache;
+    }
+
+    @Override
+    public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream,
+            Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    {
+        if (image instanceof PdfBoxGraphics2DEncodedImage)
+            return delegate.encodeImage(document, contentStream, image, env);
+
+        Object key = imageCache.identityKey(image,
+                new CMYKKey(colorMapper, env.getImageInterpolation()));
+        PDImageXObject imageXObject = imageCache.get(document, key);
+        if (imageXObject != null)
+        {
+            imageCache.countHit();
+            return imageXObject;
+        }
+
+        BufferedImage bi = PdfBoxGraphics2DLosslessImageEncoder.toBufferedImage(image);
+        if (bi.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_RGB)
+            return delegate.encodeImage(document, contentStream, bi, env);
+
+        imageCache.countMiss();
+        try
+        {
+            imageXObject = convert(document, bi);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Could not encode Image", e);
+        }
+        imageXObject.setInterpolate(env.getImageInterpolation()
+                == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.Interpolate);
+        imageCache.put(document, key, imageXObject,
+                PdfBoxGraphics2DImageCache.estimateEncodedBytes(imageXObject));
+        return imageXObject;
+    }
+
+    @Override
+    public void awaitPendingImages(PDDocument document)
+    {
+        if (delegate instanceof IPdfBoxGraphics2DAsyncImageEncoder)
+            ((IPdfBoxGraphics2DAsyncImageEncoder) delegate).awaitPendingImages(document);
+    }
+
+    private PDImageXObject convert(PDDocument document, BufferedImage bi) throws IOException
+    {
+        final ImageRowReader reader = ImageRowReader.create(bi);
+        final int width = reader.width;
+        final int height = reader.height;
+        /*
+         * Enough rows to keep all threads of the pool busy
+         */
+        final int windowRows = (int) Math.max(1, Math.min(height,
+                (long) PIXELS_PER_TASK * ImageWorkerPool.POOL.getParallelism() / Math.max(1,
+                        width)));
+        final byte[] cmyk = new byte[windowRows * width * 4];
+        final byte[] alpha = reader.hasAlpha() ? new byte[windowRows * width] : null;
+
+        /*
+         * The alpha usage is classified while writing, so we do not need to scan the
+         * image upfront.
+         */
+        return FlateImageWriter.write(document, deflater, width, height, 8, 4,
+                colorMapper.getPDProfile(), true,
+                alpha != null ? null : ImageClassifier.AlphaUsage.Opaque,
+                new FlateImageWriter.RowSource()
+                {
+                    private int windowY = -windowRows;
+
+                    @Override
+                    public void readRow(int y, byte[] color, byte[] alphaRow)
+                    {
+                        if (y >= windowY + windowRows)
+                        {
+                            windowY = y;
+                            ConvertTask task = new ConvertTask(reader, windowY,
+                                    Math.min(height, windowY + windowRows), windowY, cmyk,
+                                    alpha);
+                            if ((long) width * windowRows <= PIXELS_PER_TASK)
+                                task.compute();
+                            else
+                                ImageWorkerPool.POOL.invoke(task);
+                        }
+                        int row = y - windowY;
+                        System.arraycopy(cmyk, row * width * 4, color, 0, width * 4);
+                        if (alpha != null)
+                            System.arraycopy(alpha, row * width, alphaRow, 0, width);
+                    }
+                });
+    }
+
+    /**
+     * Convert the rows into the CMYK samples, and collect the alpha samples.
+     *
+     * @param windowY the row of the image which is stored at the start of the
+     *                arrays
+     */
+    private void convertRows(ImageRowReader reader, int fromY, int toY, int windowY,
+            byte[] cmyk, byte[] alpha)
+    {
+        int width = reader.width;
+        int rows = toY - fromY;
+        WritableRaster rgbRaster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width,
+                rows, 3, null);
+        byte[] rgb = ((DataBufferByte) rgbRaster.getDataBuffer()).getData();
+        int[] row = new int[width];
+        int i = 0;
+        for (int y = fromY; y < toY; y++)
+        {
+            reader.readARGB(y, row);
+            for (int x = 0; x < width; x++)
+            {
+                int argb = row[x];
+                rgb[i++] = (byte) (argb >> 16);
+                rgb[i++] = (byte) (argb >> 8);
+                rgb[i++] = (byte) argb;
+                if (alpha != null)
+                    alpha[(y - windowY) * width + x] = (byte) (argb >>> 24);
+            }
+        }
+        /*
+         * ColorConvertOp ignores the offset of a DataBuffer, so the band is converted
+         * into its own raster and copied into place.
+         */
+        WritableRaster cmykRaster = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width,
+                rows, 4, null);
+        colorConvertOps.get().filter(rgbRaster, cmykRaster);
+        byte[] cmykBand = ((DataBufferByte) cmykRaster.getDataBuffer()).getData();
+        System.arraycopy(cmykBand, 0, cmyk, (fromY - windowY) * width * 4, cmykBand.length);
+    }
+
+    /**
+     * Discriminator of the cache key. The cache may be shared with other encoders,
+     * which cache the same image unconverted.
+     */
+    private static final class CMYKKey
+    {
+        private final RGBtoCMYKColorMapper colorMapper;
+        private final IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation;
+
+        CMYKKey(RGBtoCMYKColorMapper colorMapper,
+                IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
+        {
+            this.colorMapper = colorMapper;
+            this.interpolation = interpolation;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof CMYKKey))
+                return false;
+            CMYKKey other = (CMYKKey) obj;
+            return colorMapper == other.colorMapper && interpolation == other.interpolation;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(colorMapper) * 31 + (interpolation == null ? 0
+                    : interpolation.hashCode());
+        }
+    }
+
+    private final class ConvertTask extends RecursiveAction
+    {
+        private final ImageRowReader reader;
+        private final int fromY;
+        private final int toY;
+        private final int windowY;
+        private final byte[] cmyk;
+        private final byte[] alpha;
+
+        ConvertTask(ImageRowReader reader, int fromY, int toY, int windowY, byte[] cmyk,
+                byte[] alpha)
+        {
+            this.reader = reader;
+            this.fromY = fromY;
+            this.toY = toY;
+            this.windowY = windowY;
+            this.cmyk = cmyk;
+            this.alpha = alpha;
+        }
+
+        @Override
+        protected void compute()
+        {
+            int rows = toY - fromY;
+            if ((long) rows * reader.width <= PIXELS_PER_TASK || rows < 2)
+            {
+                convertRows(reader, fromY, toY, windowY, cmyk, alpha);
+                return;
+            }
+            int middle = fromY + rows / 2;
+            invokeAll(new ConvertTask(reader, fromY, middle, windowY, cmyk, alpha),
+                    new ConvertTask(reader, middle, toY, windowY, cmyk, alpha));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+
+import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Color mapper which remembers the colors mapped by another color mapper, and
+ * returns the same PDColor when the same color is mapped again. This is useful
+ * for expensive color mappers, e.g. ones converting to a CMYK profile or looking
+ * up spot colors in a table.
+ * <p>
+ * Plain {@link Color}s are remembered by their ARGB value. All other colors, i.e.
+ * {@link IPdfBoxGraphics2DColor}s and other subclasses of Color, are remembered
+ * by identity, as they can carry more than their RGB value.
+ * <p>
+ * The wrapped color mapper must map a color always to the same PDColor,
+ * regardless of the environment it is called with. When more than
+ * {@link #getMaxEntries()} colors have been remembered, the least recently used
+ * ones are forgotten and mapped again when needed.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * pdfBoxGraphics2D.setColorMapper(new PdfBoxGraphics2DCachingColorMapper(colorMapper));
+ * </pre>
+ */
+public class PdfBoxGraphics2DCachingColorMapper implements IPdfBoxGraphics2DBatchColorMapper
+{
+    /**
+     * The default number of remembered colors
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final IPdfBoxGraphics2DColorMapper delegate;
+    /**
+     * The remembered colors in access order, keyed by their ARGB value or by an
+     * {@link IdentityKey}
+     */
+    private final Map<Object, PDColor> colors = new LinkedHashMap<Object, PDColor>(16, 0.75f,
+            true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, PDColor> eldest)
+        {
+            return size() > maxEntries;
+        }
+    };
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param delegate the color mapper whose results are remembered
+     */
+    public PdfBoxGraphics2DCachingColorMapper(IPdfBoxGraphics2DColorMapper delegate)
+    {
+        this.delegate = delegate;
+    }
+
+    public IPdfBoxGraphics2DColorMapper getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * @param maxEntries the maximum number of colors to remember, by default
+     *                   {@link #DEFAULT_MAX_ENTRIES}
+     */
+    public void setMaxEntries(int maxEntries)
+    {
+        synchronized (colors)
+        {
+            this.maxEntries = maxEntries;
+            Iterator<PDColor> iterator = colors.values().iterator();
+            while (colors.size() > maxEntries && iterator.hasNext())
+            {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Forget all remembered colors
+     */
+    public void clear()
+    {
+        synchronized (colors)
+        {
+            colors.clear();
+        }
+    }
+
+    @Override
+    public PDColor mapColor(Color color, IColorMapperEnv env)
+    {
+        if (color == null)
+            return delegate.mapColor(null, env);
+
+        Object key = color.getClass() == Color.class ?
+                Integer.valueOf(color.getRGB()) :
+                new IdentityKey(color);
+        PDColor pdColor;
+        synchronized (colors)
+        {
+            pdColor = colors.get(key);
+        }
+        if (pdColor != null)
+        {
+            hitCount.incrementAndGet();
+            return pdColor;
+        }
+
+        /*
+         * The delegate may be slow, so we map outside of the lock. Two threads may
+         * map the same color concurrently, which is harmless.
+         */
+        pdColor = delegate.mapColor(color, env);
+        synchronized (colors)
+        {
+            colors.put(key, pdColor);
+        }
+        missCount.incrementAndGet();
+        return pdColor;
+    }
+
+    @Override
+    public PDColor[] mapColors(Color[] colors, IColorMapperEnv env)
+    {
+        PDColor[] pdColors = new PDColor[colors.length];
+        for (int i = 0; i < colors.length; i++)
+        {
+            /*
+             * Gradients often repeat a color in neighbouring stops
+             */
+            if (i > 0 && colors[i] == colors[i - 1])
+                pdColors[i] = pdColors[i - 1];
+            else
+                pdColors[i] = mapColor(colors[i], env);
+        }
+        return pdColors;
+    }
+
+    /**
+     * Compares a color by identity
+     */
+    private static final class IdentityKey
+    {
+        private final Color color;
+
+        IdentityKey(Color color)
+        {
+            this.color = color;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).color == color;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(color);
+        }
+    }
+}
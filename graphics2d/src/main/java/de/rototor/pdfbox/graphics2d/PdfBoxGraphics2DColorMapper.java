@@ -22,17 +22,23 @@ import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
 import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 
 public class PdfBoxGraphics2DColorMapper implements IPdfBoxGraphics2DColorMapper {
+	private static final PropertyAccessor<Float> CYAN = new PropertyAccessor<Float>("getCyan");
+	private static final PropertyAccessor<Float> MAGENTA = new PropertyAccessor<Float>("getMagenta");
+	private static final PropertyAccessor<Float> YELLOW = new PropertyAccessor<Float>("getYellow");
+	private static final PropertyAccessor<Float> BLACK = new PropertyAccessor<Float>("getBlack");
+
 	@Override
 	public PDColor mapColor(Color color, IColorMapperEnv env) {
 		if (color == null)
 			return new PDColor(new float[] { 1f, 1f, 1f }, PDDeviceRGB.INSTANCE);
 
 		// Support for legacy iText 2 CMYK Color Class
-		if (color.getClass().getSimpleName().equals("CMYKColor")) {
-			float c = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getCyan");
-			float m = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getMagenta");
-			float y = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getYellow");
-			float k = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getBlack");
+		if (color.getClass() != Color.class
+				&& PropertyAccessor.simpleName(color.getClass()).equals("CMYKColor")) {
+			float c = CYAN.get(color);
+			float m = MAGENTA.get(color);
+			float y = YELLOW.get(color);
+			float k = BLACK.get(color);
 			return new PDColor(new float[] { c, m, y, k }, PDDeviceCMYK.INSTANCE);
 		}
 
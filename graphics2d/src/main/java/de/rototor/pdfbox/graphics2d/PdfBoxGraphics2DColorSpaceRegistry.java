@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.color.PDPattern;
+
+import java.awt.color.ICC_Profile;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The color spaces and ICC profiles of a document. Equal color spaces, e.g. the
+ * same Separation created for many colors, or the same ICC profile used by
+ * several images and the color mapper, are only written once into the PDF.
+ * <p>
+ * The image encoders, the {@link RGBtoCMYKColorMapper} and the
+ * {@link PdfBoxGraphics2DPaintApplier} share the registry of a document, which
+ * you get with {@link #getInstance(PDDocument)}. Custom color mappers and image
+ * encoders can use it too.
+ */
+public class PdfBoxGraphics2DColorSpaceRegistry
+{
+    private static final Map<PDDocument, PdfBoxGraphics2DColorSpaceRegistry> registries = new WeakHashMap<PDDocument, PdfBoxGraphics2DColorSpaceRegistry>();
+
+    /**
+     * The registry must not keep its document alive
+     */
+    private final WeakReference<PDDocument> document;
+    /**
+     * ICC_Profile has no equals(), so this maps by identity
+     */
+    private final Map<ICC_Profile, PDICCBased> byProfile = new WeakHashMap<ICC_Profile, PDICCBased>();
+    private final Map<ByteBuffer, PDICCBased> byProfileData = new HashMap<ByteBuffer, PDICCBased>();
+    /**
+     * Color spaces are arrays, which compare by identity. This is weak, as color
+     * mappers may create a new color space for every color.
+     */
+    private final Map<COSBase, PDColorSpace> byObject = new WeakHashMap<COSBase, PDColorSpace>();
+    /**
+     * The registered color spaces without streams, e.g. most Separations. These are
+     * compared by their structure, which is much cheaper than a digest.
+     */
+    private final Map<COSStructure.Key, PDColorSpace> byStructure = new HashMap<COSStructure.Key, PDColorSpace>();
+    private final Map<ByteBuffer, PDColorSpace> byContent = new HashMap<ByteBuffer, PDColorSpace>();
+    private long digestCount;
+
+    private PdfBoxGraphics2DColorSpaceRegistry(PDDocument document)
+    {
+        this.document = new WeakReference<PDDocument>(document);
+    }
+
+    /**
+     * @param document the document
+     * @return the registry of the document
+     */
+    public static PdfBoxGraphics2DColorSpaceRegistry getInstance(PDDocument document)
+    {
+        synchronized (registries)
+        {
+            PdfBoxGraphics2DColorSpaceRegistry registry = registries.get(document);
+            if (registry == null)
+            {
+                registry = new PdfBoxGraphics2DColorSpaceRegistry(document);
+                registries.put(document, registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * @param profile the ICC profile
+     * @return the ICCBased color space of the profile in this document.
+     */
+    public synchronized PDICCBased getICCBased(ICC_Profile profile) throws IOException
+    {
+        PDICCBased iccBased = byProfile.get(profile);
+        if (iccBased == null)
+        {
+            iccBased = getICCBased(profile.getData(), profile.getNumComponents());
+            byProfile.put(profile, iccBased);
+        }
+        return iccBased;
+    }
+
+    /**
+     * @param profileData        the data of the ICC profile
+     * @param numberOfComponents the number of color components of the profile
+     * @return the ICCBased color space of the profile in this document.
+     */
+    public synchronized PDICCBased getICCBased(byte[] profileData, int numberOfComponents)
+            throws IOException
+    {
+        ByteBuffer key = profileKey(profileData, numberOfComponents);
+        PDICCBased iccBased = byProfileData.get(key);
+        if (iccBased != null)
+            return iccBased;
+
+        PDDocument document = this.document.get();
+        if (document == null)
+            throw new IllegalStateException("The document has been closed");
+        iccBased = new PDICCBased(document);
+        OutputStream out = iccBased.getPDStream().createOutputStream(COSName.FLATE_DECODE);
+        try
+        {
+            out.write(profileData);
+        }
+        finally
+        {
+            out.close();
+        }
+        iccBased.getPDStream().getCOSObject().setInt(COSName.N, numberOfComponents);
+        COSName alternate = numberOfComponents == 1 ?
+                COSName.DEVICEGRAY :
+                numberOfComponents == 3 ?
+                        COSName.DEVICERGB :
+                        numberOfComponents == 4 ? COSName.DEVICECMYK : null;
+        if (alternate != null)
+            iccBased.getPDStream().getCOSObject().setItem(COSName.ALTERNATE, alternate);
+
+        /*
+         * Maybe an equal color space has already been registered by content
+         */
+        PDColorSpace registered = register(iccBased);
+        if (registered instanceof PDICCBased)
+            iccBased = (PDICCBased) registered;
+        byProfileData.put(key, iccBased);
+        return iccBased;
+    }
+
+    /**
+     * @param colorSpace the color space
+     * @return the first registered color space equal to the given one, or the given
+     * one if there is none yet. Device and pattern color spaces are returned
+     * as they are.
+     */
+    public synchronized PDColorSpace register(PDColorSpace colorSpace) throws IOException
+    {
+        if (colorSpace == null || colorSpace instanceof PDDeviceColorSpace
+                || colorSpace instanceof PDPattern)
+            return colorSpace;
+        COSBase cosObject = colorSpace.getCOSObject();
+        PDColorSpace registered = byObject.get(cosObject);
+        if (registered != null)
+            return registered;
+
+        boolean plain = COSStructure.isPlain(cosObject);
+        if (plain)
+            registered = byStructure.get(new COSStructure.Key(cosObject));
+        if (registered == null)
+        {
+            ByteBuffer key = COSStructure.digest(cosObject);
+            digestCount++;
+            registered = byContent.get(key);
+            if (registered == null)
+            {
+                registered = colorSpace;
+                byContent.put(key, registered);
+            }
+            /*
+             * Only the registered color spaces are keys, so this map does not grow
+             * with the equal copies
+             */
+            if (plain && registered == colorSpace)
+                byStructure.put(new COSStructure.Key(cosObject), registered);
+        }
+        byObject.put(cosObject, registered);
+        return registered;
+    }
+
+    /**
+     * @return the number of color space objects currently remembered.
+     */
+    synchronized int size()
+    {
+        return byObject.size();
+    }
+
+    /**
+     * @return the number of color spaces whose content has been digested.
+     */
+    synchronized long getDigestCount()
+    {
+        return digestCount;
+    }
+
+    /**
+     * @param color the color
+     * @return the color, in the registered color space equal to its color space.
+     */
+    public PDColor register(PDColor color) throws IOException
+    {
+        PDColorSpace colorSpace = color.getColorSpace();
+        if (colorSpace == null || colorSpace instanceof PDDeviceColorSpace
+                || colorSpace instanceof PDPattern)
+            return color;
+        PDColorSpace registered = register(colorSpace);
+        if (registered == colorSpace)
+            return color;
+        return new PDColor(color.getComponents(), registered);
+    }
+
+    private static ByteBuffer profileKey(byte[] profileData, int numberOfComponents)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) numberOfComponents);
+            return ByteBuffer.wrap(digest.digest(profileData));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.filter.Filter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Controls how the streams written by {@link PdfBoxGraphics2D} (the content
+ * stream) and by the {@link PdfBoxGraphics2DLosslessImageEncoder} (the image
+ * samples) are Flate compressed.
+ * <p>
+ * By default the streams are compressed on the calling thread. If you give an
+ * executor, the data is split into chunks which are compressed in parallel
+ * (like pigz does). Every chunk uses the end of the previous chunk as
+ * dictionary and ends with a sync flush, so the chunks concatenate to one
+ * normal zlib stream, which every PDF reader can decode. The result is only
+ * slightly bigger than a single threaded compression.
+ * <p>
+ * For images the deflater also decides which PNG predictor is applied to the
+ * rows before compression. By default every row is predicted with the Paeth
+ * filter. With {@link #withAdaptivePredictor(boolean)} the best filter is
+ * chosen for every row, which gives smaller results for charts and screenshots
+ * at the cost of some more CPU time.
+ * <p>
+ * Instances are immutable and can be shared between multiple graphics and
+ * encoders.
+ */
+public class PdfBoxGraphics2DDeflater
+{
+    /**
+     * Marks that the level PDFBox uses is taken, i.e. the
+     * {@link Filter#SYSPROP_DEFLATELEVEL} system property, read when a stream is
+     * created.
+     */
+    private static final int PDFBOX_COMPRESSION_LEVEL = Integer.MIN_VALUE;
+
+    /**
+     * Single threaded compression with the compression level of PDFBox (see
+     * {@link Filter#getCompressionLevel()}).
+     */
+    public static final PdfBoxGraphics2DDeflater DEFAULT = new PdfBoxGraphics2DDeflater(
+            PDFBOX_COMPRESSION_LEVEL, Deflater.DEFAULT_STRATEGY, false, null, 0);
+
+    /**
+     * The default size of the chunks compressed in parallel.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Size of the buffer in front of the single threaded deflater. The content
+     * stream is written in tiny pieces, and every write to a Deflater is a JNI
+     * call.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int compressionLevel;
+    private final int strategy;
+    private final boolean adaptivePredictor;
+    private final Executor executor;
+    private final int chunkSize;
+
+    /**
+     * @param compressionLevel the compression level, 0 - 9 or
+     *                         {@link Deflater#DEFAULT_COMPRESSION}
+     * @param executor         the executor to compress the chunks on, or null to
+     *                         compress on the calling thread.
+     * @param chunkSize        the count of uncompressed bytes per chunk, at least
+     *                         64 KB. Ignored if no executor is given.
+     */
+    public PdfBoxGraphics2DDeflater(int compressionLevel, Executor executor, int chunkSize)
+    {
+        this(compressionLevel, Deflater.DEFAULT_STRATEGY, false, executor, chunkSize);
+    }
+
+    private PdfBoxGraphics2DDeflater(int compressionLevel, int strategy,
+            boolean adaptivePredictor, Executor executor, int chunkSize)
+    {
+        if ((compressionLevel < 0 || compressionLevel > 9)
+                && compressionLevel != Deflater.DEFAULT_COMPRESSION
+                && compressionLevel != PDFBOX_COMPRESSION_LEVEL)
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel);
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY)
+            throw new IllegalArgumentException("Invalid strategy " + strategy);
+        if (executor != null && chunkSize < ParallelDeflaterOutputStream.DICTIONARY_SIZE * 2)
+            throw new IllegalArgumentException("Chunk size " + chunkSize + " is too small");
+        this.compressionLevel = compressionLevel;
+        this.strategy = strategy;
+        this.adaptivePredictor = adaptivePredictor;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Compress in parallel on the given executor, with the compression level of
+     * PDFBox and the default chunk size.
+     */
+    public PdfBoxGraphics2DDeflater(Executor executor)
+    {
+        this(PDFBOX_COMPRESSION_LEVEL, Deflater.DEFAULT_STRATEGY, false, executor,
+                DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param strategy the deflate strategy, {@link Deflater#DEFAULT_STRATEGY},
+     *                 {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+     *                 FILTERED can help for predicted images.
+     * @return a copy of this deflater using the strategy.
+     */
+    public PdfBoxGraphics2DDeflater withStrategy(int strategy)
+    {
+        return new PdfBoxGraphics2DDeflater(compressionLevel, strategy, adaptivePredictor,
+                executor, chunkSize);
+    }
+
+    /**
+     * @param adaptivePredictor true to choose the PNG predictor of image rows per
+     *                          row, false to always use the Paeth predictor.
+     * @return a copy of this deflater using the predictor mode.
+     */
+    public PdfBoxGraphics2DDeflater withAdaptivePredictor(boolean adaptivePredictor)
+    {
+        return new PdfBoxGraphics2DDeflater(compressionLevel, strategy, adaptivePredictor,
+                executor, chunkSize);
+    }
+
+    /**
+     * @return the compression level. If none was given, this is the current
+     * level of PDFBox.
+     */
+    public int getCompressionLevel()
+    {
+        if (compressionLevel == PDFBOX_COMPRESSION_LEVEL)
+            return Filter.getCompressionLevel();
+        return compressionLevel;
+    }
+
+    public int getStrategy()
+    {
+        return strategy;
+    }
+
+    public boolean isAdaptivePredictor()
+    {
+        return adaptivePredictor;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Create an output stream which writes the compressed data into the stream,
+     * and mark the stream as FlateDecode.
+     *
+     * @param stream the stream to write to. Its existing content is replaced.
+     * @return the stream to write the uncompressed data to. It must be closed.
+     */
+    public OutputStream createOutputStream(COSStream stream) throws IOException
+    {
+        OutputStream out = wrap(stream.createRawOutputStream());
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        return out;
+    }
+
+    /**
+     * @param out the stream which receives the zlib data. It is closed when the
+     *            returned stream is closed.
+     */
+    OutputStream wrap(OutputStream out)
+    {
+        int level = getCompressionLevel();
+        if (executor != null)
+            return new ParallelDeflaterOutputStream(out, level, strategy, executor, chunkSize);
+        final Deflater deflater = new Deflater(level);
+        deflater.setStrategy(strategy);
+        return new BufferedOutputStream(new DeflaterOutputStream(out, deflater, 32 * 1024)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try
+                {
+                    super.close();
+                }
+                finally
+                {
+                    deflater.end();
+                }
+            }
+        }, BUFFER_SIZE);
+    }
+}
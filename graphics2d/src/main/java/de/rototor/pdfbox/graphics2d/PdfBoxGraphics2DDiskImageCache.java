@@ -0,0 +1,733 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferShort;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of encoded images on disk, which survives the JVM. If the same images
+ * are embedded in many documents over many runs (e.g. product images in
+ * nightly generated catalogs), they only need to be compressed once.
+ * <p>
+ * The entries are addressed by a SHA-256 hash over the pixels and the color
+ * model of the image and the settings of the encoder. An entry holds the
+ * compressed stream data and the dictionary entries (filter, bits per
+ * component, color space, masks, ...) of the image. On a hit the file is
+ * memory mapped and the compressed data is copied into the document as is.
+ * <p>
+ * If the cache grows beyond its byte budget, the least recently used entries
+ * are deleted. Multiple processes can share the same directory, entries are
+ * written into a temporary file and then renamed.
+ * <p>
+ * Set the cache with
+ * {@link PdfBoxGraphics2DLosslessImageEncoder#setDiskCache(PdfBoxGraphics2DDiskImageCache)}.
+ * This class is thread safe.
+ */
+public class PdfBoxGraphics2DDiskImageCache
+{
+    /**
+     * Default budget: 1 GB
+     */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final int MAGIC = 0x50424743;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".img";
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * After exceeding the budget we evict down to this fraction of it, so that
+     * not every following write needs to scan the directory.
+     */
+    private static final double EVICT_TO = 0.9;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_NAME = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_FLOAT = 3;
+    private static final byte TYPE_BOOLEAN = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_ARRAY = 6;
+    private static final byte TYPE_DICTIONARY = 7;
+    private static final byte TYPE_STREAM = 8;
+
+    private final File directory;
+    private long maxBytes;
+    /**
+     * The bytes of all entries, or -1 if the directory has not been scanned yet
+     */
+    private long currentBytes = -1;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * @param directory the directory to store the entries in. It is created if it
+     *                  does not exist.
+     */
+    public PdfBoxGraphics2DDiskImageCache(File directory)
+    {
+        this(directory, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param directory the directory to store the entries in. It is created if it
+     *                  does not exist.
+     * @param maxBytes  the maximum count of bytes of all entries on disk.
+     */
+    public PdfBoxGraphics2DDiskImageCache(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Change the byte budget. If the entries on disk are bigger than the new
+     * budget, the least recently used entries are deleted.
+     *
+     * @param maxBytes the maximum count of bytes of all entries on disk.
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        if (getCurrentBytes() > maxBytes)
+            evict();
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @return the count of bytes of all entries on disk.
+     */
+    public synchronized long getCurrentBytes()
+    {
+        if (currentBytes < 0)
+        {
+            currentBytes = 0;
+            for (File file : listEntries())
+                currentBytes += file.length();
+        }
+        return currentBytes;
+    }
+
+    /**
+     * @return how often an image could be read from disk.
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return how often an image was not found on disk.
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return how many entries have been deleted because the byte budget was
+     * exceeded.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Delete all entries.
+     */
+    public synchronized void clear()
+    {
+        for (File file : listEntries())
+        {
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+        currentBytes = 0;
+    }
+
+    /**
+     * Build the key of an image.
+     *
+     * @param image    the image
+     * @param settings the settings of the encoder which affect the encoded image
+     * @return the key, a hex string
+     */
+    String key(BufferedImage image, String settings)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        digest.update(settings.getBytes(US_ASCII));
+        ColorModel colorModel = image.getColorModel();
+        ColorSpace colorSpace = colorModel.getColorSpace();
+        digest.update(String.format("|%d|%d|%d|%s|%d|%b|%b|%d|", image.getWidth(),
+                image.getHeight(), image.getType(), colorModel.getClass().getName(),
+                colorModel.getPixelSize(), colorModel.hasAlpha(),
+                colorModel.isAlphaPremultiplied(), colorSpace.getType()).getBytes(US_ASCII));
+        if (colorSpace instanceof ICC_ColorSpace && !colorSpace.isCS_sRGB())
+            digest.update(((ICC_ColorSpace) colorSpace).getProfile().getData());
+        if (colorModel instanceof IndexColorModel)
+        {
+            IndexColorModel indexColorModel = (IndexColorModel) colorModel;
+            int[] rgbs = new int[indexColorModel.getMapSize()];
+            indexColorModel.getRGBs(rgbs);
+            update(digest, rgbs, ByteBuffer.allocate(rgbs.length * 4));
+        }
+
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        if (ImageContentKey.isPlainRaster(image.getRaster()))
+        {
+            digest.update(image.getRaster().getSampleModel().toString().getBytes(US_ASCII));
+            for (int bank = 0; bank < dataBuffer.getNumBanks(); bank++)
+            {
+                if (dataBuffer instanceof DataBufferByte)
+                {
+                    digest.update(((DataBufferByte) dataBuffer).getData(bank));
+                }
+                else if (dataBuffer instanceof DataBufferInt)
+                {
+                    update(digest, ((DataBufferInt) dataBuffer).getData(bank),
+                            ByteBuffer.allocate(64 * 1024));
+                }
+                else
+                {
+                    short[] data = dataBuffer instanceof DataBufferUShort ?
+                            ((DataBufferUShort) dataBuffer).getData(bank) :
+                            ((DataBufferShort) dataBuffer).getData(bank);
+                    ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                    for (short value : data)
+                    {
+                        if (!buffer.hasRemaining())
+                            flush(digest, buffer);
+                        buffer.putShort(value);
+                    }
+                    flush(digest, buffer);
+                }
+            }
+        }
+        else
+        {
+            int[] row = new int[image.getWidth()];
+            ByteBuffer buffer = ByteBuffer.allocate(row.length * 4);
+            for (int y = 0; y < image.getHeight(); y++)
+            {
+                image.getRGB(0, y, row.length, 1, row, 0, row.length);
+                update(digest, row, buffer);
+            }
+        }
+
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b & 0xFF));
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, int[] data, ByteBuffer buffer)
+    {
+        for (int value : data)
+        {
+            if (buffer.remaining() < 4)
+                flush(digest, buffer);
+            buffer.putInt(value);
+        }
+        flush(digest, buffer);
+    }
+
+    private static void flush(MessageDigest digest, ByteBuffer buffer)
+    {
+        digest.update(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * Read an image from the cache.
+     *
+     * @param document the document to create the image in
+     * @param key      the key from {@link #key(BufferedImage, String)}
+     * @return the image, or null if it is not in the cache.
+     */
+    PDImageXObject get(PDDocument document, String key) throws IOException
+    {
+        File file = getFile(key);
+        COSStream stream = null;
+        RandomAccessFile randomAccessFile;
+        try
+        {
+            randomAccessFile = new RandomAccessFile(file, "r");
+        }
+        catch (IOException e)
+        {
+            countMiss();
+            return null;
+        }
+        try
+        {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION)
+            {
+                COSBase object = readObject(document, buffer);
+                if (object instanceof COSStream && !buffer.hasRemaining())
+                    stream = (COSStream) object;
+            }
+        }
+        catch (BufferUnderflowException e)
+        {
+            stream = null;
+        }
+        finally
+        {
+            randomAccessFile.close();
+        }
+        if (stream == null)
+        {
+            /*
+             * A broken entry, e.g. from a crashed process. It will be written again.
+             */
+            countMiss();
+            return null;
+        }
+        synchronized (this)
+        {
+            hitCount++;
+        }
+        /*
+         * Used entries are kept longest
+         */
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return new PDImageXObject(new PDStream(stream), null);
+    }
+
+    private synchronized void countMiss()
+    {
+        missCount++;
+    }
+
+    /**
+     * Store an image in the cache. Images which use something we can not store
+     * (e.g. indirect objects) are silently not cached.
+     *
+     * @param key   the key from {@link #key(BufferedImage, String)}
+     * @param image the encoded image
+     */
+    void put(String key, PDImageXObject image) throws IOException
+    {
+        if (!isStorable(image.getCOSObject()))
+            return;
+        File file = getFile(key);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+            throw new IOException("Could not create the cache directory " + parent);
+        File tempFile = File.createTempFile(key, ".tmp", parent);
+        boolean renamed = false;
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeObject(image.getCOSObject(), out);
+            }
+            finally
+            {
+                out.close();
+            }
+            long length = tempFile.length();
+            /*
+             * Some other thread or process may have written the same entry meanwhile,
+             * which is fine.
+             */
+            long replacedLength = file.length();
+            renamed = tempFile.renameTo(file);
+            if (!renamed && file.delete())
+                renamed = tempFile.renameTo(file);
+            if (renamed)
+                added(length - replacedLength);
+        }
+        finally
+        {
+            if (!renamed && !tempFile.delete())
+                tempFile.deleteOnExit();
+        }
+    }
+
+    private synchronized void added(long bytes)
+    {
+        /*
+         * The first scan of the directory already sees the new entry
+         */
+        if (currentBytes < 0)
+            getCurrentBytes();
+        else
+            currentBytes += bytes;
+        if (currentBytes > maxBytes)
+            evict();
+    }
+
+    /**
+     * Delete the least recently used entries till we are within the budget again.
+     */
+    private void evict()
+    {
+        List<EntryFile> entries = new ArrayList<EntryFile>();
+        long bytes = 0;
+        for (File file : listEntries())
+        {
+            EntryFile entry = new EntryFile(file);
+            entries.add(entry);
+            bytes += entry.length;
+        }
+        Collections.sort(entries, new Comparator<EntryFile>()
+        {
+            @Override
+            public int compare(EntryFile a, EntryFile b)
+            {
+                return a.lastModified < b.lastModified ?
+                        -1 :
+                        (a.lastModified == b.lastModified ? 0 : 1);
+            }
+        });
+        long target = (long) (maxBytes * EVICT_TO);
+        for (EntryFile entry : entries)
+        {
+            if (bytes <= target)
+                break;
+            if (entry.file.delete())
+            {
+                bytes -= entry.length;
+                evictionCount++;
+            }
+        }
+        currentBytes = bytes;
+    }
+
+    private File getFile(String key)
+    {
+        return new File(new File(directory, key.substring(0, 2)), key + SUFFIX);
+    }
+
+    private List<File> listEntries()
+    {
+        List<File> entries = new ArrayList<File>();
+        File[] subDirectories = directory.listFiles();
+        if (subDirectories == null)
+            return entries;
+        for (File subDirectory : subDirectories)
+        {
+            File[] files = subDirectory.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files)
+            {
+                if (file.getName().endsWith(SUFFIX))
+                    entries.add(file);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * The file of an entry, with its attributes read once, as they may change
+     * while we sort.
+     */
+    private static final class EntryFile
+    {
+        private final File file;
+        private final long lastModified;
+        private final long length;
+
+        EntryFile(File file)
+        {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+        }
+    }
+
+    private static boolean isStorable(COSBase object)
+    {
+        if (object instanceof COSObject)
+            return false;
+        if (object instanceof COSArray)
+        {
+            for (COSBase element : (COSArray) object)
+            {
+                if (!isStorable(element))
+                    return false;
+            }
+            return true;
+        }
+        if (object instanceof COSDictionary)
+        {
+            for (COSBase value : ((COSDictionary) object).getValues())
+            {
+                if (!isStorable(value))
+                    return false;
+            }
+            return true;
+        }
+        return object == null || object instanceof COSName || object instanceof COSInteger
+                || object instanceof COSFloat || object instanceof COSBoolean
+                || object instanceof COSString || object instanceof COSNull;
+    }
+
+    private static void writeObject(COSBase object, DataOutputStream out) throws IOException
+    {
+        if (object == null || object instanceof COSNull)
+        {
+            out.writeByte(TYPE_NULL);
+        }
+        else if (object instanceof COSName)
+        {
+            out.writeByte(TYPE_NAME);
+            writeBytes(((COSName) object).getName().getBytes("UTF-8"), out);
+        }
+        else if (object instanceof COSInteger)
+        {
+            out.writeByte(TYPE_INTEGER);
+            out.writeLong(((COSInteger) object).longValue());
+        }
+        else if (object instanceof COSFloat)
+        {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat(((COSFloat) object).floatValue());
+        }
+        else if (object instanceof COSBoolean)
+        {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean(((COSBoolean) object).getValue());
+        }
+        else if (object instanceof COSString)
+        {
+            out.writeByte(TYPE_STRING);
+            writeBytes(((COSString) object).getBytes(), out);
+        }
+        else if (object instanceof COSArray)
+        {
+            COSArray array = (COSArray) object;
+            out.writeByte(TYPE_ARRAY);
+            out.writeInt(array.size());
+            for (COSBase element : array)
+                writeObject(element, out);
+        }
+        else if (object instanceof COSStream)
+        {
+            out.writeByte(TYPE_STREAM);
+            writeEntries((COSDictionary) object, out);
+            COSStream stream = (COSStream) object;
+            out.writeLong(stream.getLength());
+            InputStream in = stream.createRawInputStream();
+            try
+            {
+                IOUtils.copy(in, out);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        else
+        {
+            out.writeByte(TYPE_DICTIONARY);
+            writeEntries((COSDictionary) object, out);
+        }
+    }
+
+    private static void writeEntries(COSDictionary dictionary, DataOutputStream out)
+            throws IOException
+    {
+        List<Map.Entry<COSName, COSBase>> entries = new ArrayList<Map.Entry<COSName, COSBase>>();
+        for (Map.Entry<COSName, COSBase> entry : dictionary.entrySet())
+        {
+            if (!entry.getKey().equals(COSName.LENGTH))
+                entries.add(entry);
+        }
+        out.writeInt(entries.size());
+        for (Map.Entry<COSName, COSBase> entry : entries)
+        {
+            writeBytes(entry.getKey().getName().getBytes("UTF-8"), out);
+            writeObject(entry.getValue(), out);
+        }
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException
+    {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the object, or null if the entry is broken.
+     */
+    private static COSBase readObject(PDDocument document, ByteBuffer buffer)
+            throws IOException
+    {
+        byte type = buffer.get();
+        switch (type)
+        {
+        case TYPE_NULL:
+            return COSNull.NULL;
+        case TYPE_NAME:
+            return COSName.getPDFName(new String(readBytes(buffer), "UTF-8"));
+        case TYPE_INTEGER:
+            return COSInteger.get(buffer.getLong());
+        case TYPE_FLOAT:
+            return new COSFloat(buffer.getFloat());
+        case TYPE_BOOLEAN:
+            return COSBoolean.getBoolean(buffer.get() != 0);
+        case TYPE_STRING:
+            return new COSString(readBytes(buffer));
+        case TYPE_ARRAY:
+        {
+            int size = buffer.getInt();
+            COSArray array = new COSArray();
+            for (int i = 0; i < size; i++)
+            {
+                COSBase element = readObject(document, buffer);
+                if (element == null)
+                    return null;
+                array.add(element);
+            }
+            return array;
+        }
+        case TYPE_DICTIONARY:
+        {
+            COSDictionary dictionary = new COSDictionary();
+            return readEntries(document, buffer, dictionary) ? dictionary : null;
+        }
+        case TYPE_STREAM:
+        {
+            COSStream stream = document.getDocument().createCOSStream();
+            if (!readEntries(document, buffer, stream))
+                return null;
+            long length = buffer.getLong();
+            if (length < 0 || length > buffer.remaining())
+                return null;
+            byte[] chunk = new byte[(int) Math.min(length, 64 * 1024)];
+            OutputStream out = stream.createRawOutputStream();
+            try
+            {
+                long remaining = length;
+                while (remaining > 0)
+                {
+                    int count = (int) Math.min(remaining, chunk.length);
+                    buffer.get(chunk, 0, count);
+                    out.write(chunk, 0, count);
+                    remaining -= count;
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            return stream;
+        }
+        default:
+            return null;
+        }
+    }
+
+    private static boolean readEntries(PDDocument document, ByteBuffer buffer,
+            COSDictionary dictionary) throws IOException
+    {
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++)
+        {
+            COSName key = COSName.getPDFName(new String(readBytes(buffer), "UTF-8"));
+            COSBase value = readObject(document, buffer);
+            if (value == null)
+                return false;
+            dictionary.setItem(key, value);
+        }
+        return true;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer)
+    {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+            throw new BufferUnderflowException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.AffineTransformOp;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ImagingOpException;
+import java.awt.image.IndexColorModel;
+
+/**
+ * Image encoder which reduces the resolution of images which are drawn much
+ * smaller than their pixel size, before passing them to another encoder. E.g. a
+ * 6000x4000 camera image drawn into a 3 cm box does not need more than a few
+ * hundred pixels.
+ * <p>
+ * The resolution is computed from
+ * {@link IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageTransformEnv#getImageTransform()}.
+ * Images are never upsampled. If the transform is not known, i.e. the environment
+ * does not implement that interface or returns null, the image is passed as is.
+ * <p>
+ * The downsampled images are cached per source image and target size, so
+ * drawing the same image with the same size again reuses the PDImageXObject.
+ */
+public class PdfBoxGraphics2DDownsamplingImageEncoder implements IPdfBoxGraphics2DAsyncImageEncoder
+{
+    /**
+     * Default maximum resolution: 300 DPI, which is enough for print.
+     */
+    public static final double DEFAULT_MAX_DPI = 300;
+
+    private final IPdfBoxGraphics2DImageEncoder delegate;
+    private final PdfBoxGraphics2DImageCache imageCache;
+    private volatile double maxDPI = DEFAULT_MAX_DPI;
+    private volatile double placementScale = 1;
+
+    /**
+     * Downsample the images and encode them lossless.
+     */
+    public PdfBoxGraphics2DDownsamplingImageEncoder()
+    {
+        this(new PdfBoxGraphics2DLosslessImageEncoder());
+    }
+
+    /**
+     * @param delegate the encoder to encode the (downsampled) images with.
+     */
+    public PdfBoxGraphics2DDownsamplingImageEncoder(IPdfBoxGraphics2DImageEncoder delegate)
+    {
+        this(delegate, new PdfBoxGraphics2DImageCache());
+    }
+
+    /**
+     * @param delegate   the encoder to encode the (downsampled) images with.
+     * @param imageCache the cache for the downsampled images.
+     */
+    public PdfBoxGraphics2DDownsamplingImageEncoder(IPdfBoxGraphics2DImageEncoder delegate,
+            PdfBoxGraphics2DImageCache imageCache)
+    {
+        this.delegate = delegate;
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @param maxDPI the maximum resolution images should have on the page. Images
+     *               with a higher resolution are downsampled to this resolution.
+     *               Use 0 to disable the downsampling.
+     */
+    @SuppressWarnings("unused")
+    public void setMaxDPI(double maxDPI)
+    {
+        this.maxDPI = maxDPI;
+    }
+
+    public double getMaxDPI()
+    {
+        return maxDPI;
+    }
+
+    /**
+     * If you scale the XForm of the PdfBoxGraphics2D when placing it on the page
+     * (i.e. if 1 unit of its user space is not 1/72 inch on the page), set the
+     * scale here. Otherwise the computed resolutions are off by that factor.
+     *
+     * @param placementScale the scale the XForm is placed with, the default is 1.
+     */
+    @SuppressWarnings("unused")
+    public void setPlacementScale(double placementScale)
+    {
+        this.placementScale = placementScale;
+    }
+
+    public double getPlacementScale()
+    {
+        return placementScale;
+    }
+
+    public PdfBoxGraphics2DImageCache getImageCache()
+    {
+        return imageCache;
+    }
+
+    @Override
+    public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream,
+            Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    {
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        Dimension targetSize = computeTargetSize(width, height, imageTransformOf(env),
+                maxDPI * placementScale);
+        if (targetSize == null)
+            return delegate.encodeImage(document, contentStream, image, env);
+
+        Object key = imageCache.identityKey(image,
+                new DownsampleKey(targetSize.width, targetSize.height,
+                        env.getImageInterpolation()));
+        PDImageXObject imageXObject = imageCache.get(document, key);
+        if (imageXObject != null)
+        {
+            imageCache.countHit();
+            return imageXObject;
+        }
+        imageCache.countMiss();
+
+        Image source = image;
+        if (source instanceof PdfBoxGraphics2DEncodedImage)
+            source = ((PdfBoxGraphics2DEncodedImage) source).getDecodedImage();
+        BufferedImage downsampled = downsample(source, width, height, targetSize.width,
+                targetSize.height, env.getImageInterpolation()
+                        == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.NearestNeigbor);
+        imageXObject = delegate.encodeImage(document, contentStream, downsampled,
+                new DownsampledImageEnv(env, (double) width / targetSize.width,
+                        (double) height / targetSize.height));
+        imageCache.put(document, key, imageXObject,
+                PdfBoxGraphics2DImageCache.estimateEncodedBytes(imageXObject));
+        return imageXObject;
+    }
+
+    @Override
+    public void awaitPendingImages(PDDocument document)
+    {
+        if (delegate instanceof IPdfBoxGraphics2DAsyncImageEncoder)
+            ((IPdfBoxGraphics2DAsyncImageEncoder) delegate).awaitPendingImages(document);
+    }
+
+    /**
+     * Compute the pixel size the image needs to have to not exceed the given
+     * resolution.
+     *
+     * @param width          width of the image in pixel
+     * @param height         height of the image in pixel
+     * @param imageTransform the transform from image pixels to user space
+     * @param maxDPI         the maximum resolution wanted
+     * @return the target size, or null if the image should not be downsampled
+     */
+    static Dimension computeTargetSize(int width, int height, AffineTransform imageTransform,
+            double maxDPI)
+    {
+        if (imageTransform == null || maxDPI <= 0 || width <= 0 || height <= 0)
+            return null;
+
+        /*
+         * The length of the unit vectors of the image in user space. This also works
+         * for rotated and sheared images.
+         */
+        double scaleX = Math.hypot(imageTransform.getScaleX(), imageTransform.getShearY());
+        double scaleY = Math.hypot(imageTransform.getShearX(), imageTransform.getScaleY());
+        double pointsToPixel = maxDPI / 72.0;
+        double targetWidth = Math.ceil(width * scaleX * pointsToPixel);
+        double targetHeight = Math.ceil(height * scaleY * pointsToPixel);
+        if (Double.isNaN(targetWidth) || Double.isNaN(targetHeight))
+            return null;
+
+        int newWidth = (int) Math.max(1, Math.min(width, targetWidth));
+        int newHeight = (int) Math.max(1, Math.min(height, targetHeight));
+        if (newWidth == width && newHeight == height)
+            return null;
+        return new Dimension(newWidth, newHeight);
+    }
+
+    /**
+     * Scale the image down. To get a good quality we halve the image with bilinear
+     * interpolation until we are near the target size. Going down in one step
+     * would skip most of the source pixels.
+     */
+    static BufferedImage downsample(Image image, int width, int height, int targetWidth,
+            int targetHeight, boolean nearestNeighbor)
+    {
+        Image current = image;
+        int currentWidth = width;
+        int currentHeight = height;
+        do
+        {
+            int stepWidth = currentWidth;
+            int stepHeight = currentHeight;
+            if (!nearestNeighbor && stepWidth / 2 >= targetWidth)
+                stepWidth /= 2;
+            else
+                stepWidth = targetWidth;
+            if (!nearestNeighbor && stepHeight / 2 >= targetHeight)
+                stepHeight /= 2;
+            else
+                stepHeight = targetHeight;
+
+            BufferedImage step = createCompatibleImage(image, stepWidth, stepHeight);
+            scaleInto(current, currentWidth, currentHeight, step, nearestNeighbor);
+
+            if (current != image)
+                ((BufferedImage) current).flush();
+            current = step;
+            currentWidth = stepWidth;
+            currentHeight = stepHeight;
+        }
+        while (currentWidth != targetWidth || currentHeight != targetHeight);
+        return (BufferedImage) current;
+    }
+
+    private static void scaleInto(Image source, int sourceWidth, int sourceHeight,
+            BufferedImage target, boolean nearestNeighbor)
+    {
+        if (source instanceof BufferedImage && ((BufferedImage) source).getColorModel()
+                .equals(target.getColorModel()))
+        {
+            /*
+             * Scale the samples directly. Drawing with Graphics2D would convert the colors
+             * to sRGB and back, which loses the gamut of e.g. ProPhoto images.
+             */
+            AffineTransformOp op = new AffineTransformOp(AffineTransform.getScaleInstance(
+                    (double) target.getWidth() / sourceWidth,
+                    (double) target.getHeight() / sourceHeight), nearestNeighbor ?
+                    AffineTransformOp.TYPE_NEAREST_NEIGHBOR :
+                    AffineTransformOp.TYPE_BILINEAR);
+            try
+            {
+                op.filter(((BufferedImage) source).getRaster(), target.getRaster());
+                return;
+            }
+            catch (ImagingOpException ignored)
+            {
+                /*
+                 * Not supported for this raster layout, fall back to Graphics2D.
+                 */
+            }
+        }
+        Graphics2D g = target.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, nearestNeighbor ?
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR :
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(source, 0, 0, target.getWidth(), target.getHeight(), null);
+        g.dispose();
+    }
+
+    /**
+     * Create an image with the color model of the source image, so that e.g. the
+     * ICC profile and the alpha channel are kept. Indexed images are expanded, as
+     * interpolating them gives new colors.
+     */
+    private static BufferedImage createCompatibleImage(Image image, int width, int height)
+    {
+        if (image instanceof BufferedImage)
+        {
+            BufferedImage bi = (BufferedImage) image;
+            ColorModel colorModel = bi.getColorModel();
+            if (!(colorModel instanceof IndexColorModel))
+                return new BufferedImage(colorModel,
+                        colorModel.createCompatibleWritableRaster(width, height),
+                        colorModel.isAlphaPremultiplied(), null);
+            if (!colorModel.hasAlpha())
+                return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * @return the image transform of the environment, or null if it is not known.
+     */
+    private static AffineTransform imageTransformOf(IPdfBoxGraphics2DImageEncoderEnv env)
+    {
+        if (env instanceof IPdfBoxGraphics2DImageTransformEnv)
+            return ((IPdfBoxGraphics2DImageTransformEnv) env).getImageTransform();
+        return null;
+    }
+
+    /**
+     * The environment for the delegate encoder. The downsampled image is always
+     * drawn as a whole, and its pixels are larger than the pixels of the source
+     * image.
+     */
+    private static final class DownsampledImageEnv implements IPdfBoxGraphics2DImageTransformEnv
+    {
+        private final IPdfBoxGraphics2DImageEncoderEnv env;
+        private final double scaleX;
+        private final double scaleY;
+
+        DownsampledImageEnv(IPdfBoxGraphics2DImageEncoderEnv env, double scaleX, double scaleY)
+        {
+            this.env = env;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+        }
+
+        @Override
+        public ImageInterpolation getImageInterpolation()
+        {
+            return env.getImageInterpolation();
+        }
+
+        @Override
+        public AffineTransform getImageTransform()
+        {
+            AffineTransform imageTransform = imageTransformOf(env);
+            if (imageTransform == null)
+                return null;
+            imageTransform = new AffineTransform(imageTransform);
+            imageTransform.scale(scaleX, scaleY);
+            return imageTransform;
+        }
+    }
+
+    /**
+     * Discriminator of the cache key, the same image can be drawn with different
+     * sizes.
+     */
+    private static final class DownsampleKey
+    {
+        private final int width;
+        private final int height;
+        private final IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation;
+
+        DownsampleKey(int width, int height,
+                IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
+        {
+            this.width = width;
+            this.height = height;
+            this.interpolation = interpolation;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof DownsampleKey))
+                return false;
+            DownsampleKey other = (DownsampleKey) obj;
+            return other.width == width && other.height == height
+                    && other.interpolation == interpolation;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (width * 31 + height) * 31 + interpolation.hashCode();
+        }
+    }
+}
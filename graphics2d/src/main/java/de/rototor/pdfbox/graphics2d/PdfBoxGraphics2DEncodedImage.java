@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.io.IOUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.ImageProducer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+
+/**
+ * An image which carries the bytes of a JPEG or PNG file. When such an image is
+ * drawn on a {@link PdfBoxGraphics2D} with the
+ * {@link PdfBoxGraphics2DLosslessImageEncoder} (or an encoder delegating to
+ * it), the file data is embedded as is, without decoding and compressing the
+ * pixels again:
+ * <ul>
+ * <li>JPEG files are embedded as DCTDecode image.</li>
+ * <li>PNG files without alpha channel or transparency and without interlacing
+ * are embedded as FlateDecode image with PNG predictor, using the compressed
+ * data of the PNG file.</li>
+ * </ul>
+ * Embedded ICC profiles are kept. All other files are decoded and encoded as usual.
+ * <p>
+ * The pixels are only decoded (using ImageIO) if they are needed, e.g. when
+ * {@link #getSource()} is called. Note: To draw this image on other Graphics2D
+ * implementations use {@link #getDecodedImage()}, as they only support their
+ * own image types.
+ */
+public class PdfBoxGraphics2DEncodedImage extends Image
+{
+    private final byte[] data;
+    final EncodedImageWriter.Header header;
+    private SoftReference<BufferedImage> decodedImage;
+
+    /**
+     * @param data the bytes of the JPEG or PNG file. The array is not copied and
+     *             must not be modified afterwards.
+     * @throws IOException if the data is not a JPEG or PNG file.
+     */
+    public PdfBoxGraphics2DEncodedImage(byte[] data) throws IOException
+    {
+        this.data = data;
+        this.header = EncodedImageWriter.readHeader(data);
+    }
+
+    /**
+     * Read the JPEG or PNG file from the stream. The stream is not closed.
+     */
+    public static PdfBoxGraphics2DEncodedImage read(InputStream inputStream) throws IOException
+    {
+        return new PdfBoxGraphics2DEncodedImage(IOUtils.toByteArray(inputStream));
+    }
+
+    byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * @return true if this is a JPEG file, false if it is a PNG file.
+     */
+    public boolean isJPEG()
+    {
+        return header.format == EncodedImageWriter.Format.JPEG;
+    }
+
+    public int getWidth()
+    {
+        return header.width;
+    }
+
+    public int getHeight()
+    {
+        return header.height;
+    }
+
+    /**
+     * Decode the pixels. The decoded image is kept as long as there is enough
+     * memory.
+     *
+     * @throws IllegalStateException if ImageIO can not decode the image (e.g. CMYK
+     *                               JPEGs)
+     */
+    public synchronized BufferedImage getDecodedImage()
+    {
+        BufferedImage image = decodedImage == null ? null : decodedImage.get();
+        if (image == null)
+        {
+            try
+            {
+                image = ImageIO.read(new ByteArrayInputStream(data));
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException("Could not decode image", e);
+            }
+            if (image == null)
+                throw new IllegalStateException("Could not decode image");
+            decodedImage = new SoftReference<BufferedImage>(image);
+        }
+        return image;
+    }
+
+    @Override
+    public int getWidth(ImageObserver observer)
+    {
+        return header.width;
+    }
+
+    @Override
+    public int getHeight(ImageObserver observer)
+    {
+        return header.height;
+    }
+
+    @Override
+    public ImageProducer getSource()
+    {
+        return getDecodedImage().getSource();
+    }
+
+    @Override
+    public Graphics getGraphics()
+    {
+        throw new UnsupportedOperationException("getGraphics() not valid for encoded images");
+    }
+
+    @Override
+    public Object getProperty(String name, ImageObserver observer)
+    {
+        return UndefinedProperty;
+    }
+
+    @Override
+    public synchronized void flush()
+    {
+        decodedImage = null;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of already encoded images, used by the image encoders to avoid encoding
+ * the same image more than once per document.
+ * <p>
+ * The cache holds a separate map for every {@link PDDocument}. The documents are
+ * only weakly referenced, so the cached images of a document go away together
+ * with the document. This allows to share one encoder (and its cache) between
+ * documents which are built in parallel.
+ * <p>
+ * Images drawn are only weakly referenced by the cache. If an image is garbage
+ * collected its cache entry is removed the next time the cache is accessed.
+ * Everything else the cache keeps alive (e.g. the pixels needed to verify a
+ * content match) is accounted against a byte budget. If the budget is exceeded
+ * the least recently used entries are evicted.
+ * <p>
+ * This class is thread safe.
+ */
+public class PdfBoxGraphics2DImageCache
+{
+    /**
+     * Default budget: 256 MB
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private final Map<PDDocument, DocumentCache> documentCaches = new WeakHashMap<PDDocument, DocumentCache>();
+    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<Object>();
+    private long maxBytes;
+    private long accessCounter;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public PdfBoxGraphics2DImageCache()
+    {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes the maximum estimated count of bytes the cache is allowed to
+     *                 keep alive.
+     */
+    public PdfBoxGraphics2DImageCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Change the byte budget of the cache. If the cache currently holds more than
+     * the new budget allows, the least recently used entries are evicted.
+     *
+     * @param maxBytes the maximum estimated count of bytes the cache is allowed to
+     *                 keep alive.
+     */
+    public synchronized void setMaxBytes(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        evictIfNeeded(null);
+    }
+
+    public synchronized long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @return the estimated count of bytes currently kept alive by the cache.
+     */
+    public synchronized long getCurrentBytes()
+    {
+        drainReferenceQueue();
+        long bytes = 0;
+        for (DocumentCache documentCache : documentCaches.values())
+            bytes += documentCache.bytes;
+        return bytes;
+    }
+
+    /**
+     * @return how often an image could be reused.
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * @return how often an image had to be encoded.
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * @return how many entries have been evicted because the byte budget was
+     * exceeded.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * @return the count of entries in the cache, over all documents
+     */
+    public synchronized int size()
+    {
+        drainReferenceQueue();
+        int size = 0;
+        for (DocumentCache documentCache : documentCaches.values())
+            size += documentCache.entries.size();
+        return size;
+    }
+
+    /**
+     * Remove all cached images.
+     */
+    public synchronized void clear()
+    {
+        documentCaches.clear();
+        drainReferenceQueue();
+    }
+
+    /**
+     * Remove all cached images of the given document, e.g. after you saved and
+     * closed it.
+     *
+     * @param document the document
+     */
+    public synchronized void clear(PDDocument document)
+    {
+        documentCaches.remove(document);
+    }
+
+    /**
+     * Build a key which identifies the image by its identity. The image is only
+     * weakly referenced by the key.
+     *
+     * @param image         the image, e.g. an {@link Image} or a
+     *                      {@link java.awt.image.RenderedImage}
+     * @param discriminator additional state which must match, e.g. the
+     *                      interpolation. May be null.
+     */
+    Object identityKey(Object image, Object discriminator)
+    {
+        return new ImageIdentityKey(image, discriminator, null);
+    }
+
+    synchronized PDImageXObject get(PDDocument document, Object key)
+    {
+        drainReferenceQueue();
+        DocumentCache documentCache = documentCaches.get(document);
+        if (documentCache == null)
+            return null;
+        CacheEntry entry = documentCache.entries.get(key);
+        if (entry == null)
+            return null;
+        entry.lastAccess = ++accessCounter;
+        return entry.image;
+    }
+
+    /**
+     * Put an image into the cache.
+     *
+     * @param document      the document the image belongs to
+     * @param key           the key, either an {@link #identityKey(Object, Object)}
+     *                      or some other key with a proper equals/hashCode
+     * @param image         the encoded image
+     * @param retainedBytes estimation of the bytes this entry keeps alive
+     */
+    synchronized void put(PDDocument document, Object key, PDImageXObject image,
+            long retainedBytes)
+    {
+        drainReferenceQueue();
+        if (key instanceof ImageIdentityKey)
+        {
+            /*
+             * Register the key with our queue, so that we get notified when the image is gone.
+             */
+            ImageIdentityKey lookupKey = (ImageIdentityKey) key;
+            Object referent = lookupKey.get();
+            if (referent == null)
+                return;
+            key = new ImageIdentityKey(referent, lookupKey.discriminator, this);
+        }
+        DocumentCache documentCache = documentCaches.get(document);
+        if (documentCache == null)
+        {
+            documentCache = new DocumentCache();
+            documentCaches.put(document, documentCache);
+        }
+        CacheEntry entry = new CacheEntry(image, retainedBytes);
+        entry.lastAccess = ++accessCounter;
+        CacheEntry previous = documentCache.entries.put(key, entry);
+        if (previous != null)
+            documentCache.bytes -= previous.retainedBytes;
+        documentCache.bytes += retainedBytes;
+        evictIfNeeded(entry);
+    }
+
+    synchronized void countHit()
+    {
+        hitCount++;
+    }
+
+    synchronized void countMiss()
+    {
+        missCount++;
+    }
+
+    /**
+     * @return the estimated size of the encoded image data, including the SMask.
+     */
+    static long estimateEncodedBytes(PDImageXObject image)
+    {
+        long bytes = image.getCOSObject().getLength();
+        COSStream smask = image.getCOSObject().getCOSStream(COSName.SMASK);
+        if (smask != null)
+            bytes += smask.getLength();
+        return bytes;
+    }
+
+    /**
+     * @return the estimated size of the pixels of the image
+     */
+    static long estimateRasterBytes(BufferedImage image)
+    {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+    }
+
+    private void drainReferenceQueue()
+    {
+        Reference<?> reference;
+        while ((reference = referenceQueue.poll()) != null)
+        {
+            ImageIdentityKey key = (ImageIdentityKey) reference;
+            for (DocumentCache documentCache : documentCaches.values())
+            {
+                CacheEntry entry = documentCache.entries.remove(key);
+                if (entry != null)
+                {
+                    documentCache.bytes -= entry.retainedBytes;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict the least recently used entries over all documents till we are within
+     * our budget again.
+     *
+     * @param keep this entry is never evicted. Otherwise, an image larger than the
+     *             budget would be encoded again and again.
+     */
+    private void evictIfNeeded(CacheEntry keep)
+    {
+        long currentBytes = 0;
+        for (DocumentCache documentCache : documentCaches.values())
+            currentBytes += documentCache.bytes;
+
+        while (currentBytes > maxBytes)
+        {
+            DocumentCache oldestCache = null;
+            Map.Entry<Object, CacheEntry> oldest = null;
+            for (DocumentCache documentCache : documentCaches.values())
+            {
+                for (Map.Entry<Object, CacheEntry> e : documentCache.entries.entrySet())
+                {
+                    if (e.getValue() == keep)
+                        continue;
+                    if (oldest == null || e.getValue().lastAccess < oldest.getValue().lastAccess)
+                    {
+                        oldest = e;
+                        oldestCache = documentCache;
+                    }
+                    /*
+                     * The entries are in access order, so the first not kept entry is
+                     * the eldest of this document.
+                     */
+                    break;
+                }
+            }
+            if (oldest == null)
+                break;
+            Iterator<Map.Entry<Object, CacheEntry>> iterator = oldestCache.entries.entrySet()
+                    .iterator();
+            while (iterator.hasNext())
+            {
+                if (iterator.next() == oldest)
+                {
+                    iterator.remove();
+                    break;
+                }
+            }
+            oldestCache.bytes -= oldest.getValue().retainedBytes;
+            currentBytes -= oldest.getValue().retainedBytes;
+            evictionCount++;
+        }
+    }
+
+    private static class DocumentCache
+    {
+        private final LinkedHashMap<Object, CacheEntry> entries = new LinkedHashMap<Object, CacheEntry>(
+                16, 0.75f, true);
+        private long bytes;
+    }
+
+    private static class CacheEntry
+    {
+        private final PDImageXObject image;
+        private final long retainedBytes;
+        private long lastAccess;
+
+        CacheEntry(PDImageXObject image, long retainedBytes)
+        {
+            this.image = image;
+            this.retainedBytes = retainedBytes;
+        }
+    }
+
+    /**
+     * Weak identity key of an image. The hash code is computed upfront, so that
+     * the key can still be removed from the map after the image has been
+     * collected.
+     */
+    private static final class ImageIdentityKey extends WeakReference<Object>
+    {
+        private final Object discriminator;
+        private final int hash;
+
+        ImageIdentityKey(Object referent, Object discriminator, PdfBoxGraphics2DImageCache cache)
+        {
+            super(referent, cache == null ? null : cache.referenceQueue);
+            this.discriminator = discriminator;
+            this.hash = System.identityHashCode(referent) * 31 + (discriminator == null ? 0
+                    : discriminator.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof ImageIdentityKey))
+                return false;
+            ImageIdentityKey other = (ImageIdentityKey) obj;
+            Object image = get();
+            if (image == null || image != other.get())
+                return false;
+            return discriminator == null ? other.discriminator == null
+                    : discriminator.equals(other.discriminator);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+}
@@ -15,9 +15,17 @@
  */
 package de.rototor.pdfbox.graphics2d;
 
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.multipdf.PDFCloneUtility;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
@@ -27,100 +35,310 @@ import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Encodes all images using lossless compression. Tries to reuse images as much
  * as possible. You can share an instance of this class with multiple
- * PdfBoxGraphics2D objects.
+ * PdfBoxGraphics2D objects, also across multiple documents and threads.
  */
-public class PdfBoxGraphics2DLosslessImageEncoder implements IPdfBoxGraphics2DImageEncoder
+public class PdfBoxGraphics2DLosslessImageEncoder
+        implements IPdfBoxGraphics2DAsyncImageEncoder, IPdfBoxGraphics2DStreamingImageEncoder
 {
-    private Map<ImageSoftReference, SoftReference<PDImageXObject>> imageMap = new HashMap<ImageSoftReference, SoftReference<PDImageXObject>>();
-    private Map<ProfileSoftReference, SoftReference<PDColorSpace>> profileMap = new HashMap<ProfileSoftReference, SoftReference<PDColorSpace>>();
-    private SoftReference<PDDocument> doc;
+    /**
+     * Default for {@link #setMinStreamedPixels(long)}: 2048 x 2048 pixels
+     */
+    public static final long DEFAULT_MIN_STREAMED_PIXELS = 2048L * 2048L;
+
+    /**
+     * If only a part of an image is drawn, this part is encoded alone if it (and
+     * all other encoded parts of the image) cover at most this fraction of the
+     * image.
+     */
+    private static final double MAX_REGION_AREA = 0.5;
+
+    private final PdfBoxGraphics2DImageCache imageCache;
+    private final Map<PDDocument, Map<Image, long[]>> regionAreas = new WeakHashMap<PDDocument, Map<Image, long[]>>();
+    private final Map<PDDocument, Map<List<Object>, COSStream>> sharedMasks = new WeakHashMap<PDDocument, Map<List<Object>, COSStream>>();
+    private final Map<PDDocument, List<PendingImage>> pendingImages = new WeakHashMap<PDDocument, List<PendingImage>>();
+    private volatile boolean deduplicateByContent;
+    private volatile Executor executor;
+    private volatile boolean reduceColors = true;
+    private volatile boolean ccittFax = true;
+    private volatile PdfBoxGraphics2DDeflater deflater = PdfBoxGraphics2DDeflater.DEFAULT;
+    private volatile PdfBoxGraphics2DDiskImageCache diskCache;
+    private volatile long minStreamedPixels = DEFAULT_MIN_STREAMED_PIXELS;
+
+    public PdfBoxGraphics2DLosslessImageEncoder()
+    {
+        this(new PdfBoxGraphics2DImageCache());
+    }
+
+    /**
+     * @param imageCache the cache to store the encoded images in. You can use this
+     *                   to configure the byte budget of the cache, or to share a
+     *                   cache between multiple encoders.
+     */
+    public PdfBoxGraphics2DLosslessImageEncoder(PdfBoxGraphics2DImageCache imageCache)
+    {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @return the cache of the encoded images. Use it to get the hit/miss/eviction
+     * statistics.
+     */
+    @SuppressWarnings("unused")
+    public PdfBoxGraphics2DImageCache getImageCache()
+    {
+        return imageCache;
+    }
+
+    /**
+     * By default images are only reused if the very same {@link Image} object is
+     * drawn again. If you enable the deduplication by content, the pixels of every
+     * image are hashed, and an image with the same pixels as an already encoded
+     * image reuses the existing PDImageXObject (and its SMask). This is useful if
+     * you e.g. decode the same logo for every page again.
+     * <p>
+     * Note: Hashing costs some time for every drawn image, so this is off by
+     * default.
+     *
+     * @param deduplicateByContent true if images with the same pixels should be
+     *                             embedded only once.
+     */
+    @SuppressWarnings("unused")
+    public void setDeduplicateByContent(boolean deduplicateByContent)
+    {
+        this.deduplicateByContent = deduplicateByContent;
+    }
+
+    /**
+     * Images which only use a few colors, only gray values or only black and
+     * white are written as Indexed, DeviceGray or 1 bit image instead of RGB. This
+     * is lossless and enabled by default.
+     *
+     * @param reduceColors false to always write the images as the LosslessFactory
+     *                     of PDFBox does.
+     */
+    @SuppressWarnings("unused")
+    public void setReduceColors(boolean reduceColors)
+    {
+        this.reduceColors = reduceColors;
+    }
+
+    /**
+     * Black and white images (e.g. scans and signatures) are compressed with CCITT
+     * Group 4 instead of Flate. This is several times smaller for scans, but can
+     * be bigger for very regular computer generated images. Images which G4 does
+     * not compress at all are always written with Flate. This is enabled by
+     * default, and only has an effect if the colors are reduced (see
+     * {@link #setReduceColors(boolean)}).
+     *
+     * @param ccittFax false to compress black and white images with Flate.
+     */
+    @SuppressWarnings("unused")
+    public void setCCITTFax(boolean ccittFax)
+    {
+        this.ccittFax = ccittFax;
+    }
+
+    /**
+     * Encode the images in the background using the given executor. The image
+     * encoder then returns an empty placeholder PDImageXObject, which is drawn
+     * immediately. The pixel conversion and compression run on the executor, and
+     * the placeholder is filled when the {@link PdfBoxGraphics2D} is disposed.
+     * This allows to use multiple cores when drawing many images.
+     * <p>
+     * Note: The drawn {@link BufferedImage}s must not be modified till the
+     * graphics has been disposed, as they are encoded later.
+     *
+     * @param executor the executor to encode the images on, or null to encode the
+     *                 images synchronously (the default).
+     */
+    @SuppressWarnings("unused")
+    public void setAsyncExecutor(Executor executor)
+    {
+        this.executor = executor;
+    }
+
+    /**
+     * Set how the image samples are compressed, e.g. to compress big images on
+     * multiple threads, or to choose the PNG predictor per row (see
+     * {@link PdfBoxGraphics2DDeflater#withAdaptivePredictor(boolean)}).
+     * <p>
+     * Note: If you also use {@link #setAsyncExecutor(Executor)}, use a different
+     * executor for the compression. The image encoding tasks wait for the
+     * compression tasks, so sharing a bounded thread pool can dead lock.
+     *
+     * @param deflater the deflater to use, by default
+     *                 {@link PdfBoxGraphics2DDeflater#DEFAULT}
+     */
+    @SuppressWarnings("unused")
+    public void setDeflater(PdfBoxGraphics2DDeflater deflater)
+    {
+        this.deflater = deflater;
+    }
+
+    /**
+     * Keep the encoded images on disk, to reuse them in later runs. This only
+     * saves the compression, the pixels of every image still need to be read to
+     * find the entry.
+     *
+     * @param diskCache the cache, or null to not use a disk cache (the default).
+     */
+    @SuppressWarnings("unused")
+    public void setDiskCache(PdfBoxGraphics2DDiskImageCache diskCache)
+    {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * {@link RenderedImage}s which are not BufferedImages and have more pixels
+     * than this are written band by band, without copying the whole raster (see
+     * {@link IPdfBoxGraphics2DStreamingImageEncoder}). Their colors are not
+     * reduced, and they are not deduplicated by content.
+     *
+     * @param minStreamedPixels the pixel count, by default
+     *                          {@link #DEFAULT_MIN_STREAMED_PIXELS}. Use
+     *                          Long.MAX_VALUE to never stream images.
+     */
+    @SuppressWarnings("unused")
+    public void setMinStreamedPixels(long minStreamedPixels)
+    {
+        this.minStreamedPixels = minStreamedPixels;
+    }
 
     @Override
-    public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream,
-            Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    public long getMinStreamedPixels()
     {
-        final BufferedImage bi;
+        return minStreamedPixels;
+    }
 
-        if (image instanceof BufferedImage)
+    @Override
+    public PDImageXObject encodeImageBand(PDDocument document, RenderedImage image, int y,
+            int height, IPdfBoxGraphics2DImageEncoderEnv env) throws IOException
+    {
+        Object key = imageCache.identityKey(image,
+                new BandKey(y, height, env.getImageInterpolation()));
+        PDImageXObject band = imageCache.get(document, key);
+        if (band != null)
         {
-            bi = (BufferedImage) image;
+            imageCache.countHit();
         }
         else
         {
-            int width = image.getWidth(null);
-            int height = image.getHeight(null);
-            bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-            Graphics graphics = bi.getGraphics();
-            if (!graphics.drawImage(image, 0, 0, null, null))
-                throw new IllegalStateException("Not fully loaded images are not supported.");
-            graphics.dispose();
+            imageCache.countMiss();
+            band = TiledImageWriter.writeBand(document, deflater, image, y, height);
+            imageCache.put(document, key, band,
+                    PdfBoxGraphics2DImageCache.estimateEncodedBytes(band));
         }
+        band.setInterpolate(env.getImageInterpolation()
+                == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.Interpolate);
+        return band;
+    }
 
+    @Override
+    public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream,
+            Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    {
         try
         {
-            if (doc == null || doc.get() != document)
+            /*
+             * Check the cache before we touch any pixels, converting a non BufferedImage
+             * is expensive.
+             */
+            Object wholeImageKey = imageCache.identityKey(image, env.getImageInterpolation());
+            Object identityKey = wholeImageKey;
+            PDImageXObject imageXObject = imageCache.get(document, identityKey);
+            Rectangle region = null;
+            if (imageXObject == null && !(image instanceof PdfBoxGraphics2DEncodedImage))
             {
-                imageMap = new HashMap<ImageSoftReference, SoftReference<PDImageXObject>>();
-                profileMap = new HashMap<ProfileSoftReference, SoftReference<PDColorSpace>>();
-                doc = new SoftReference<PDDocument>(document);
-            }
-            SoftReference<PDImageXObject> pdImageXObjectSoftReference = imageMap.get(
-                    new ImageSoftReference(image, env.getImageInterpolation()));
-            PDImageXObject imageXObject =
-                    pdImageXObjectSoftReference == null ? null : pdImageXObjectSoftReference.get();
-            if (imageXObject == null)
-            {
-                imageXObject = LosslessFactory.createFromImage(document, bi);
-
-                /*
-                 * Do we have a color profile we need to embed?
-                 */
-                if (bi.getColorModel().getColorSpace() instanceof ICC_ColorSpace)
+                region = getVisibleRegion(image, env);
+                if (region != null)
                 {
-                    ICC_Profile profile = ((ICC_ColorSpace) bi.getColorModel()
-                            .getColorSpace()).getProfile();
-                    /*
-                     * Only tag a profile if it is not the default sRGB profile.
-                     */
-                    if (((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile()
-                            != ICC_Profile.getInstance(ColorSpace.CS_sRGB))
+                    identityKey = imageCache.identityKey(image,
+                            new RegionKey(region, env.getImageInterpolation()));
+                    imageXObject = imageCache.get(document, identityKey);
+                    if (imageXObject == null && !reserveRegion(document, image, region))
                     {
-
-                        SoftReference<PDColorSpace> pdProfileRef = profileMap.get(
-                                new ProfileSoftReference(profile));
-
-                        /*
-                         * We try to reduce the copies of the same ICC profile in the PDF file. If the
-                         * image already has a profile, it will be the right one. Otherwise we must
-                         * assume that the image is now in sRGB.
-                         */
-                        PDColorSpace pdProfile = pdProfileRef == null ? null : pdProfileRef.get();
-                        if (pdProfile == null)
-                        {
-                            pdProfile = imageXObject.getColorSpace();
-                            if (pdProfile instanceof PDICCBased)
-                            {
-                                profileMap.put(new ProfileSoftReference(profile),
-                                        new SoftReference<PDColorSpace>(pdProfile));
-                            }
-                        }
-                        imageXObject.setColorSpace(pdProfile);
+                        region = null;
+                        identityKey = wholeImageKey;
                     }
                 }
-                imageMap.put(new ImageSoftReference(image, env.getImageInterpolation()),
-                        new SoftReference<PDImageXObject>(imageXObject));
+            }
+
+            BufferedImage bi = null;
+            ImageContentKey contentKey = null;
+            PDImageXObject embeddedImage = null;
+            if (imageXObject == null && image instanceof PdfBoxGraphics2DEncodedImage)
+                embeddedImage = embedEncodedImage(document, (PdfBoxGraphics2DEncodedImage) image);
+            if (imageXObject == null && embeddedImage == null)
+            {
+                bi = toBufferedImage(image);
+                if (region != null)
+                {
+                    bi = bi.getSubimage(region.x, region.y, region.width, region.height);
+                }
+                else if (deduplicateByContent)
+                {
+                    contentKey = new ImageContentKey(bi, env.getImageInterpolation());
+                    imageXObject = imageCache.get(document, contentKey);
+                    if (imageXObject != null)
+                        imageCache.put(document, identityKey, imageXObject, 0);
+                }
+            }
+            if (imageXObject != null)
+            {
+                imageCache.countHit();
+            }
+            else
+            {
+                imageCache.countMiss();
+                Executor asyncExecutor = executor;
+                if (embeddedImage != null)
+                {
+                    imageXObject = embeddedImage;
+                }
+                else if (asyncExecutor != null)
+                {
+                    imageXObject = encodeImageAsync(document, bi, identityKey, asyncExecutor);
+                }
+                else
+                {
+                    imageXObject = createImageXObject(document, bi);
+                    tagColorProfile(document, bi, imageXObject);
+                    shareMasks(document, imageXObject);
+                }
+                imageCache.put(document, identityKey, imageXObject,
+                        PdfBoxGraphics2DImageCache.estimateEncodedBytes(imageXObject));
+                if (contentKey != null)
+                    imageCache.put(document, contentKey, imageXObject,
+                            PdfBoxGraphics2DImageCache.estimateRasterBytes(bi));
             }
 
             imageXObject.setInterpolate(env.getImageInterpolation()
                     == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.Interpolate);
+            if (region != null)
+                ((IPdfBoxGraphics2DImageRegionEnv) env).setEncodedRegion(region);
 
             return imageXObject;
         }
@@ -130,60 +348,537 @@ public class PdfBoxGraphics2DLosslessImageEncoder implements IPdfBoxGraphics2DIm
         }
     }
 
-    private static class ImageSoftReference extends SoftReference<Image>
+    /**
+     * @return the part of the image which is drawn, if it is small enough that it
+     * is worth to encode it alone. Otherwise null.
+     */
+    private static Rectangle getVisibleRegion(Image image, IPdfBoxGraphics2DImageEncoderEnv env)
+    {
+        if (!(env instanceof IPdfBoxGraphics2DImageRegionEnv))
+            return null;
+        Rectangle region = ((IPdfBoxGraphics2DImageRegionEnv) env).getSourceRegion();
+        int width = image.getWidth(null);
+        int height = image.getHeight(null);
+        if (region == null || width <= 0 || height <= 0)
+            return null;
+        if (env.getImageInterpolation()
+                == IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation.Interpolate)
+        {
+            /*
+             * The viewer also looks at the neighbour pixels when interpolating.
+             */
+            region.grow(1, 1);
+        }
+        region = region.intersection(new Rectangle(width, height));
+        if (region.isEmpty()
+                || (long) region.width * region.height > (long) width * height * MAX_REGION_AREA)
+            return null;
+        return region;
+    }
+
+    /**
+     * We only encode regions of an image as long as they together cover only a
+     * small part of the image. If many regions of the same image are drawn (e.g.
+     * from a sprite sheet), the whole image is encoded once and used for all
+     * further regions.
+     *
+     * @return true if the region should be encoded.
+     */
+    private boolean reserveRegion(PDDocument document, Image image, Rectangle region)
+    {
+        synchronized (regionAreas)
+        {
+            Map<Image, long[]> imageAreas = regionAreas.get(document);
+            if (imageAreas == null)
+            {
+                imageAreas = new WeakHashMap<Image, long[]>();
+                regionAreas.put(document, imageAreas);
+            }
+            long[] encodedArea = imageAreas.get(image);
+            if (encodedArea == null)
+            {
+                encodedArea = new long[1];
+                imageAreas.put(image, encodedArea);
+            }
+            long area = (long) region.width * region.height;
+            long imageArea = (long) image.getWidth(null) * image.getHeight(null);
+            if (encodedArea[0] + area > imageArea * MAX_REGION_AREA)
+                return false;
+            encodedArea[0] += area;
+            return true;
+        }
+    }
+
+    /**
+     * Embed the file data of the image as is, if possible.
+     *
+     * @return the image or null if the image must be decoded and encoded.
+     */
+    private PDImageXObject embedEncodedImage(PDDocument document,
+            PdfBoxGraphics2DEncodedImage image) throws IOException
     {
+        PDImageXObject imageXObject = EncodedImageWriter.write(document, image);
+        byte[] profile = image.header.iccProfile;
+        if (imageXObject != null && profile != null)
+            imageXObject.setColorSpace(PdfBoxGraphics2DColorSpaceRegistry.getInstance(document)
+                    .getICCBased(profile, image.header.colorComponents));
+        return imageXObject;
+    }
+
+    /**
+     * Get the pixels of the image as BufferedImage. Other images (e.g. images
+     * loaded by the Toolkit) are drawn into a new image, after waiting till they
+     * are loaded.
+     */
+    static BufferedImage toBufferedImage(Image image)
+    {
+        if (image instanceof BufferedImage)
+            return (BufferedImage) image;
+        if (image instanceof PdfBoxGraphics2DEncodedImage)
+            return ((PdfBoxGraphics2DEncodedImage) image).getDecodedImage();
+
+        ImageLoadObserver observer = new ImageLoadObserver();
+        if (!Toolkit.getDefaultToolkit().prepareImage(image, -1, -1, observer))
+            observer.awaitLoaded();
+        int width = image.getWidth(observer);
+        int height = image.getHeight(observer);
+        if (width <= 0 || height <= 0)
+            throw new IllegalStateException("Not fully loaded images are not supported.");
+        BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics graphics = bi.getGraphics();
+        try
+        {
+            if (!graphics.drawImage(image, 0, 0, observer))
+                throw new IllegalStateException("Not fully loaded images are not supported.");
+        }
+        finally
+        {
+            graphics.dispose();
+        }
+        return bi;
+    }
+
+    /**
+     * Waits till the Toolkit has loaded an image.
+     */
+    private static class ImageLoadObserver implements ImageObserver
+    {
+        /**
+         * We do not wait forever on broken image producers
+         */
+        private static final long LOAD_TIMEOUT_MS = 30 * 1000;
+
+        private boolean done;
+
+        @Override
+        public synchronized boolean imageUpdate(Image img, int infoflags, int x, int y,
+                int width, int height)
+        {
+            if ((infoflags & (ALLBITS | FRAMEBITS | ERROR | ABORT)) != 0)
+            {
+                done = true;
+                notifyAll();
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void awaitLoaded()
+        {
+            long end = System.currentTimeMillis() + LOAD_TIMEOUT_MS;
+            try
+            {
+                long remaining;
+                while (!done && (remaining = end - System.currentTimeMillis()) > 0)
+                    wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Encode the pixels of the image. This may be called on a background thread
+     * with a private scratch document if an async executor is set.
+     *
+     * @param document the document to create the PDImageXObject in
+     * @param bi       the image to encode
+     * @return the encoded image
+     */
+    private PDImageXObject createImageXObject(PDDocument document, BufferedImage bi)
+            throws IOException
+    {
+        PdfBoxGraphics2DDiskImageCache cache = diskCache;
+        if (cache == null)
+            return encodePixels(document, bi);
+
+        PdfBoxGraphics2DDeflater currentDeflater = deflater;
+        String key = cache.key(bi, "reduceColors=" + reduceColors + ",ccittFax=" + ccittFax
+                + ",level=" + currentDeflater.getCompressionLevel() + ",strategy="
+                + currentDeflater.getStrategy() + ",adaptive="
+                + currentDeflater.isAdaptivePredictor());
+        PDImageXObject imageXObject = cache.get(document, key);
+        if (imageXObject == null)
+        {
+            imageXObject = encodePixels(document, bi);
+            cache.put(key, imageXObject);
+        }
+        return imageXObject;
+    }
+
+    private PDImageXObject encodePixels(PDDocument document, BufferedImage bi)
+            throws IOException
+    {
+        if (reduceColors)
+        {
+            PDImageXObject reduced = ImageColorReducer.encode(document, deflater, bi,
+                    ccittFax);
+            if (reduced != null)
+                return reduced;
+        }
+        /*
+         * The common image types are read directly from their raster, the
+         * LosslessFactory is only needed for the exotic ones.
+         */
+        PDImageXObject direct = FlateImageWriter.write(document, deflater, bi);
+        if (direct != null)
+            return direct;
+        return LosslessFactory.createFromImage(document, bi);
+    }
+
+    /**
+     * Do we have a color profile we need to embed?
+     */
+    void tagColorProfile(PDDocument document, BufferedImage bi,
+            PDImageXObject imageXObject) throws IOException
+    {
+        if (bi.getColorModel().getColorSpace() instanceof ICC_ColorSpace)
+        {
+            ICC_Profile profile = ((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile();
+            /*
+             * Only tag a profile if it is not the default sRGB profile.
+             */
+            if (((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile()
+                    != ICC_Profile.getInstance(ColorSpace.CS_sRGB))
+            {
+                imageXObject.setColorSpace(getSharedProfile(document, profile, imageXObject));
+            }
+        }
+    }
+
+    private PDImageXObject encodeImageAsync(PDDocument document, final BufferedImage bi,
+            Object identityKey, Executor asyncExecutor) throws IOException
+    {
+        PDImageXObject placeholder = new PDImageXObject(document);
+        placeholder.setWidth(bi.getWidth());
+        placeholder.setHeight(bi.getHeight());
+        /*
+         * The paint applier needs a color space for texture paints right away. This
+         * is only a guess, the real color space is set when the image is finished.
+         */
+        placeholder.setColorSpace(bi.getColorModel().getNumColorComponents() == 1 ?
+                PDDeviceGray.INSTANCE :
+                PDDeviceRGB.INSTANCE);
+
+        /*
+         * PDDocuments are not thread safe, so we encode into a private scratch
+         * document and copy the stream over later.
+         */
+        final PDDocument scratchDocument = new PDDocument();
+        FutureTask<PDImageXObject> task = new FutureTask<PDImageXObject>(
+                new Callable<PDImageXObject>()
+                {
+                    @Override
+                    public PDImageXObject call() throws Exception
+                    {
+                        return createImageXObject(scratchDocument, bi);
+                    }
+                });
+        try
+        {
+            asyncExecutor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            /*
+             * A bounded or shut down executor; the image must be finished anyway, so
+             * that awaitPendingImages() does not wait forever.
+             */
+            task.run();
+        }
+        synchronized (pendingImages)
+        {
+            List<PendingImage> pendingList = pendingImages.get(document);
+            if (pendingList == null)
+            {
+                pendingList = new ArrayList<PendingImage>();
+                pendingImages.put(document, pendingList);
+            }
+            pendingList.add(new PendingImage(placeholder, bi, identityKey, scratchDocument, task));
+        }
+        return placeholder;
+    }
+
+    @Override
+    public void awaitPendingImages(PDDocument document)
+    {
+        List<PendingImage> pendingList;
+        synchronized (pendingImages)
+        {
+            pendingList = pendingImages.remove(document);
+        }
+        if (pendingList == null)
+            return;
+
+        PDFCloneUtility cloneUtility = new PDFCloneUtility(document);
+        Throwable failure = null;
+        for (PendingImage pendingImage : pendingList)
+        {
+            try
+            {
+                try
+                {
+                    copyImageStream(cloneUtility, pendingImage.task.get(),
+                            pendingImage.placeholder);
+                }
+                finally
+                {
+                    pendingImage.scratchDocument.close();
+                }
+                tagColorProfile(document, pendingImage.image, pendingImage.placeholder);
+                shareMasks(document, pendingImage.placeholder);
+                imageCache.put(document, pendingImage.identityKey, pendingImage.placeholder,
+                        PdfBoxGraphics2DImageCache.estimateEncodedBytes(
+                                pendingImage.placeholder));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                if (failure == null)
+                    failure = e;
+            }
+            catch (ExecutionException e)
+            {
+                if (failure == null)
+                    failure = e.getCause();
+            }
+            catch (IOException e)
+            {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure != null)
+            throw new RuntimeException("Could not encode Image", failure);
+    }
+
+    /**
+     * Copy the encoded image stream (i.e. the compressed data and all dictionary
+     * entries) into the placeholder.
+     */
+    private static void copyImageStream(PDFCloneUtility cloneUtility, PDImageXObject source,
+            PDImageXObject target) throws IOException
+    {
+        COSStream sourceStream = source.getCOSObject();
+        COSStream targetStream = target.getCOSObject();
+        for (Map.Entry<COSName, COSBase> entry : sourceStream.entrySet())
+        {
+            if (entry.getKey().equals(COSName.LENGTH))
+                continue;
+            targetStream.setItem(entry.getKey(), cloneUtility.cloneForNewDocument(entry.getValue()));
+        }
+        InputStream inputStream = sourceStream.createRawInputStream();
+        try
+        {
+            OutputStream outputStream = targetStream.createRawOutputStream();
+            try
+            {
+                IOUtils.copy(inputStream, outputStream);
+            }
+            finally
+            {
+                outputStream.close();
+            }
+        }
+        finally
+        {
+            inputStream.close();
+        }
+        /*
+         * The cached color space of the placeholder is stale now. Setting it drops the
+         * cache, but we must keep the cloned entry: the one of the source belongs to
+         * the scratch document, which is closed after this.
+         */
+        COSBase colorSpace = targetStream.getItem(COSName.COLORSPACE);
+        target.setColorSpace(null);
+        targetStream.setItem(COSName.COLORSPACE, colorSpace);
+    }
+
+    private static class PendingImage
+    {
+        private final PDImageXObject placeholder;
+        private final BufferedImage image;
+        private final Object identityKey;
+        private final PDDocument scratchDocument;
+        private final FutureTask<PDImageXObject> task;
+
+        PendingImage(PDImageXObject placeholder, BufferedImage image, Object identityKey,
+                PDDocument scratchDocument, FutureTask<PDImageXObject> task)
+        {
+            this.placeholder = placeholder;
+            this.image = image;
+            this.identityKey = identityKey;
+            this.scratchDocument = scratchDocument;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Many images have the same alpha channel, e.g. icons which only differ in
+     * their color. Identical SMasks and Masks are only embedded once per document.
+     */
+    void shareMasks(PDDocument document, PDImageXObject imageXObject) throws IOException
+    {
+        COSDictionary imageDict = imageXObject.getCOSObject();
+        for (COSName maskName : new COSName[] { COSName.SMASK, COSName.MASK })
+        {
+            COSBase mask = imageDict.getDictionaryObject(maskName);
+            if (!(mask instanceof COSStream))
+                continue;
+            COSStream maskStream = (COSStream) mask;
+            /*
+             * Same compressed data, size and decoding means the same mask. We only keep
+             * a digest of the data, the masks themselves are held by the document anyway.
+             */
+            List<Object> key = Arrays.<Object>asList(digestRawData(maskStream),
+                    maskStream.getInt(COSName.WIDTH), maskStream.getInt(COSName.HEIGHT),
+                    maskStream.getInt(COSName.BITS_PER_COMPONENT),
+                    maskStream.getBoolean(COSName.IMAGE_MASK, false),
+                    String.valueOf(maskStream.getDictionaryObject(COSName.FILTER)),
+                    String.valueOf(maskStream.getDictionaryObject(COSName.DECODE_PARMS)),
+                    String.valueOf(maskStream.getDictionaryObject(COSName.DECODE)));
+            synchronized (sharedMasks)
+            {
+                Map<List<Object>, COSStream> documentMasks = sharedMasks.get(document);
+                if (documentMasks == null)
+                {
+                    documentMasks = new HashMap<List<Object>, COSStream>();
+                    sharedMasks.put(document, documentMasks);
+                }
+                COSStream existing = documentMasks.get(key);
+                if (existing == null)
+                    documentMasks.put(key, maskStream);
+                else
+                    imageDict.setItem(maskName, existing);
+            }
+        }
+    }
+
+    /**
+     * @return the SHA-256 digest of the still encoded data of the stream
+     */
+    private static ByteBuffer digestRawData(COSStream stream) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        InputStream rawStream = stream.createRawInputStream();
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = rawStream.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        }
+        finally
+        {
+            rawStream.close();
+        }
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /**
+     * We try to reduce the copies of the same ICC profile in the PDF file. If the
+     * image already has a profile, it will be the right one. Otherwise we must
+     * assume that the image is now in sRGB.
+     */
+    private PDColorSpace getSharedProfile(PDDocument document, ICC_Profile profile,
+            PDImageXObject imageXObject) throws IOException
+    {
+        PDColorSpace pdProfile = imageXObject.getColorSpace();
+        if (pdProfile instanceof PDICCBased)
+            return PdfBoxGraphics2DColorSpaceRegistry.getInstance(document).getICCBased(profile);
+        return pdProfile;
+    }
+
+    /**
+     * Discriminator of the cache key of a region of an image
+     */
+    private static final class RegionKey
+    {
+        private final Rectangle region;
         private final IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation;
 
-        ImageSoftReference(Image referent,
-                IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
+        RegionKey(Rectangle region, IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
         {
-            super(referent);
+            this.region = region;
             this.interpolation = interpolation;
         }
 
         @Override
         public boolean equals(Object obj)
         {
-            if (obj == null)
+            if (!(obj instanceof RegionKey))
                 return false;
-            assert obj instanceof ImageSoftReference;
-            return ((ImageSoftReference) obj).get() == get()
-                    && ((ImageSoftReference) obj).interpolation == interpolation;
+            RegionKey other = (RegionKey) obj;
+            return other.region.equals(region) && other.interpolation == interpolation;
         }
 
         @Override
         public int hashCode()
         {
-            Image image = get();
-            if (image == null)
-                return 0;
-            return image.hashCode() ^ interpolation.hashCode();
+            return region.hashCode() * 31 + interpolation.hashCode();
         }
     }
 
-    private static class ProfileSoftReference extends SoftReference<ICC_Profile>
+    /**
+     * Discriminator of the cache key of a band of a streamed image
+     */
+    private static final class BandKey
     {
-        ProfileSoftReference(ICC_Profile referent)
+        private final int y;
+        private final int height;
+        private final IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation;
+
+        BandKey(int y, int height,
+                IPdfBoxGraphics2DImageEncoderEnv.ImageInterpolation interpolation)
         {
-            super(referent);
+            this.y = y;
+            this.height = height;
+            this.interpolation = interpolation;
         }
 
         @Override
         public boolean equals(Object obj)
         {
-            if (obj == null)
+            if (!(obj instanceof BandKey))
                 return false;
-            assert obj instanceof ProfileSoftReference;
-            return ((ProfileSoftReference) obj).get() == get();
+            BandKey other = (BandKey) obj;
+            return other.y == y && other.height == height && other.interpolation == interpolation;
         }
 
         @Override
         public int hashCode()
         {
-            ICC_Profile image = get();
-            if (image == null)
-                return 0;
-            return image.hashCode();
+            return (y * 31 + height) * 31 + interpolation.hashCode();
         }
     }
 }
@@ -1,7 +1,6 @@
 package de.rototor.pdfbox.graphics2d;
 
 import org.apache.pdfbox.cos.COSArray;
-import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSBoolean;
 import org.apache.pdfbox.cos.COSDictionary;
 import org.apache.pdfbox.cos.COSFloat;
@@ -39,12 +38,13 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Default paint mapper.
@@ -94,6 +94,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         private IPaintEnv env;
         private IPdfBoxGraphics2DColorMapper.IColorMapperEnv colorMapperEnv;
         private IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv imageEncoderEnv;
+        private PdfBoxGraphics2DColorSpaceRegistry colorSpaceRegistry;
         AffineTransform tf;
         /**
          * This transform is only set, when we apply a nested
@@ -103,6 +104,22 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 
         private ShadingMaskModifier shadingMaskModifier = IdentityShadingMaskModifier.INSTANCE;
 
+        /**
+         * @return the names of our resources, which are usually the resources of the
+         * graphics.
+         */
+        private ResourceNames getResourceNames()
+        {
+            return env.getGraphics2D().resourceNames.forResources(resources);
+        }
+
+        private PdfBoxGraphics2DColorSpaceRegistry getColorSpaceRegistry()
+        {
+            if (colorSpaceRegistry == null)
+                colorSpaceRegistry = PdfBoxGraphics2DColorSpaceRegistry.getInstance(document);
+            return colorSpaceRegistry;
+        }
+
         private void ensureExtendedState()
         {
             if (pdExtendedGraphicsState == null)
@@ -164,7 +181,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
             groupXForm.getCOSObject().setItem(COSName.GROUP, groupDict);
             groupXForm.setBBox(boundingBox);
             groupXForm.setFormType(1);
-            resources.add(groupXForm);
+            getResourceNames().add(groupXForm);
 
             PDPageContentStream grpContentStream = new PDPageContentStream(document, groupXForm,
                     groupXForm.getStream().createOutputStream(COSName.FLATE_DECODE));
@@ -213,7 +230,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         state.nestedTransform = null;
         PDShading shading = applyPaint(paint, state);
         if (state.pdExtendedGraphicsState != null)
-            contentStream.setGraphicsStateParameters(
+            state.getResourceNames().setGraphicsStateParameters(contentStream,
                     extGStateCache.makeUnqiue(state.pdExtendedGraphicsState));
         return shading;
     }
@@ -223,8 +240,10 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
     {
         PDPageContentStream contentStream = state.contentStream;
         IPdfBoxGraphics2DColorMapper colorMapper = state.colorMapper;
-        contentStream.setStrokingColor(colorMapper.mapColor(color, state.colorMapperEnv));
-        contentStream.setNonStrokingColor(colorMapper.mapColor(color, state.colorMapperEnv));
+        PDColor pdColor = state.getColorSpaceRegistry()
+                .register(colorMapper.mapColor(color, state.colorMapperEnv));
+        contentStream.setStrokingColor(pdColor);
+        contentStream.setNonStrokingColor(pdColor);
 
         int alpha = color.getAlpha();
         if (alpha < 255)
@@ -275,47 +294,199 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         if (paint == null)
             return null;
 
-        String simpleName = paint.getClass().getSimpleName();
-        if (paint instanceof Color)
+        return getPaintHandler(paint.getClass()).applyPaint(paint, state);
+    }
+
+    /**
+     * Applies one kind of paint. Derived classes can register their own handlers
+     * with {@link #registerPaintHandler(Class, PaintHandler)}.
+     */
+    protected interface PaintHandler
+    {
+        /**
+         * @return null or a PDShading which should be used to fill a shape.
+         */
+        PDShading applyPaint(Paint paint, PaintApplierState state) throws IOException;
+    }
+
+    private final Map<Class<?>, PaintHandler> registeredPaintHandlers =
+            new HashMap<Class<?>, PaintHandler>();
+    private final Map<Class<?>, PaintHandler> paintHandlers =
+            new HashMap<Class<?>, PaintHandler>();
+
+    /**
+     * Register a handler for paints of the given class and its subclasses. It takes
+     * precedence over the built in handling of the paint.
+     * <p>
+     * The handler is called with the transform, content stream and environment of
+     * this paint applier. The composite of the graphics has already been applied
+     * then.
+     *
+     * @param paintClass the class of the paints to handle
+     * @param handler    the handler applying these paints
+     */
+    public void registerPaintHandler(Class<? extends Paint> paintClass,
+            final IPdfBoxGraphics2DPaintApplier handler)
+    {
+        registerPaintHandler(paintClass, new PaintHandler()
+        {
+            @Override
+            public PDShading applyPaint(Paint paint, PaintApplierState state) throws IOException
+            {
+                return handler.applyPaint(paint, state.contentStream, state.tf, state.env);
+            }
+        });
+    }
+
+    /**
+     * Register a handler for paints of the given class and its subclasses, which
+     * works on our internal state.
+     *
+     * @param paintClass the class of the paints to handle
+     * @param handler    the handler applying these paints
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void registerPaintHandler(Class<? extends Paint> paintClass, PaintHandler handler)
+    {
+        registeredPaintHandlers.put(paintClass, handler);
+        paintHandlers.clear();
+    }
+
+    /**
+     * @return the handler for paints of this class. It is resolved once per class.
+     */
+    private PaintHandler getPaintHandler(Class<?> paintClass)
+    {
+        PaintHandler handler = paintHandlers.get(paintClass);
+        if (handler == null)
+        {
+            handler = resolvePaintHandler(paintClass);
+            paintHandlers.put(paintClass, handler);
+        }
+        return handler;
+    }
+
+    private PaintHandler resolvePaintHandler(Class<?> paintClass)
+    {
+        for (Class<?> c = paintClass; c != null; c = c.getSuperclass())
+        {
+            PaintHandler registeredHandler = registeredPaintHandlers.get(c);
+            if (registeredHandler != null)
+                return registeredHandler;
+        }
+
+        String simpleName = PropertyAccessor.simpleName(paintClass);
+        if (Color.class.isAssignableFrom(paintClass))
         {
-            applyAsStrokingColor((Color) paint, state);
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    applyAsStrokingColor((Color) paint, state);
+                    return null;
+                }
+            };
         }
         else if (simpleName.equals("LinearGradientPaint"))
         {
-            return shadingCache.makeUnqiue(buildLinearGradientShading(paint, state));
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    return applyLinearGradient(readLinearGradient(paint), state);
+                }
+            };
         }
         else if (simpleName.equals("RadialGradientPaint"))
         {
-            return shadingCache.makeUnqiue(buildRadialGradientShading(paint, state));
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    return applyRadialGradient(readRadialGradient(paint), state);
+                }
+            };
         }
         else if (simpleName.equals("PatternPaint"))
         {
-            applyPatternPaint(paint, state);
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    applyBatikPatternPaint(paint, state);
+                    return null;
+                }
+            };
         }
         else if (simpleName.equals("TilingPaint"))
         {
-            applyPdfBoxTilingPaint(paint, state);
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                {
+                    applyPdfBoxTilingPaint(paint, state);
+                    return null;
+                }
+            };
         }
-        else if (paint instanceof GradientPaint)
+        else if (GradientPaint.class.isAssignableFrom(paintClass))
         {
-            return shadingCache.makeUnqiue(buildGradientShading((GradientPaint) paint, state));
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    return shadingCache.makeUnqiue(
+                            buildGradientShading((GradientPaint) paint, state));
+                }
+            };
         }
-        else if (paint instanceof TexturePaint)
+        else if (TexturePaint.class.isAssignableFrom(paintClass))
         {
-            applyTexturePaint((TexturePaint) paint, state);
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    applyTexturePaint((TexturePaint) paint, state);
+                    return null;
+                }
+            };
         }
-        else if (paint instanceof ShadingPaint)
+        else if (ShadingPaint.class.isAssignableFrom(paintClass))
         {
-            // PDFBox paint, we can import the shading directly
-            return shadingCache.makeUnqiue(
-                    importPDFBoxShadingPaint((ShadingPaint<?>) paint, state));
+            return new PaintHandler()
+            {
+                @Override
+                public PDShading applyPaint(Paint paint, PaintApplierState state)
+                        throws IOException
+                {
+                    // PDFBox paint, we can import the shading directly
+                    return shadingCache.makeUnqiue(
+                            importPDFBoxShadingPaint((ShadingPaint<?>) paint, state));
+                }
+            };
         }
-        else
+        return new PaintHandler()
         {
-            System.err.printf("Don't know paint %s", paint.getClass().getName());
-        }
-
-        return null;
+            @Override
+            public PDShading applyPaint(Paint paint, PaintApplierState state)
+            {
+                System.err.printf("Don't know paint %s", paint.getClass().getName());
+                return null;
+            }
+        };
     }
 
     private PDShading importPDFBoxShadingPaint(ShadingPaint<?> paint, PaintApplierState state)
@@ -336,14 +507,43 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
                 (COSDictionary) pdfCloneUtility.cloneForNewDocument(shading.getCOSObject()));
     }
 
+    /**
+     * The content of a tile of a pattern
+     */
+    protected interface PatternContent
+    {
+        void paint(Graphics2D graphics) throws Exception;
+    }
+
     /*
      * Batik SVG Pattern Paint
      */
-    private void applyPatternPaint(Paint paint, PaintApplierState state) throws IOException
+    private void applyBatikPatternPaint(Paint paint, PaintApplierState state) throws IOException
     {
-        Rectangle2D anchorRect = getPropertyValue(paint, "getPatternRect");
+        final Object graphicsNode = GRAPHICS_NODE.get(paint);
+        applyPatternPaint(PATTERN_RECT.get(paint), PATTERN_TRANSFORM.get(paint),
+                new PatternContent()
+                {
+                    @Override
+                    public void paint(Graphics2D graphics)
+                    {
+                        GRAPHICS_NODE_PAINT.invoke(graphicsNode, graphics);
+                    }
+                }, state);
+    }
 
-        AffineTransform paintPatternTransform = getPropertyValue(paint, "getPatternTransform");
+    /**
+     * Apply a colored tiling pattern, e.g. of a Batik PatternPaint
+     *
+     * @param anchorRect            the bounds of a tile
+     * @param paintPatternTransform the transform of the pattern, or null
+     * @param content               paints a tile
+     * @param state                 our internal state
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void applyPatternPaint(Rectangle2D anchorRect, AffineTransform paintPatternTransform,
+            PatternContent content, PaintApplierState state) throws IOException
+    {
         PDTilingPattern pattern = new PDTilingPattern();
         pattern.setPaintType(PDTilingPattern.PAINT_COLORED);
         pattern.setTilingType(PDTilingPattern.TILING_CONSTANT_SPACING_FASTER_TILING);
@@ -369,18 +569,16 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         appearance.setResources(pattern.getResources());
         appearance.setBBox(pattern.getBBox());
 
-        Object graphicsNode = getPropertyValue(paint, "getGraphicsNode");
         PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(state.document, pattern.getBBox(),
                 state.env.getGraphics2D());
         try
         {
-            Method paintMethod = graphicsNode.getClass().getMethod("paint", Graphics2D.class);
-            paintMethod.invoke(graphicsNode, pdfBoxGraphics2D);
+            content.paint(pdfBoxGraphics2D);
         }
         catch (Exception e)
         {
             System.err.printf(
-                    "PdfBoxGraphics2DPaintApplier error while drawing Batik PatternPaint %s",
+                    "PdfBoxGraphics2DPaintApplier error while drawing PatternPaint %s",
                     e.getMessage());
             return;
         }
@@ -393,7 +591,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         imageContentStream.close();
 
         PDColorSpace patternCS1 = new PDPattern(null);
-        COSName tilingPatternName = state.resources.add(pattern);
+        COSName tilingPatternName = state.getResourceNames().add(pattern);
         PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
 
         state.contentStream.setNonStrokingColor(patternColor);
@@ -419,6 +617,35 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         }
     }
 
+    /**
+     * Applies one kind of composite. Derived classes can register their own
+     * handlers with {@link #registerCompositeHandler(Class, CompositeHandler)}.
+     */
+    protected interface CompositeHandler
+    {
+        void applyComposite(Composite composite, PaintApplierState state);
+    }
+
+    private final Map<Class<?>, CompositeHandler> registeredCompositeHandlers =
+            new HashMap<Class<?>, CompositeHandler>();
+    private final Map<Class<?>, CompositeHandler> compositeHandlers =
+            new HashMap<Class<?>, CompositeHandler>();
+
+    /**
+     * Register a handler for composites of the given class and its subclasses. It
+     * takes precedence over the built in handling of the composite.
+     *
+     * @param compositeClass the class of the composites to handle
+     * @param handler        the handler applying these composites
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void registerCompositeHandler(Class<? extends Composite> compositeClass,
+            CompositeHandler handler)
+    {
+        registeredCompositeHandlers.put(compositeClass, handler);
+        compositeHandlers.clear();
+    }
+
     private void applyComposite(PaintApplierState state)
     {
         /*
@@ -427,37 +654,77 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         if (state.composite == null)
             return;
 
-        // Possibly set the alpha constant
-        float alpha = 1;
-        COSName blendMode = COSName.COMPATIBLE;
-        int rule = AlphaComposite.SRC;
-
-        if (state.composite instanceof AlphaComposite)
+        Class<?> compositeClass = state.composite.getClass();
+        CompositeHandler handler = compositeHandlers.get(compositeClass);
+        if (handler == null)
         {
-            AlphaComposite composite = (AlphaComposite) state.composite;
-            alpha = composite.getAlpha();
-            rule = composite.getRule();
+            handler = resolveCompositeHandler(compositeClass);
+            compositeHandlers.put(compositeClass, handler);
         }
-        else if (state.composite.getClass().getSimpleName().equals("SVGComposite"))
+        handler.applyComposite(state.composite, state);
+    }
+
+    private CompositeHandler resolveCompositeHandler(Class<?> compositeClass)
+    {
+        for (Class<?> c = compositeClass; c != null; c = c.getSuperclass())
         {
-            /*
-             * Batik Composite
-             */
-            alpha = getPropertyValue(state.composite, "alpha");
-            rule = getPropertyValue(state.composite, "rule");
+            CompositeHandler registeredHandler = registeredCompositeHandlers.get(c);
+            if (registeredHandler != null)
+                return registeredHandler;
         }
-        else
+
+        if (AlphaComposite.class.isAssignableFrom(compositeClass))
         {
-            System.err.printf("Unknown composite %s", state.composite.getClass().getSimpleName());
+            return new CompositeHandler()
+            {
+                @Override
+                public void applyComposite(Composite composite, PaintApplierState state)
+                {
+                    AlphaComposite alphaComposite = (AlphaComposite) composite;
+                    applyAlphaComposite(alphaComposite.getAlpha(), alphaComposite.getRule(),
+                            state);
+                }
+            };
         }
-
-        state.ensureExtendedState();
-        if (alpha < 1)
+        else if (PropertyAccessor.simpleName(compositeClass).equals("SVGComposite"))
         {
-            assert state.pdExtendedGraphicsState != null;
-            state.pdExtendedGraphicsState.setStrokingAlphaConstant(alpha);
-            state.pdExtendedGraphicsState.setNonStrokingAlphaConstant(alpha);
+            return new CompositeHandler()
+            {
+                @Override
+                public void applyComposite(Composite composite, PaintApplierState state)
+                {
+                    /*
+                     * Batik Composite
+                     */
+                    float alpha = COMPOSITE_ALPHA.get(composite);
+                    int rule = COMPOSITE_RULE.get(composite);
+                    applyAlphaComposite(alpha, rule, state);
+                }
+            };
         }
+        return new CompositeHandler()
+        {
+            @Override
+            public void applyComposite(Composite composite, PaintApplierState state)
+            {
+                System.err.printf("Unknown composite %s", composite.getClass().getSimpleName());
+                applyAlphaComposite(1, AlphaComposite.SRC, state);
+            }
+        };
+    }
+
+    /**
+     * Apply the alpha and the rule of an {@link AlphaComposite}. The rule is mapped
+     * to a blend mode where possible.
+     *
+     * @param alpha the alpha constant
+     * @param rule  the rule, e.g. {@link AlphaComposite#SRC_OVER}
+     * @param state our internal state
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void applyAlphaComposite(float alpha, int rule, PaintApplierState state)
+    {
+        COSName blendMode = COSName.COMPATIBLE;
         /*
          * Try to map the alpha rule into blend modes
          */
@@ -494,6 +761,26 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         case AlphaComposite.DST_OVER:
             break;
         }
+        applyBlendMode(alpha, blendMode, state);
+    }
+
+    /**
+     * Apply an alpha constant and a blend mode
+     *
+     * @param alpha     the alpha constant
+     * @param blendMode the blend mode, e.g. {@link COSName#MULTIPLY}
+     * @param state     our internal state
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected void applyBlendMode(float alpha, COSName blendMode, PaintApplierState state)
+    {
+        state.ensureExtendedState();
+        if (alpha < 1)
+        {
+            assert state.pdExtendedGraphicsState != null;
+            state.pdExtendedGraphicsState.setStrokingAlphaConstant(alpha);
+            state.pdExtendedGraphicsState.setNonStrokingAlphaConstant(alpha);
+        }
         state.dictExtendedState.setItem(COSName.BM, blendMode);
     }
 
@@ -517,19 +804,125 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         return false;
     }
 
-    private PDShading buildLinearGradientShading(Paint paint, PaintApplierState state)
+    /**
+     * The properties of a linear or a radial gradient paint, e.g. of a
+     * {@link java.awt.LinearGradientPaint} or of its Batik counterpart.
+     */
+    public static class GradientProperties
+    {
+        /**
+         * The colors at the fractions
+         */
+        public Color[] colors;
+        public float[] fractions;
+        public AffineTransform transform = new AffineTransform();
+        /**
+         * Start and end point of a linear gradient
+         */
+        public Point2D startPoint;
+        public Point2D endPoint;
+        /**
+         * Center, focus and radius of a radial gradient
+         */
+        public Point2D centerPoint;
+        public Point2D focusPoint;
+        public float radius;
+        /**
+         * True if the gradient comes from an SVG. A linear gradient with a non square
+         * transform and coordinates in 0..1 is then drawn in objectBoundingBox mode.
+         */
+        public boolean svgGradient;
+    }
+
+    /**
+     * Apply a linear gradient
+     *
+     * @return the shading to fill the shape with
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected PDShading applyLinearGradient(GradientProperties gradient, PaintApplierState state)
+            throws IOException
+    {
+        return shadingCache.makeUnqiue(buildLinearGradientShading(gradient, state));
+    }
+
+    /**
+     * Apply a radial gradient
+     *
+     * @return the shading to fill the shape with
+     */
+    @SuppressWarnings("WeakerAccess")
+    protected PDShading applyRadialGradient(GradientProperties gradient, PaintApplierState state)
             throws IOException
     {
+        return shadingCache.makeUnqiue(buildRadialGradientShading(gradient, state));
+    }
+
+    private static GradientProperties readGradient(Paint paint)
+    {
+        GradientProperties gradient = new GradientProperties();
+        if (paint instanceof MultipleGradientPaint)
+        {
+            MultipleGradientPaint multipleGradientPaint = (MultipleGradientPaint) paint;
+            gradient.colors = multipleGradientPaint.getColors();
+            gradient.fractions = multipleGradientPaint.getFractions();
+            gradient.transform = multipleGradientPaint.getTransform();
+            return gradient;
+        }
         /*
-         * Batik has a copy of RadialGradientPaint, but it has the same structure as the AWT RadialGradientPaint. So we use
-         * Reflection to access the fields of both these classes.
+         * Batik has a copy of the AWT gradient paints, with the same structure. So we use
+         * reflection to access the properties of the Batik paints.
          */
-        boolean isBatikGradient = paint.getClass().getPackage().getName()
+        gradient.colors = COLORS.get(paint);
+        gradient.fractions = FRACTIONS.get(paint);
+        gradient.transform = TRANSFORM.get(paint);
+        gradient.svgGradient = paint.getClass().getPackage().getName()
                 .equals("org.apache.batik.ext.awt");
+        return gradient;
+    }
+
+    private static GradientProperties readLinearGradient(Paint paint)
+    {
+        GradientProperties gradient = readGradient(paint);
+        if (paint instanceof LinearGradientPaint)
+        {
+            gradient.startPoint = ((LinearGradientPaint) paint).getStartPoint();
+            gradient.endPoint = ((LinearGradientPaint) paint).getEndPoint();
+        }
+        else
+        {
+            gradient.startPoint = START_POINT.get(paint);
+            gradient.endPoint = END_POINT.get(paint);
+        }
+        return gradient;
+    }
+
+    private static GradientProperties readRadialGradient(Paint paint)
+    {
+        GradientProperties gradient = readGradient(paint);
+        if (paint instanceof RadialGradientPaint)
+        {
+            RadialGradientPaint radialGradientPaint = (RadialGradientPaint) paint;
+            gradient.centerPoint = radialGradientPaint.getCenterPoint();
+            gradient.focusPoint = radialGradientPaint.getFocusPoint();
+            gradient.radius = radialGradientPaint.getRadius();
+        }
+        else
+        {
+            gradient.centerPoint = CENTER_POINT.get(paint);
+            gradient.focusPoint = FOCUS_POINT.get(paint);
+            gradient.radius = RADIUS.get(paint);
+        }
+        return gradient;
+    }
+
+    private PDShading buildLinearGradientShading(GradientProperties gradient,
+            PaintApplierState state) throws IOException
+    {
         boolean isObjectBoundingBox = false;
-        if (isBatikGradient)
+        if (gradient.svgGradient)
         {
-            AffineTransform gradientTransform = getPropertyValue(paint, "getTransform");
+            AffineTransform gradientTransform = gradient.transform;
             if (!gradientTransform.isIdentity())
             {
                 /*
@@ -541,7 +934,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
                     // even though in svg they were defined in userSpaceOnUse mode. (But info is not available here.)
                     // To fine tune this, we only switch to objectBoundingBox mode if the coordinates are in the 0..1 range.
                     // All examples of objectBoundingBox gradients I've seen so far also have coordinates in that range.
-                    if (isAbstractCoordinatesInBatikPaint(paint)){
+                    if (isAbstractCoordinatesInBatikPaint(gradient)){
                         isObjectBoundingBox = true;
                     }
                 }
@@ -556,26 +949,26 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         final PDShading shading;
         if (isObjectBoundingBox)
         {
-            shading = linearGradientObjectBoundingBoxShading(paint, state);
+            shading = linearGradientObjectBoundingBoxShading(gradient, state);
         }
         else
         {
-            shading = linearGradientUserSpaceOnUseShading(paint, state);
+            shading = linearGradientUserSpaceOnUseShading(gradient, state);
         }
         return state.shadingMaskModifier.applyMasking(state, shading);
     }
 
-    private boolean isAbstractCoordinatesInBatikPaint(Paint paint){
-        Point2D startPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getStartPoint"));
-        Point2D endPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getEndPoint"));
+    private boolean isAbstractCoordinatesInBatikPaint(GradientProperties gradient){
+        Point2D startPoint = gradient.startPoint;
+        Point2D endPoint = gradient.endPoint;
         return (startPoint.getX() >= 0 && startPoint.getX() <= 1.0
             && startPoint.getY() >= 0 && startPoint.getY() <= 1.0
             && endPoint.getX() >= 0 && endPoint.getX() <= 1.0
             && endPoint.getY() >= 0 && endPoint.getY() <= 1.0);
     }
 
-    private PDShading linearGradientObjectBoundingBoxShading(Paint paint, PaintApplierState state)
-            throws IOException
+    private PDShading linearGradientObjectBoundingBoxShading(GradientProperties gradient,
+            PaintApplierState state) throws IOException
     {
         /*
          * I found this Stack Overflow question to be useful: https://stackoverflow.com/questions/50617275/svg-linear-gradients-
@@ -593,17 +986,11 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
          * Note: there is some trickery with shape inversion because SVGs lay out from the top down & PDFs lay out from the
          * bottom up.
          */
-        PDShadingType3 shading = setupBasicLinearShading(paint, state);
-
-        Point2D startPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getStartPoint"));
-        Point2D endPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getEndPoint"));
-        AffineTransform gradientTransform = getPropertyValue(paint, "getTransform");
-        state.tf.concatenate(gradientTransform);
+        PDShadingType3 shading = setupBasicLinearShading(gradient, state);
 
-        // noinspection unused
-        MultipleGradientPaint.CycleMethod cycleMethod = getCycleMethod(paint);
-        // noinspection unused
-        MultipleGradientPaint.ColorSpaceType colorSpaceType = getColorSpaceType(paint);
+        Point2D startPoint = clonePoint(gradient.startPoint);
+        Point2D endPoint = clonePoint(gradient.endPoint);
+        state.tf.concatenate(gradient.transform);
 
         // Note: all of the start and end points I've seen for linear gradients
         // that use the objectBoundingBox mode define a 1x1 box. I don't know if
@@ -654,21 +1041,15 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
     /**
      * This is the default gradient mode for both SVG and java.awt gradients.
      */
-    private PDShading linearGradientUserSpaceOnUseShading(Paint paint, PaintApplierState state)
-            throws IOException
+    private PDShading linearGradientUserSpaceOnUseShading(GradientProperties gradient,
+            PaintApplierState state) throws IOException
     {
 
-        PDShadingType3 shading = setupBasicLinearShading(paint, state);
-
-        Point2D startPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getStartPoint"));
-        Point2D endPoint = clonePoint((Point2D.Double) getPropertyValue(paint, "getEndPoint"));
-        AffineTransform gradientTransform = getPropertyValue(paint, "getTransform");
-        state.tf.concatenate(gradientTransform);
+        PDShadingType3 shading = setupBasicLinearShading(gradient, state);
 
-        // noinspection unused
-        MultipleGradientPaint.CycleMethod cycleMethod = getCycleMethod(paint);
-        // noinspection unused
-        MultipleGradientPaint.ColorSpaceType colorSpaceType = getColorSpaceType(paint);
+        Point2D startPoint = clonePoint(gradient.startPoint);
+        Point2D endPoint = clonePoint(gradient.endPoint);
+        state.tf.concatenate(gradient.transform);
 
         state.tf.transform(startPoint, startPoint);
         state.tf.transform(endPoint, endPoint);
@@ -678,12 +1059,12 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         return shading;
     }
 
-    private PDShadingType3 setupBasicLinearShading(Paint paint, PaintApplierState state)
-            throws IOException
+    private PDShadingType3 setupBasicLinearShading(GradientProperties gradient,
+            PaintApplierState state) throws IOException
     {
         PDShadingType3 shading = new PDShadingType3(new COSDictionary());
-        Color[] colors = getPropertyValue(paint, "getColors");
-        float[] fractions = getPropertyValue(paint, "getFractions");
+        Color[] colors = gradient.colors;
+        float[] fractions = gradient.fractions;
         PDColor firstColorMapped = mapFirstColorOfGradient(state, colors);
 
         if (haveColorsTransparency(colors))
@@ -695,7 +1076,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         PDFunctionType3 type3 = buildType3Function(colors, fractions, state);
         shading.setAntiAlias(true);
         shading.setShadingType(PDShading.SHADING_TYPE2);
-        shading.setColorSpace(firstColorMapped.getColorSpace());
+        shading.setColorSpace(
+                state.getColorSpaceRegistry().register(firstColorMapped.getColorSpace()));
         shading.setFunction(type3);
         shading.setExtend(setupExtends());
         return shading;
@@ -721,93 +1103,15 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         return extend;
     }
 
-    /**
-     * Map the cycleMethod of the GradientPaint to the java.awt.MultipleGradientPaint.CycleMethod enum.
-     *
-     * @param paint the paint to get the cycleMethod from (if not in any other way possible using reflection)
-     * @return the CycleMethod
-     */
-    private MultipleGradientPaint.CycleMethod getCycleMethod(Paint paint)
-    {
-        if (paint instanceof java.awt.MultipleGradientPaint)
-            return ((MultipleGradientPaint) paint).getCycleMethod();
-        if (paint.getClass().getPackage().getName().equals("org.apache.batik.ext.awt"))
-        {
-            setupBatikReflectionAccess(paint);
-            Object cycleMethod = getPropertyValue(paint, "getCycleMethod");
-            if (cycleMethod == BATIK_GRADIENT_NO_CYCLE)
-                return MultipleGradientPaint.CycleMethod.NO_CYCLE;
-            if (cycleMethod == BATIK_GRADIENT_REFLECT)
-                return MultipleGradientPaint.CycleMethod.REFLECT;
-            if (cycleMethod == BATIK_GRADIENT_REPEAT)
-                return MultipleGradientPaint.CycleMethod.REPEAT;
-        }
-        return MultipleGradientPaint.CycleMethod.NO_CYCLE;
-    }
-
-    private MultipleGradientPaint.ColorSpaceType getColorSpaceType(Paint paint)
+    private PDShading buildRadialGradientShading(GradientProperties gradient,
+            PaintApplierState state) throws IOException
     {
-        if (paint instanceof java.awt.MultipleGradientPaint)
-            return ((MultipleGradientPaint) paint).getColorSpace();
-        if (paint.getClass().getPackage().getName().equals("org.apache.batik.ext.awt"))
-        {
-            setupBatikReflectionAccess(paint);
-            Object cycleMethod = getPropertyValue(paint, "getColorSpace");
-            if (cycleMethod == BATIK_COLORSPACE_SRGB)
-                return MultipleGradientPaint.ColorSpaceType.SRGB;
-            if (cycleMethod == BATIK_COLORSPACE_LINEAR_RGB)
-                return MultipleGradientPaint.ColorSpaceType.LINEAR_RGB;
-        }
-        return MultipleGradientPaint.ColorSpaceType.SRGB;
-    }
-
-    private Object BATIK_GRADIENT_NO_CYCLE;
-    private Object BATIK_GRADIENT_REFLECT;
-    private Object BATIK_GRADIENT_REPEAT;
-    private Object BATIK_COLORSPACE_SRGB;
-    private Object BATIK_COLORSPACE_LINEAR_RGB;
-
-    private void setupBatikReflectionAccess(Paint paint)
-    {
-        /*
-         * As we don't have Batik on our class path we need to access it by reflection if the user application is using Batik
-         */
-        if (BATIK_GRADIENT_NO_CYCLE != null)
-            return;
-
-        try
-        {
-            Class<?> cls = paint.getClass();
-            if (cls.getSimpleName().equals("MultipleGradientPaint"))
-            {
-                BATIK_GRADIENT_NO_CYCLE = cls.getDeclaredField("NO_CYCLE");
-                BATIK_GRADIENT_REFLECT = cls.getDeclaredField("REFLECT");
-                BATIK_GRADIENT_REPEAT = cls.getDeclaredField("REPEAT");
-                BATIK_COLORSPACE_SRGB = cls.getDeclaredField("SRGB");
-                BATIK_COLORSPACE_LINEAR_RGB = cls.getDeclaredField("LINEAR_RGB");
-            }
-        }
-        catch (NoSuchFieldException ignored)
-        {
-            /*
-             * Can not detect Batik CycleMethods :(
-             */
-        }
-    }
-
-    private PDShading buildRadialGradientShading(Paint paint, PaintApplierState state)
-            throws IOException
-    {
-        /*
-         * Batik has a copy of RadialGradientPaint, but it has the same structure as the AWT RadialGradientPaint. So we use
-         * Reflection to access the fields of both these classes.
-         */
-        Color[] colors = getPropertyValue(paint, "getColors");
+        Color[] colors = gradient.colors;
         PDColor firstColorMapped = mapFirstColorOfGradient(state, colors);
-        float[] fractions = getPropertyValue(paint, "getFractions");
-        Point2D centerPoint = clonePoint((Point2D) getPropertyValue(paint, "getCenterPoint"));
-        Point2D focusPoint = clonePoint((Point2D) getPropertyValue(paint, "getFocusPoint"));
-        float radius = getPropertyValue(paint, "getRadius");
+        float[] fractions = gradient.fractions;
+        Point2D centerPoint = clonePoint(gradient.centerPoint);
+        Point2D focusPoint = clonePoint(gradient.focusPoint);
+        float radius = gradient.radius;
 
         /*
          * When doing a shading paint, we need to always walk the shape first.
@@ -817,9 +1121,9 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         PDShadingType3 shading = new PDShadingType3(new COSDictionary());
         shading.setAntiAlias(true);
         shading.setShadingType(PDShading.SHADING_TYPE3);
-        shading.setColorSpace(firstColorMapped.getColorSpace());
-        AffineTransform gradientTransform = getPropertyValue(paint, "getTransform");
-        state.tf.concatenate(gradientTransform);
+        shading.setColorSpace(
+                state.getColorSpaceRegistry().register(firstColorMapped.getColorSpace()));
+        state.tf.concatenate(gradient.transform);
         state.tf.transform(centerPoint, centerPoint);
         state.tf.transform(focusPoint, focusPoint);
 
@@ -887,7 +1191,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 
         PDShadingType3 shading = new PDShadingType3(new COSDictionary());
         shading.setShadingType(PDShading.SHADING_TYPE2);
-        shading.setColorSpace(firstColorMapped.getColorSpace());
+        shading.setColorSpace(
+                state.getColorSpaceRegistry().register(firstColorMapped.getColorSpace()));
         float[] fractions = new float[] { 0, 1 };
         PDFunctionType3 type3 = buildType3Function(colors, fractions, state);
 
@@ -942,7 +1247,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
         imageContentStream.close();
 
         PDColorSpace patternCS1 = new PDPattern(null, imageXObject.getColorSpace());
-        COSName tilingPatternName = state.resources.add(pattern);
+        COSName tilingPatternName = state.getResourceNames().add(pattern);
         PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
 
         state.contentStream.setNonStrokingColor(patternColor);
@@ -1031,14 +1336,13 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
     private COSArray buildType2Functions(List<Color> colors, COSArray domain, COSArray encode,
             PaintApplierState state)
     {
-        Color prevColor = colors.get(0);
+        PDColor[] pdColors = mapColors(colors.toArray(new Color[0]), state);
 
         COSArray functions = new COSArray();
-        for (int i = 1; i < colors.size(); i++)
+        for (int i = 1; i < pdColors.length; i++)
         {
-            Color color = colors.get(i);
-            PDColor prevPdColor = state.colorMapper.mapColor(prevColor, state.colorMapperEnv);
-            PDColor pdColor = state.colorMapper.mapColor(color, state.colorMapperEnv);
+            PDColor prevPdColor = pdColors[i - 1];
+            PDColor pdColor = pdColors[i];
             COSArray c0 = new COSArray();
             COSArray c1 = new COSArray();
             for (float component : prevPdColor.getComponents())
@@ -1056,13 +1360,62 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 
             encode.add(new COSFloat(0));
             encode.add(new COSFloat(1));
-            prevColor = color;
         }
         return functions;
     }
 
     /**
-     * Get a property value from an object using reflection
+     * Map all colors, at once if the color mapper supports this.
+     */
+    private static PDColor[] mapColors(Color[] colors, PaintApplierState state)
+    {
+        if (state.colorMapper instanceof IPdfBoxGraphics2DBatchColorMapper)
+            return ((IPdfBoxGraphics2DBatchColorMapper) state.colorMapper).mapColors(colors,
+                    state.colorMapperEnv);
+        PDColor[] pdColors = new PDColor[colors.length];
+        for (int i = 0; i < colors.length; i++)
+            pdColors[i] = state.colorMapper.mapColor(colors[i], state.colorMapperEnv);
+        return pdColors;
+    }
+
+    /*
+     * Properties of the Batik paints and composites, and of the AWT gradients
+     */
+    private static final PropertyAccessor<Color[]> COLORS = new PropertyAccessor<Color[]>(
+            "getColors");
+    private static final PropertyAccessor<float[]> FRACTIONS = new PropertyAccessor<float[]>(
+            "getFractions");
+    private static final PropertyAccessor<Point2D> START_POINT = new PropertyAccessor<Point2D>(
+            "getStartPoint");
+    private static final PropertyAccessor<Point2D> END_POINT = new PropertyAccessor<Point2D>(
+            "getEndPoint");
+    private static final PropertyAccessor<AffineTransform> TRANSFORM =
+            new PropertyAccessor<AffineTransform>("getTransform");
+    private static final PropertyAccessor<Point2D> CENTER_POINT = new PropertyAccessor<Point2D>(
+            "getCenterPoint");
+    private static final PropertyAccessor<Point2D> FOCUS_POINT = new PropertyAccessor<Point2D>(
+            "getFocusPoint");
+    private static final PropertyAccessor<Float> RADIUS = new PropertyAccessor<Float>(
+            "getRadius");
+    private static final PropertyAccessor<Rectangle2D> PATTERN_RECT =
+            new PropertyAccessor<Rectangle2D>("getPatternRect");
+    private static final PropertyAccessor<AffineTransform> PATTERN_TRANSFORM =
+            new PropertyAccessor<AffineTransform>("getPatternTransform");
+    private static final PropertyAccessor<Object> GRAPHICS_NODE = new PropertyAccessor<Object>(
+            "getGraphicsNode");
+    private static final PropertyAccessor<Void> GRAPHICS_NODE_PAINT = new PropertyAccessor<Void>(
+            "paint", Graphics2D.class);
+    private static final PropertyAccessor<Float> COMPOSITE_ALPHA = new PropertyAccessor<Float>(
+            "alpha");
+    private static final PropertyAccessor<Integer> COMPOSITE_RULE =
+            new PropertyAccessor<Integer>("rule");
+
+    private static final ConcurrentMap<String, PropertyAccessor<?>> propertyAccessors =
+            new ConcurrentHashMap<String, PropertyAccessor<?>>();
+
+    /**
+     * Get a property value from an object using reflection. The getter is looked up
+     * only once per class.
      *
      * @param obj            The object to get a property from.
      * @param propertyGetter method name of the getter, i.e. "getXY".
@@ -1072,130 +1425,39 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
     @SuppressWarnings({ "unchecked", "WeakerAccess" })
     protected static <T> T getPropertyValue(Object obj, String propertyGetter)
     {
-        try
-        {
-            Class<?> c = obj.getClass();
-            while (c != null)
-            {
-                try
-                {
-                    Method m = c.getMethod(propertyGetter, (Class<?>[]) null);
-                    return (T) m.invoke(obj);
-                }
-                catch (NoSuchMethodException ignored)
-                {
-                }
-                c = c.getSuperclass();
-            }
-            throw new NullPointerException("Method " + propertyGetter + " not found!");
-        }
-        catch (Exception e)
+        PropertyAccessor<?> accessor = propertyAccessors.get(propertyGetter);
+        if (accessor == null)
         {
-            return PdfBoxGraphics2D.throwException(e);
+            accessor = new PropertyAccessor<Object>(propertyGetter);
+            PropertyAccessor<?> existing = propertyAccessors.putIfAbsent(propertyGetter,
+                    accessor);
+            if (existing != null)
+                accessor = existing;
         }
+        return (T) accessor.get(obj);
     }
 
     private static abstract class COSResourceCacheBase<TObject extends COSObjectable>
     {
-        private final Map<Integer, List<TObject>> states = new HashMap<Integer, List<TObject>>();
-
-        private static boolean equalsCOSDictionary(COSDictionary cosDictionary,
-                COSDictionary cosDictionary1)
-        {
-            if (cosDictionary.size() != cosDictionary1.size())
-                return false;
-            for (COSName name : cosDictionary.keySet())
-            {
-                COSBase item = cosDictionary.getItem(name);
-                COSBase item2 = cosDictionary1.getItem(name);
-                if (!equalsCOSBase(item, item2))
-                    return false;
-            }
-            return true;
-        }
-
-        private static boolean equalsCOSBase(COSBase item, COSBase item2)
-        {
-            if (item == item2)
-                return true;
-            if (item == null)
-                return false;
-            if (item2 == null)
-                return false;
-            /*
-             * Can the items be compared directly?
-             */
-            if (item.equals(item2))
-                return true;
-
-            if (item instanceof COSDictionary && item2 instanceof COSDictionary)
-                return equalsCOSDictionary((COSDictionary) item, (COSDictionary) item2);
-
-            // noinspection SimplifiableIfStatement
-            if (item instanceof COSArray && item2 instanceof COSArray)
-                return equalsCOSArray((COSArray) item, (COSArray) item2);
-
-            return false;
-        }
-
-        private static boolean equalsCOSArray(COSArray item, COSArray item2)
-        {
-            if (item.size() != item2.size())
-                return false;
-            for (int i = 0; i < item.size(); i++)
-            {
-                COSBase i1 = item.getObject(i);
-                COSBase i2 = item2.getObject(i);
-                if (!equalsCOSBase(i1, i2))
-                    return false;
-            }
-            return true;
-        }
-
-        protected abstract int getKey(TObject obj);
+        private final Map<COSStructure.Key, TObject> states = new HashMap<COSStructure.Key, TObject>();
 
         TObject makeUnqiue(TObject state)
         {
-            int key = getKey(state);
-            List<TObject> pdExtendedGraphicsStates = states.get(key);
-            if (pdExtendedGraphicsStates == null)
-            {
-                pdExtendedGraphicsStates = new ArrayList<TObject>();
-                states.put(key, pdExtendedGraphicsStates);
-            }
-            for (TObject s : pdExtendedGraphicsStates)
-            {
-                if (stateEquals(s, state))
-                    return s;
-            }
-            pdExtendedGraphicsStates.add(state);
+            COSStructure.Key key = new COSStructure.Key(state.getCOSObject());
+            TObject existing = states.get(key);
+            if (existing != null)
+                return existing;
+            states.put(key, state);
             return state;
         }
-
-        private boolean stateEquals(TObject s, TObject state)
-        {
-            COSBase base1 = s.getCOSObject();
-            COSBase base2 = state.getCOSObject();
-            return equalsCOSBase(base1, base2);
-        }
     }
 
     private static class ExtGStateCache extends COSResourceCacheBase<PDExtendedGraphicsState>
     {
-        @Override
-        protected int getKey(PDExtendedGraphicsState obj)
-        {
-            return obj.getCOSObject().size();
-        }
     }
 
     private static class PDShadingCache extends COSResourceCacheBase<PDShading>
     {
-        @Override
-        protected int getKey(PDShading obj)
-        {
-            return obj.getCOSObject().size();
-        }
     }
 
     private final class CreateAlphaShadingMask implements ShadingMaskModifier
@@ -1260,7 +1522,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
             group.setItem(COSName.CS, COSName.DEVICEGRAY);
             group.setItem(COSName.TYPE, COSName.GROUP);
             xFormObject.getCOSObject().setItem(COSName.GROUP, group);
-            state.resources.add(xFormObject);
+            state.getResourceNames().add(xFormObject);
 
             state.ensureExtendedState();
             state.pdExtendedGraphicsState.setAlphaSourceFlag(false);
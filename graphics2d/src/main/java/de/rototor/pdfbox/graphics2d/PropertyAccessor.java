@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Reads a property of objects whose classes are not on our class path, e.g.
+ * Batik paints or iText colors, by calling its public getter. It can also call
+ * a public method with one argument, e.g. the paint method of a Batik
+ * GraphicsNode.
+ * <p>
+ * The method is looked up once per class and then called through a
+ * MethodHandle, as looking it up and calling it by reflection on every fill
+ * is slow.
+ *
+ * @param <T> the type of the property or result. Primitive values are boxed,
+ *            void methods return null.
+ */
+final class PropertyAccessor<T>
+{
+    private static final MethodType GETTER_TYPE = MethodType.genericMethodType(1);
+    private static final MethodType METHOD_TYPE = MethodType.genericMethodType(2);
+
+    private static final ClassValue<String> SIMPLE_NAMES = new ClassValue<String>()
+    {
+        @Override
+        protected String computeValue(Class<?> type)
+        {
+            return type.getSimpleName();
+        }
+    };
+
+    private final String getterName;
+    private final Class<?>[] parameterTypes;
+    private final ClassValue<MethodHandle> getters = new ClassValue<MethodHandle>()
+    {
+        @Override
+        protected MethodHandle computeValue(Class<?> type)
+        {
+            return findGetter(type);
+        }
+    };
+
+    /**
+     * @param getterName method name of the getter, i.e. "getXY".
+     */
+    PropertyAccessor(String getterName)
+    {
+        this.getterName = getterName;
+        this.parameterTypes = new Class<?>[0];
+    }
+
+    /**
+     * @param methodName    name of a method with one parameter
+     * @param parameterType the type of the parameter
+     */
+    PropertyAccessor(String methodName, Class<?> parameterType)
+    {
+        this.getterName = methodName;
+        this.parameterTypes = new Class<?>[] { parameterType };
+    }
+
+    /**
+     * @return the value of the property of the given object
+     */
+    @SuppressWarnings("unchecked")
+    T get(Object obj)
+    {
+        MethodHandle getter = getMethod(obj);
+        try
+        {
+            return (T) (Object) getter.invokeExact(obj);
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the result of calling the method with the given argument on the
+     * object
+     */
+    @SuppressWarnings("unchecked")
+    T invoke(Object obj, Object argument)
+    {
+        MethodHandle method = getMethod(obj);
+        try
+        {
+            return (T) (Object) method.invokeExact(obj, argument);
+        }
+        catch (Error e)
+        {
+            throw e;
+        }
+        catch (Throwable e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private MethodHandle getMethod(Object obj)
+    {
+        MethodHandle method = getters.get(obj.getClass());
+        if (method == null)
+            throw new NullPointerException("Method " + getterName + " not found!");
+        return method;
+    }
+
+    private MethodHandle findGetter(Class<?> type)
+    {
+        Class<?> c = type;
+        while (c != null)
+        {
+            try
+            {
+                Method m = c.getMethod(getterName, parameterTypes);
+                return MethodHandles.publicLookup().unreflect(m)
+                        .asType(parameterTypes.length == 0 ? GETTER_TYPE : METHOD_TYPE);
+            }
+            catch (NoSuchMethodException ignored)
+            {
+            }
+            catch (IllegalAccessException ignored)
+            {
+            }
+            c = c.getSuperclass();
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link Class#getSimpleName()}, but cached, as that is computed on each
+     * call on older JDKs.
+     */
+    static String simpleName(Class<?> type)
+    {
+        return SIMPLE_NAMES.get(type);
+    }
+}
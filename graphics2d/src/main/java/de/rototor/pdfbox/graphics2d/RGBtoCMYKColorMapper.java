@@ -1,6 +1,5 @@
 package de.rototor.pdfbox.graphics2d;
 
-import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
@@ -10,7 +9,6 @@ import java.awt.*;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
 import java.io.IOException;
-import java.io.OutputStream;
 
 /**
  * Usage:
@@ -24,27 +22,89 @@ import java.io.OutputStream;
  * Where ICC_Profile is an instance of java.awt.color.ICC_Profile that supports
  * a CMYK colorspace. For testing purposes, we're using ISOcoated_v2_300_bas.icc
  * which ships with PDFBox.
+ * <p>
+ * By default every color is converted through the color management module. With
+ * {@link #setLookupTableSize(int)} the colors are instead interpolated in a
+ * precomputed grid, which is much faster for graphics using many colors, e.g.
+ * charts and gradients.
  */
 public class RGBtoCMYKColorMapper extends PdfBoxGraphics2DColorMapper
 {
+    /**
+     * A grid size giving a typical interpolation error well below one 8 bit step for
+     * common press profiles. Only near the kinks of the black generation the error
+     * can reach a few steps.
+     */
+    public static final int DEFAULT_LOOKUP_TABLE_SIZE = 33;
+
+    /**
+     * Number of memo slots for recently mapped colors, must be a power of two.
+     */
+    private static final int MEMO_SIZE = 4096;
+
     private final ICC_ColorSpace icc_colorspace;
     private final PDICCBased pdProfile;
+    /**
+     * Null to convert every color exactly. The grid size and the grid are published
+     * together, so a concurrent {@link #setLookupTableSize(int)} can not mix them.
+     */
+    private volatile LookupTable lookupTable;
 
     public RGBtoCMYKColorMapper(ICC_Profile icc_profile, PDDocument document) throws IOException
     {
         this.icc_colorspace = new ICC_ColorSpace(icc_profile);
-        this.pdProfile = new PDICCBased(document);
-        OutputStream outputStream = pdProfile.getPDStream()
-                .createOutputStream(COSName.FLATE_DECODE);
-        outputStream.write(icc_profile.getData());
-        outputStream.close();
-        pdProfile.getPDStream().getCOSObject().setInt(COSName.N, 4);
-        pdProfile.getPDStream().getCOSObject().setItem(COSName.ALTERNATE, COSName.DEVICECMYK);
+        this.pdProfile = PdfBoxGraphics2DColorSpaceRegistry.getInstance(document)
+                .getICCBased(icc_profile);
+    }
+
+    /**
+     * @return the CMYK color space the colors are mapped to.
+     */
+    public ICC_ColorSpace getColorSpace()
+    {
+        return icc_colorspace;
+    }
+
+    /**
+     * @return the PDF color space of the mapped colors. It can be shared by other
+     * objects using the same profile in the document, e.g. by
+     * {@link PdfBoxGraphics2DCMYKImageEncoder}.
+     */
+    public PDICCBased getPDProfile()
+    {
+        return pdProfile;
+    }
+
+    /**
+     * Interpolate the colors in a precomputed grid of the given size per RGB
+     * component, instead of converting each of them through the color management
+     * module. The grid is computed on the first use. The interpolated colors deviate
+     * slightly from the exact conversion, the smaller the grid the more.
+     *
+     * @param gridSize the grid points per component, e.g. 17 or
+     *                 {@link #DEFAULT_LOOKUP_TABLE_SIZE}, or 0 to convert every color
+     *                 exactly (the default).
+     */
+    public void setLookupTableSize(int gridSize)
+    {
+        if (gridSize != 0 && (gridSize < 2 || gridSize > 256))
+            throw new IllegalArgumentException("Invalid grid size " + gridSize);
+        lookupTable = gridSize == 0 ? null : new LookupTable(gridSize);
+    }
+
+    public int getLookupTableSize()
+    {
+        LookupTable lookupTable = this.lookupTable;
+        return lookupTable == null ? 0 : lookupTable.gridSize;
     }
 
     @Override
     public PDColor mapColor(Color rgbColor, IColorMapperEnv env)
     {
+        LookupTable lookupTable = this.lookupTable;
+        if (lookupTable != null)
+            return new PDColor(lookup(lookupTable, rgbColor.getRGB() & 0xFFFFFF).clone(),
+                    pdProfile);
         int r = rgbColor.getRed();
         int g = rgbColor.getGreen();
         int b = rgbColor.getBlue();
@@ -54,6 +114,187 @@ public class RGBtoCMYKColorMapper extends PdfBoxGraphics2DColorMapper
         return new PDColor(cmykFloats, pdProfile);
     }
 
+    /**
+     * @return the CMYK components of the RGB color, which must not be modified.
+     */
+    private float[] lookup(LookupTable lookupTable, int rgb)
+    {
+        float[] values = lookupTable.values;
+        if (values == null)
+        {
+            synchronized (lookupTable)
+            {
+                if (lookupTable.values == null)
+                    lookupTable.values = buildGrid(lookupTable.gridSize);
+                values = lookupTable.values;
+            }
+        }
+
+        int slot = (rgb * 0x9E3779B1) >>> (32 - Integer.numberOfTrailingZeros(MEMO_SIZE));
+        MemoEntry entry = lookupTable.memo[slot];
+        if (entry != null && entry.rgb == rgb)
+            return entry.cmyk;
+        float[] cmyk = interpolate(lookupTable.gridSize, values, rgb);
+        /*
+         * The entries are immutable, so this unsynchronized write is safe
+         */
+        lookupTable.memo[slot] = new MemoEntry(rgb, cmyk);
+        return cmyk;
+    }
+
+    private float[] buildGrid(int gridSize)
+    {
+        float[] values = new float[gridSize * gridSize * gridSize * 4];
+        float[] rgb = new float[3];
+        int i = 0;
+        for (int r = 0; r < gridSize; r++)
+        {
+            for (int g = 0; g < gridSize; g++)
+            {
+                for (int b = 0; b < gridSize; b++)
+                {
+                    rgb[0] = (float) r / (gridSize - 1);
+                    rgb[1] = (float) g / (gridSize - 1);
+                    rgb[2] = (float) b / (gridSize - 1);
+                    float[] cmyk = icc_colorspace.fromRGB(rgb);
+                    System.arraycopy(cmyk, 0, values, i, 4);
+                    i += 4;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Tetrahedral interpolation: the grid cell of the color is split into six
+     * tetrahedra along its gray diagonal, and the color is interpolated between the
+     * four corners of the tetrahedron it lies in.
+     */
+    private static float[] interpolate(int gridSize, float[] values, int rgb)
+    {
+        int steps = gridSize - 1;
+        int r = (rgb >> 16) & 0xFF;
+        int g = (rgb >> 8) & 0xFF;
+        int b = rgb & 0xFF;
+        int ri = Math.min(r * steps / 255, steps - 1);
+        int gi = Math.min(g * steps / 255, steps - 1);
+        int bi = Math.min(b * steps / 255, steps - 1);
+        float fr = r * steps / 255f - ri;
+        float fg = g * steps / 255f - gi;
+        float fb = b * steps / 255f - bi;
+
+        int strideR = gridSize * gridSize * 4;
+        int strideG = gridSize * 4;
+        int strideB = 4;
+        int base = ri * strideR + gi * strideG + bi * strideB;
+
+        /*
+         * Walk from the black corner of the cell to the white corner, along the axes
+         * in the order of their fractions.
+         */
+        int first;
+        int second;
+        float f1;
+        float f2;
+        float f3;
+        if (fr >= fg)
+        {
+            if (fg >= fb)
+            {
+                first = strideR;
+                second = strideR + strideG;
+                f1 = fr;
+                f2 = fg;
+                f3 = fb;
+            }
+            else if (fr >= fb)
+            {
+                first = strideR;
+                second = strideR + strideB;
+                f1 = fr;
+                f2 = fb;
+                f3 = fg;
+            }
+            else
+            {
+                first = strideB;
+                second = strideB + strideR;
+                f1 = fb;
+                f2 = fr;
+                f3 = fg;
+            }
+        }
+        else
+        {
+            if (fr >= fb)
+            {
+                first = strideG;
+                second = strideG + strideR;
+                f1 = fg;
+                f2 = fr;
+                f3 = fb;
+            }
+            else if (fg >= fb)
+            {
+                first = strideG;
+                second = strideG + strideB;
+                f1 = fg;
+                f2 = fb;
+                f3 = fr;
+            }
+            else
+            {
+                first = strideB;
+                second = strideB + strideG;
+                f1 = fb;
+                f2 = fg;
+                f3 = fr;
+            }
+        }
+        int last = strideR + strideG + strideB;
+
+        float[] cmyk = new float[4];
+        for (int k = 0; k < 4; k++)
+        {
+            float c0 = values[base + k];
+            float c1 = values[base + first + k];
+            float c2 = values[base + second + k];
+            float c3 = values[base + last + k];
+            cmyk[k] = c0 + f1 * (c1 - c0) + f2 * (c2 - c1) + f3 * (c3 - c2);
+        }
+        return cmyk;
+    }
+
+    private static final class LookupTable
+    {
+        private final int gridSize;
+        /**
+         * The grid, computed on the first use
+         */
+        private volatile float[] values;
+        /**
+         * The recently mapped colors, by a hash of their RGB value
+         */
+        private final MemoEntry[] memo = new MemoEntry[MEMO_SIZE];
+
+        LookupTable(int gridSize)
+        {
+            this.gridSize = gridSize;
+        }
+    }
+
+    private static final class MemoEntry
+    {
+        private final int rgb;
+        private final float[] cmyk;
+
+        MemoEntry(int rgb, float[] cmyk)
+        {
+            this.rgb = rgb;
+            this.cmyk = cmyk;
+        }
+    }
+
     private static float[] rgbIntToFloat(int[] rgbInts)
     {
         // the input ints are in the range 0 to 255
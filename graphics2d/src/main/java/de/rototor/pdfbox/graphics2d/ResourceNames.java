@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.COSObjectable;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.pattern.PDAbstractPattern;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShading;
+import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
+import org.apache.pdfbox.util.Matrix;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registers the resources of an XForm in constant time.
+ * <p>
+ * PDResources.add() searches the resources of the category for the object and
+ * for a free name, both linearly. With tens of thousands of ExtGStates,
+ * shadings, images or patterns in one XForm this gets quadratic. We instead
+ * remember the name of each registered object, and count up the names.
+ * <p>
+ * As PDPageContentStream only accepts the objects and not their names, the
+ * operators using the resources are written here. This needs appendCOSName()
+ * and appendRawCommands(), which are deprecated but the only way to write an
+ * operator with a resource name we chose ourself.
+ */
+final class ResourceNames
+{
+    private final COSDictionary resources;
+    private final Map<COSName, Category> categories = new HashMap<COSName, Category>();
+    /**
+     * The names of nested resources, e.g. of tiling patterns, by their dictionary
+     */
+    private Map<COSDictionary, ResourceNames> nestedNames;
+
+    ResourceNames(PDResources resources)
+    {
+        this.resources = resources.getCOSObject();
+    }
+
+    /**
+     * @return true if these are the names of the given resources
+     */
+    boolean isFor(PDResources resources)
+    {
+        return resources.getCOSObject() == this.resources;
+    }
+
+    /**
+     * @return these names if they are for the given resources, otherwise the names
+     * of the given resources, which are kept for the next call.
+     */
+    ResourceNames forResources(PDResources resources)
+    {
+        if (isFor(resources))
+            return this;
+        if (nestedNames == null)
+            nestedNames = new IdentityHashMap<COSDictionary, ResourceNames>();
+        ResourceNames names = nestedNames.get(resources.getCOSObject());
+        if (names == null)
+        {
+            names = new ResourceNames(resources);
+            nestedNames.put(resources.getCOSObject(), names);
+        }
+        return names;
+    }
+
+    COSName add(PDExtendedGraphicsState extendedGraphicsState)
+    {
+        return add(COSName.EXT_G_STATE, "gs", extendedGraphicsState);
+    }
+
+    COSName add(PDShading shading)
+    {
+        return add(COSName.SHADING, "sh", shading);
+    }
+
+    COSName add(PDAbstractPattern pattern)
+    {
+        return add(COSName.PATTERN, "p", pattern);
+    }
+
+    COSName add(PDImageXObject image)
+    {
+        return add(COSName.XOBJECT, "Im", image);
+    }
+
+    COSName add(PDFormXObject form)
+    {
+        return add(COSName.XOBJECT, "Form", form);
+    }
+
+    /**
+     * Like {@link PDPageContentStream#setGraphicsStateParameters(PDExtendedGraphicsState)}
+     */
+    @SuppressWarnings("deprecation")
+    void setGraphicsStateParameters(PDPageContentStream contentStream,
+            PDExtendedGraphicsState extendedGraphicsState) throws IOException
+    {
+        contentStream.appendCOSName(add(extendedGraphicsState));
+        contentStream.appendRawCommands(" gs\n");
+    }
+
+    /**
+     * Like {@link PDPageContentStream#shadingFill(PDShading)}
+     */
+    @SuppressWarnings("deprecation")
+    void shadingFill(PDPageContentStream contentStream, PDShading shading) throws IOException
+    {
+        contentStream.appendCOSName(add(shading));
+        contentStream.appendRawCommands(" sh\n");
+    }
+
+    /**
+     * Like {@link PDPageContentStream#drawImage(PDImageXObject, float, float, float, float)}
+     */
+    @SuppressWarnings("deprecation")
+    void drawImage(PDPageContentStream contentStream, PDImageXObject image, float x, float y,
+            float width, float height) throws IOException
+    {
+        contentStream.saveGraphicsState();
+        contentStream.transform(new Matrix(width, 0, 0, height, x, y));
+        contentStream.appendCOSName(add(image));
+        contentStream.appendRawCommands(" Do\n");
+        contentStream.restoreGraphicsState();
+    }
+
+    private COSName add(COSName kind, String prefix, COSObjectable object)
+    {
+        Category category = categories.get(kind);
+        if (category == null)
+        {
+            category = new Category(kind);
+            categories.put(kind, category);
+        }
+        COSBase cosObject = object.getCOSObject();
+        COSName name = category.names.get(cosObject);
+        if (name != null)
+            return name;
+        do
+        {
+            name = COSName.getPDFName(prefix + ++category.counter);
+        }
+        while (category.dictionary.containsKey(name));
+        category.dictionary.setItem(name, cosObject);
+        category.names.put(cosObject, name);
+        return name;
+    }
+
+    /**
+     * The resources of one kind, e.g. all ExtGStates
+     */
+    private final class Category
+    {
+        private final COSDictionary dictionary = new IndexedDictionary();
+        private final Map<COSBase, COSName> names = new IdentityHashMap<COSBase, COSName>();
+        private int counter;
+
+        Category(COSName kind)
+        {
+            /*
+             * Take over what has been registered before
+             */
+            COSDictionary existing = resources.getCOSDictionary(kind);
+            if (existing != null)
+            {
+                for (Map.Entry<COSName, COSBase> entry : existing.entrySet())
+                {
+                    COSBase value = entry.getValue();
+                    dictionary.setItem(entry.getKey(), value);
+                    names.put(value, entry.getKey());
+                    if (value instanceof COSObject)
+                        names.put(((COSObject) value).getObject(), entry.getKey());
+                }
+            }
+            resources.setItem(kind, dictionary);
+            counter = dictionary.size();
+        }
+    }
+
+    /**
+     * The COSDictionary of PDFBox 2 searches its entries linearly, this one hashes
+     * them.
+     */
+    private static final class IndexedDictionary extends COSDictionary
+    {
+        IndexedDictionary()
+        {
+            items = new LinkedHashMap<COSName, COSBase>();
+        }
+    }
+}
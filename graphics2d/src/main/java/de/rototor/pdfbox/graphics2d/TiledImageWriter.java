@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+/**
+ * Writes huge {@link RenderedImage}s (e.g. tiled GeoTIFFs or JAI images)
+ * without copying the whole raster. The image is split into horizontal bands,
+ * every band becomes its own image XObject. The pixels of a band are fetched
+ * strip by strip and streamed into the compressed image stream, so that only
+ * one strip is in memory at a time.
+ */
+final class TiledImageWriter
+{
+    /**
+     * Maximum size of one band image. PDF viewers decode an image as a whole, so
+     * we do not want to create gigantic images.
+     */
+    private static final long MAX_BAND_PIXELS = 4096L * 4096L;
+
+    /**
+     * Maximum size of one strip we fetch from the image.
+     */
+    private static final long MAX_STRIP_PIXELS = 1024L * 1024L;
+
+    private TiledImageWriter()
+    {
+    }
+
+    /**
+     * @return the height of the bands the image is split into.
+     */
+    static int getBandHeight(RenderedImage image)
+    {
+        int bandHeight = (int) Math.max(1, Math.min(image.getHeight(),
+                MAX_BAND_PIXELS / Math.max(1, image.getWidth())));
+        int tileHeight = image.getTileHeight();
+        if (tileHeight > 0 && bandHeight > tileHeight)
+        {
+            /*
+             * Align the bands to the tiles, so that no tile is computed twice.
+             */
+            bandHeight -= bandHeight % tileHeight;
+        }
+        return bandHeight;
+    }
+
+    /**
+     * Write a band of the image.
+     *
+     * @param y      the first row of the band, relative to the minY of the image
+     * @param height the count of rows of the band
+     */
+    static PDImageXObject writeBand(PDDocument document, PdfBoxGraphics2DDeflater deflater,
+            RenderedImage image, int y, int height) throws IOException
+    {
+        final StripReader strips = new StripReader(image, y, height);
+        /*
+         * We do not scan the alpha upfront, as that would fetch every strip twice. It is
+         * classified while writing instead.
+         */
+        ImageClassifier.AlphaUsage alphaUsage = image.getColorModel().hasAlpha() ?
+                null :
+                ImageClassifier.AlphaUsage.Opaque;
+
+        ImageRowReader firstReader = strips.getReader(0);
+        final boolean readSamples = firstReader.canReadSamples();
+        int colorComponents = readSamples ? firstReader.getColorComponents() : 3;
+        PDColorSpace colorSpace = colorComponents == 1 ?
+                PDDeviceGray.INSTANCE :
+                PDDeviceRGB.INSTANCE;
+        final int[] argb = readSamples ? null : new int[image.getWidth()];
+        return FlateImageWriter.write(document, deflater, image.getWidth(), height, 8,
+                colorComponents, colorSpace, true, alphaUsage, new FlateImageWriter.RowSource()
+                {
+                    @Override
+                    public void readRow(int y, byte[] color, byte[] alpha)
+                    {
+                        ImageRowReader reader = strips.getReader(y);
+                        int stripRow = y - strips.currentStripY;
+                        if (readSamples)
+                        {
+                            reader.readSamples(stripRow, color, alpha);
+                            return;
+                        }
+                        reader.readARGB(stripRow, argb);
+                        for (int x = 0; x < argb.length; x++)
+                        {
+                            int pixel = argb[x];
+                            color[x * 3] = (byte) (pixel >> 16);
+                            color[x * 3 + 1] = (byte) (pixel >> 8);
+                            color[x * 3 + 2] = (byte) pixel;
+                            alpha[x] = (byte) (pixel >>> 24);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Fetches the strips of a band, and keeps the current one.
+     */
+    private static final class StripReader
+    {
+        private final RenderedImage image;
+        private final int bandY;
+        private final int bandHeight;
+        final int stripHeight;
+        int currentStripY = -1;
+        private ImageRowReader currentReader;
+
+        StripReader(RenderedImage image, int bandY, int bandHeight)
+        {
+            this.image = image;
+            this.bandY = bandY;
+            this.bandHeight = bandHeight;
+            int height = (int) Math.max(1, MAX_STRIP_PIXELS / Math.max(1, image.getWidth()));
+            int tileHeight = image.getTileHeight();
+            if (tileHeight > 0 && height > tileHeight)
+                height -= height % tileHeight;
+            this.stripHeight = Math.min(height, bandHeight);
+        }
+
+        /**
+         * @param y the row in the band
+         * @return the reader for the strip containing the row
+         */
+        ImageRowReader getReader(int y)
+        {
+            int stripY = y - y % stripHeight;
+            if (stripY != currentStripY)
+            {
+                int height = Math.min(stripHeight, bandHeight - stripY);
+                currentReader = ImageRowReader.create(fetchStrip(stripY, height));
+                currentStripY = stripY;
+            }
+            return currentReader;
+        }
+
+        private BufferedImage fetchStrip(int stripY, int height)
+        {
+            Raster raster = image.getData(new Rectangle(image.getMinX(),
+                    image.getMinY() + bandY + stripY, image.getWidth(), height));
+            WritableRaster writableRaster;
+            if (raster instanceof WritableRaster && raster.getWidth() == image.getWidth()
+                    && raster.getHeight() == height)
+            {
+                writableRaster = ((WritableRaster) raster).createWritableTranslatedChild(0, 0);
+            }
+            else
+            {
+                writableRaster = raster.createCompatibleWritableRaster(image.getWidth(), height);
+                writableRaster.setRect(-image.getMinX(), -(image.getMinY() + bandY + stripY),
+                        raster);
+            }
+            ColorModel colorModel = image.getColorModel();
+            return new BufferedImage(colorModel, writableRaster,
+                    colorModel.isAlphaPremultiplied(), null);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class COSStructureTest
+{
+    private static COSDictionary createAlphaState(float alpha)
+    {
+        PDExtendedGraphicsState state = new PDExtendedGraphicsState();
+        state.setNonStrokingAlphaConstant(alpha);
+        state.setStrokingAlphaConstant(alpha);
+        return state.getCOSObject();
+    }
+
+    @Test
+    public void testKeys()
+    {
+        COSDictionary a = createAlphaState(0.5f);
+        COSDictionary b = new COSDictionary();
+        /*
+         * Other order of the entries
+         */
+        b.setItem(COSName.CA_NS, new COSFloat(0.5f));
+        b.setItem(COSName.CA, new COSFloat(0.5f));
+        b.setItem(COSName.TYPE, COSName.EXT_G_STATE);
+        assertEquals(new COSStructure.Key(a), new COSStructure.Key(b));
+        assertEquals(COSStructure.hash(a), COSStructure.hash(b));
+        assertNotEquals(new COSStructure.Key(a), new COSStructure.Key(createAlphaState(0.6f)));
+
+        COSArray nestedA = new COSArray();
+        nestedA.add(a);
+        COSArray nestedB = new COSArray();
+        nestedB.add(b);
+        assertEquals(new COSStructure.Key(nestedA), new COSStructure.Key(nestedB));
+        b.setItem(COSName.SMASK, COSName.NONE);
+        assertNotEquals(new COSStructure.Key(nestedA), new COSStructure.Key(nestedB));
+    }
+
+    @Test
+    public void testAlphaStatesHashApart()
+    {
+        Set<Integer> hashes = new HashSet<Integer>();
+        for (int alpha = 0; alpha < 256; alpha++)
+            hashes.add(COSStructure.hash(createAlphaState(alpha / 255f)));
+        assertEquals(256, hashes.size());
+    }
+}
@@ -0,0 +1,115 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import java.awt.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+
+/**
+ * Compares the single threaded and the parallel Flate compression, and the time
+ * to draw many small lines, whose content stream is written in tiny pieces. This
+ * is not run as part of the tests, start it by hand:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=de.rototor.pdfbox.graphics2d.DeflaterBenchmark
+ * </pre>
+ */
+public class DeflaterBenchmark
+{
+    private static final int DATA_SIZE = 64 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+    private static final int LINES = 200 * 1000;
+
+    private static class CountingOutputStream extends OutputStream
+    {
+        long count;
+
+        @Override
+        public void write(int b)
+        {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            count += len;
+        }
+    }
+
+    private static void run(String name, PdfBoxGraphics2DDeflater deflater, byte[] data)
+            throws IOException
+    {
+        long bestTime = Long.MAX_VALUE;
+        long size = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            CountingOutputStream counter = new CountingOutputStream();
+            long start = System.nanoTime();
+            OutputStream out = deflater.wrap(counter);
+            for (int offset = 0; offset < data.length; offset += 8192)
+                out.write(data, offset, Math.min(8192, data.length - offset));
+            out.close();
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            size = counter.count;
+        }
+        System.out.printf("%-32s %8d ms %12d bytes (%.1f%%)%n", name, bestTime / 1000000, size,
+                size * 100.0 / data.length);
+    }
+
+    private static void drawLines(String name, PdfBoxGraphics2DDeflater deflater)
+            throws IOException
+    {
+        long bestTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            PDDocument document = new PDDocument();
+            long start = System.nanoTime();
+            PdfBoxGraphics2D pdfBoxGraphics2D = deflater == null ?
+                    new PdfBoxGraphics2D(document, 400, 400) :
+                    new PdfBoxGraphics2D(document, new PDRectangle(400, 400), deflater);
+            pdfBoxGraphics2D.setColor(Color.BLACK);
+            pdfBoxGraphics2D.setStroke(new BasicStroke(0.5f));
+            for (int i = 0; i < LINES; i++)
+                pdfBoxGraphics2D.drawLine(i % 400, i % 397, (i * 7) % 400, (i * 13) % 400);
+            pdfBoxGraphics2D.dispose();
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            document.close();
+        }
+        System.out.printf("%-32s %8d ms%n", name, bestTime / 1000000);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        drawLines(LINES + " lines, default", null);
+        drawLines(LINES + " lines, level 1", new PdfBoxGraphics2DDeflater(1, null, 0));
+
+        byte[] data = PdfBoxGraphics2DDeflaterTest.createTestData(DATA_SIZE);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            for (int level : new int[] { 1, Deflater.DEFAULT_COMPRESSION, 9 })
+            {
+                run("level " + level + ", single thread",
+                        new PdfBoxGraphics2DDeflater(level, null, 0), data);
+                for (int chunkSize : new int[] { 128 * 1024, 1024 * 1024 })
+                {
+                    run("level " + level + ", " + threads + " threads, " + chunkSize / 1024
+                                    + " KB",
+                            new PdfBoxGraphics2DDeflater(level, executor, chunkSize), data);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
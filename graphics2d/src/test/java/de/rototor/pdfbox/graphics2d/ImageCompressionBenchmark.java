@@ -0,0 +1,93 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Size versus time of the PNG predictors, compression levels and strategies
+ * for some typical images. This is not run as part of the tests, start it by
+ * hand:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=de.rototor.pdfbox.graphics2d.ImageCompressionBenchmark
+ * </pre>
+ */
+public class ImageCompressionBenchmark
+{
+    private static final int ROUNDS = 5;
+
+    private interface Encoder
+    {
+        PDImageXObject encode(PDDocument document, BufferedImage image) throws IOException;
+    }
+
+    private static void run(String imageName, BufferedImage image, String name, Encoder encoder)
+            throws IOException
+    {
+        long bestTime = Long.MAX_VALUE;
+        long size = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            PDDocument document = new PDDocument();
+            long start = System.nanoTime();
+            PDImageXObject imageXObject = encoder.encode(document, image);
+            bestTime = Math.min(bestTime, System.nanoTime() - start);
+            size = PdfBoxGraphics2DDeflaterTest.encodedSize(imageXObject);
+            document.close();
+        }
+        System.out.printf("%-12s %-36s %6d ms %10d bytes%n", imageName, name,
+                bestTime / 1000000, size);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Map<String, BufferedImage> images = new LinkedHashMap<String, BufferedImage>();
+        images.put("chart", PdfBoxGraphics2DLosslessImageEncoderTest.createChart(1600, 1200));
+        images.put("screenshot", PdfBoxGraphics2DDeflaterTest.createScreenshot(1600, 1200));
+        images.put("photo", PdfBoxGraphics2DLosslessImageEncoderTest.readImage("Italy-P3.jpg"));
+
+        for (Map.Entry<String, BufferedImage> entry : images.entrySet())
+        {
+            run(entry.getKey(), entry.getValue(), "LosslessFactory", new Encoder()
+            {
+                @Override
+                public PDImageXObject encode(PDDocument document, BufferedImage image)
+                        throws IOException
+                {
+                    return LosslessFactory.createFromImage(document, image);
+                }
+            });
+            for (int level : new int[] { 1, Deflater.DEFAULT_COMPRESSION, 9 })
+            {
+                for (int strategy : new int[] { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED })
+                {
+                    for (boolean adaptive : new boolean[] { false, true })
+                    {
+                        final PdfBoxGraphics2DDeflater deflater = new PdfBoxGraphics2DDeflater(
+                                level, null, 0).withStrategy(strategy)
+                                .withAdaptivePredictor(adaptive);
+                        String name = (adaptive ? "adaptive" : "paeth") + ", level " + level
+                                + (strategy == Deflater.FILTERED ? ", filtered" : "");
+                        run(entry.getKey(), entry.getValue(), name, new Encoder()
+                        {
+                            @Override
+                            public PDImageXObject encode(PDDocument document,
+                                    BufferedImage image) throws IOException
+                            {
+                                return FlateImageWriter.write(document, deflater, image);
+                            }
+                        });
+                    }
+                }
+            }
+        }
+    }
+}
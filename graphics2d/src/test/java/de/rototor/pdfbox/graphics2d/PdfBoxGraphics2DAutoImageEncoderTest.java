@@ -0,0 +1,100 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import static de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV;
+import static de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DLosslessImageEncoderTest.readImage;
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DAutoImageEncoderTest extends PdfBoxGraphics2DTestBase
+{
+    @Test
+    public void testClassification() throws IOException
+    {
+        PdfBoxGraphics2DAutoImageEncoder encoder = new PdfBoxGraphics2DAutoImageEncoder();
+        assertTrue(encoder.isPhoto(readImage("Rose-ProPhoto.jpg")));
+        assertTrue(encoder.isPhoto(readImage("Italy-P3.jpg")));
+        assertFalse(encoder.isPhoto(readImage("maskingExample.png")));
+        assertFalse(encoder.isPhoto(readImage("pixeltest.png")));
+        assertFalse(encoder.isPhoto(readImage("16bit-image1.png")));
+
+        BufferedImage chart = new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = chart.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 400, 300);
+        g.setColor(Color.BLUE);
+        g.fillOval(50, 50, 200, 200);
+        g.setColor(Color.BLACK);
+        g.drawString("Some chart text", 20, 20);
+        g.dispose();
+        assertFalse(encoder.isPhoto(chart));
+    }
+
+    @Test
+    public void testJpegWithAlpha() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage photo = readImage("Italy-P3.jpg");
+        BufferedImage withAlpha = new BufferedImage(photo.getWidth(), photo.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = withAlpha.createGraphics();
+        g.drawImage(photo, 0, 0, null);
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, 20, 20);
+        g.dispose();
+
+        PdfBoxGraphics2DAutoImageEncoder encoder = new PdfBoxGraphics2DAutoImageEncoder();
+        PDImageXObject x1 = encoder.encodeImage(document, null, withAlpha, INTERPOLATE_ENV);
+        assertEquals(COSName.DCT_DECODE, x1.getCOSObject().getItem(COSName.FILTER));
+        PDImageXObject smask = x1.getSoftMask();
+        assertNotNull(smask);
+        assertEquals(COSName.FLATE_DECODE, smask.getCOSObject().getItem(COSName.FILTER));
+        assertEquals(0, smask.getImage().getRaster().getSample(5, 5, 0));
+        assertEquals(255, smask.getImage().getRaster().getSample(50, 50, 0));
+        assertSame(x1, encoder.encodeImage(document, null, withAlpha, INTERPOLATE_ENV));
+
+        PDImageXObject x2 = encoder.encodeImage(document, null, photo, INTERPOLATE_ENV);
+        assertEquals(COSName.DCT_DECODE, x2.getCOSObject().getItem(COSName.FILTER));
+        assertNull(x2.getSoftMask());
+        document.close();
+    }
+
+    @Test
+    public void testNoisyGradientIsPhoto()
+    {
+        BufferedImage noise = new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(4711);
+        for (int y = 0; y < 100; y++)
+            for (int x = 0; x < 100; x++)
+                noise.setRGB(x, y, new Color(x * 2 + random.nextInt(8), y * 2 + random.nextInt(8),
+                        128 + random.nextInt(8)).getRGB());
+        assertTrue(new PdfBoxGraphics2DAutoImageEncoder().isPhoto(noise));
+    }
+
+    @Test
+    public void testAutoEncodedDrawing()
+    {
+        exportGraphic("imageenc", "autoencoded", new GraphicsExporter()
+        {
+            @Override
+            public void draw(Graphics2D gfx) throws IOException
+            {
+                if (gfx instanceof PdfBoxGraphics2D)
+                    ((PdfBoxGraphics2D) gfx).setImageEncoder(new PdfBoxGraphics2DAutoImageEncoder());
+                gfx.drawImage(readImage("pixeltest.png"), 70, 50, 100, 50, null);
+                gfx.drawImage(readImage("Rose-ProPhoto.jpg"), 30, 200, 75, 50, null);
+                gfx.drawImage(readImage("Italy-P3.jpg"), 170, 10, 60, 40, null);
+                gfx.drawImage(readImage("16bit-image2.png"), 270, 200, 100, 100, null);
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DCCITTFaxTest
+{
+    /**
+     * Black text and lines on white, like a scanned form
+     */
+    private static BufferedImage createScan(int width, int height, int type)
+    {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SERIF, Font.PLAIN, 14));
+        for (int y = 20; y < height; y += 40)
+        {
+            g.drawString("Name: ____________  Date: " + y + "  Signature:", 10, y);
+            g.drawLine(0, y + 8, width, y + 8);
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Random black and white runs, which exercise all coding modes
+     */
+    private static BufferedImage createRuns(Random random, int width, int height)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++)
+        {
+            if (random.nextInt(4) > 0)
+            {
+                /*
+                 * Shift some edges of the previous row
+                 */
+                for (int x = 1; x < width; x++)
+                {
+                    if (row[x] != row[x - 1] && random.nextInt(3) == 0)
+                        row[x] = row[x - 1];
+                }
+            }
+            else
+            {
+                int x = 0;
+                int color = random.nextBoolean() ? 0 : 0xFFFFFF;
+                while (x < width)
+                {
+                    int run = 1 + random.nextInt(random.nextBoolean() ? 8 : 3000);
+                    for (int i = x; i < Math.min(width, x + run); i++)
+                        row[i] = color;
+                    x += run;
+                    color ^= 0xFFFFFF;
+                }
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    private static void assertSameBilevelPixels(BufferedImage expected, BufferedImage actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++)
+        {
+            for (int x = 0; x < expected.getWidth(); x++)
+            {
+                int rgb = expected.getRGB(x, y);
+                if (rgb >>> 24 == 0)
+                    assertEquals(0, actual.getRGB(x, y) >>> 24);
+                else
+                    assertEquals(rgb, actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testScans() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        for (int type : new int[] { BufferedImage.TYPE_BYTE_BINARY, BufferedImage.TYPE_BYTE_GRAY,
+                BufferedImage.TYPE_INT_RGB })
+        {
+            BufferedImage scan = createScan(850, 400, type);
+            PDImageXObject x = encoder.encodeImage(document, null, scan,
+                    PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+            assertEquals("type " + type, COSName.CCITTFAX_DECODE, x.getCOSObject().getFilters());
+            assertEquals(1, x.getBitsPerComponent());
+            assertEquals("DeviceGray", x.getColorSpace().getName());
+            /*
+             * Much smaller than the packed 1 bit samples
+             */
+            assertTrue(x.getCOSObject().getLength() < (850 + 7) / 8 * 400 / 4);
+            assertSameBilevelPixels(scan, x.getImage());
+        }
+
+        encoder.setCCITTFax(false);
+        PDImageXObject x = encoder.encodeImage(document, null,
+                createScan(100, 100, BufferedImage.TYPE_INT_RGB),
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(COSName.FLATE_DECODE, x.getCOSObject().getFilters());
+        document.close();
+    }
+
+    @Test
+    public void testCodingModes() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        Random random = new Random(4711);
+        for (int width : new int[] { 1, 2, 7, 8, 63, 64, 65, 2559, 2560, 2561, 6000 })
+        {
+            BufferedImage runs = createRuns(random, width, 30);
+            PDImageXObject x = CCITTFaxImageWriter.write(document, ImageRowReader.create(runs),
+                    false);
+            if (x == null)
+            {
+                /*
+                 * Too small to gain anything
+                 */
+                assertTrue(width < 64);
+                continue;
+            }
+            assertSameBilevelPixels(runs, x.getImage());
+        }
+        document.close();
+    }
+
+    @Test
+    public void testSignatureWithMask() throws IOException
+    {
+        BufferedImage signature = new BufferedImage(300, 80, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = signature.createGraphics();
+        g.setColor(Color.BLACK);
+        g.setStroke(new BasicStroke(3));
+        g.drawArc(10, 10, 120, 60, 0, 270);
+        g.drawLine(100, 60, 290, 20);
+        g.setColor(Color.WHITE);
+        g.fillRect(200, 40, 40, 30);
+        g.dispose();
+
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PDImageXObject x = encoder.encodeImage(document, null, signature,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(COSName.CCITTFAX_DECODE, x.getCOSObject().getFilters());
+        assertNull(x.getSoftMask());
+        PDImageXObject mask = new PDImageXObject(
+                new PDStream(x.getCOSObject().getCOSStream(COSName.MASK)), null);
+        assertTrue(mask.isStencil());
+        assertEquals(COSName.CCITTFAX_DECODE, mask.getCOSObject().getFilters());
+        assertSameBilevelPixels(signature, x.getImage());
+        document.close();
+    }
+
+    @Test
+    public void testNoiseFallsBackToFlate() throws IOException
+    {
+        BufferedImage noise = new BufferedImage(200, 100, BufferedImage.TYPE_BYTE_BINARY);
+        Random random = new Random(1);
+        for (int y = 0; y < 100; y++)
+            for (int x = 0; x < 200; x++)
+                noise.setRGB(x, y, random.nextBoolean() ? 0xFFFFFFFF : 0xFF000000);
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PDImageXObject x = encoder.encodeImage(document, null, noise,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(COSName.FLATE_DECODE, x.getCOSObject().getFilters());
+        assertEquals(1, x.getBitsPerComponent());
+        assertSameBilevelPixels(noise, x.getImage());
+        document.close();
+    }
+}
@@ -0,0 +1,131 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DCMYKImageEncoderTest
+{
+    private static RGBtoCMYKColorMapper createColorMapper(PDDocument document) throws IOException
+    {
+        ICC_Profile iccProfile = ICC_Profile.getInstance(PDDocument.class.getResourceAsStream(
+                "/org/apache/pdfbox/resources/icc/ISOcoated_v2_300_bas.icc"));
+        return new RGBtoCMYKColorMapper(iccProfile, document);
+    }
+
+    @Test
+    public void testConvertToMapperProfile() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        RGBtoCMYKColorMapper colorMapper = createColorMapper(document);
+        PdfBoxGraphics2DCMYKImageEncoder encoder = new PdfBoxGraphics2DCMYKImageEncoder(
+                colorMapper);
+
+        /*
+         * Large enough to be converted in several bands
+         */
+        BufferedImage image = new BufferedImage(400, 300, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, (y < 10 ? 0x80000000 : 0xFF000000) | x * 0x10000 / 400 * 0x100
+                        | y * 255 / 300);
+        PDImageXObject x = encoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(4, x.getColorSpace().getNumberOfComponents());
+        assertSame(colorMapper.getPDProfile().getPDStream().getCOSObject(),
+                x.getCOSObject().getCOSArray(COSName.COLORSPACE).getObject(1));
+        assertNotNull(x.getSoftMask());
+        assertSame(x, encoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV));
+        assertEquals(1, encoder.getImageCache().getHitCount());
+
+        /*
+         * The converted pixels match the mapped vector colors
+         */
+        byte[] samples = IOUtils.toByteArray(x.createInputStream());
+        for (int[] point : new int[][] { { 0, 150 }, { 200, 100 }, { 399, 299 }, { 123, 45 } })
+        {
+            PDColor mapped = colorMapper.mapColor(new Color(image.getRGB(point[0], point[1])),
+                    null);
+            int offset = (point[1] * image.getWidth() + point[0]) * 4;
+            for (int i = 0; i < 4; i++)
+                assertEquals(mapped.getComponents()[i] * 255, samples[offset + i] & 0xFF, 1);
+        }
+        document.close();
+    }
+
+    @Test
+    public void testConvertInWindows() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        RGBtoCMYKColorMapper colorMapper = createColorMapper(document);
+        PdfBoxGraphics2DLosslessImageEncoder losslessEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PdfBoxGraphics2DCMYKImageEncoder encoder = new PdfBoxGraphics2DCMYKImageEncoder(
+                colorMapper, losslessEncoder);
+        assertSame(losslessEncoder.getImageCache(), encoder.getImageCache());
+
+        /*
+         * Many windows of rows, each converted in parallel
+         */
+        int width = 2000;
+        int height = Runtime.getRuntime().availableProcessors() * 100 + 77;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.setRGB(x, y, (x * 7 & 0xFF) << 16 | (y * 3 & 0xFF) << 8 | (x + y) & 0xFF);
+        PDImageXObject x = encoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertNull(x.getSoftMask());
+
+        BufferedImage expected = new BufferedImage(width, height,
+                BufferedImage.TYPE_3BYTE_BGR);
+        expected.getGraphics().drawImage(image, 0, 0, null);
+        WritableRaster cmyk = Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE, width, height,
+                4, null);
+        new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                colorMapper.getColorSpace(), null).filter(expected.getRaster(), cmyk);
+        assertArrayEquals(((DataBufferByte) cmyk.getDataBuffer()).getData(),
+                IOUtils.toByteArray(x.createInputStream()));
+
+        /*
+         * The lossless encoder does not see the converted image
+         */
+        PDImageXObject lossless = losslessEncoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertNotSame(x, lossless);
+        assertEquals(3, lossless.getColorSpace().getNumberOfComponents());
+        document.close();
+    }
+
+    @Test
+    public void testGrayImagesAreDelegated() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DCMYKImageEncoder encoder = new PdfBoxGraphics2DCMYKImageEncoder(
+                createColorMapper(document));
+        BufferedImage image = new BufferedImage(50, 50, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < 50; y++)
+            for (int x = 0; x < 50; x++)
+                image.getRaster().setSample(x, y, 0, x * 5);
+        PDImageXObject x = encoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(1, x.getColorSpace().getNumberOfComponents());
+        document.close();
+    }
+}
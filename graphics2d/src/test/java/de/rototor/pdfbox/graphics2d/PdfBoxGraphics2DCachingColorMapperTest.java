@@ -0,0 +1,119 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.junit.Test;
+
+import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DCachingColorMapperTest
+{
+    /**
+     * Records the colors it maps
+     */
+    private static class RecordingColorMapper extends PdfBoxGraphics2DColorMapper
+    {
+        final List<Color> mapped = new ArrayList<Color>();
+
+        @Override
+        public PDColor mapColor(Color color, IColorMapperEnv env)
+        {
+            mapped.add(color);
+            return super.mapColor(color, env);
+        }
+    }
+
+    @Test
+    public void testRemembersColors()
+    {
+        RecordingColorMapper recording = new RecordingColorMapper();
+        PdfBoxGraphics2DCachingColorMapper colorMapper = new PdfBoxGraphics2DCachingColorMapper(
+                recording);
+
+        PDColor red = colorMapper.mapColor(new Color(255, 0, 0), null);
+        assertSame(red, colorMapper.mapColor(Color.RED, null));
+        assertNotSame(red, colorMapper.mapColor(new Color(255, 0, 0, 128), null));
+        assertEquals(2, recording.mapped.size());
+        assertEquals(1, colorMapper.getHitCount());
+        assertEquals(2, colorMapper.getMissCount());
+
+        /*
+         * Special colors only match themselves, not other colors with the same RGB
+         */
+        PdfBoxGraphics2DColor cyan = new PdfBoxGraphics2DColor(
+                new PDColor(new float[] { 1, 0, 0, 0 }, PDDeviceCMYK.INSTANCE));
+        PdfBoxGraphics2DColor sameCyan = new PdfBoxGraphics2DColor(
+                new PDColor(new float[] { 1, 0, 0, 0 }, PDDeviceCMYK.INSTANCE));
+        PDColor pdCyan = colorMapper.mapColor(cyan, null);
+        assertSame(PDDeviceCMYK.INSTANCE, pdCyan.getColorSpace());
+        assertSame(pdCyan, colorMapper.mapColor(cyan, null));
+        colorMapper.mapColor(sameCyan, null);
+        assertEquals(4, recording.mapped.size());
+
+        colorMapper.setMaxEntries(1);
+        colorMapper.mapColor(Color.GREEN, null);
+        colorMapper.mapColor(Color.RED, null);
+        assertEquals(6, recording.mapped.size());
+
+        colorMapper.clear();
+        colorMapper.mapColor(cyan, null);
+        assertEquals(7, recording.mapped.size());
+        assertNotNull(colorMapper.mapColor(null, null));
+    }
+
+    @Test
+    public void testForgetsLeastRecentlyUsed()
+    {
+        RecordingColorMapper recording = new RecordingColorMapper();
+        PdfBoxGraphics2DCachingColorMapper colorMapper = new PdfBoxGraphics2DCachingColorMapper(
+                recording);
+        colorMapper.setMaxEntries(2);
+        colorMapper.mapColor(Color.RED, null);
+        colorMapper.mapColor(Color.GREEN, null);
+        colorMapper.mapColor(Color.RED, null);
+        colorMapper.mapColor(Color.BLUE, null);
+        assertEquals(3, recording.mapped.size());
+
+        /*
+         * Green was used least recently, so it was forgotten
+         */
+        colorMapper.mapColor(Color.RED, null);
+        assertEquals(3, recording.mapped.size());
+        colorMapper.mapColor(Color.GREEN, null);
+        assertEquals(4, recording.mapped.size());
+        assertEquals(2, colorMapper.getHitCount());
+        assertEquals(4, colorMapper.getMissCount());
+
+        colorMapper.setMaxEntries(1);
+        colorMapper.mapColor(Color.GREEN, null);
+        colorMapper.mapColor(Color.RED, null);
+        assertEquals(5, recording.mapped.size());
+    }
+
+    @Test
+    public void testGradientMapsStopsOnce() throws IOException
+    {
+        RecordingColorMapper recording = new RecordingColorMapper();
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 400, 400);
+        pdfBoxGraphics2D.setColorMapper(new PdfBoxGraphics2DCachingColorMapper(recording));
+        Color[] colors = { Color.RED, Color.GREEN, Color.BLUE, Color.GREEN, Color.RED };
+        pdfBoxGraphics2D.setPaint(new LinearGradientPaint(0, 0, 400, 0,
+                new float[] { 0f, 0.25f, 0.5f, 0.75f, 1f }, colors));
+        pdfBoxGraphics2D.fillRect(0, 0, 400, 200);
+        pdfBoxGraphics2D.fillRect(0, 200, 400, 200);
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * Each distinct color is only mapped once for both gradients
+         */
+        assertEquals(3, recording.mapped.size());
+        document.close();
+    }
+}
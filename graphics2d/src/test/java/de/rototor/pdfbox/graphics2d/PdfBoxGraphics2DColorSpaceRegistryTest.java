@@ -0,0 +1,164 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.function.PDFunction;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.color.PDSeparation;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ICC_Profile;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DColorSpaceRegistryTest
+{
+    private static PDSeparation createSeparation(String colorant, float magenta)
+            throws IOException
+    {
+        PDSeparation separation = new PDSeparation();
+        separation.setAlternateColorSpace(PDDeviceCMYK.INSTANCE);
+        separation.setColorantName(colorant);
+        COSDictionary function = new COSDictionary();
+        function.setInt(COSName.FUNCTION_TYPE, 2);
+        COSArray domain = new COSArray();
+        domain.add(COSInteger.ZERO);
+        domain.add(COSInteger.ONE);
+        function.setItem(COSName.DOMAIN, domain);
+        COSArray c0 = new COSArray();
+        for (int i = 0; i < 4; i++)
+            c0.add(new COSFloat(0));
+        function.setItem(COSName.C0, c0);
+        COSArray c1 = new COSArray();
+        c1.add(new COSFloat(0));
+        c1.add(new COSFloat(magenta));
+        c1.add(new COSFloat(0));
+        c1.add(new COSFloat(0));
+        function.setItem(COSName.C1, c1);
+        function.setInt(COSName.N, 1);
+        separation.setTintTransform(PDFunction.create(function));
+        return separation;
+    }
+
+    @Test
+    public void testSharedProfiles() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        ICC_Profile iccProfile = ICC_Profile.getInstance(PDDocument.class.getResourceAsStream(
+                "/org/apache/pdfbox/resources/icc/ISOcoated_v2_300_bas.icc"));
+        RGBtoCMYKColorMapper colorMapper = new RGBtoCMYKColorMapper(iccProfile, document);
+        PDICCBased pdProfile = colorMapper.getPDProfile();
+        assertEquals(4, pdProfile.getNumberOfComponents());
+        COSStream stream = pdProfile.getPDStream().getCOSObject();
+        assertEquals(COSName.DEVICECMYK, stream.getItem(COSName.ALTERNATE));
+
+        /*
+         * The same profile, also when given as another instance or as bytes
+         */
+        assertSame(pdProfile, new RGBtoCMYKColorMapper(iccProfile, document).getPDProfile());
+        PdfBoxGraphics2DColorSpaceRegistry registry = PdfBoxGraphics2DColorSpaceRegistry
+                .getInstance(document);
+        assertSame(pdProfile, registry.getICCBased(ICC_Profile.getInstance(iccProfile.getData())));
+        assertSame(pdProfile, registry.getICCBased(iccProfile.getData(), 4));
+
+        /*
+         * Other documents get their own profile
+         */
+        PDDocument otherDocument = new PDDocument();
+        assertNotSame(pdProfile,
+                new RGBtoCMYKColorMapper(iccProfile, otherDocument).getPDProfile());
+        otherDocument.close();
+        document.close();
+    }
+
+    @Test
+    public void testSharedSeparations() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DColorSpaceRegistry registry = PdfBoxGraphics2DColorSpaceRegistry
+                .getInstance(document);
+        PDSeparation gold = createSeparation("Gold", 0.3f);
+        assertSame(gold, registry.register(gold));
+        assertSame(gold, registry.register(createSeparation("Gold", 0.3f)));
+        assertNotSame(gold, registry.register(createSeparation("Gold", 0.4f)));
+        assertNotSame(gold, registry.register(createSeparation("Silver", 0.3f)));
+        assertSame(PDDeviceRGB.INSTANCE, registry.register(PDDeviceRGB.INSTANCE));
+
+        /*
+         * Colors with separations created for each color end up in one color space
+         */
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        for (int i = 0; i < 10; i++)
+        {
+            pdfBoxGraphics2D.setColor(new PdfBoxGraphics2DColor(
+                    new PDColor(new float[] { i / 10f }, createSeparation("Gold", 0.3f))));
+            pdfBoxGraphics2D.fillRect(i * 10, 0, 10, 100);
+        }
+        pdfBoxGraphics2D.dispose();
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        int colorSpaces = 0;
+        for (COSName name : resources.getColorSpaceNames())
+        {
+            assertSame(gold.getCOSObject(), resources.getColorSpace(name).getCOSObject());
+            colorSpaces++;
+        }
+        assertEquals(1, colorSpaces);
+        document.close();
+    }
+
+    @Test
+    public void testNewSeparationForEveryColor() throws IOException, InterruptedException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DColorSpaceRegistry registry = PdfBoxGraphics2DColorSpaceRegistry
+                .getInstance(document);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        pdfBoxGraphics2D.setColorMapper(new PdfBoxGraphics2DColorMapper()
+        {
+            @Override
+            public PDColor mapColor(Color color, IColorMapperEnv env)
+            {
+                try
+                {
+                    return new PDColor(new float[] { color.getRed() / 255f },
+                            createSeparation("Gold", 0.3f));
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        for (int i = 0; i < 10000; i++)
+        {
+            pdfBoxGraphics2D.setColor(new Color(i % 256, 0, 0));
+            pdfBoxGraphics2D.fillRect(i % 100, 0, 1, 100);
+        }
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * Only the first separation is digested, the others are equal by structure
+         */
+        assertEquals(1, registry.getDigestCount());
+        for (int i = 0; i < 100 && registry.size() > 1; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals("The copies are not kept", 1, registry.size());
+        assertEquals(1, pdfBoxGraphics2D.getXFormObject().getResources().getCOSObject()
+                .getCOSDictionary(COSName.COLORSPACE).size());
+        document.close();
+    }
+}
@@ -0,0 +1,323 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.filter.Filter;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DDeflaterTest
+{
+    /**
+     * Somewhat compressible data, like the samples of a chart.
+     */
+    static byte[] createTestData(int size)
+    {
+        byte[] data = new byte[size];
+        Random random = new Random(42);
+        int i = 0;
+        while (i < size)
+        {
+            int run = Math.min(size - i, 1 + random.nextInt(200));
+            byte value = (byte) random.nextInt(16);
+            if (random.nextBoolean())
+            {
+                Arrays.fill(data, i, i + run, value);
+            }
+            else
+            {
+                for (int j = 0; j < run; j++)
+                    data[i + j] = (byte) random.nextInt(256);
+            }
+            i += run;
+        }
+        return data;
+    }
+
+    private static byte[] deflate(PdfBoxGraphics2DDeflater deflater, byte[] data)
+            throws IOException
+    {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = deflater.wrap(compressed);
+        /*
+         * Write in odd pieces, so that they do not match the chunks
+         */
+        int offset = 0;
+        int piece = 1;
+        while (offset < data.length)
+        {
+            int count = Math.min(data.length - offset, piece);
+            out.write(data, offset, count);
+            offset += count;
+            piece = piece * 3 + 7;
+        }
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException
+    {
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed));
+        try
+        {
+            return IOUtils.toByteArray(in);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            for (int level : new int[] { Deflater.DEFAULT_COMPRESSION, 0, 1, 5, 9 })
+            {
+                PdfBoxGraphics2DDeflater deflater = new PdfBoxGraphics2DDeflater(level,
+                        executor, 64 * 1024);
+                for (int size : new int[] { 0, 1, 1000, 64 * 1024, 1000 * 1000 })
+                {
+                    byte[] data = createTestData(size);
+                    byte[] compressed = deflate(deflater, data);
+                    assertArrayEquals(data, inflate(compressed));
+                    if (level == 9 && size == 1000 * 1000)
+                    {
+                        /*
+                         * Only a bit bigger than a single threaded deflate
+                         */
+                        byte[] single = deflate(new PdfBoxGraphics2DDeflater(9, null, 0), data);
+                        assertTrue(compressed.length < single.length * 1.02);
+                    }
+                }
+            }
+
+            /*
+             * PDFBox decodes the stream
+             */
+            PDDocument document = new PDDocument();
+            COSStream stream = document.getDocument().createCOSStream();
+            byte[] data = createTestData(500 * 1000);
+            OutputStream out = new PdfBoxGraphics2DDeflater(executor).createOutputStream(stream);
+            out.write(data);
+            out.close();
+            assertEquals(COSName.FLATE_DECODE, stream.getFilters());
+            InputStream in = stream.createInputStream();
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+            in.close();
+            document.close();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSmallWrites() throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            byte[] data = createTestData(300 * 1000);
+            for (PdfBoxGraphics2DDeflater deflater : new PdfBoxGraphics2DDeflater[] {
+                    PdfBoxGraphics2DDeflater.DEFAULT,
+                    new PdfBoxGraphics2DDeflater(1, executor, 64 * 1024) })
+            {
+                /*
+                 * Like the content stream, which is written operand by operand
+                 */
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                OutputStream out = deflater.wrap(compressed);
+                for (int i = 0; i < data.length; i++)
+                {
+                    if (i % 3 == 0)
+                        out.write(data[i]);
+                    else
+                        out.write(data, i, 1);
+                }
+                out.close();
+                assertArrayEquals(data, inflate(compressed.toByteArray()));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel()
+    {
+        new PdfBoxGraphics2DDeflater(10, null, 0);
+    }
+
+    @Test
+    public void testPDFBoxCompressionLevel() throws IOException
+    {
+        byte[] data = createTestData(200 * 1024);
+        String previous = System.getProperty(Filter.SYSPROP_DEFLATELEVEL);
+        try
+        {
+            System.setProperty(Filter.SYSPROP_DEFLATELEVEL, "0");
+            assertEquals(0, PdfBoxGraphics2DDeflater.DEFAULT.getCompressionLevel());
+            byte[] stored = deflate(PdfBoxGraphics2DDeflater.DEFAULT, data);
+            assertTrue(stored.length > data.length);
+            assertArrayEquals(data, inflate(stored));
+
+            System.setProperty(Filter.SYSPROP_DEFLATELEVEL, "9");
+            assertEquals(9, PdfBoxGraphics2DDeflater.DEFAULT.getCompressionLevel());
+            assertTrue(deflate(PdfBoxGraphics2DDeflater.DEFAULT, data).length < data.length);
+
+            /*
+             * An explicit level is kept
+             */
+            assertEquals(3, new PdfBoxGraphics2DDeflater(3, null, 0).getCompressionLevel());
+        }
+        finally
+        {
+            if (previous == null)
+                System.clearProperty(Filter.SYSPROP_DEFLATELEVEL);
+            else
+                System.setProperty(Filter.SYSPROP_DEFLATELEVEL, previous);
+        }
+    }
+
+    /**
+     * Text on a gradient, like a screenshot of an application.
+     */
+    static BufferedImage createScreenshot(int width, int height)
+    {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.setPaint(new GradientPaint(0, 0, new Color(0xE8EEF7), 0, height, Color.WHITE));
+        g.fillRect(0, 0, width, height);
+        g.setColor(new Color(0x2B579A));
+        g.fillRect(0, 0, width, 40);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 13));
+        for (int y = 60; y < height; y += 18)
+        {
+            g.setColor(y % 36 == 0 ? Color.DARK_GRAY : new Color(0x1F6FB2));
+            g.drawString("Row " + y + ": The quick brown fox jumps over the lazy dog 0123456789",
+                    20, y);
+        }
+        g.dispose();
+        return image;
+    }
+
+    static long encodedSize(PDImageXObject imageXObject)
+    {
+        long size = imageXObject.getCOSObject().getLength();
+        COSBase mask = imageXObject.getCOSObject().getDictionaryObject(COSName.SMASK);
+        if (mask instanceof COSStream)
+            size += ((COSStream) mask).getLength();
+        return size;
+    }
+
+    @Test
+    public void testPredictorsAndStrategies() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage chart = PdfBoxGraphics2DLosslessImageEncoderTest.createChart(400, 300);
+        BufferedImage photo = PdfBoxGraphics2DLosslessImageEncoderTest.readImage(
+                "Italy-P3.jpg");
+        BufferedImage screenshot = createScreenshot(400, 300);
+        for (BufferedImage image : Arrays.asList(chart, photo, screenshot))
+        {
+            PDImageXObject paeth = FlateImageWriter.write(document,
+                    PdfBoxGraphics2DDeflater.DEFAULT, image);
+            PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(image, paeth.getImage());
+            for (int strategy : new int[] { Deflater.DEFAULT_STRATEGY, Deflater.FILTERED,
+                    Deflater.HUFFMAN_ONLY })
+            {
+                PdfBoxGraphics2DDeflater deflater = new PdfBoxGraphics2DDeflater(1, null, 0)
+                        .withStrategy(strategy).withAdaptivePredictor(true);
+                PDImageXObject adaptive = FlateImageWriter.write(document, deflater, image);
+                PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(image,
+                        adaptive.getImage());
+            }
+        }
+
+        /*
+         * Text compresses better if the predictor is chosen per row
+         */
+        PDImageXObject paeth = FlateImageWriter.write(document, PdfBoxGraphics2DDeflater.DEFAULT,
+                screenshot);
+        PDImageXObject adaptive = FlateImageWriter.write(document,
+                PdfBoxGraphics2DDeflater.DEFAULT.withAdaptivePredictor(true), screenshot);
+        assertTrue(encodedSize(adaptive) < encodedSize(paeth));
+        document.close();
+    }
+
+    private static BufferedImage render(PdfBoxGraphics2DDeflater deflater) throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PDPage page = new PDPage(new PDRectangle(400, 400));
+        document.addPage(page);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document,
+                new PDRectangle(400, 400), deflater);
+        PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        imageEncoder.setDeflater(deflater);
+        pdfBoxGraphics2D.setImageEncoder(imageEncoder);
+        Random random = new Random(7);
+        for (int i = 0; i < 5000; i++)
+        {
+            pdfBoxGraphics2D.setColor(new Color(random.nextInt(0x1000000)));
+            pdfBoxGraphics2D.fill(new Ellipse2D.Double(random.nextInt(380), random.nextInt(380),
+                    random.nextInt(20), random.nextInt(20)));
+        }
+        pdfBoxGraphics2D.drawImage(PdfBoxGraphics2DLosslessImageEncoderTest.createChart(300, 200),
+                50, 100, null);
+        pdfBoxGraphics2D.dispose();
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        contentStream.drawForm(pdfBoxGraphics2D.getXFormObject());
+        contentStream.close();
+        BufferedImage rendered = new PDFRenderer(document).renderImage(0);
+        document.close();
+        return rendered;
+    }
+
+    @Test
+    public void testParallelGraphics() throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try
+        {
+            PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(
+                    render(PdfBoxGraphics2DDeflater.DEFAULT),
+                    render(new PdfBoxGraphics2DDeflater(1, executor, 64 * 1024)));
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DDiskImageCacheTest
+{
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static BufferedImage createPhoto(int seed)
+    {
+        BufferedImage image = new BufferedImage(200, 150, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < image.getHeight(); y++)
+            for (int x = 0; x < image.getWidth(); x++)
+                image.setRGB(x, y, (x + y) % 50 == 0 ?
+                        0x80FF0000 :
+                        0xFF000000 | random.nextInt(0x1000000));
+        return image;
+    }
+
+    private static PDImageXObject encode(PdfBoxGraphics2DDiskImageCache diskCache,
+            PDDocument document, BufferedImage image)
+    {
+        /*
+         * A new encoder, as in a new run
+         */
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setDiskCache(diskCache);
+        return encoder.encodeImage(document, null, image,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+    }
+
+    @Test
+    public void testReuseAcrossRuns() throws IOException
+    {
+        File directory = temporaryFolder.newFolder();
+        BufferedImage photo = createPhoto(1);
+        BufferedImage chart = PdfBoxGraphics2DLosslessImageEncoderTest.createChart(120, 80);
+
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DDiskImageCache diskCache = new PdfBoxGraphics2DDiskImageCache(directory);
+        PDImageXObject photoX = encode(diskCache, document, photo);
+        PDImageXObject chartX = encode(diskCache, document, chart);
+        assertEquals(2, diskCache.getMissCount());
+        assertEquals(0, diskCache.getHitCount());
+        assertTrue(diskCache.getCurrentBytes() > 0);
+        document.close();
+
+        /*
+         * A new cache instance on the same directory finds the entries
+         */
+        document = new PDDocument();
+        diskCache = new PdfBoxGraphics2DDiskImageCache(directory);
+        PDImageXObject cachedPhotoX = encode(diskCache, document, createPhoto(1));
+        PDImageXObject cachedChartX = encode(diskCache, document,
+                PdfBoxGraphics2DLosslessImageEncoderTest.createChart(120, 80));
+        assertEquals(2, diskCache.getHitCount());
+        assertEquals(0, diskCache.getMissCount());
+        assertNotNull(cachedPhotoX.getSoftMask());
+        assertEquals("Indexed", cachedChartX.getColorSpace().getName());
+        assertEquals(photoX.getCOSObject().getLength(), cachedPhotoX.getCOSObject().getLength());
+        assertEquals(chartX.getCOSObject().getFilters(), cachedChartX.getCOSObject().getFilters());
+        PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(photo, cachedPhotoX.getImage());
+        PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(chart, cachedChartX.getImage());
+
+        /*
+         * Other pixels or other settings do not match
+         */
+        encode(diskCache, document, createPhoto(2));
+        assertEquals(1, diskCache.getMissCount());
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setDiskCache(diskCache);
+        encoder.setReduceColors(false);
+        PDImageXObject unreduced = encoder.encodeImage(document, null, chart,
+                PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV);
+        assertEquals(2, diskCache.getMissCount());
+        assertEquals("DeviceRGB", unreduced.getColorSpace().getName());
+        document.close();
+    }
+
+    @Test
+    public void testEviction() throws IOException
+    {
+        File directory = temporaryFolder.newFolder();
+        PdfBoxGraphics2DDiskImageCache diskCache = new PdfBoxGraphics2DDiskImageCache(directory);
+        PDDocument document = new PDDocument();
+        encode(diskCache, document, createPhoto(1));
+        long entryBytes = diskCache.getCurrentBytes();
+        diskCache.setMaxBytes(entryBytes * 3);
+        for (int i = 2; i <= 5; i++)
+            encode(diskCache, document, createPhoto(i));
+        assertTrue(diskCache.getEvictionCount() > 0);
+        assertTrue(diskCache.getCurrentBytes() <= entryBytes * 3);
+
+        /*
+         * The latest entry is still there
+         */
+        long hits = diskCache.getHitCount();
+        encode(diskCache, document, createPhoto(5));
+        assertEquals(hits + 1, diskCache.getHitCount());
+
+        diskCache.clear();
+        assertEquals(0, diskCache.getCurrentBytes());
+        document.close();
+    }
+
+    @Test
+    public void testBrokenEntry() throws IOException
+    {
+        File directory = temporaryFolder.newFolder();
+        PdfBoxGraphics2DDiskImageCache diskCache = new PdfBoxGraphics2DDiskImageCache(directory);
+        BufferedImage photo = createPhoto(1);
+        PDDocument document = new PDDocument();
+        encode(diskCache, document, photo);
+
+        /*
+         * Truncate the entry
+         */
+        for (File subDirectory : directory.listFiles())
+        {
+            for (File file : subDirectory.listFiles())
+            {
+                FileOutputStream out = new FileOutputStream(file, true);
+                out.getChannel().truncate(file.length() / 2);
+                out.close();
+            }
+        }
+        PDImageXObject x = encode(diskCache, document, photo);
+        assertEquals(2, diskCache.getMissCount());
+        assertEquals(COSName.FLATE_DECODE, x.getCOSObject().getFilters());
+        PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(photo, x.getImage());
+
+        /*
+         * And it has been written again
+         */
+        encode(diskCache, document, photo);
+        assertEquals(1, diskCache.getHitCount());
+        document.close();
+    }
+}
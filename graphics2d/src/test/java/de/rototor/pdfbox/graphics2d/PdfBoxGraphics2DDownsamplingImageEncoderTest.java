@@ -0,0 +1,113 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DDownsamplingImageEncoderTest extends PdfBoxGraphics2DTestBase
+{
+    private static IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv env(
+            final AffineTransform imageTransform)
+    {
+        return new IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageTransformEnv()
+        {
+            @Override
+            public ImageInterpolation getImageInterpolation()
+            {
+                return ImageInterpolation.Interpolate;
+            }
+
+            @Override
+            public AffineTransform getImageTransform()
+            {
+                return imageTransform;
+            }
+        };
+    }
+
+    @Test
+    public void testComputeTargetSize()
+    {
+        /*
+         * 720 pixels on 72 points (1 inch) are 720 DPI
+         */
+        AffineTransform tf = AffineTransform.getScaleInstance(0.1, 0.1);
+        assertEquals(new Dimension(300, 150),
+                PdfBoxGraphics2DDownsamplingImageEncoder.computeTargetSize(720, 360, tf, 300));
+        assertNull("Never upsample",
+                PdfBoxGraphics2DDownsamplingImageEncoder.computeTargetSize(720, 360, tf, 1000));
+        assertNull(PdfBoxGraphics2DDownsamplingImageEncoder.computeTargetSize(720, 360, null, 300));
+
+        tf.rotate(Math.PI / 2);
+        assertEquals(new Dimension(300, 150),
+                PdfBoxGraphics2DDownsamplingImageEncoder.computeTargetSize(720, 360, tf, 300));
+    }
+
+    @Test
+    public void testDownsample() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage img = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 1000, 800);
+        g.dispose();
+
+        PdfBoxGraphics2DDownsamplingImageEncoder encoder = new PdfBoxGraphics2DDownsamplingImageEncoder();
+        encoder.setMaxDPI(72);
+        AffineTransform tf = AffineTransform.getScaleInstance(0.1, 0.1);
+        PDImageXObject x1 = encoder.encodeImage(document, null, img, env(tf));
+        assertEquals(100, x1.getWidth());
+        assertEquals(80, x1.getHeight());
+        BufferedImage decoded = x1.getImage();
+        assertEquals(0xFFFFFFFF, decoded.getRGB(0, 0));
+        assertEquals(0xFFFFFFFF, decoded.getRGB(99, 79));
+
+        assertSame(x1, encoder.encodeImage(document, null, img, env(tf)));
+        PDImageXObject x2 = encoder.encodeImage(document, null, img,
+                env(AffineTransform.getScaleInstance(0.2, 0.2)));
+        assertEquals(200, x2.getWidth());
+        assertEquals(1, encoder.getImageCache().getHitCount());
+        assertEquals(2, encoder.getImageCache().getMissCount());
+
+        PDImageXObject full = encoder.encodeImage(document, null, img, env(null));
+        assertEquals(1000, full.getWidth());
+        assertEquals("An env without transform is passed as is", 1000,
+                encoder.encodeImage(document, null, img,
+                        PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV).getWidth());
+        document.close();
+    }
+
+    @Test
+    public void testDownsampleDrawing()
+    {
+        exportGraphic("imageenc", "downsampled", new GraphicsExporter()
+        {
+            @Override
+            public void draw(Graphics2D gfx) throws IOException
+            {
+                if (gfx instanceof PdfBoxGraphics2D)
+                {
+                    PdfBoxGraphics2DDownsamplingImageEncoder encoder = new PdfBoxGraphics2DDownsamplingImageEncoder();
+                    encoder.setMaxDPI(100);
+                    ((PdfBoxGraphics2D) gfx).setImageEncoder(encoder);
+                }
+                BufferedImage img1 = PdfBoxGraphics2DLosslessImageEncoderTest.readImage(
+                        "Rose-ProPhoto.jpg");
+                BufferedImage img2 = PdfBoxGraphics2DLosslessImageEncoderTest.readImage(
+                        "16bit-image1.png");
+                gfx.drawImage(img1, 30, 20, 75, 50, null);
+                gfx.rotate(0.3);
+                gfx.drawImage(img1, 130, 20, 150, 100, null);
+                gfx.drawImage(img2, 30, 150, 32, 32, null);
+            }
+        });
+    }
+}
@@ -0,0 +1,152 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DLosslessImageEncoderTest.INTERPOLATE_ENV;
+import static de.rototor.pdfbox.graphics2d.PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels;
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DEncodedImageTest extends PdfBoxGraphics2DTestBase
+{
+    private static byte[] readResource(String name) throws IOException
+    {
+        InputStream inputStream = PdfBoxGraphics2DEncodedImageTest.class.getResourceAsStream(name);
+        try
+        {
+            return IOUtils.toByteArray(inputStream);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * The colors may differ slightly because of the color management, so we
+     * compare the samples.
+     */
+    private static void assertSameSamples(Raster expected, Raster actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertEquals(expected.getNumBands(), actual.getNumBands());
+        for (int b = 0; b < expected.getNumBands(); b++)
+            assertArrayEquals(expected.getSamples(0, 0, expected.getWidth(),
+                    expected.getHeight(), b, (int[]) null), actual.getSamples(0, 0,
+                    actual.getWidth(), actual.getHeight(), b, (int[]) null));
+    }
+
+    @Test
+    public void testJPEGPassThrough() throws IOException
+    {
+        byte[] data = readResource("Italy-P3.jpg");
+        PdfBoxGraphics2DEncodedImage image = new PdfBoxGraphics2DEncodedImage(data);
+        assertTrue(image.isJPEG());
+        BufferedImage decoded = image.getDecodedImage();
+        assertEquals(decoded.getWidth(), image.getWidth(null));
+        assertEquals(decoded.getHeight(), image.getHeight(null));
+
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PDImageXObject x = encoder.encodeImage(document, null, image, INTERPOLATE_ENV);
+        assertEquals(COSName.DCT_DECODE, x.getCOSObject().getFilters());
+        assertEquals("ICCBased", x.getColorSpace().getName());
+        assertArrayEquals(data, IOUtils.toByteArray(x.getCOSObject().createRawInputStream()));
+        assertSame(x, encoder.encodeImage(document, null, image, INTERPOLATE_ENV));
+        document.close();
+    }
+
+    @Test
+    public void testPNGPassThrough() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        for (String name : Arrays.asList("colortest.png", "16bit-image2.png",
+                "maskingExample.png"))
+        {
+            PdfBoxGraphics2DEncodedImage image = new PdfBoxGraphics2DEncodedImage(
+                    readResource(name));
+            assertFalse(image.isJPEG());
+            PDImageXObject x = encoder.encodeImage(document, null, image, INTERPOLATE_ENV);
+            assertEquals(COSName.FLATE_DECODE, x.getCOSObject().getFilters());
+            assertNotNull(x.getCOSObject().getDictionaryObject(COSName.DECODE_PARMS));
+            assertSameSamples(image.getDecodedImage().getRaster(), x.getRawRaster());
+        }
+
+        /*
+         * Palette images become Indexed images
+         */
+        BufferedImage chart = PdfBoxGraphics2DLosslessImageEncoderTest.createChart(120, 80);
+        BufferedImage indexed = new BufferedImage(chart.getWidth(), chart.getHeight(),
+                BufferedImage.TYPE_BYTE_INDEXED);
+        Graphics2D g = indexed.createGraphics();
+        g.drawImage(chart, 0, 0, null);
+        g.dispose();
+        assertTrue(indexed.getColorModel() instanceof IndexColorModel);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(indexed, "PNG", out);
+        PdfBoxGraphics2DEncodedImage image = new PdfBoxGraphics2DEncodedImage(out.toByteArray());
+        PDImageXObject x = encoder.encodeImage(document, null, image, INTERPOLATE_ENV);
+        assertEquals(COSName.FLATE_DECODE, x.getCOSObject().getFilters());
+        assertEquals("Indexed", x.getColorSpace().getName());
+        assertSamePixels(image.getDecodedImage(), x.getImage());
+
+        /*
+         * PNGs with alpha are decoded and encoded again
+         */
+        image = new PdfBoxGraphics2DEncodedImage(readResource("pixeltest.png"));
+        x = encoder.encodeImage(document, null, image, INTERPOLATE_ENV);
+        assertNotNull(x.getCOSObject().getDictionaryObject(COSName.MASK));
+        document.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidData() throws IOException
+    {
+        new PdfBoxGraphics2DEncodedImage(new byte[] { 'G', 'I', 'F', '8', '9', 'a' });
+    }
+
+    @Test
+    public void testDrawEncodedImages() throws IOException
+    {
+        final PdfBoxGraphics2DEncodedImage jpeg = new PdfBoxGraphics2DEncodedImage(
+                readResource("Rose-ProPhoto.jpg"));
+        final PdfBoxGraphics2DEncodedImage png = new PdfBoxGraphics2DEncodedImage(
+                readResource("colortest.png"));
+        exportGraphic("imageenc", "encodedImages", new GraphicsExporter()
+        {
+            @Override
+            public void draw(Graphics2D gfx)
+            {
+                if (!(gfx instanceof PdfBoxGraphics2D))
+                {
+                    /*
+                     * Other Graphics2D implementations need the decoded image
+                     */
+                    gfx.drawImage(jpeg.getDecodedImage(), 10, 10, 200, 150, null);
+                    gfx.drawImage(png.getDecodedImage(), 220, 10, null);
+                    gfx.drawImage(jpeg.getDecodedImage(), 10, 170, 200, 150, null);
+                    return;
+                }
+                gfx.drawImage(jpeg, 10, 10, 200, 150, null);
+                gfx.drawImage(png, 220, 10, null);
+                ((PdfBoxGraphics2D) gfx).setImageEncoder(new PdfBoxGraphics2DAutoImageEncoder());
+                gfx.drawImage(jpeg, 10, 170, 200, 150, null);
+            }
+        });
+    }
+}
@@ -0,0 +1,172 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDInlineImage;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DInlineImageTest
+{
+    private static BufferedImage createIcon(int type, Color color)
+    {
+        BufferedImage icon = new BufferedImage(16, 16, type);
+        Graphics2D g = icon.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 16, 16);
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(color);
+        g.fillOval(2, 2, 12, 12);
+        g.dispose();
+        return icon;
+    }
+
+    private static List<BufferedImage> createIcons()
+    {
+        List<BufferedImage> icons = new ArrayList<BufferedImage>();
+        /*
+         * Indexed, gray, RGB and (with a mask) an XObject
+         */
+        BufferedImage twoColors = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = twoColors.createGraphics();
+        g.setColor(Color.YELLOW);
+        g.fillRect(0, 0, 16, 16);
+        g.setColor(Color.BLUE);
+        g.fillRect(4, 4, 8, 8);
+        g.dispose();
+        icons.add(twoColors);
+        icons.add(createIcon(BufferedImage.TYPE_BYTE_GRAY, Color.DARK_GRAY));
+        BufferedImage gradient = new BufferedImage(24, 24, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 24; y++)
+            for (int x = 0; x < 24; x++)
+                gradient.setRGB(x, y, new Color(x * 10, y * 10, x * y / 3).getRGB());
+        icons.add(gradient);
+        BufferedImage masked = createIcon(BufferedImage.TYPE_INT_ARGB, Color.RED);
+        masked.setRGB(0, 0, 0);
+        icons.add(masked);
+        return icons;
+    }
+
+    private static List<Object> parseContent(PDFormXObject form) throws IOException
+    {
+        InputStream in = form.getContentStream().createInputStream();
+        try
+        {
+            PDFStreamParser parser = new PDFStreamParser(IOUtils.toByteArray(in));
+            parser.parse();
+            return parser.getTokens();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static BufferedImage render(int inlineImageThreshold, List<Object> tokens,
+            int[] xObjectCount) throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PDPage page = new PDPage(new PDRectangle(100, 40));
+        document.addPage(page);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 40);
+        pdfBoxGraphics2D.setInlineImageThreshold(inlineImageThreshold);
+        int x = 0;
+        for (BufferedImage icon : createIcons())
+        {
+            pdfBoxGraphics2D.drawImage(icon, x, 0, 20, 20, null);
+            x += 24;
+        }
+        pdfBoxGraphics2D.dispose();
+        PDFormXObject form = pdfBoxGraphics2D.getXFormObject();
+        tokens.addAll(parseContent(form));
+        int count = 0;
+        for (Object ignored : form.getResources().getXObjectNames())
+            count++;
+        xObjectCount[0] = count;
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        contentStream.drawForm(form);
+        contentStream.close();
+        BufferedImage rendered = new PDFRenderer(document).renderImage(0, 2);
+        document.close();
+        return rendered;
+    }
+
+    @Test
+    public void testInlineImages() throws IOException
+    {
+        List<Object> tokens = new ArrayList<Object>();
+        int[] xObjectCount = new int[1];
+        BufferedImage expected = render(0, tokens, xObjectCount);
+        assertEquals(4, xObjectCount[0]);
+
+        tokens.clear();
+        BufferedImage actual = render(2048, tokens, xObjectCount);
+        PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(expected, actual);
+        /*
+         * Only the masked icon stays an XObject
+         */
+        assertEquals(1, xObjectCount[0]);
+        List<PDInlineImage> inlineImages = new ArrayList<PDInlineImage>();
+        for (Object token : tokens)
+        {
+            if (token instanceof Operator && ((Operator) token).getName().equals("BI"))
+                inlineImages.add(new PDInlineImage(((Operator) token).getImageParameters(),
+                        ((Operator) token).getImageData(), null));
+        }
+        assertEquals(3, inlineImages.size());
+        assertEquals("Indexed", inlineImages.get(0).getColorSpace().getName());
+        assertEquals("DeviceGray", inlineImages.get(1).getColorSpace().getName());
+        assertEquals("DeviceRGB", inlineImages.get(2).getColorSpace().getName());
+        for (PDInlineImage inlineImage : inlineImages)
+            assertEquals("Fl", inlineImage.getFilters().get(0));
+
+        /*
+         * Too small threshold
+         */
+        tokens.clear();
+        render(10, tokens, xObjectCount);
+        assertEquals(4, xObjectCount[0]);
+    }
+
+    @Test
+    public void testAsyncImagesAreNotInlined() throws IOException
+    {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            PDDocument document = new PDDocument();
+            PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 40);
+            PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+            imageEncoder.setAsyncExecutor(executor);
+            pdfBoxGraphics2D.setImageEncoder(imageEncoder);
+            pdfBoxGraphics2D.setInlineImageThreshold(2048);
+            pdfBoxGraphics2D.drawImage(createIcon(BufferedImage.TYPE_INT_RGB, Color.GREEN), 0, 0,
+                    null);
+            pdfBoxGraphics2D.dispose();
+            assertTrue(pdfBoxGraphics2D.getXFormObject().getResources().getXObjectNames()
+                    .iterator().hasNext());
+            document.close();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
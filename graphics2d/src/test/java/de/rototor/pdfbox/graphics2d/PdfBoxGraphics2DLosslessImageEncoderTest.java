@@ -0,0 +1,654 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.ImageConsumer;
+import java.awt.image.ImageProducer;
+import java.awt.image.MemoryImageSource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DLosslessImageEncoderTest
+{
+    static final IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv INTERPOLATE_ENV = new IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv()
+    {
+        @Override
+        public ImageInterpolation getImageInterpolation()
+        {
+            return ImageInterpolation.Interpolate;
+        }
+    };
+
+    static BufferedImage readImage(String name) throws IOException
+    {
+        return ImageIO.read(PdfBoxGraphics2DLosslessImageEncoderTest.class.getResourceAsStream(
+                name));
+    }
+
+    @Test
+    public void testDeduplicateByContent() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage logo1 = readImage("colortest.png");
+        BufferedImage logo2 = readImage("colortest.png");
+        BufferedImage other = readImage("pixeltest.png");
+        assertNotSame(logo1, logo2);
+
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PDImageXObject x1 = encoder.encodeImage(document, null, logo1, INTERPOLATE_ENV);
+        PDImageXObject x2 = encoder.encodeImage(document, null, logo2, INTERPOLATE_ENV);
+        assertNotSame("Without deduplication only the identity is used", x1, x2);
+
+        encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setDeduplicateByContent(true);
+        x1 = encoder.encodeImage(document, null, logo1, INTERPOLATE_ENV);
+        x2 = encoder.encodeImage(document, null, logo2, INTERPOLATE_ENV);
+        PDImageXObject x3 = encoder.encodeImage(document, null, other, INTERPOLATE_ENV);
+        assertSame(x1, x2);
+        assertNotSame(x1, x3);
+
+        logo2.setRGB(0, 0, ~logo2.getRGB(0, 0));
+        BufferedImage logo3 = readImage("colortest.png");
+        logo3.setRGB(0, 0, logo2.getRGB(0, 0));
+        assertNotSame("A changed pixel must give a new image", x1,
+                encoder.encodeImage(document, null, logo3, INTERPOLATE_ENV));
+        document.close();
+    }
+
+    @Test
+    public void testContentKeyEquality() throws IOException
+    {
+        BufferedImage a = readImage("colortest.png");
+        BufferedImage b = readImage("colortest.png");
+        ImageContentKey keyA = new ImageContentKey(a, null);
+        ImageContentKey keyB = new ImageContentKey(b, null);
+        assertEquals(keyA, keyB);
+        assertEquals(keyA.hashCode(), keyB.hashCode());
+        assertNotEquals(keyA, new ImageContentKey(b, "other"));
+
+        BufferedImage sub = a.getSubimage(1, 1, a.getWidth() - 1, a.getHeight() - 1);
+        BufferedImage subCopy = b.getSubimage(1, 1, b.getWidth() - 1, b.getHeight() - 1);
+        assertEquals(new ImageContentKey(sub, null), new ImageContentKey(subCopy, null));
+        assertNotEquals(keyA, new ImageContentKey(sub, null));
+    }
+
+    @Test
+    public void testCacheWithMultipleDocuments() throws IOException
+    {
+        PDDocument document1 = new PDDocument();
+        PDDocument document2 = new PDDocument();
+        BufferedImage img = readImage("colortest.png");
+
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PdfBoxGraphics2DImageCache cache = encoder.getImageCache();
+        PDImageXObject x1 = encoder.encodeImage(document1, null, img, INTERPOLATE_ENV);
+        PDImageXObject x2 = encoder.encodeImage(document2, null, img, INTERPOLATE_ENV);
+        assertNotSame("Every document needs its own image", x1, x2);
+        assertSame(x1, encoder.encodeImage(document1, null, img, INTERPOLATE_ENV));
+        assertSame(x2, encoder.encodeImage(document2, null, img, INTERPOLATE_ENV));
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.size());
+
+        cache.clear(document1);
+        assertEquals(1, cache.size());
+        assertNotSame(x1, encoder.encodeImage(document1, null, img, INTERPOLATE_ENV));
+        document1.close();
+        document2.close();
+    }
+
+    @Test
+    public void testCacheBudgetEviction() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage img1 = readImage("colortest.png");
+        BufferedImage img2 = readImage("pixeltest.png");
+
+        PdfBoxGraphics2DImageCache cache = new PdfBoxGraphics2DImageCache(1);
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder(
+                cache);
+        PDImageXObject x1 = encoder.encodeImage(document, null, img1, INTERPOLATE_ENV);
+        assertSame("The last entry is always kept", x1,
+                encoder.encodeImage(document, null, img1, INTERPOLATE_ENV));
+        encoder.encodeImage(document, null, img2, INTERPOLATE_ENV);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(1, cache.size());
+        assertNotSame(x1, encoder.encodeImage(document, null, img1, INTERPOLATE_ENV));
+
+        cache.setMaxBytes(PdfBoxGraphics2DImageCache.DEFAULT_MAX_BYTES);
+        PDImageXObject x2 = encoder.encodeImage(document, null, img2, INTERPOLATE_ENV);
+        assertSame(x2, encoder.encodeImage(document, null, img2, INTERPOLATE_ENV));
+        assertTrue(cache.getCurrentBytes() > 0);
+        document.close();
+    }
+
+    @Test
+    public void testIdentityEntryPurged() throws IOException, InterruptedException
+    {
+        PDDocument document = new PDDocument();
+        BufferedImage img = readImage("colortest.png");
+
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PdfBoxGraphics2DImageCache cache = encoder.getImageCache();
+        PDImageXObject x = encoder.encodeImage(document, null, img, INTERPOLATE_ENV);
+        assertEquals(1, cache.size());
+        assertEquals("The weakly held source image is not charged",
+                PdfBoxGraphics2DImageCache.estimateEncodedBytes(x), cache.getCurrentBytes());
+
+        //noinspection UnusedAssignment
+        img = null;
+        for (int i = 0; i < 100 && cache.size() > 0; i++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals("The entry is purged when the image is gone", 0, cache.size());
+        assertEquals(0, cache.getCurrentBytes());
+        document.close();
+    }
+
+    @Test
+    public void testAsyncEncoding() throws IOException
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try
+        {
+            PDDocument document = new PDDocument();
+            BufferedImage img1 = readImage("colortest.png");
+            BufferedImage img2 = readImage("Rose-ProPhoto.jpg");
+
+            PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+            encoder.setAsyncExecutor(executorService);
+            PDImageXObject x1 = encoder.encodeImage(document, null, img1, INTERPOLATE_ENV);
+            PDImageXObject x2 = encoder.encodeImage(document, null, img2, INTERPOLATE_ENV);
+            assertSame(x1, encoder.encodeImage(document, null, img1, INTERPOLATE_ENV));
+            encoder.awaitPendingImages(document);
+
+            PDImageXObject sync1 = new PdfBoxGraphics2DLosslessImageEncoder().encodeImage(document,
+                    null, img1, INTERPOLATE_ENV);
+            assertSamePixels(sync1.getImage(), x1.getImage());
+            PDImageXObject sync2 = new PdfBoxGraphics2DLosslessImageEncoder().encodeImage(document,
+                    null, img2, INTERPOLATE_ENV);
+            assertSamePixels(sync2.getImage(), x2.getImage());
+            assertEquals(sync2.getColorSpace().getName(), x2.getColorSpace().getName());
+
+            BufferedImage img3 = readImage("pixeltest.png");
+            PDImageXObject x3 = encoder.encodeImage(document, null, img3, INTERPOLATE_ENV);
+            encoder.awaitPendingImages(document);
+            assertEquals("Indexed", x3.getColorSpace().getName());
+            assertNull(x3.getSoftMask());
+            assertNotNull(x3.getCOSObject().getDictionaryObject(COSName.MASK));
+            assertSamePixels(img3, x3.getImage());
+            document.close();
+        }
+        finally
+        {
+            executorService.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testAsyncEncodingRejected() throws IOException
+    {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        executorService.shutdown();
+        PDDocument document = new PDDocument();
+        BufferedImage img = readImage("colortest.png");
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setAsyncExecutor(executorService);
+
+        /*
+         * The rejected image is encoded right away, and dispose() does not wait for it
+         */
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        pdfBoxGraphics2D.setImageEncoder(encoder);
+        pdfBoxGraphics2D.drawImage(img, 0, 0, null);
+        pdfBoxGraphics2D.dispose();
+
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        COSName name = resources.getXObjectNames().iterator().next();
+        assertSamePixels(img, ((PDImageXObject) resources.getXObject(name)).getImage());
+        document.close();
+    }
+
+    @Test
+    public void testAsyncEncodingSaveAndReload() throws IOException
+    {
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try
+        {
+            PDDocument document = new PDDocument();
+            BufferedImage indexed = readImage("pixeltest.png");
+            ColorModel linearRGB = new ComponentColorModel(
+                    ColorSpace.getInstance(ColorSpace.CS_LINEAR_RGB), false, false,
+                    Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+            BufferedImage icc = new BufferedImage(linearRGB,
+                    linearRGB.createCompatibleWritableRaster(64, 64), false, null);
+            for (int y = 0; y < icc.getHeight(); y++)
+                for (int x = 0; x < icc.getWidth(); x++)
+                    icc.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8 | 0x80);
+
+            PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+            encoder.setAsyncExecutor(executorService);
+            PDPage page = new PDPage();
+            document.addPage(page);
+            PDPageContentStream contentStream = new PDPageContentStream(document, page);
+            contentStream.drawImage(encoder.encodeImage(document, null, indexed, INTERPOLATE_ENV),
+                    0, 0);
+            contentStream.drawImage(encoder.encodeImage(document, null, icc, INTERPOLATE_ENV), 0,
+                    100);
+            contentStream.close();
+            /*
+             * This closes the scratch documents the images were encoded into
+             */
+            encoder.awaitPendingImages(document);
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            document.save(baos);
+            document.close();
+
+            PDDocument reloaded = PDDocument.load(baos.toByteArray());
+            PDResources resources = reloaded.getPage(0).getResources();
+            List<PDImageXObject> images = new ArrayList<PDImageXObject>();
+            for (COSName name : resources.getXObjectNames())
+                images.add((PDImageXObject) resources.getXObject(name));
+            assertEquals(2, images.size());
+            assertEquals("Indexed", images.get(0).getColorSpace().getName());
+            assertSamePixels(indexed, images.get(0).getImage());
+            assertEquals("ICCBased", images.get(1).getColorSpace().getName());
+            reloaded.close();
+        }
+        finally
+        {
+            executorService.shutdown();
+        }
+    }
+
+    static void assertSamePixels(BufferedImage expected, BufferedImage actual)
+    {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++)
+            for (int x = 0; x < expected.getWidth(); x++)
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+    }
+
+    @Test
+    public void testColorReduction() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+
+        BufferedImage bilevel = new BufferedImage(33, 20, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = bilevel.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 33, 20);
+        g.setColor(Color.BLACK);
+        g.fillRect(3, 3, 17, 9);
+        g.dispose();
+        PDImageXObject x = encoder.encodeImage(document, null, bilevel, INTERPOLATE_ENV);
+        assertEquals(1, x.getBitsPerComponent());
+        assertEquals("DeviceGray", x.getColorSpace().getName());
+        assertNull(x.getSoftMask());
+        assertSamePixels(bilevel, x.getImage());
+
+        BufferedImage gray = new BufferedImage(256, 10, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < 256; i++)
+            gray.setRGB(i, i % 10, i * 0x010101);
+        x = encoder.encodeImage(document, null, gray, INTERPOLATE_ENV);
+        assertEquals(8, x.getBitsPerComponent());
+        assertEquals("DeviceGray", x.getColorSpace().getName());
+        assertSamePixels(gray, x.getImage());
+
+        BufferedImage chart = createChart(120, 80);
+        x = encoder.encodeImage(document, null, chart, INTERPOLATE_ENV);
+        assertEquals("Indexed", x.getColorSpace().getName());
+        assertEquals(2, x.getBitsPerComponent());
+        assertSamePixels(chart, x.getImage());
+
+        BufferedImage translucent = createChart(50, 50);
+        BufferedImage withAlpha = new BufferedImage(50, 50, BufferedImage.TYPE_INT_ARGB);
+        g = withAlpha.createGraphics();
+        g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC, 0.5f));
+        g.drawImage(translucent, 0, 0, null);
+        g.dispose();
+        x = encoder.encodeImage(document, null, withAlpha, INTERPOLATE_ENV);
+        assertEquals("Indexed", x.getColorSpace().getName());
+        assertNotNull(x.getSoftMask());
+
+        BufferedImage photo = readImage("Italy-P3.jpg");
+        x = encoder.encodeImage(document, null, photo, INTERPOLATE_ENV);
+        assertEquals("DeviceRGB", x.getColorSpace().getName());
+        document.close();
+    }
+
+    @Test
+    public void testParallelColorScan()
+    {
+        BufferedImage large = createChart(2000, 1500);
+        ImageColorReducer.ScanResult result = ImageColorReducer.scan(large);
+        assertEquals(3, result.getColorCount());
+        assertFalse(result.isGrayOnly());
+        assertFalse(result.hasAlpha());
+
+        large.setRGB(1999, 1499, 0x00FFFFFF);
+        result = ImageColorReducer.scan(large);
+        assertTrue(result.hasAlpha());
+        assertEquals(3, result.getColorCount());
+    }
+
+    static BufferedImage createChart(int width, int height)
+    {
+        BufferedImage chart = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = chart.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.RED);
+        g.fillRect(width / 4, height / 4, width / 4, height / 2);
+        g.setColor(Color.BLUE);
+        g.fillRect(width / 2, height / 3, width / 4, height / 2);
+        g.dispose();
+        return chart;
+    }
+
+    @Test
+    public void testDirectRasterTypes() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setReduceColors(false);
+        BufferedImage photo = readImage("Italy-P3.jpg");
+        int[] types = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+                BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_GRAY,
+                BufferedImage.TYPE_USHORT_GRAY };
+        for (int type : types)
+        {
+            BufferedImage img = new BufferedImage(photo.getWidth(), photo.getHeight(), type);
+            Graphics2D g = img.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+            g.drawImage(photo, 0, 0, null);
+            g.setColor(new Color(255, 0, 0, 100));
+            g.fillRect(10, 10, 100, 100);
+            g.dispose();
+
+            BufferedImage expected = LosslessFactory.createFromImage(document, img).getImage();
+            assertSamePixels(expected,
+                    encoder.encodeImage(document, null, img, INTERPOLATE_ENV).getImage());
+
+            /*
+             * The LosslessFactory handles child rasters of gray images differently, so
+             * we compare with the full image.
+             */
+            BufferedImage sub = img.getSubimage(5, 7, 101, 53);
+            assertSamePixels(expected.getSubimage(5, 7, 101, 53),
+                    encoder.encodeImage(document, null, sub, INTERPOLATE_ENV).getImage());
+        }
+        document.close();
+    }
+
+    @Test
+    public void testToolkitImageCacheHit() throws IOException
+    {
+        BufferedImage source = readImage("pixeltest.png");
+        int width = source.getWidth();
+        int height = source.getHeight();
+        final int[] pixels = source.getRGB(0, 0, width, height, null, 0, width);
+        /*
+         * The color of transparent pixels is not preserved, so we use an opaque image
+         */
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] |= 0xFF000000;
+        source.setRGB(0, 0, width, height, pixels, 0, width);
+        final MemoryImageSource memorySource = new MemoryImageSource(width, height, pixels, 0,
+                width);
+        final int[] productions = new int[1];
+        Image toolkitImage = Toolkit.getDefaultToolkit().createImage(new ImageProducer()
+        {
+            @Override
+            public void addConsumer(ImageConsumer ic)
+            {
+                memorySource.addConsumer(ic);
+            }
+
+            @Override
+            public boolean isConsumer(ImageConsumer ic)
+            {
+                return memorySource.isConsumer(ic);
+            }
+
+            @Override
+            public void removeConsumer(ImageConsumer ic)
+            {
+                memorySource.removeConsumer(ic);
+            }
+
+            @Override
+            public void startProduction(ImageConsumer ic)
+            {
+                productions[0]++;
+                memorySource.startProduction(ic);
+            }
+
+            @Override
+            public void requestTopDownLeftRightResend(ImageConsumer ic)
+            {
+                memorySource.requestTopDownLeftRightResend(ic);
+            }
+        });
+
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        PDImageXObject x1 = encoder.encodeImage(document, null, toolkitImage, INTERPOLATE_ENV);
+        assertSamePixels(source, x1.getImage());
+        int productionsAfterEncode = productions[0];
+        assertTrue(productionsAfterEncode > 0);
+
+        /*
+         * After a flush the image would have to be produced again, if the encoder
+         * looked at the pixels.
+         */
+        toolkitImage.flush();
+        for (int i = 0; i < 10; i++)
+            assertSame(x1, encoder.encodeImage(document, null, toolkitImage, INTERPOLATE_ENV));
+        assertEquals(productionsAfterEncode, productions[0]);
+        assertEquals(10, encoder.getImageCache().getHitCount());
+        document.close();
+    }
+
+    private static IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageEncoderEnv regionEnv(
+            final Rectangle sourceRegion, final Rectangle[] encodedRegion)
+    {
+        return new IPdfBoxGraphics2DImageEncoder.IPdfBoxGraphics2DImageRegionEnv()
+        {
+            @Override
+            public ImageInterpolation getImageInterpolation()
+            {
+                return ImageInterpolation.NearestNeigbor;
+            }
+
+            @Override
+            public Rectangle getSourceRegion()
+            {
+                return new Rectangle(sourceRegion);
+            }
+
+            @Override
+            public void setEncodedRegion(Rectangle region)
+            {
+                encodedRegion[0] = region;
+            }
+        };
+    }
+
+    @Test
+    public void testSourceRegion() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        BufferedImage sheet = createChart(400, 400);
+        Rectangle[] encodedRegion = new Rectangle[1];
+
+        Rectangle sprite = new Rectangle(100, 50, 40, 30);
+        PDImageXObject x1 = encoder.encodeImage(document, null, sheet,
+                regionEnv(sprite, encodedRegion));
+        assertEquals(sprite, encodedRegion[0]);
+        assertEquals(40, x1.getWidth());
+        assertEquals(30, x1.getHeight());
+        assertSamePixels(sheet.getSubimage(100, 50, 40, 30), x1.getImage());
+        assertEquals("An env without regions gets the whole image", 400,
+                encoder.encodeImage(document, null, createChart(400, 400), INTERPOLATE_ENV)
+                        .getWidth());
+
+        encodedRegion[0] = null;
+        assertSame(x1, encoder.encodeImage(document, null, sheet,
+                regionEnv(sprite, encodedRegion)));
+        assertEquals(sprite, encodedRegion[0]);
+
+        /*
+         * Regions outside of the image are clipped
+         */
+        encoder.encodeImage(document, null, sheet,
+                regionEnv(new Rectangle(-10, 390, 50, 50), encodedRegion));
+        assertEquals(new Rectangle(0, 390, 40, 10), encodedRegion[0]);
+
+        /*
+         * When the regions would cover more than half of the image, the whole image
+         * is encoded and then used for all regions.
+         */
+        encodedRegion[0] = null;
+        PDImageXObject whole = encoder.encodeImage(document, null, sheet,
+                regionEnv(new Rectangle(0, 0, 300, 300), encodedRegion));
+        assertNull(encodedRegion[0]);
+        assertEquals(400, whole.getWidth());
+        assertSame(whole, encoder.encodeImage(document, null, sheet,
+                regionEnv(new Rectangle(200, 200, 10, 10), encodedRegion)));
+        assertNull(encodedRegion[0]);
+        document.close();
+    }
+
+    @Test
+    public void testDrawSourceRegion() throws IOException
+    {
+        BufferedImage sheet = new BufferedImage(200, 200, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = sheet.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 100, 100);
+        g.setColor(Color.GREEN);
+        g.fillRect(100, 0, 100, 100);
+        g.setColor(Color.BLUE);
+        g.fillRect(0, 100, 100, 100);
+        g.setColor(Color.YELLOW);
+        g.fillRect(100, 100, 100, 100);
+        g.dispose();
+
+        PDDocument document = new PDDocument();
+        PDPage page = new PDPage(new PDRectangle(200, 100));
+        document.addPage(page);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 200, 100);
+        pdfBoxGraphics2D.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        /*
+         * Green sprite scaled to 100x50 on the left, yellow sprite flipped on the
+         * right
+         */
+        pdfBoxGraphics2D.drawImage(sheet, 0, 0, 100, 50, 100, 0, 200, 100, null);
+        pdfBoxGraphics2D.drawImage(sheet, 100, 0, 200, 100, 200, 200, 100, 100, null);
+        pdfBoxGraphics2D.dispose();
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        contentStream.drawForm(pdfBoxGraphics2D.getXFormObject());
+        contentStream.close();
+
+        BufferedImage rendered = new PDFRenderer(document).renderImage(0);
+        assertEquals(Color.GREEN.getRGB(), rendered.getRGB(50, 25));
+        assertEquals(Color.WHITE.getRGB(), rendered.getRGB(50, 75));
+        assertEquals(Color.YELLOW.getRGB(), rendered.getRGB(150, 50));
+        document.close();
+    }
+
+    private static BufferedImage photoWithAlpha(BufferedImage photo, Color tint, int alpha)
+    {
+        BufferedImage img = new BufferedImage(photo.getWidth(), photo.getHeight(),
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = img.createGraphics();
+        g.drawImage(photo, 0, 0, null);
+        g.setColor(tint);
+        g.fillRect(0, 0, 20, 20);
+        if (alpha != 0xFF)
+        {
+            g.setComposite(AlphaComposite.Src);
+            g.setColor(new Color(0, 0, 0, alpha));
+            g.fillOval(50, 50, 200, 100);
+        }
+        g.dispose();
+        return img;
+    }
+
+    @Test
+    public void testAlphaMasks() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        BufferedImage photo = readImage("Italy-P3.jpg");
+
+        PDImageXObject opaque = encoder.encodeImage(document, null,
+                photoWithAlpha(photo, Color.RED, 0xFF), INTERPOLATE_ENV);
+        assertNull(opaque.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertNull(opaque.getCOSObject().getDictionaryObject(COSName.MASK));
+
+        BufferedImage binary = photoWithAlpha(photo, Color.RED, 0);
+        PDImageXObject stencil = encoder.encodeImage(document, null, binary, INTERPOLATE_ENV);
+        assertNull(stencil.getCOSObject().getDictionaryObject(COSName.SMASK));
+        PDImageXObject mask = new PDImageXObject(new PDStream(
+                (COSStream) stencil.getCOSObject().getDictionaryObject(COSName.MASK)), null);
+        assertTrue(mask.isStencil());
+        assertEquals(1, mask.getBitsPerComponent());
+        BufferedImage decoded = stencil.getImage();
+        assertEquals(0, decoded.getRGB(150, 100) >>> 24);
+        assertEquals(0xFF, decoded.getRGB(10, 10) >>> 24);
+        assertEquals(binary.getRGB(10, 10), decoded.getRGB(10, 10));
+
+        /*
+         * Images with the same alpha share their mask
+         */
+        PDImageXObject translucent1 = encoder.encodeImage(document, null,
+                photoWithAlpha(photo, Color.RED, 100), INTERPOLATE_ENV);
+        PDImageXObject translucent2 = encoder.encodeImage(document, null,
+                photoWithAlpha(photo, Color.BLUE, 100), INTERPOLATE_ENV);
+        assertNotSame(translucent1, translucent2);
+        assertNotNull(translucent1.getSoftMask());
+        assertSame(translucent1.getCOSObject().getDictionaryObject(COSName.SMASK),
+                translucent2.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertSame(stencil.getCOSObject().getDictionaryObject(COSName.MASK),
+                encoder.encodeImage(document, null, photoWithAlpha(photo, Color.GREEN, 0),
+                        INTERPOLATE_ENV).getCOSObject().getDictionaryObject(COSName.MASK));
+        assertNotSame(translucent1.getCOSObject().getDictionaryObject(COSName.SMASK),
+                encoder.encodeImage(document, null, photoWithAlpha(photo, Color.RED, 101),
+                        INTERPOLATE_ENV).getCOSObject().getDictionaryObject(COSName.SMASK));
+        document.close();
+    }
+}
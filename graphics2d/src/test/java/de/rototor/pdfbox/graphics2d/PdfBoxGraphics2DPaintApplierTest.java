@@ -1,8 +1,18 @@
 package de.rototor.pdfbox.graphics2d;
 
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShading;
+import org.apache.pdfbox.rendering.PDFRenderer;
 import org.junit.Test;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
 
 import static org.junit.Assert.*;
 
@@ -16,4 +26,71 @@ public class PdfBoxGraphics2DPaintApplierTest
         assertTrue(PdfBoxGraphics2DPaintApplier.haveColorsTransparency(
                 new Color[] { Color.BLACK, Color.BLUE, new Color(128, 128, 128, 128) }));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetPropertyValue()
+    {
+        RadialGradientPaint paint = new RadialGradientPaint(new Point2D.Float(10, 20), 5,
+                new float[] { 0, 1 }, new Color[] { Color.RED, Color.BLUE });
+        Color[] colors = PdfBoxGraphics2DPaintApplier.getPropertyValue(paint, "getColors");
+        assertArrayEquals(new Color[] { Color.RED, Color.BLUE }, colors);
+        float radius = PdfBoxGraphics2DPaintApplier.getPropertyValue(paint, "getRadius");
+        assertEquals(5f, radius, 0f);
+        Point2D center = PdfBoxGraphics2DPaintApplier.getPropertyValue(paint, "getCenterPoint");
+        assertEquals(new Point2D.Float(10, 20), center);
+        try
+        {
+            PdfBoxGraphics2DPaintApplier.getPropertyValue(paint, "getNothing");
+            fail();
+        }
+        catch (RuntimeException ignored)
+        {
+        }
+    }
+
+    @Test
+    public void testRegisterPaintHandler() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        PdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier();
+        final int[] calls = new int[1];
+        paintApplier.registerPaintHandler(GradientPaint.class, new IPdfBoxGraphics2DPaintApplier()
+        {
+            @Override
+            public PDShading applyPaint(Paint paint, PDPageContentStream contentStream,
+                    AffineTransform currentTransform, IPaintEnv env) throws IOException
+            {
+                calls[0]++;
+                contentStream.setNonStrokingColor(Color.RED);
+                return null;
+            }
+        });
+        pdfBoxGraphics2D.setPaintApplier(paintApplier);
+
+        /*
+         * The handler also gets the subclasses, and the other paints are not affected
+         */
+        pdfBoxGraphics2D.setPaint(new GradientPaint(0, 0, Color.GREEN, 50, 0, Color.BLUE));
+        pdfBoxGraphics2D.fillRect(0, 0, 50, 100);
+        pdfBoxGraphics2D.setPaint(new GradientPaint(0, 0, Color.GREEN, 50, 0, Color.BLUE)
+        {
+        });
+        pdfBoxGraphics2D.fillRect(50, 0, 25, 100);
+        pdfBoxGraphics2D.setColor(Color.BLUE);
+        pdfBoxGraphics2D.fillRect(75, 0, 25, 100);
+        pdfBoxGraphics2D.dispose();
+        assertEquals(2, calls[0]);
+
+        PDPage page = new PDPage(new PDRectangle(100, 100));
+        document.addPage(page);
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        contentStream.drawForm(pdfBoxGraphics2D.getXFormObject());
+        contentStream.close();
+        BufferedImage rendered = new PDFRenderer(document).renderImage(0);
+        assertEquals(Color.RED.getRGB(), rendered.getRGB(10, 50));
+        assertEquals(Color.RED.getRGB(), rendered.getRGB(60, 50));
+        assertEquals(Color.BLUE.getRGB(), rendered.getRGB(90, 50));
+        document.close();
+    }
+}
@@ -0,0 +1,404 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
+
+import static org.junit.Assert.*;
+
+public class PdfBoxGraphics2DRenderedImageTest
+{
+    /**
+     * A tiled image which computes its pixels on demand, like JAI images do. It
+     * remembers the biggest area requested at once.
+     */
+    private static class ProceduralImage implements RenderedImage
+    {
+        private static final int TILE_SIZE = 256;
+        private final ColorModel colorModel;
+        private final int minX;
+        private final int minY;
+        private final int width;
+        private final int height;
+        long maxRequestedPixels;
+        long requestedPixels;
+
+        ProceduralImage(ColorModel colorModel, int minX, int minY, int width, int height)
+        {
+            this.colorModel = colorModel;
+            this.minX = minX;
+            this.minY = minY;
+            this.width = width;
+            this.height = height;
+        }
+
+        int getARGB(int x, int y)
+        {
+            int alpha = 0xFF;
+            if (colorModel.hasAlpha() && x % 7 == 0)
+                alpha = 0;
+            return (alpha << 24) | ((x & 0xFF) << 16) | ((y & 0xFF) << 8) | ((x + y) >> 4 & 0xFF);
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources()
+        {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name)
+        {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames()
+        {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel()
+        {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel()
+        {
+            return colorModel.createCompatibleSampleModel(TILE_SIZE, TILE_SIZE);
+        }
+
+        @Override
+        public int getWidth()
+        {
+            return width;
+        }
+
+        @Override
+        public int getHeight()
+        {
+            return height;
+        }
+
+        @Override
+        public int getMinX()
+        {
+            return minX;
+        }
+
+        @Override
+        public int getMinY()
+        {
+            return minY;
+        }
+
+        @Override
+        public int getNumXTiles()
+        {
+            return (width + TILE_SIZE - 1) / TILE_SIZE;
+        }
+
+        @Override
+        public int getNumYTiles()
+        {
+            return (height + TILE_SIZE - 1) / TILE_SIZE;
+        }
+
+        @Override
+        public int getMinTileX()
+        {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY()
+        {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth()
+        {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileHeight()
+        {
+            return TILE_SIZE;
+        }
+
+        @Override
+        public int getTileGridXOffset()
+        {
+            return minX;
+        }
+
+        @Override
+        public int getTileGridYOffset()
+        {
+            return minY;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY)
+        {
+            return getData(new Rectangle(minX + tileX * TILE_SIZE, minY + tileY * TILE_SIZE,
+                    TILE_SIZE, TILE_SIZE));
+        }
+
+        @Override
+        public Raster getData()
+        {
+            throw new UnsupportedOperationException("Image is too big");
+        }
+
+        @Override
+        public Raster getData(Rectangle rect)
+        {
+            maxRequestedPixels = Math.max(maxRequestedPixels, (long) rect.width * rect.height);
+            requestedPixels += (long) rect.width * rect.height;
+            BufferedImage image = new BufferedImage(colorModel,
+                    colorModel.createCompatibleWritableRaster(rect.width, rect.height),
+                    colorModel.isAlphaPremultiplied(), null);
+            for (int y = 0; y < rect.height; y++)
+                for (int x = 0; x < rect.width; x++)
+                    image.setRGB(x, y, getARGB(rect.x - minX + x, rect.y - minY + y));
+            return image.getRaster().createWritableTranslatedChild(rect.x, rect.y);
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster)
+        {
+            throw new UnsupportedOperationException("Image is too big");
+        }
+    }
+
+    private static void assertBandPixels(ProceduralImage image, int bandY, BufferedImage band)
+    {
+        assertEquals(image.getWidth(), band.getWidth());
+        for (int y = 0; y < band.getHeight(); y++)
+            for (int x = 0; x < band.getWidth(); x++)
+            {
+                int expected = image.getARGB(x, bandY + y);
+                if (expected >>> 24 == 0)
+                    assertEquals(0, band.getRGB(x, y) >>> 24);
+                else
+                    assertEquals(expected, band.getRGB(x, y));
+            }
+    }
+
+    @Test
+    public void testWriteBand() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2DDeflater deflater = PdfBoxGraphics2DDeflater.DEFAULT;
+        ProceduralImage rgb = new ProceduralImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF),
+                -20, 30, 300, 700);
+        PDImageXObject band = TiledImageWriter.writeBand(document, deflater, rgb, 256, 300);
+        assertEquals(300, band.getHeight());
+        assertNull(band.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertNull(band.getCOSObject().getDictionaryObject(COSName.MASK));
+        assertBandPixels(rgb, 256, band.getImage());
+
+        /*
+         * Images with alpha get their mask, images the row readers do not know are
+         * read as ARGB
+         */
+        ProceduralImage argb = new ProceduralImage(ColorModel.getRGBdefault(), 0, 0, 300, 700);
+        band = TiledImageWriter.writeBand(document, deflater, argb, 0, 700);
+        assertEquals("The alpha is classified while writing, every pixel is fetched once",
+                300 * 700, argb.requestedPixels);
+        assertNotNull(band.getCOSObject().getDictionaryObject(COSName.MASK));
+        assertNull(band.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertBandPixels(argb, 0, band.getImage());
+        ProceduralImage ushort = new ProceduralImage(
+                new DirectColorModel(16, 0xF800, 0x07E0, 0x001F), 0, 0, 100, 50);
+        band = TiledImageWriter.writeBand(document, deflater, ushort, 10, 40);
+        BufferedImage bandImage = band.getImage();
+        BufferedImage expected = new BufferedImage(ushort.getColorModel(),
+                ((WritableRaster) ushort.getData(new Rectangle(0, 10, 100, 40)))
+                        .createWritableTranslatedChild(0, 0), false, null);
+        PdfBoxGraphics2DLosslessImageEncoderTest.assertSamePixels(expected, bandImage);
+        document.close();
+    }
+
+    @Test
+    public void testClassifyAlphaWhileWriting() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        final int[] alphaValues = { 0xFF, 0xFF, 0xFF };
+        FlateImageWriter.RowSource source = new FlateImageWriter.RowSource()
+        {
+            @Override
+            public void readRow(int y, byte[] color, byte[] alpha)
+            {
+                Arrays.fill(color, (byte) y);
+                Arrays.fill(alpha, (byte) alphaValues[y]);
+            }
+        };
+        PDImageXObject opaque = FlateImageWriter.write(document,
+                PdfBoxGraphics2DDeflater.DEFAULT, 4, 3, 8, 1, PDDeviceGray.INSTANCE, true, null,
+                source);
+        assertNull(opaque.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertNull(opaque.getCOSObject().getDictionaryObject(COSName.MASK));
+
+        alphaValues[1] = 0;
+        PDImageXObject binary = FlateImageWriter.write(document,
+                PdfBoxGraphics2DDeflater.DEFAULT, 4, 3, 8, 1, PDDeviceGray.INSTANCE, true, null,
+                source);
+        assertNull(binary.getCOSObject().getDictionaryObject(COSName.SMASK));
+        assertNotNull(binary.getCOSObject().getDictionaryObject(COSName.MASK));
+
+        alphaValues[2] = 0x80;
+        PDImageXObject translucent = FlateImageWriter.write(document,
+                PdfBoxGraphics2DDeflater.DEFAULT, 4, 3, 8, 1, PDDeviceGray.INSTANCE, true, null,
+                source);
+        assertNull(translucent.getCOSObject().getDictionaryObject(COSName.MASK));
+        assertEquals(0x80, translucent.getSoftMask().getImage().getRaster().getSample(0, 2, 0));
+        document.close();
+    }
+
+    @Test
+    public void testDrawHugeRenderedImage() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        ProceduralImage image = new ProceduralImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF),
+                10, 20, 4200, 4200);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 420, 420);
+        pdfBoxGraphics2D.drawRenderedImage(image, AffineTransform.getScaleInstance(0.1, 0.1));
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * The image is split in bands aligned to the tiles, and never fetched as a
+         * whole
+         */
+        assertTrue(image.maxRequestedPixels <= 1024 * 1024);
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        List<PDImageXObject> bands = new ArrayList<PDImageXObject>();
+        for (COSName name : resources.getXObjectNames())
+            bands.add((PDImageXObject) resources.getXObject(name));
+        assertEquals(2, bands.size());
+        List<Integer> heights = new ArrayList<Integer>();
+        for (PDImageXObject band : bands)
+        {
+            assertEquals(4200, band.getWidth());
+            heights.add(band.getHeight());
+        }
+        assertTrue(heights.contains(3840));
+        assertTrue(heights.contains(360));
+        document.close();
+    }
+
+    @Test
+    public void testDrawRenderedImageTwice() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        ProceduralImage image = new ProceduralImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF),
+                0, 0, 600, 500);
+        PdfBoxGraphics2DLosslessImageEncoder encoder = new PdfBoxGraphics2DLosslessImageEncoder();
+        encoder.setMinStreamedPixels(100 * 100);
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 600, 1000);
+        pdfBoxGraphics2D.setImageEncoder(encoder);
+        pdfBoxGraphics2D.drawRenderedImage(image, new AffineTransform());
+        pdfBoxGraphics2D.drawRenderedImage(image, AffineTransform.getTranslateInstance(0, 500));
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * The two bands (aligned to the tiles) are streamed once and then taken from
+         * the image cache
+         */
+        assertEquals(600 * 500, image.requestedPixels);
+        assertEquals(2, encoder.getImageCache().getHitCount());
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        int count = 0;
+        for (COSName ignored : resources.getXObjectNames())
+            count++;
+        assertEquals(2, count);
+        document.close();
+    }
+
+    @Test
+    public void testDrawHugeRenderedImageWithOtherEncoder() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        final int size = 2100;
+        ProceduralImage image = new ProceduralImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF),
+                0, 0, size, size)
+        {
+            @Override
+            public WritableRaster copyData(WritableRaster raster)
+            {
+                return (WritableRaster) getData(new Rectangle(0, 0, size, size));
+            }
+        };
+        final List<Image> encoded = new ArrayList<Image>();
+        final PdfBoxGraphics2DLosslessImageEncoder lossless = new PdfBoxGraphics2DLosslessImageEncoder();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 210, 210);
+        pdfBoxGraphics2D.setImageEncoder(new IPdfBoxGraphics2DImageEncoder()
+        {
+            @Override
+            public PDImageXObject encodeImage(PDDocument document,
+                    PDPageContentStream contentStream, Image image,
+                    IPdfBoxGraphics2DImageEncoderEnv env)
+            {
+                encoded.add(image);
+                return lossless.encodeImage(document, contentStream, image, env);
+            }
+        });
+        pdfBoxGraphics2D.drawRenderedImage(image, AffineTransform.getScaleInstance(0.1, 0.1));
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * An encoder which can not stream gets the whole image
+         */
+        assertEquals(1, encoded.size());
+        assertEquals(size, encoded.get(0).getWidth(null));
+        assertEquals(size, encoded.get(0).getHeight(null));
+        document.close();
+    }
+
+    @Test
+    public void testDrawSmallRenderedImage() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        ProceduralImage image = new ProceduralImage(ColorModel.getRGBdefault(), 5, 5, 60, 40)
+        {
+            @Override
+            public WritableRaster copyData(WritableRaster raster)
+            {
+                return (WritableRaster) getData(new Rectangle(5, 5, 60, 40));
+            }
+        };
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 100, 100);
+        pdfBoxGraphics2D.drawRenderedImage(image, new AffineTransform());
+        pdfBoxGraphics2D.dispose();
+        PDResources resources = pdfBoxGraphics2D.getXFormObject().getResources();
+        COSName name = resources.getXObjectNames().iterator().next();
+        PDImageXObject x = (PDImageXObject) resources.getXObject(name);
+        assertEquals(60, x.getWidth());
+        assertEquals(40, x.getHeight());
+        document.close();
+    }
+}
@@ -0,0 +1,48 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+import static org.junit.Assert.*;
+
+public class PropertyAccessorTest
+{
+    /**
+     * Stands in for a class which is not on our class path, e.g. a Batik
+     * GraphicsNode
+     */
+    public static class Node
+    {
+        public int getSize()
+        {
+            return 42;
+        }
+
+        public void paint(Graphics2D graphics)
+        {
+            graphics.setColor(Color.RED);
+            graphics.fillRect(0, 0, 2, 2);
+        }
+    }
+
+    @Test
+    public void testGetterAndMethod()
+    {
+        assertEquals(Integer.valueOf(42), new PropertyAccessor<Integer>("getSize").get(new Node()));
+
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        assertNull(new PropertyAccessor<Void>("paint", Graphics2D.class).invoke(new Node(),
+                graphics));
+        graphics.dispose();
+        assertEquals(Color.RED.getRGB(), image.getRGB(1, 1));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testMissingMethod()
+    {
+        new PropertyAccessor<Void>("paint", String.class).invoke(new Node(), "");
+    }
+}
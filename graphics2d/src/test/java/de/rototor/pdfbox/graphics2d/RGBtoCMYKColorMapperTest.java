@@ -0,0 +1,130 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ICC_Profile;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RGBtoCMYKColorMapperTest
+{
+    static RGBtoCMYKColorMapper createColorMapper(PDDocument document) throws IOException
+    {
+        ICC_Profile iccProfile = ICC_Profile.getInstance(PDDocument.class.getResourceAsStream(
+                "/org/apache/pdfbox/resources/icc/ISOcoated_v2_300_bas.icc"));
+        return new RGBtoCMYKColorMapper(iccProfile, document);
+    }
+
+    private static float maxDifference(RGBtoCMYKColorMapper exact,
+            RGBtoCMYKColorMapper interpolated, Color color)
+    {
+        float[] expected = exact.mapColor(color, null).getComponents();
+        float[] actual = interpolated.mapColor(color, null).getComponents();
+        assertEquals(4, actual.length);
+        float max = 0;
+        for (int i = 0; i < 4; i++)
+            max = Math.max(max, Math.abs(expected[i] - actual[i]));
+        return max;
+    }
+
+    @Test
+    public void testLookupTable() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        RGBtoCMYKColorMapper exact = createColorMapper(document);
+        RGBtoCMYKColorMapper interpolated = createColorMapper(document);
+        assertEquals(0, interpolated.getLookupTableSize());
+        interpolated.setLookupTableSize(RGBtoCMYKColorMapper.DEFAULT_LOOKUP_TABLE_SIZE);
+
+        /*
+         * The corners are grid points
+         */
+        for (Color color : new Color[] { Color.BLACK, Color.WHITE, Color.RED, Color.GREEN,
+                Color.BLUE, Color.CYAN, Color.MAGENTA, Color.YELLOW })
+            assertEquals(0, maxDifference(exact, interpolated, color), 1e-6);
+
+        Random random = new Random(42);
+        float max = 0;
+        for (int i = 0; i < 2000; i++)
+            max = Math.max(max, maxDifference(exact, interpolated,
+                    new Color(random.nextInt(0x1000000))));
+        assertTrue("max difference " + max, max < 4f / 255);
+
+        /*
+         * Memoized colors are not shared with the caller
+         */
+        interpolated.mapColor(Color.ORANGE, null).getComponents()[0] = 7;
+        assertTrue(interpolated.mapColor(Color.ORANGE, null).getComponents()[0] <= 1);
+        assertEquals(0, maxDifference(interpolated, interpolated, Color.ORANGE), 0);
+
+        interpolated.setLookupTableSize(17);
+        max = 0;
+        for (int i = 0; i < 2000; i++)
+            max = Math.max(max, maxDifference(exact, interpolated,
+                    new Color(random.nextInt(0x1000000))));
+        assertTrue("max difference " + max, max < 8f / 255);
+
+        interpolated.setLookupTableSize(0);
+        assertEquals(0, maxDifference(exact, interpolated, Color.ORANGE), 0);
+        document.close();
+    }
+
+    @Test
+    public void testChangeLookupTableSizeWhileMapping() throws Exception
+    {
+        PDDocument document = new PDDocument();
+        final RGBtoCMYKColorMapper colorMapper = createColorMapper(document);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread mapper = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Random random = new Random(42);
+                    for (int i = 0; i < 20000; i++)
+                        assertEquals(4, colorMapper.mapColor(
+                                new Color(random.nextInt(0x1000000)), null)
+                                .getComponents().length);
+                }
+                catch (Throwable e)
+                {
+                    failure.set(e);
+                }
+            }
+        };
+        mapper.start();
+        while (mapper.isAlive())
+        {
+            /*
+             * A mapping thread must never see the new size together with the old grid
+             */
+            colorMapper.setLookupTableSize(2);
+            colorMapper.setLookupTableSize(0);
+        }
+        mapper.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        document.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLookupTableSize() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        try
+        {
+            createColorMapper(document).setLookupTableSize(1);
+        }
+        finally
+        {
+            document.close();
+        }
+    }
+}
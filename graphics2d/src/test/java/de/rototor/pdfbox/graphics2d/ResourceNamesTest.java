@@ -0,0 +1,99 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ResourceNamesTest
+{
+    private static int count(Iterable<COSName> names)
+    {
+        int count = 0;
+        for (COSName ignored : names)
+            count++;
+        return count;
+    }
+
+    @Test
+    public void testManyResources() throws IOException
+    {
+        PDDocument document = new PDDocument();
+        PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(document, 400, 400);
+        BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_INT_RGB);
+        Graphics2D imageGraphics = image.createGraphics();
+        imageGraphics.setColor(Color.BLUE);
+        imageGraphics.fillRect(0, 0, 20, 20);
+        imageGraphics.dispose();
+
+        for (int i = 0; i < 5000; i++)
+        {
+            pdfBoxGraphics2D.setColor(new Color(255, 0, 0, 1 + i % 200));
+            pdfBoxGraphics2D.fillRect(i % 300, 0, 10, 300);
+        }
+        for (int i = 0; i < 50; i++)
+        {
+            pdfBoxGraphics2D.setPaint(new GradientPaint(0, 0, Color.GREEN, 100, 0,
+                    new Color(0, i * 5, 255)));
+            pdfBoxGraphics2D.fillRect(300, i * 2, 100, 2);
+        }
+        pdfBoxGraphics2D.setComposite(AlphaComposite.SrcOver);
+        pdfBoxGraphics2D.setColor(Color.WHITE);
+        pdfBoxGraphics2D.fillRect(0, 300, 400, 100);
+        for (int i = 0; i < 100; i++)
+            pdfBoxGraphics2D.drawImage(image, (i % 20) * 20, 300 + (i / 20) * 20, null);
+        pdfBoxGraphics2D.dispose();
+
+        /*
+         * Each resource is registered once, the ExtGStates are the 200 alphas and the
+         * opaque state
+         */
+        PDFormXObject xFormObject = pdfBoxGraphics2D.getXFormObject();
+        PDResources resources = xFormObject.getResources();
+        assertEquals(201, count(resources.getExtGStateNames()));
+        assertEquals(50, count(resources.getShadingNames()));
+        assertEquals(1, count(resources.getXObjectNames()));
+
+        /*
+         * And the content stream refers to them correctly
+         */
+        PDPage page = new PDPage(new PDRectangle(400, 400));
+        document.addPage(page);
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        contentStream.drawForm(xFormObject);
+        contentStream.close();
+        BufferedImage rendered = new PDFRenderer(document).renderImage(0);
+        assertEquals(Color.BLUE.getRGB(), rendered.getRGB(10, 390));
+        Color gradient = new Color(rendered.getRGB(395, 200));
+        assertTrue(gradient.getGreen() > 200);
+        Color translucent = new Color(rendered.getRGB(150, 100));
+        assertEquals(255, translucent.getRed());
+        assertTrue(translucent.getGreen() < 100);
+        document.close();
+    }
+
+    @Test
+    public void testNestedResourcesKeepTheirNames()
+    {
+        PDResources resources = new PDResources();
+        PDResources nested = new PDResources();
+        ResourceNames resourceNames = new ResourceNames(resources);
+        assertSame(resourceNames, resourceNames.forResources(resources));
+
+        ResourceNames nestedNames = resourceNames.forResources(nested);
+        assertTrue(nestedNames.isFor(nested));
+        assertSame(nestedNames, resourceNames.forResources(nested));
+        assertNotSame(nestedNames, resourceNames.forResources(new PDResources()));
+    }
+}